@@ -39,7 +39,7 @@ public final class BroadcastAdvertisement {
    */
   private final int mServicePort;
   
-  BroadcastAdvertisement(String name, InetAddress addr, int port) {
+  public BroadcastAdvertisement(String name, InetAddress addr, int port) {
     mServiceName = name;
     mServiceAddress = addr;
     mServicePort = port;
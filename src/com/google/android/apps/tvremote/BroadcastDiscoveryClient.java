@@ -17,198 +17,111 @@
 package com.google.android.apps.tvremote;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.google.android.apps.tvremote.discovery.BroadcastDiscoveryEngine;
+import com.google.android.apps.tvremote.discovery.DiscoveryBackend;
+
 /**
  * An implementation of a trivial broadcast discovery protocol.
  * <p>
  * This client sends L3 broadcasts to probe for particular services on the
- * network.
+ * network. Probes are sent to the broadcast address of every active interface
+ * by a {@link BroadcastDiscoveryEngine}; responses are forwarded to the main
+ * thread.
  */
-public class BroadcastDiscoveryClient implements Runnable {
+public class BroadcastDiscoveryClient implements DiscoveryBackend {
 
   private static final String LOG_TAG = "BroadcastDiscoveryClient";
 
-  /**
-   * UDP port to send probe messages to.
-   */
-  private static final int BROADCAST_SERVER_PORT = 9101;
-
-  /**
-   * Frequency of probe messages.
-   */
-  private static final int PROBE_INTERVAL_MS = 6000;
-
-  /**
-   * Command name for a discovery request.
-   */
-  private static final String COMMAND_DISCOVER = "discover";
-
-  /**
-   * Service name to discover.
-   */
-  private static final String DESIRED_SERVICE = "_anymote._tcp";
-
-  /**
-   * Broadcast address of the local device.
-   */
-  private final InetAddress mBroadcastAddress;
-
-  /**
-   * Timer to send probes.
-   */
-  private final Timer mProbeTimer;
-
-  /**
-   * TimerTask to send probes.
-   */
-  private final TimerTask mProbeTimerTask;
-
   /**
    * Handle to main thread.
    */
   private final Handler mHandler;
 
   /**
-   * Send/receive socket.
+   * Engine sending probes and receiving responses.
    */
-  private final DatagramSocket mSocket;
+  private final BroadcastDiscoveryEngine mEngine;
 
   /**
    * Constructor
    *
-   * @param broadcastAddress  destination address for probes
+   * @param broadcastAddress  destination address for probes, in addition to
+   *                          broadcast addresses of all active interfaces
    * @param handler  update Handler in main thread
    */
   public BroadcastDiscoveryClient(InetAddress broadcastAddress,
       Handler handler) {
-    mBroadcastAddress = broadcastAddress;
     mHandler = handler;
 
+    List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+    targets.add(new InetSocketAddress(broadcastAddress,
+        BroadcastDiscoveryEngine.BROADCAST_SERVER_PORT));
     try {
-      mSocket = new DatagramSocket(); // binds to random port
-      mSocket.setBroadcast(true);
-    } catch (SocketException e) {
+      for (InetAddress address
+          : BroadcastDiscoveryEngine.getBroadcastAddresses()) {
+        InetSocketAddress target = new InetSocketAddress(address,
+            BroadcastDiscoveryEngine.BROADCAST_SERVER_PORT);
+        if (!targets.contains(target)) {
+          targets.add(target);
+        }
+      }
+      mEngine = new BroadcastDiscoveryEngine(targets,
+          new DiscoveryBackend.Listener() {
+            public void onServiceFound(BroadcastAdvertisement advert,
+                long rttMs) {
+              handleResponse(advert, rttMs);
+            }
+
+            public void onProbeSent() {
+              mHandler.obtainMessage(DeviceFinder.PROBE_ROUND,
+                  DeviceFinder.SOURCE_BROADCAST, 0).sendToTarget();
+            }
+          });
+    } catch (IOException e) {
       Log.e(LOG_TAG, "Could not create broadcast client socket.", e);
       throw new RuntimeException();
     }
-
-    mProbeTimer = new Timer();
-    mProbeTimerTask = new TimerTask() {
-      @Override
-      public void run() {
-        BroadcastDiscoveryClient.this.sendProbe();
-      }
-    };
-    Log.i(LOG_TAG, "Starting client on address " + mBroadcastAddress);
+    Log.i(LOG_TAG, "Starting client on addresses " + targets);
   }
 
   /** {@inheritDoc} */
   public void run() {
     Log.i(LOG_TAG, "Broadcast client thread starting.");
-    byte[] buffer = new byte[256];
-
-    mProbeTimer.schedule(mProbeTimerTask, 0, PROBE_INTERVAL_MS);
-
-    while (true) {
-      try {
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        mSocket.receive(packet);
-        handleResponsePacket(packet);
-      } catch (InterruptedIOException e) {
-        // timeout
-      } catch (IOException e) {
-        // SocketException - stop() was called
-        mProbeTimer.cancel();
-        break;
-      }
-    }
-    Log.i(LOG_TAG, "Exiting client loop.");
-    mProbeTimer.cancel();
+    mEngine.run();
+    Log.i(LOG_TAG, "Exiting client loop: " + mEngine.getProbeScheduler());
   }
 
-  /**
-   * Sends a single broadcast discovery request.
-   */
-  private void sendProbe() {
-    DatagramPacket packet = makeRequestPacket(DESIRED_SERVICE,
-        mSocket.getLocalPort());
-    try {
-      mSocket.send(packet);
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "Exception sending broadcast probe", e);
-      return;
-    }
+  /** {@inheritDoc} */
+  public void reset() {
+    mEngine.reset();
   }
 
-  /**
-   * Immediately stops the receiver thread, and cancels the probe timer.
-   */
+  /** {@inheritDoc} */
   public void stop() {
-    if (mSocket != null) {
-      mSocket.close();
-    }
-  }
-
-  /**
-   * Constructs a new probe packet.
-   *
-   * @param serviceName  the service name to discover
-   * @param responsePort  the udp port number for replies
-   * @return  a new DatagramPacket
-   */
-  private DatagramPacket makeRequestPacket(String serviceName,
-      int responsePort) {
-    String message = COMMAND_DISCOVER + " " + serviceName
-        + " " + responsePort + "\n";
-    byte[] buf = message.getBytes();
-    DatagramPacket packet = new DatagramPacket(buf, buf.length,
-        mBroadcastAddress, BROADCAST_SERVER_PORT);
-    return packet;
+    mEngine.stop();
   }
 
   /**
-   * Parse a received packet, and notify the main thread if valid.
+   * Notifies the main thread of a valid response.
    *
-   * @param packet  The locally-received DatagramPacket
+   * @param advert  the received advertisement
+   * @param rttMs  round-trip time measured by the engine
    */
-  private void handleResponsePacket(DatagramPacket packet) {
-    String strPacket = new String(packet.getData(), 0, packet.getLength());
-    String tokens[] = strPacket.trim().split("\\s+");
-
-    if (tokens.length != 3) {
-      Log.w(LOG_TAG, "Malformed response: expected 3 tokens, got "
-          + tokens.length);
-      return;
-    }
-
-    BroadcastAdvertisement advert;
-    try {
-      String serviceType = tokens[0];
-      if (!serviceType.equals(DESIRED_SERVICE)) {
-        return;
-      }
-      String serviceName = tokens[1];
-      int port = Integer.parseInt(tokens[2]);
-      InetAddress addr = packet.getAddress();
-      Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", "
-          + addr + ", " + port);
-      advert = new BroadcastAdvertisement(serviceName, addr, port);
-    } catch (NumberFormatException e) {
-      return;
-    }
-
+  private void handleResponse(BroadcastAdvertisement advert, long rttMs) {
+    Log.v(LOG_TAG, "Broadcast response: " + advert.getServiceName() + ", "
+        + advert.getServiceAddress() + ", " + advert.getServicePort()
+        + ", rtt " + rttMs + " ms");
     Message message = mHandler.obtainMessage(DeviceFinder.BROADCAST_RESPONSE,
+        DeviceFinder.SOURCE_BROADCAST, DeviceFinder.toMessageRtt(rttMs),
         advert);
     mHandler.sendMessage(message);
   }
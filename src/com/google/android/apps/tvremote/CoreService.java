@@ -16,6 +16,7 @@
 
 package com.google.android.apps.tvremote;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -23,18 +24,15 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
-import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
 
 import android.app.Service;
 import android.content.Intent;
@@ -49,7 +47,6 @@ import android.util.Log;
 import com.google.android.apps.tvremote.protocol.AnymoteSender;
 import com.google.android.apps.tvremote.protocol.DummySender;
 import com.google.android.apps.tvremote.util.Debug;
-import com.google.android.apps.tvremote.util.LimitedLinkedHashMap;
 
 /**
  * The central point to connect to a remote box and send commands.
@@ -83,7 +80,7 @@ public final class CoreService extends Service implements ConnectionManager {
 
   private RemoteDevice target;
 
-  private LimitedLinkedHashMap<InetAddress, RemoteDevice> recentlyConnected;
+  private DeviceRegistry deviceRegistry;
 
   /**
    * Key store manager.
@@ -107,7 +104,13 @@ public final class CoreService extends Service implements ConnectionManager {
   }
 
   /**
-   * Various tags used to store the service's configuration.
+   * Name of the file holding the service's configuration.
+   */
+  private static final String REGISTRY_FILENAME = "devices.registry";
+
+  /**
+   * Various tags used by earlier versions to store the service's
+   * configuration.
    */
   private static final String SHARED_PREF_NAME = "CoreServicePrefs";
   private static final String DEVICE_NAME_TAG = "DeviceName";
@@ -150,7 +153,8 @@ public final class CoreService extends Service implements ConnectionManager {
     super.onCreate();
     handler = new Handler(new ConnectionRequestCallback());
 
-    recentlyConnected = new LimitedLinkedHashMap<InetAddress, RemoteDevice>(
+    deviceRegistry = new DeviceRegistry(
+        new File(getFilesDir(), REGISTRY_FILENAME),
         getResources().getInteger(R.integer.recently_connected_count));
 
     keyStoreManager = new KeyStoreManager(this);
@@ -159,10 +163,10 @@ public final class CoreService extends Service implements ConnectionManager {
 
   @Override
   public void onDestroy() {
-    storeConfig();
+    deviceRegistry.close();
     cleanupSocket();
     if (keyStoreManager != null) {
-      keyStoreManager.store();
+      keyStoreManager.close();
     }
     super.onDestroy();
   }
@@ -215,59 +219,46 @@ public final class CoreService extends Service implements ConnectionManager {
   }
 
   /**
-   * Stores the service's configuration to saved preferences.
-   *
-   * @return      {@code true} if the config was saved
+   * Loads an existing configuration, and builds the socket to the target.
    */
-  private boolean storeConfig() {
-    SharedPreferences pref
-        = getSharedPreferences(SHARED_PREF_NAME, MODE_PRIVATE);
-    SharedPreferences.Editor prefEdit = pref.edit();
-    prefEdit.clear();
-
-    if (target != null) {
-      storeRemoteDevice(prefEdit, "", target);
-    }
-    int index = 0;
-    for (RemoteDevice remoteDevice : recentlyConnected.values()) {
-      storeRemoteDevice(prefEdit, "_" + index, remoteDevice);
-      ++index;
+  private void loadConfig() {
+    boolean loaded;
+    try {
+      loaded = deviceRegistry.load();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Cannot load device registry", e);
+      loaded = false;
     }
-    if (target != null || index > 0) {
-      prefEdit.commit();
-      return true;
+    if (!loaded) {
+      importPreferences();
     }
-    return false;
-  }
 
-  private void storeRemoteDevice(SharedPreferences.Editor prefEdit,
-      String suffix, RemoteDevice remoteDevice) {
-    prefEdit.putString(DEVICE_NAME_TAG + suffix, remoteDevice.getName());
-    prefEdit.putString(DEVICE_IP_TAG + suffix,
-        remoteDevice.getAddress().getHostAddress());
-    prefEdit.putInt(DEVICE_PORT_TAG + suffix, remoteDevice.getPort());
+    RemoteDevice restoredTarget = deviceRegistry.getTarget();
+    if (restoredTarget != null) {
+      setTarget(restoredTarget);
+    }
   }
 
   /**
-   * Loads an existing configuration, and builds the socket to the target.
+   * Moves a configuration stored in saved preferences by an earlier version
+   * to the device registry.
    */
-  private void loadConfig() {
+  private void importPreferences() {
     SharedPreferences pref
         = getSharedPreferences(SHARED_PREF_NAME, MODE_PRIVATE);
-
-    RemoteDevice restoredTarget = loadRemoteDevice(pref, "");
+    if (pref.getAll().isEmpty()) {
+      return;
+    }
 
     for (int i = 0; i < getResources()
         .getInteger(R.integer.recently_connected_count); ++i) {
       RemoteDevice remoteDevice = loadRemoteDevice(pref, "_" + i);
       if (remoteDevice != null) {
-        recentlyConnected.put(remoteDevice.getAddress(), remoteDevice);
+        deviceRegistry.addRecentlyConnected(remoteDevice);
       }
     }
-
-    if (restoredTarget != null) {
-      setTarget(restoredTarget);
-    }
+    deviceRegistry.setTarget(loadRemoteDevice(pref, ""));
+    pref.edit().clear().apply();
   }
 
   private RemoteDevice loadRemoteDevice(SharedPreferences pref, String suffix) {
@@ -300,9 +291,7 @@ public final class CoreService extends Service implements ConnectionManager {
   }
 
   private void addRecentlyConnected(RemoteDevice remoteDevice) {
-    recentlyConnected.remove(remoteDevice.getAddress());
-    recentlyConnected.put(remoteDevice.getAddress(), remoteDevice);
-    storeConfig();
+    deviceRegistry.addRecentlyConnected(remoteDevice);
   }
 
   // CONNECTION MANAGER
@@ -349,10 +338,7 @@ public final class CoreService extends Service implements ConnectionManager {
   }
 
   public ArrayList<RemoteDevice> getRecentlyConnected() {
-    ArrayList<RemoteDevice> devices = new ArrayList<RemoteDevice>(
-        recentlyConnected.values());
-    Collections.reverse(devices);
-    return devices;
+    return deviceRegistry.getRecentlyConnected();
   }
 
   public void pairingFinished() {
@@ -537,6 +523,7 @@ public final class CoreService extends Service implements ConnectionManager {
     private void handleSetTarget(RemoteDevice remoteDevice) {
       disconnect(true);
       target = remoteDevice;
+      deviceRegistry.setTarget(remoteDevice);
       if (target != null && changeState(State.CONNECTING)) {
         connect();
       }
@@ -746,23 +733,13 @@ public final class CoreService extends Service implements ConnectionManager {
      */
     private SSLSocket getSslSocket(RemoteDevice target)
         throws GeneralSecurityException, IOException {
-      // Build a new key store based on the key store manager.
-      KeyManager[] keyManagers = coreService.getKeyStoreManager()
-          .getKeyManagers();
-      TrustManager[] trustManagers = coreService.getKeyStoreManager()
-          .getTrustManagers();
-
-      if (keyManagers.length == 0) {
-        throw new IllegalStateException("No key managers");
-      }
-
-      // Create a new SSLContext, using the new KeyManagers and TrustManagers
-      // as the sources of keys and trust decisions, respectively.
-      SSLContext sslContext = SSLContext.getInstance("TLS");
-      sslContext.init(keyManagers, trustManagers, null);
+      // The context chooses the local identity matching the target, and only
+      // trusts paired boxes.
+      SSLContext sslContext =
+          coreService.getKeyStoreManager().createSslContext(false);
 
-      // Finally, build a new SSLSocketFactory from the SSLContext, and
-      // then generate a new SSLSocket from it.
+      // Build a new SSLSocketFactory from the SSLContext, and then generate a
+      // new SSLSocket from it.
       SSLSocketFactory factory = sslContext.getSocketFactory();
       SSLSocket sock = (SSLSocket) factory.createSocket();
       sock.setNeedClientAuth(true);
@@ -16,30 +16,36 @@
 
 package com.google.android.apps.tvremote;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.DhcpInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.InputFilter;
 import android.text.InputType;
@@ -61,10 +67,18 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.google.android.apps.tvremote.discovery.BroadcastDiscoveryEngine;
+import com.google.android.apps.tvremote.discovery.DiscoveryBackend;
+import com.google.android.apps.tvremote.discovery.DiscoveryCache;
+import com.google.android.apps.tvremote.discovery.MdnsDiscoveryClient;
+import com.google.android.apps.tvremote.discovery.SubnetSweeper;
 import com.google.android.apps.tvremote.util.Debug;
 
 /**
- * Device discovery with mDNS.
+ * Device discovery with UDP broadcast and mDNS.
+ * <p>
+ * Results of all discovery backends are merged by address into a single
+ * list of tracked devices.
  */
 public final class DeviceFinder extends Activity {
   private static final String LOG_TAG = "DeviceFinder";
@@ -74,6 +88,11 @@ public final class DeviceFinder extends Activity {
    */
   private static final int CODE_WIFI_SETTINGS = 1;
 
+  /**
+   * Name of the file holding the discovery cache.
+   */
+  private static final String DISCOVERY_CACHE_FILENAME = "discovery.cache";
+
   private ProgressDialog progressDialog;
   private AlertDialog confirmationDialog;
   private RemoteDevice previousRemoteDevice;
@@ -92,6 +111,7 @@ public final class DeviceFinder extends Activity {
   public DeviceFinder() {
     dataAdapter = new DeviceFinderListAdapter();
     trackedDevices = new TrackedDevices();
+    discoveryBackends = new ArrayList<DiscoveryBackend>();
   }
 
   @Override
@@ -108,6 +128,10 @@ public final class DeviceFinder extends Activity {
 
     broadcastHandler = new BroadcastHandler();
     wifiManager = (WifiManager) getSystemService(WIFI_SERVICE);
+    discoveryCache = new DiscoveryCache(
+        new File(getFilesDir(), DISCOVERY_CACHE_FILENAME),
+        getResources().getInteger(R.integer.discovery_cache_max_age_days)
+            * 24L * 60 * 60 * 1000);
 
     stbList = (ListView) findViewById(R.id.stb_list);
     stbList.setOnItemClickListener(selectHandler);
@@ -145,6 +169,9 @@ public final class DeviceFinder extends Activity {
     }
 
     startBroadcast();
+    loadDiscoveryCache();
+    registerReceiver(networkReceiver,
+        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
   }
 
   @Override
@@ -162,11 +189,9 @@ public final class DeviceFinder extends Activity {
 
   @Override
   protected void onStop() {
-    if (null != broadcastClient) {
-      broadcastClient.stop();
-      broadcastClient = null;
-    }
-
+    unregisterReceiver(networkReceiver);
+    stopDiscovery();
+    saveDiscoveryCache();
     super.onStop();
   }
 
@@ -213,17 +238,149 @@ public final class DeviceFinder extends Activity {
       buildNoWifiDialog().show();
       return;
     }
-    broadcastClient = new BroadcastDiscoveryClient(
-        broadcastAddress, broadcastHandler);
-    broadcastClientThread = new Thread(broadcastClient);
-    broadcastClientThread.start();
+    stopDiscovery();
+    discoveryResponded = false;
+    discoveryBackends.add(
+        new BroadcastDiscoveryClient(broadcastAddress, broadcastHandler));
+    try {
+      discoveryBackends.add(
+          MdnsDiscoveryClient.forDefaultGroup(mdnsListener));
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to start mDNS discovery", e);
+    }
+    for (DiscoveryBackend backend : discoveryBackends) {
+      new Thread(backend).start();
+    }
     Message message = DelayedMessage.BROADCAST_TIMEOUT
         .obtainMessage(broadcastHandler);
     broadcastHandler.sendMessageDelayed(message,
         getResources().getInteger(R.integer.broadcast_timeout));
+    broadcastHandler.removeMessages(SUBNET_SWEEP);
+    broadcastHandler.sendEmptyMessageDelayed(SUBNET_SWEEP,
+        getResources().getInteger(R.integer.subnet_sweep_delay));
     showProgressDialog(buildBroadcastProgressDialog());
   }
 
+  /**
+   * Loads cached services in the background and posts them to the main
+   * thread, so previously seen devices are listed before discovery answers.
+   */
+  private void loadDiscoveryCache() {
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          discoveryCache.load(System.currentTimeMillis());
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Failed to load discovery cache", e);
+        }
+        Message message = broadcastHandler.obtainMessage(CACHE_LOADED,
+            discoveryCache.getServices());
+        broadcastHandler.sendMessage(message);
+      }
+    }).start();
+  }
+
+  private void saveDiscoveryCache() {
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          discoveryCache.save(System.currentTimeMillis());
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Failed to save discovery cache", e);
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Lists cached services, and revalidates them with unicast probes if
+   * discovery is still running. Services are listed even if discovery already
+   * timed out, or never started.
+   *
+   * @param services services loaded from the discovery cache
+   */
+  private void handleCacheLoaded(List<BroadcastAdvertisement> services) {
+    List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+    for (BroadcastAdvertisement advert : services) {
+      handleRemoteDeviceAdd(new RemoteDevice(advert.getServiceName(),
+          advert.getServiceAddress(), advert.getServicePort()));
+      // Stale entries are evicted when they miss revalidation probes.
+      trackedDevices.watch(advert.getServiceAddress(), SOURCE_REVALIDATION);
+      InetSocketAddress target = new InetSocketAddress(
+          advert.getServiceAddress(),
+          BroadcastDiscoveryEngine.BROADCAST_SERVER_PORT);
+      if (!targets.contains(target)) {
+        targets.add(target);
+      }
+    }
+    if (discoveryBackends.isEmpty() || targets.isEmpty()) {
+      return;
+    }
+    try {
+      DiscoveryBackend revalidation =
+          new BroadcastDiscoveryEngine(targets, revalidationListener);
+      discoveryBackends.add(revalidation);
+      new Thread(revalidation).start();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to start cache revalidation", e);
+    }
+  }
+
+  /**
+   * Falls back to probing every host of the local subnets, for networks that
+   * drop broadcast and multicast traffic. Hosts are sent unicast discovery
+   * probes and TCP connections are attempted on the Anymote port.
+   */
+  private void startSubnetSweep() {
+    if (discoveryResponded || discoveryBackends.isEmpty()) {
+      return;
+    }
+    try {
+      List<InetAddress> hosts = SubnetSweeper.getLocalSubnetHosts();
+      if (hosts.isEmpty()) {
+        return;
+      }
+      Log.i(LOG_TAG, "No discovery response, sweeping " + hosts.size()
+          + " hosts.");
+      List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+      for (InetAddress host : hosts) {
+        targets.add(new InetSocketAddress(host,
+            BroadcastDiscoveryEngine.BROADCAST_SERVER_PORT));
+      }
+      List<DiscoveryBackend> sweep = new ArrayList<DiscoveryBackend>();
+      sweep.add(new BroadcastDiscoveryEngine(targets, sweepListener));
+      sweep.add(new SubnetSweeper(hosts,
+          new int[] {getResources().getInteger(R.integer.manual_default_port)},
+          sweepListener));
+      for (DiscoveryBackend backend : sweep) {
+        discoveryBackends.add(backend);
+        new Thread(backend).start();
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to start subnet sweep", e);
+    }
+  }
+
+  /**
+   * Restarts the probe burst of all running discovery backends.
+   */
+  private void resetDiscovery() {
+    for (DiscoveryBackend backend : discoveryBackends) {
+      backend.reset();
+    }
+  }
+
+  /**
+   * Stops all running discovery backends.
+   */
+  private void stopDiscovery() {
+    broadcastHandler.removeMessages(SUBNET_SWEEP);
+    for (DiscoveryBackend backend : discoveryBackends) {
+      backend.stop();
+    }
+    discoveryBackends.clear();
+  }
+
   /**
    * Returns an intent that starts this activity.
    */
@@ -381,7 +538,7 @@ public final class DeviceFinder extends Activity {
         }
         switch ((DelayedMessage) msg.obj) {
           case BROADCAST_TIMEOUT:
-            broadcastClient.stop();
+            stopDiscovery();
             if (progressDialog.isShowing()) {
               progressDialog.dismiss();
             }
@@ -397,8 +554,13 @@ public final class DeviceFinder extends Activity {
               toConnect = trackedDevices.findRemoteDevice(previousRemoteDevice);
             }
             if (toConnect == null) {
+              if (trackedDevices.size() == 0) {
+                // All devices were evicted meanwhile.
+                showOtherDevices();
+                break;
+              }
               Log.d(LOG_TAG, "No previous device found.");
-              // No default found - suggest any device
+              // No default found - suggest the most responsive device
               toConnect = trackedDevices.get(0);
             }
   
@@ -412,9 +574,43 @@ public final class DeviceFinder extends Activity {
       switch (msg.what) {
         case BROADCAST_RESPONSE:
           BroadcastAdvertisement advert = (BroadcastAdvertisement) msg.obj;
+          // Hosts found by subnet sweep do not answer probes, and the sweep
+          // does not learn service names. They are not cached under the
+          // placeholder name, which would outlive the real one.
+          if (advert.getServiceName() == null) {
+            advert = new BroadcastAdvertisement(
+                getString(R.string.manual_ip_default_box_name),
+                advert.getServiceAddress(), advert.getServicePort());
+          } else {
+            discoveryCache.update(advert, System.currentTimeMillis());
+          }
+          discoveryResponded = true;
           RemoteDevice remoteDevice = new RemoteDevice(advert.getServiceName(),
               advert.getServiceAddress(), advert.getServicePort());
           handleRemoteDeviceAdd(remoteDevice);
+          trackedDevices.onResponse(remoteDevice.getAddress(), msg.arg1,
+              msg.arg2, SystemClock.elapsedRealtime());
+          dataAdapter.notifyDataSetChanged();
+          break;
+
+        case PROBE_ROUND:
+          int maxMissed = getResources().getInteger(
+              R.integer.gtv_finder_max_missed_probes);
+          if (trackedDevices.onProbeRound(msg.arg1,
+              SystemClock.elapsedRealtime(), maxMissed)) {
+            dataAdapter.notifyDataSetChanged();
+          }
+          break;
+
+        case CACHE_LOADED:
+          @SuppressWarnings("unchecked")
+          List<BroadcastAdvertisement> services =
+              (List<BroadcastAdvertisement>) msg.obj;
+          handleCacheLoaded(services);
+          break;
+
+        case SUBNET_SWEEP:
+          startSubnetSweep();
           break;
       }
     }
@@ -645,21 +841,116 @@ public final class DeviceFinder extends Activity {
   private final DeviceFinderListAdapter dataAdapter;
 
   private BroadcastHandler broadcastHandler;
-  private BroadcastDiscoveryClient broadcastClient;
-  private Thread broadcastClientThread;
+  private final List<DiscoveryBackend> discoveryBackends;
+
+  /**
+   * Whether any backend found a service since discovery was started.
+   */
+  private boolean discoveryResponded;
+
+  /**
+   * Restarts probing quickly when the network changes.
+   */
+  private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      if (!isInitialStickyBroadcast()) {
+        Log.v(LOG_TAG, "Network changed, resetting discovery.");
+        resetDiscovery();
+      }
+    }
+  };
+
+  /**
+   * Returns a listener forwarding the services found, and the probe rounds,
+   * of a discovery backend to the main thread.
+   *
+   * @param source the {@code SOURCE_} constant of the backend
+   */
+  private DiscoveryBackend.Listener newDiscoveryListener(final int source) {
+    return new DiscoveryBackend.Listener() {
+      public void onServiceFound(BroadcastAdvertisement advert, long rttMs) {
+        broadcastHandler.obtainMessage(BROADCAST_RESPONSE, source,
+            toMessageRtt(rttMs), advert).sendToTarget();
+      }
+
+      public void onProbeSent() {
+        broadcastHandler.obtainMessage(PROBE_ROUND, source, 0)
+            .sendToTarget();
+      }
+    };
+  }
+
+  private final DiscoveryBackend.Listener mdnsListener =
+      newDiscoveryListener(SOURCE_MDNS);
+
+  private final DiscoveryBackend.Listener revalidationListener =
+      newDiscoveryListener(SOURCE_REVALIDATION);
+
+  private final DiscoveryBackend.Listener sweepListener =
+      newDiscoveryListener(SOURCE_SWEEP);
 
   private TrackedDevices trackedDevices;
 
+  private DiscoveryCache discoveryCache;
+
   /**
-   * Handler message number for a service update from broadcast client.
+   * Handler message number for a service update from broadcast client. The
+   * second argument of the message is the round-trip time measured by the
+   * backend, see {@link #toMessageRtt(long)}.
    */
   public static final int BROADCAST_RESPONSE = 100;
 
+  /**
+   * Handler message number for a probe round of a discovery backend.
+   */
+  public static final int PROBE_ROUND = 104;
+
+  /**
+   * Source of a {@link #BROADCAST_RESPONSE} or {@link #PROBE_ROUND}, sent as
+   * the first argument of the message: the broadcast client.
+   */
+  public static final int SOURCE_BROADCAST = 0;
+
+  /**
+   * Source of unicast probes revalidating the cached devices.
+   */
+  public static final int SOURCE_REVALIDATION = 1;
+
+  /**
+   * Source of mDNS answers, which are reported once per service.
+   */
+  public static final int SOURCE_MDNS = 2;
+
+  /**
+   * Source of the subnet sweep fallback.
+   */
+  public static final int SOURCE_SWEEP = 3;
+
+  /**
+   * Encodes a round-trip time as the second argument of a
+   * {@link #BROADCAST_RESPONSE} message: negative if unknown, and capped to the
+   * range of an int.
+   */
+  static int toMessageRtt(long rttMs) {
+    return rttMs < 0 ? -1 : (int) Math.min(rttMs, Integer.MAX_VALUE);
+  }
+
   /**
    * Handler message number for all delayed messages
    */
   private static final int DELAYED_MESSAGE = 101;
 
+  /**
+   * Handler message number for services loaded from the discovery cache.
+   */
+  private static final int CACHE_LOADED = 102;
+
+  /**
+   * Handler message number for starting the subnet sweep fallback.
+   */
+  private static final int SUBNET_SWEEP = 103;
+
   private enum DelayedMessage {
     BROADCAST_TIMEOUT,
     GTV_DEVICE_FOUND;
@@ -671,11 +962,74 @@ public final class DeviceFinder extends Activity {
     }
   }
 
+  /**
+   * Devices found by discovery, with liveness information.
+   * <p>
+   * Each device keeps its last-seen time, number of responses and a smoothed
+   * round-trip time from the latest broadcast probe round to its response.
+   * Backends that probe in rounds, the broadcast client and the cache
+   * revalidation, watch the devices they reported, or were asked to confirm:
+   * a device is evicted once every backend watching it saw it miss too many
+   * consecutive rounds. Devices no backend watches, such as those answering
+   * mDNS only, are kept. The list is ordered by responsiveness, so the first
+   * device is the one most likely to answer fast.
+   */
   private static class TrackedDevices implements Iterable<RemoteDevice> {
-    private final Map<InetAddress, RemoteDevice> devicesByAddress;
-    private final SortedSet<RemoteDevice> devices;
+    /**
+     * Number of sources probing in rounds, which are the first sources.
+     */
+    private static final int ROUND_SOURCE_COUNT = 2;
+
+    private final Map<InetAddress, TrackedDevice> devicesByAddress;
+    private final List<TrackedDevice> devices;
     private RemoteDevice[] deviceArray;
 
+    /**
+     * Start of the current round of each round source, or {@code -1} before
+     * its first round.
+     */
+    private final long[] roundStart = {-1, -1};
+
+    private static final class TrackedDevice {
+      final RemoteDevice remoteDevice;
+
+      long lastSeen = -1;
+      int responseCount;
+      long smoothedRtt = -1;
+
+      /**
+       * Consecutive rounds missed, by round source, or {@code -1} if the
+       * source does not watch the device.
+       */
+      final int[] missedRounds = {-1, -1};
+
+      /**
+       * Whether the device answered the current round, by round source.
+       */
+      final boolean[] seenThisRound = new boolean[ROUND_SOURCE_COUNT];
+
+      TrackedDevice(RemoteDevice remoteDevice) {
+        this.remoteDevice = remoteDevice;
+      }
+
+      /**
+       * Returns {@code true} if the device is watched, and every source
+       * watching it saw it miss at least a number of rounds.
+       */
+      boolean isLost(int maxMissedRounds) {
+        boolean watched = false;
+        for (int missed : missedRounds) {
+          if (missed >= 0) {
+            if (missed < maxMissedRounds) {
+              return false;
+            }
+            watched = true;
+          }
+        }
+        return watched;
+      }
+    }
+
     private static Comparator<RemoteDevice> COMPARATOR =
         new Comparator<RemoteDevice>() {
       public int compare(RemoteDevice remote1, RemoteDevice remote2) {
@@ -688,16 +1042,42 @@ public final class DeviceFinder extends Activity {
       }
     };
 
+    /**
+     * Orders devices that responded before those that did not, then by
+     * smoothed round-trip time.
+     */
+    private static Comparator<TrackedDevice> RESPONSIVENESS_COMPARATOR =
+        new Comparator<TrackedDevice>() {
+      public int compare(TrackedDevice device1, TrackedDevice device2) {
+        if ((device1.responseCount > 0) != (device2.responseCount > 0)) {
+          return device1.responseCount > 0 ? -1 : 1;
+        }
+        if (device1.smoothedRtt != device2.smoothedRtt) {
+          if (device1.smoothedRtt < 0 || device2.smoothedRtt < 0) {
+            return device1.smoothedRtt < 0 ? 1 : -1;
+          }
+          return device1.smoothedRtt < device2.smoothedRtt ? -1 : 1;
+        }
+        return COMPARATOR.compare(device1.remoteDevice, device2.remoteDevice);
+      }
+    };
+
     TrackedDevices() {
-      devicesByAddress = new HashMap<InetAddress, RemoteDevice>();
-      devices = new TreeSet<RemoteDevice>(COMPARATOR);
+      devicesByAddress = new HashMap<InetAddress, TrackedDevice>();
+      devices = new ArrayList<TrackedDevice>();
     }
 
+    /**
+     * Adds a device unless one with the same address is already tracked.
+     *
+     * @return {@code true} if the device was added
+     */
     public boolean add(RemoteDevice remoteDevice) {
       InetAddress address = remoteDevice.getAddress();
       if (!devicesByAddress.containsKey(address)) {
-        devicesByAddress.put(address, remoteDevice);
-        devices.add(remoteDevice);
+        TrackedDevice device = new TrackedDevice(remoteDevice);
+        devicesByAddress.put(address, device);
+        devices.add(device);
         deviceArray = null;
         return true;
       }
@@ -705,6 +1085,84 @@ public final class DeviceFinder extends Activity {
       return false;
     }
 
+    /**
+     * Makes a round source watch a tracked device, which is then evicted if
+     * it misses the rounds of the source, even if it never answered them.
+     */
+    public void watch(InetAddress address, int source) {
+      TrackedDevice device = devicesByAddress.get(address);
+      if (device != null && source < ROUND_SOURCE_COUNT
+          && device.missedRounds[source] < 0) {
+        device.missedRounds[source] = 0;
+      }
+    }
+
+    /**
+     * Records a response from a tracked device.
+     *
+     * @param source the {@code SOURCE_} constant of the backend
+     * @param rttMs round-trip time measured by the backend, or a negative
+     *     value if it was not measured
+     * @param now current time in milliseconds
+     */
+    public void onResponse(InetAddress address, int source, long rttMs,
+        long now) {
+      TrackedDevice device = devicesByAddress.get(address);
+      if (device == null) {
+        return;
+      }
+      device.lastSeen = now;
+      ++device.responseCount;
+      if (rttMs >= 0) {
+        device.smoothedRtt = device.smoothedRtt < 0
+            ? rttMs : (7 * device.smoothedRtt + rttMs) / 8;
+      }
+      if (source < ROUND_SOURCE_COUNT) {
+        device.missedRounds[source] = 0;
+        device.seenThisRound[source] = true;
+      }
+      deviceArray = null;
+    }
+
+    /**
+     * Starts a new probe round of a source, evicting devices lost by every
+     * source watching them.
+     *
+     * @param source the {@code SOURCE_} constant of the backend
+     * @param now current time in milliseconds
+     * @param maxMissedRounds number of consecutive missed rounds after which
+     *     a source considers a device lost
+     * @return {@code true} if any device was evicted
+     */
+    public boolean onProbeRound(int source, long now, int maxMissedRounds) {
+      if (source >= ROUND_SOURCE_COUNT) {
+        return false;
+      }
+      boolean evicted = false;
+      if (roundStart[source] >= 0) {
+        for (Iterator<TrackedDevice> it = devices.iterator(); it.hasNext();) {
+          TrackedDevice device = it.next();
+          if (device.missedRounds[source] >= 0
+              && !device.seenThisRound[source]) {
+            ++device.missedRounds[source];
+          }
+          device.seenThisRound[source] = false;
+          if (device.isLost(maxMissedRounds)) {
+            Log.v(LOG_TAG, "Evicting unresponsive device: "
+                + device.remoteDevice);
+            it.remove();
+            devicesByAddress.remove(device.remoteDevice.getAddress());
+            evicted = true;
+          }
+        }
+      }
+      roundStart[source] = now;
+      if (evicted) {
+        deviceArray = null;
+      }
+      return evicted;
+    }
+
     public int size() {
       return devices.size();
     }
@@ -715,22 +1173,29 @@ public final class DeviceFinder extends Activity {
 
     private RemoteDevice[] getDeviceArray() {
       if (deviceArray == null) {
-        deviceArray = devices.toArray(new RemoteDevice[0]);
+        Collections.sort(devices, RESPONSIVENESS_COMPARATOR);
+        deviceArray = new RemoteDevice[devices.size()];
+        for (int i = 0; i < deviceArray.length; ++i) {
+          deviceArray[i] = devices.get(i).remoteDevice;
+        }
       }
       return deviceArray;
     }
 
     public Iterator<RemoteDevice> iterator() {
-      return devices.iterator();
+      return Arrays.asList(getDeviceArray()).iterator();
     }
 
     public RemoteDevice findRemoteDevice(RemoteDevice remoteDevice) {
-      RemoteDevice byIp = devicesByAddress.get(remoteDevice.getAddress());
+      TrackedDevice byIpDevice =
+          devicesByAddress.get(remoteDevice.getAddress());
+      RemoteDevice byIp =
+          byIpDevice != null ? byIpDevice.remoteDevice : null;
       if (byIp != null && byIp.getName().equals(remoteDevice.getName())) {
         return byIp;
       }
 
-      for (RemoteDevice device : devices) {
+      for (RemoteDevice device : this) {
         Log.d(LOG_TAG, "New device: " + device);
         if (remoteDevice.getName().equals(device.getName())) {
           return device;
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.android.apps.tvremote.util.BatchedFileWriter;
+import com.google.android.apps.tvremote.util.LruCache;
+
+/**
+ * Registry of the connection target and the recently connected devices.
+ * <p>
+ * Updates only touch memory. Changes are written in the background, batched
+ * over a short delay, so connecting never waits for the disk. The file is a
+ * compact binary snapshot holding raw addresses, so loading it never resolves
+ * names, and it is replaced atomically by a {@link BatchedFileWriter}.
+ */
+public final class DeviceRegistry {
+
+  private static final int FILE_MAGIC = 0x44455231;  // "DER1"
+
+  /**
+   * Delay over which changes are batched before writing.
+   */
+  private static final long WRITE_DELAY_MS = 500;
+
+  private final File mFile;
+
+  /**
+   * Recently connected devices, least recent first.
+   */
+  private final LruCache<InetAddress, RemoteDevice> mRecent;
+
+  private final BatchedFileWriter mWriter;
+
+  private RemoteDevice mTarget;
+
+  /**
+   * Constructor.
+   *
+   * @param file file backing the registry
+   * @param maxRecent maximum number of recently connected devices kept
+   */
+  public DeviceRegistry(File file, int maxRecent) {
+    mFile = file;
+    mRecent = new LruCache<InetAddress, RemoteDevice>(maxRecent);
+    mWriter = new BatchedFileWriter(file, WRITE_DELAY_MS,
+        new BatchedFileWriter.Source() {
+          public BatchedFileWriter.Snapshot takeSnapshot() {
+            return snapshot();
+          }
+        });
+  }
+
+  /**
+   * Loads the registry from its file.
+   *
+   * @return {@code false} if there was no file to load
+   * @throws IOException if the file is unreadable or corrupted
+   */
+  public synchronized boolean load() throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(mFile)));
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    try {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Bad device registry file");
+      }
+      mTarget = in.readBoolean() ? readDevice(in) : null;
+      int count = in.readUnsignedByte();
+      mRecent.clear();
+      for (int i = 0; i < count; ++i) {
+        RemoteDevice remoteDevice = readDevice(in);
+        mRecent.put(remoteDevice.getAddress(), remoteDevice);
+      }
+    } finally {
+      in.close();
+    }
+    return true;
+  }
+
+  /**
+   * @return the connection target, or {@code null} if none.
+   */
+  public synchronized RemoteDevice getTarget() {
+    return mTarget;
+  }
+
+  /**
+   * Sets the connection target.
+   */
+  public synchronized void setTarget(RemoteDevice remoteDevice) {
+    if (remoteDevice == null ? mTarget == null : remoteDevice.equals(mTarget)) {
+      return;
+    }
+    mTarget = remoteDevice;
+    mWriter.scheduleWrite();
+  }
+
+  /**
+   * Records a device as the most recently connected one.
+   */
+  public synchronized void addRecentlyConnected(RemoteDevice remoteDevice) {
+    mRecent.put(remoteDevice.getAddress(), remoteDevice);
+    mWriter.scheduleWrite();
+  }
+
+  /**
+   * @return recently connected devices, most recent first.
+   */
+  public synchronized ArrayList<RemoteDevice> getRecentlyConnected() {
+    ArrayList<RemoteDevice> devices =
+        new ArrayList<RemoteDevice>(mRecent.values());
+    Collections.reverse(devices);
+    return devices;
+  }
+
+  /**
+   * Writes pending changes in the background and stops the writer once done.
+   * The registry must not be updated afterwards.
+   */
+  public void close() {
+    mWriter.close();
+  }
+
+  /**
+   * Takes a snapshot of the registry, written on the writer thread.
+   */
+  private synchronized BatchedFileWriter.Snapshot snapshot() {
+    final RemoteDevice target = mTarget;
+    final List<RemoteDevice> recent = mRecent.values();
+    return new BatchedFileWriter.Snapshot() {
+      public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeBoolean(target != null);
+        if (target != null) {
+          writeDevice(out, target);
+        }
+        out.writeByte(recent.size());
+        for (RemoteDevice remoteDevice : recent) {
+          writeDevice(out, remoteDevice);
+        }
+      }
+    };
+  }
+
+  private static void writeDevice(DataOutputStream out,
+      RemoteDevice remoteDevice) throws IOException {
+    byte[] address = remoteDevice.getAddress().getAddress();
+    out.writeUTF(remoteDevice.getName());
+    out.writeByte(address.length);
+    out.write(address);
+    out.writeShort(remoteDevice.getPort());
+  }
+
+  private static RemoteDevice readDevice(DataInputStream in)
+      throws IOException {
+    String name = in.readUTF();
+    byte[] address = new byte[in.readUnsignedByte()];
+    in.readFully(address);
+    int port = in.readUnsignedShort();
+    return new RemoteDevice(name, InetAddress.getByAddress(address), port);
+  }
+}
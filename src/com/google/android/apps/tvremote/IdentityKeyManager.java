@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+
+import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Key manager choosing the local identity for one connection to a box.
+ * <p>
+ * The local identity has an RSA key and, optionally, an EC key. Boxes that
+ * only know RSA cannot compute the pairing secret of an EC key, so the EC
+ * identity is only presented to boxes presenting an EC certificate
+ * themselves. Before TLS 1.3 the box certificate is checked before the client
+ * certificate is requested, so the trust manager returned by
+ * {@link #observe(X509TrustManager)} records the key type of the box for
+ * {@link #chooseClientAlias}. When the box certificate is not known yet, the
+ * RSA identity is chosen.
+ * <p>
+ * The recorded key type belongs to a single handshake, so a new instance is
+ * needed for each connection.
+ */
+public final class IdentityKeyManager implements X509KeyManager {
+
+  private final X509KeyManager mDelegate;
+
+  private final String mRsaAlias;
+
+  /**
+   * Alias of the EC identity, or {@code null} if there is none.
+   */
+  private final String mEcAlias;
+
+  private volatile boolean mServerUsesEc;
+
+  /**
+   * Constructor.
+   *
+   * @param delegate key manager holding the identities
+   * @param rsaAlias alias of the RSA identity
+   * @param ecAlias alias of the EC identity, or {@code null} if there is none
+   */
+  public IdentityKeyManager(X509KeyManager delegate, String rsaAlias,
+      String ecAlias) {
+    mDelegate = delegate;
+    mRsaAlias = rsaAlias;
+    mEcAlias = ecAlias;
+  }
+
+  /**
+   * Returns a trust manager which records the key type of the box for this
+   * key manager, and then delegates the trust decision.
+   */
+  public X509TrustManager observe(final X509TrustManager trustManager) {
+    return new X509TrustManager() {
+      public void checkClientTrusted(X509Certificate[] chain, String authType)
+          throws CertificateException {
+        trustManager.checkClientTrusted(chain, authType);
+      }
+
+      public void checkServerTrusted(X509Certificate[] chain, String authType)
+          throws CertificateException {
+        trustManager.checkServerTrusted(chain, authType);
+        mServerUsesEc = chain.length > 0
+            && chain[0].getPublicKey() instanceof ECPublicKey;
+      }
+
+      public X509Certificate[] getAcceptedIssuers() {
+        return trustManager.getAcceptedIssuers();
+      }
+    };
+  }
+
+  public String chooseClientAlias(String[] keyTypes, Principal[] issuers,
+      Socket socket) {
+    boolean useEc = mEcAlias != null && mServerUsesEc;
+    // The key types may be asked for one at a time.
+    if (keyTypes == null
+        || !Arrays.asList(keyTypes).contains(useEc ? "EC" : "RSA")) {
+      return null;
+    }
+    return useEc ? mEcAlias : mRsaAlias;
+  }
+
+  public String chooseServerAlias(String keyType, Principal[] issuers,
+      Socket socket) {
+    return mDelegate.chooseServerAlias(keyType, issuers, socket);
+  }
+
+  public X509Certificate[] getCertificateChain(String alias) {
+    return mDelegate.getCertificateChain(alias);
+  }
+
+  public String[] getClientAliases(String keyType, Principal[] issuers) {
+    return mDelegate.getClientAliases(keyType, issuers);
+  }
+
+  public PrivateKey getPrivateKey(String alias) {
+    return mDelegate.getPrivateKey(alias);
+  }
+
+  public String[] getServerAliases(String keyType, Principal[] issuers) {
+    return mDelegate.getServerAliases(keyType, issuers);
+  }
+}
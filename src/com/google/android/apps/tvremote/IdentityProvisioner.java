@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.polo.ssl.SslUtil;
+
+/**
+ * Generates identities ahead of time.
+ * <p>
+ * RSA key generation and certificate signing take seconds on slow phones.
+ * The provisioner keeps one spare identity, generated on a background thread
+ * and saved to a file, so that it survives restarts. Taking the spare hands
+ * it out and starts generating the next one at background priority. If no
+ * spare is ready yet, taking waits for the generation in progress.
+ */
+public final class IdentityProvisioner {
+
+  private static final String LOG_TAG = "IdentityProvisioner";
+
+  private static final int FILE_MAGIC = 0x49445031;  // "IDP1"
+
+  /**
+   * A key pair with its self-signed certificate.
+   */
+  public static final class Identity {
+    private final PrivateKey mPrivateKey;
+
+    private final X509Certificate mCertificate;
+
+    private final long mGenerationTimeMs;
+
+    Identity(PrivateKey privateKey, X509Certificate certificate,
+        long generationTimeMs) {
+      mPrivateKey = privateKey;
+      mCertificate = certificate;
+      mGenerationTimeMs = generationTimeMs;
+    }
+
+    public PrivateKey getPrivateKey() {
+      return mPrivateKey;
+    }
+
+    public X509Certificate getCertificate() {
+      return mCertificate;
+    }
+
+    /**
+     * @return time it took to generate the key pair and certificate.
+     */
+    public long getGenerationTimeMs() {
+      return mGenerationTimeMs;
+    }
+  }
+
+  private final File mSpareFile;
+
+  private final String mCertificateName;
+
+  private final String mKeyAlgorithm;
+
+  private final ExecutorService mExecutor;
+
+  /**
+   * Spare identity, or {@code null} if none was requested yet.
+   */
+  private Future<Identity> mSpare;
+
+  /**
+   * Constructor.
+   *
+   * @param spareFile file holding the spare identity
+   * @param certificateName subject name of generated certificates
+   * @param keyAlgorithm algorithm of generated keys, {@code "RSA"} or
+   *     {@code "EC"}
+   */
+  public IdentityProvisioner(File spareFile, String certificateName,
+      String keyAlgorithm) {
+    mSpareFile = spareFile;
+    mCertificateName = certificateName;
+    mKeyAlgorithm = keyAlgorithm;
+    mExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Makes sure a spare identity is ready or being prepared. Loads a saved
+   * spare, or generates one if there is none.
+   */
+  public synchronized void prepareSpare() {
+    if (mSpare == null) {
+      mSpare = mExecutor.submit(new Callable<Identity>() {
+        public Identity call() throws Exception {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          Identity identity = loadSpare();
+          return identity != null ? identity : generateSpare();
+        }
+      });
+    }
+  }
+
+  /**
+   * Takes the spare identity, waiting for it if needed, and starts
+   * preparing the next one.
+   *
+   * @throws GeneralSecurityException if the identity could not be generated
+   */
+  public Identity takeIdentity() throws GeneralSecurityException {
+    Future<Identity> spare;
+    synchronized (this) {
+      prepareSpare();
+      spare = mSpare;
+      // Runs after the taken spare was saved, and replaces it.
+      mSpare = mExecutor.submit(new Callable<Identity>() {
+        public Identity call() throws Exception {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          mSpareFile.delete();
+          return generateSpare();
+        }
+      });
+    }
+    try {
+      return spare.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GeneralSecurityException("Interrupted", e);
+    } catch (ExecutionException e) {
+      throw new GeneralSecurityException("Unable to generate identity",
+          e.getCause());
+    }
+  }
+
+  /**
+   * Stops the background thread once the spare being prepared is saved. The
+   * provisioner must not be used afterwards.
+   */
+  public synchronized void close() {
+    mExecutor.shutdown();
+  }
+
+  /**
+   * Generates an identity and saves it as the spare.
+   */
+  private Identity generateSpare() throws GeneralSecurityException {
+    long start = System.currentTimeMillis();
+    KeyPair keyPair = SslUtil.generateKeyPair(mKeyAlgorithm);
+    X509Certificate certificate =
+        SslUtil.generateX509V3Certificate(keyPair, mCertificateName);
+    long time = System.currentTimeMillis() - start;
+    Log.i(LOG_TAG, "Generated " + mKeyAlgorithm + " identity in " + time
+        + " ms");
+
+    Identity identity = new Identity(keyPair.getPrivate(), certificate, time);
+    try {
+      saveSpare(identity);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Unable to save spare identity", e);
+    }
+    return identity;
+  }
+
+  /**
+   * Loads the saved spare. A spare file that cannot be read is deleted.
+   *
+   * @return the saved spare, or {@code null} if there is none.
+   */
+  private Identity loadSpare() {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(mSpareFile)));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Bad spare identity file");
+      }
+      long generationTimeMs = in.readLong();
+      long fileLength = mSpareFile.length();
+      byte[] encodedKey = readBlock(in, fileLength);
+      byte[] encodedCertificate = readBlock(in, fileLength);
+
+      PrivateKey privateKey = KeyFactory.getInstance(mKeyAlgorithm)
+          .generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+      X509Certificate certificate = (X509Certificate)
+          CertificateFactory.getInstance("X.509").generateCertificate(
+              new ByteArrayInputStream(encodedCertificate));
+      return new Identity(privateKey, certificate, generationTimeMs);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Unable to load spare identity", e);
+    } catch (GeneralSecurityException e) {
+      Log.e(LOG_TAG, "Unable to load spare identity", e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+    mSpareFile.delete();
+    return null;
+  }
+
+  /**
+   * Reads a block preceded by its length.
+   *
+   * @param maxLength the largest valid length, e.g. the size of the file
+   * @throws IOException if the length is invalid, or the block is truncated
+   */
+  private static byte[] readBlock(DataInputStream in, long maxLength)
+      throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Bad block length: " + length);
+    }
+    byte[] block = new byte[length];
+    in.readFully(block);
+    return block;
+  }
+
+  /**
+   * Writes the spare to a temporary file, then replaces the spare file with
+   * it.
+   */
+  private void saveSpare(Identity identity)
+      throws IOException, GeneralSecurityException {
+    File temp = new File(mSpareFile.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(fos));
+    try {
+      byte[] encodedKey = identity.getPrivateKey().getEncoded();
+      byte[] encodedCertificate = identity.getCertificate().getEncoded();
+      out.writeInt(FILE_MAGIC);
+      out.writeLong(identity.getGenerationTimeMs());
+      out.writeInt(encodedKey.length);
+      out.write(encodedKey);
+      out.writeInt(encodedCertificate.length);
+      out.write(encodedCertificate);
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(mSpareFile)) {
+      temp.delete();
+      throw new IOException("Unable to replace " + mSpareFile);
+    }
+  }
+}
@@ -16,32 +16,42 @@
 
 package com.google.android.apps.tvremote;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
-import java.util.Enumeration;
+import java.security.cert.CertificateException;
+import java.util.Collections;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509TrustManager;
 
 import android.content.Context;
 import android.os.Build;
+import android.provider.Settings;
 import android.util.Log;
 
-import com.google.polo.ssl.SslUtil;
+import com.google.polo.ssl.DummyTrustManager;
 
 /**
  * Key store manager.
- *
+ * <p>
+ * The local identity is kept in a {@link KeyStore}. Certificates of paired
+ * boxes are kept in a {@link TrustStore}, so that pairing does not rewrite
+ * the whole key store. New identities are taken from an
+ * {@link IdentityProvisioner}, which generates them ahead of time.
+ * <p>
+ * The local identity has an RSA key, which every box accepts, and an EC key
+ * for boxes which use EC keys themselves. Both are replaced together, so
+ * paired boxes always see the same certificate.
  */
 public final class KeyStoreManager {
 
@@ -49,6 +59,12 @@ public final class KeyStoreManager {
 
   private static final String KEYSTORE_FILENAME = "ipremote.keystore";
 
+  private static final String TRUSTSTORE_FILENAME = "ipremote.truststore";
+
+  private static final String SPARE_IDENTITY_FILENAME = "ipremote.spare";
+
+  private static final String SPARE_EC_IDENTITY_FILENAME = "ipremote.spare-ec";
+
   private static final char[] KEYSTORE_PASSWORD = "1234567890".toCharArray();
 
   /**
@@ -57,18 +73,41 @@ public final class KeyStoreManager {
   private static final String LOCAL_IDENTITY_ALIAS = "anymote-remote";
 
   /**
-   * Alias pattern for anymote server identities in the {@link KeyStore}
+   * Alias for the EC variant of the local identity in the {@link KeyStore}.
    */
-  private static final String REMOTE_IDENTITY_ALIAS_PATTERN =
-      "anymote-server-%X";
+  private static final String LOCAL_EC_IDENTITY_ALIAS = "anymote-remote-ec";
 
   private final Context mContext;
 
-  private final KeyStore mKeyStore;
+  /**
+   * Key store holding the local identity. Replaced as a whole when a new
+   * identity is installed.
+   */
+  private volatile KeyStore mKeyStore;
+
+  private final TrustStore mTrustStore;
+
+  private final IdentityProvisioner mRsaProvisioner;
+
+  private final IdentityProvisioner mEcProvisioner;
+
+  private final PinnedTrustManager mTrustManager;
 
   public KeyStoreManager(Context context) {
     this.mContext = context;
+    this.mTrustStore = new TrustStore(
+        context.getFileStreamPath(TRUSTSTORE_FILENAME));
+    this.mTrustManager = new PinnedTrustManager(mTrustStore);
     this.mKeyStore = load();
+    String certificateName = getCertificateName(getUniqueId(context));
+    this.mRsaProvisioner = new IdentityProvisioner(
+        context.getFileStreamPath(SPARE_IDENTITY_FILENAME), certificateName,
+        "RSA");
+    this.mEcProvisioner = new IdentityProvisioner(
+        context.getFileStreamPath(SPARE_EC_IDENTITY_FILENAME), certificateName,
+        "EC");
+    mRsaProvisioner.prepareSpare();
+    mEcProvisioner.prepareSpare();
   }
 
   /**
@@ -96,16 +135,33 @@ public final class KeyStoreManager {
 
     if (keyStore != null) {
       // KeyStore loaded
+      copyCertificatesToTrustStore(keyStore);
       return keyStore;
     }
 
+    // Nothing to store until an identity is generated.
     try {
-      keyStore = createKeyStore();
+      return createKeyStore();
     } catch (GeneralSecurityException e) {
       throw new IllegalStateException("Unable to create identity KeyStore", e);
     }
-    store(keyStore);
-    return keyStore;
+  }
+
+  /**
+   * Copies certificates of paired boxes, stored in the key store by earlier
+   * versions, to the trust store. They are left in the key store until the
+   * identity is regenerated, so an interrupted copy loses nothing.
+   */
+  private void copyCertificatesToTrustStore(KeyStore keyStore) {
+    try {
+      for (String alias : Collections.list(keyStore.aliases())) {
+        if (keyStore.isCertificateEntry(alias)) {
+          mTrustStore.add(keyStore.getCertificate(alias));
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      Log.e(LOG_TAG, "Copying certificates failed", e);
+    }
   }
 
   public boolean hasServerIdentityAlias() {
@@ -122,27 +178,40 @@ public final class KeyStoreManager {
     return true;
   }
 
-  public void initializeKeyStore(String id) {
-    clearKeyStore();
+  /**
+   * Installs a new local identity, and forgets all paired boxes.
+   * <p>
+   * May block until the identity is generated, so must not be called on the
+   * main thread.
+   */
+  public void initializeKeyStore() {
+    long start = System.currentTimeMillis();
+    IdentityProvisioner.Identity identity;
+    KeyStore keyStore;
     try {
-      Log.v(LOG_TAG, "Generating key pair ...");
-      KeyPairGenerator kg = KeyPairGenerator.getInstance("RSA");
-      KeyPair keyPair = kg.generateKeyPair();
-
-      Log.v(LOG_TAG, "Generating certificate ...");
-      String name = getCertificateName(id);
-      X509Certificate cert = SslUtil.generateX509V3Certificate(keyPair, name);
-      Certificate[] chain = {cert};
-
-      Log.v(LOG_TAG, "Adding key to keystore  ...");
-      mKeyStore.setKeyEntry(
-          LOCAL_IDENTITY_ALIAS, keyPair.getPrivate(), null, chain);
-
-      Log.d(LOG_TAG, "Key added!");
+      identity = mRsaProvisioner.takeIdentity();
+      keyStore = createKeyStore();
+      Certificate[] chain = { identity.getCertificate() };
+      keyStore.setKeyEntry(
+          LOCAL_IDENTITY_ALIAS, identity.getPrivateKey(), null, chain);
     } catch (GeneralSecurityException e) {
       throw new IllegalStateException("Unable to create identity KeyStore", e);
     }
-    store(mKeyStore);
+    try {
+      IdentityProvisioner.Identity ecIdentity = mEcProvisioner.takeIdentity();
+      Certificate[] chain = { ecIdentity.getCertificate() };
+      keyStore.setKeyEntry(
+          LOCAL_EC_IDENTITY_ALIAS, ecIdentity.getPrivateKey(), null, chain);
+    } catch (GeneralSecurityException e) {
+      // All boxes accept the RSA identity.
+      Log.w(LOG_TAG, "EC identity not available", e);
+    }
+    store(keyStore);
+    mKeyStore = keyStore;
+    mTrustStore.clear();
+    Log.i(LOG_TAG, "Identity installed after "
+        + (System.currentTimeMillis() - start) + " ms, generated in "
+        + identity.getGenerationTimeMs() + " ms");
   }
 
   private static KeyStore createKeyStore() throws GeneralSecurityException {
@@ -155,24 +224,50 @@ public final class KeyStoreManager {
     return keyStore;
   }
 
+  /**
+   * Writes the key store to a temporary file, then replaces the key store file
+   * with it.
+   */
   private void store(KeyStore keyStore) {
+    File file = mContext.getFileStreamPath(KEYSTORE_FILENAME);
+    File temp = new File(file.getPath() + ".tmp");
     try {
-      FileOutputStream fos =
-          mContext.openFileOutput(KEYSTORE_FILENAME, Context.MODE_PRIVATE);
-      keyStore.store(fos, KEYSTORE_PASSWORD);
-      fos.close();
+      FileOutputStream fos = new FileOutputStream(temp);
+      try {
+        keyStore.store(fos, KEYSTORE_PASSWORD);
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Unable to replace " + file);
+      }
     } catch (IOException e) {
+      temp.delete();
       throw new IllegalStateException("Unable to store keyStore", e);
     } catch (GeneralSecurityException e) {
+      temp.delete();
       throw new IllegalStateException("Unable to store keyStore", e);
     }
   }
 
   /**
-   * Stores current state of key store.
+   * Writes pending changes of the trust store in the background. The key
+   * store itself is written whenever the identity changes.
    */
   public synchronized void store() {
-    store(mKeyStore);
+    mTrustStore.flush();
+  }
+
+  /**
+   * Writes pending changes of the trust store in the background, and stops
+   * the background threads once done. The manager must not be used
+   * afterwards.
+   */
+  public synchronized void close() {
+    mTrustStore.close();
+    mRsaProvisioner.close();
+    mEcProvisioner.close();
   }
 
   /**
@@ -185,59 +280,79 @@ public final class KeyStoreManager {
         + Build.MODEL + "/" + id;
   }
 
+  private static String getUniqueId(Context context) {
+    String id = Settings.Secure.getString(context.getContentResolver(),
+        Settings.Secure.ANDROID_ID);
+    // null ANDROID_ID is possible on emulator
+    return id != null ? id : "emulator";
+  }
+
   /**
    * @return key managers loaded for this service.
    */
   public synchronized KeyManager[] getKeyManagers()
       throws GeneralSecurityException {
-    if (mKeyStore == null) {
+    return getKeyManagers(mKeyStore);
+  }
+
+  private static KeyManager[] getKeyManagers(KeyStore keyStore)
+      throws GeneralSecurityException {
+    if (keyStore == null) {
       throw new NullPointerException("null mKeyStore");
     }
     KeyManagerFactory factory =
         KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-    factory.init(mKeyStore, "".toCharArray());
+    factory.init(keyStore, "".toCharArray());
     return factory.getKeyManagers();
   }
 
   /**
-   * @return trust managers loaded for this service.
+   * @return trust managers accepting the paired boxes.
    */
-  public synchronized TrustManager[] getTrustManagers()
-      throws GeneralSecurityException {
-    // Build a new set of TrustManagers based on the KeyStore.
-    TrustManagerFactory tmf = TrustManagerFactory.getInstance(
-        TrustManagerFactory.getDefaultAlgorithm());
-    tmf.init(mKeyStore);
-    return tmf.getTrustManagers();
+  public TrustManager[] getTrustManagers() {
+    return new TrustManager[] { mTrustManager };
   }
 
-  public synchronized void storeCertificate(Certificate peerCert) {
-    try {
-      String alias = String.format(
-          KeyStoreManager.REMOTE_IDENTITY_ALIAS_PATTERN, peerCert.hashCode());
-      if (mKeyStore.containsAlias(alias)) {
-        Log.w(LOG_TAG, "Deleting existing entry for " + alias);
-        mKeyStore.deleteEntry(alias);
+  /**
+   * Creates an SSL context for a single connection to a box. The context
+   * presents the EC identity to boxes with EC certificates, and the RSA
+   * identity to all other boxes.
+   *
+   * @param pairing {@code true} to trust any box, for pairing; otherwise only
+   *     paired boxes are trusted
+   * @see IdentityKeyManager
+   */
+  public SSLContext createSslContext(boolean pairing)
+      throws GeneralSecurityException {
+    KeyStore keyStore = mKeyStore;
+    X509KeyManager keyManager = null;
+    for (KeyManager candidate : getKeyManagers(keyStore)) {
+      if (candidate instanceof X509KeyManager) {
+        keyManager = (X509KeyManager) candidate;
+        break;
       }
-      Log.i(LOG_TAG, "Adding cert to keystore: " + alias);
-      mKeyStore.setCertificateEntry(alias, peerCert);
-      store();
-    } catch (KeyStoreException e) {
-      Log.e(LOG_TAG, "Storing cert failed", e);
     }
+    if (keyManager == null) {
+      throw new GeneralSecurityException("No X.509 key manager");
+    }
+    IdentityKeyManager identityKeyManager = new IdentityKeyManager(keyManager,
+        LOCAL_IDENTITY_ALIAS, keyStore.containsAlias(LOCAL_EC_IDENTITY_ALIAS)
+            ? LOCAL_EC_IDENTITY_ALIAS : null);
+    X509TrustManager trustManager =
+        pairing ? new DummyTrustManager() : mTrustManager;
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(new KeyManager[] { identityKeyManager },
+        new TrustManager[] { identityKeyManager.observe(trustManager) }, null);
+    return context;
   }
 
-  private void clearKeyStore() {
+  public synchronized void storeCertificate(Certificate peerCert) {
     try {
-        for (Enumeration<String> e = mKeyStore.aliases();
-                e.hasMoreElements();) {
-            final String alias = e.nextElement();
-            Log.v(LOG_TAG, "Deleting alias: " + alias);
-            mKeyStore.deleteEntry(alias);
-        }
-    } catch (KeyStoreException e) {
-        Log.e(LOG_TAG, "Clearing certificates failed", e);
+      String fingerprint = mTrustStore.add(peerCert);
+      Log.i(LOG_TAG, "Added cert to truststore: " + fingerprint);
+    } catch (CertificateException e) {
+      Log.e(LOG_TAG, "Storing cert failed", e);
     }
-    store();
   }
 }
@@ -45,7 +45,6 @@ import com.google.polo.pairing.PairingContext;
 import com.google.polo.pairing.PairingListener;
 import com.google.polo.pairing.PairingSession;
 import com.google.polo.pairing.message.EncodingOption;
-import com.google.polo.ssl.DummySSLSocketFactory;
 import com.google.polo.wire.PoloWireInterface;
 import com.google.polo.wire.WireFormat;
 
@@ -242,8 +241,8 @@ public class PairingActivity extends CoreServiceActivity {
       try {
         SSLSocketFactory socketFactory;
         try {
-          socketFactory = DummySSLSocketFactory.fromKeyManagers(
-              getKeyStoreManager().getKeyManagers());
+          socketFactory =
+              getKeyStoreManager().createSslContext(true).getSocketFactory();
         } catch (GeneralSecurityException e) {
           throw new IllegalStateException("Cannot build socket factory", e);
         }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Trust manager accepting exactly the certificates of paired boxes.
+ * <p>
+ * Boxes use self-signed certificates, so there is no chain to build: the
+ * fingerprint of the leaf certificate is looked up in the {@link TrustStore}.
+ * The trust store is consulted on each handshake, so boxes paired later are
+ * trusted without creating a new trust manager.
+ */
+public final class PinnedTrustManager implements X509TrustManager {
+
+  private final TrustStore mTrustStore;
+
+  public PinnedTrustManager(TrustStore trustStore) {
+    mTrustStore = trustStore;
+  }
+
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+      throws CertificateException {
+    checkPinned(chain);
+  }
+
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+      throws CertificateException {
+    checkPinned(chain);
+  }
+
+  public X509Certificate[] getAcceptedIssuers() {
+    return new X509Certificate[0];
+  }
+
+  private void checkPinned(X509Certificate[] chain)
+      throws CertificateException {
+    if (chain == null || chain.length == 0) {
+      throw new IllegalArgumentException("Empty certificate chain");
+    }
+    X509Certificate leaf = chain[0];
+    if (!mTrustStore.contains(TrustStore.getFingerprint(leaf.getEncoded()))) {
+      throw new CertificateException("Certificate not paired: "
+          + leaf.getSubjectX500Principal());
+    }
+    leaf.checkValidity();
+  }
+}
@@ -18,7 +18,6 @@ package com.google.android.apps.tvremote;
 
 import android.content.Intent;
 import android.os.AsyncTask;
-import android.provider.Settings;
 import android.view.View;
 import android.widget.Button;
 
@@ -45,7 +44,7 @@ public class StartupActivity extends CoreServiceActivity {
         }
       });
       
-      new KeystoreInitializerTask(getUniqueId()).execute(getKeyStoreManager());
+      new KeystoreInitializerTask().execute(getKeyStoreManager());
     } else {
       keystoreAvailable = true;
       showMainActivity();
@@ -77,18 +76,12 @@ public class StartupActivity extends CoreServiceActivity {
 
   private class KeystoreInitializerTask extends AsyncTask<
       KeyStoreManager, Void, Void> {
-    private final String id;
-
-    public KeystoreInitializerTask(String id) {
-      this.id = id;
-    }
-
     @Override
     protected Void doInBackground(KeyStoreManager... keyStoreManagers) {
       if (keyStoreManagers.length != 1) {
         throw new IllegalStateException("Only one key store manager expected");
       }
-      keyStoreManagers[0].initializeKeyStore(id);
+      keyStoreManagers[0].initializeKeyStore();
       return null;
     }
 
@@ -99,11 +92,4 @@ public class StartupActivity extends CoreServiceActivity {
       connectButton.setEnabled(true);
     }
   }
-
-  private String getUniqueId() {
-    String id = Settings.Secure.getString(getContentResolver(),
-        Settings.Secure.ANDROID_ID);
-    // null ANDROID_ID is possible on emulator
-    return id != null ? id : "emulator";
-  }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.google.android.apps.tvremote.util.BatchedFileWriter;
+import com.google.android.apps.tvremote.util.LruCache;
+import com.google.polo.pairing.PoloUtil;
+
+/**
+ * Store of the certificates of paired boxes, indexed by the SHA-256
+ * fingerprint of their encoding.
+ * <p>
+ * Changes are collected in memory and written with a single write on a
+ * background thread, batched over a short delay, so pairing never waits for
+ * the disk. The file is replaced atomically by a {@link BatchedFileWriter}.
+ * The file is read on first access, and certificates are decoded one at a
+ * time when requested, keeping the most recently used ones. Looking up a
+ * fingerprint never decodes certificates.
+ */
+public final class TrustStore {
+
+  private static final String LOG_TAG = "TrustStore";
+
+  private static final int FILE_MAGIC = 0x54525332;  // "TRS2"
+
+  /**
+   * Delay over which changes are batched before writing.
+   */
+  private static final long WRITE_DELAY_MS = 500;
+
+  /**
+   * Maximum number of decoded certificates kept.
+   */
+  private static final int MAX_DECODED = 16;
+
+  private final File mFile;
+
+  private final BatchedFileWriter mWriter;
+
+  /**
+   * Encoded certificates by fingerprint.
+   */
+  private final Map<String, byte[]> mEncoded;
+
+  /**
+   * Recently used decoded certificates, by fingerprint.
+   */
+  private final LruCache<String, Certificate> mDecoded;
+
+  private CertificateFactory mCertificateFactory;
+
+  private boolean mLoaded;
+
+  /**
+   * Constructor.
+   *
+   * @param file file backing the store
+   */
+  public TrustStore(File file) {
+    mFile = file;
+    mWriter = new BatchedFileWriter(file, WRITE_DELAY_MS,
+        new BatchedFileWriter.Source() {
+          public BatchedFileWriter.Snapshot takeSnapshot() {
+            return snapshot();
+          }
+        });
+    mEncoded = new LinkedHashMap<String, byte[]>();
+    mDecoded = new LruCache<String, Certificate>(MAX_DECODED);
+  }
+
+  /**
+   * Returns the fingerprint identifying a certificate in the store.
+   *
+   * @param encoded encoding of the certificate
+   * @return hexadecimal SHA-256 digest of the encoding
+   */
+  public static String getFingerprint(byte[] encoded) {
+    try {
+      return PoloUtil.bytesToHexString(
+          MessageDigest.getInstance("SHA-256").digest(encoded));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  /**
+   * @return {@code true} if a certificate with the fingerprint is stored.
+   */
+  public synchronized boolean contains(String fingerprint) {
+    ensureLoaded();
+    return mEncoded.containsKey(fingerprint);
+  }
+
+  /**
+   * @return fingerprints of all stored certificates.
+   */
+  public synchronized List<String> fingerprints() {
+    ensureLoaded();
+    return new ArrayList<String>(mEncoded.keySet());
+  }
+
+  /**
+   * Returns the certificate with a fingerprint, decoding it if needed.
+   *
+   * @return the certificate, or {@code null} if none is stored
+   * @throws CertificateException if the stored certificate is corrupted
+   */
+  public synchronized Certificate getCertificate(String fingerprint)
+      throws CertificateException {
+    ensureLoaded();
+    Certificate certificate = mDecoded.get(fingerprint);
+    if (certificate == null) {
+      byte[] encoded = mEncoded.get(fingerprint);
+      if (encoded == null) {
+        return null;
+      }
+      if (mCertificateFactory == null) {
+        mCertificateFactory = CertificateFactory.getInstance("X.509");
+      }
+      certificate = mCertificateFactory.generateCertificate(
+          new ByteArrayInputStream(encoded));
+      mDecoded.put(fingerprint, certificate);
+    }
+    return certificate;
+  }
+
+  /**
+   * Adds a certificate.
+   *
+   * @return fingerprint of the certificate
+   * @throws CertificateEncodingException if the certificate cannot be encoded
+   */
+  public synchronized String add(Certificate certificate)
+      throws CertificateEncodingException {
+    ensureLoaded();
+    byte[] encoded = certificate.getEncoded();
+    String fingerprint = getFingerprint(encoded);
+    if (!mEncoded.containsKey(fingerprint)) {
+      mEncoded.put(fingerprint, encoded);
+      mDecoded.put(fingerprint, certificate);
+      mWriter.scheduleWrite();
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Removes the certificate with a fingerprint.
+   */
+  public synchronized void remove(String fingerprint) {
+    ensureLoaded();
+    if (mEncoded.remove(fingerprint) != null) {
+      mDecoded.remove(fingerprint);
+      mWriter.scheduleWrite();
+    }
+  }
+
+  /**
+   * Removes all certificates.
+   */
+  public synchronized void clear() {
+    ensureLoaded();
+    if (!mEncoded.isEmpty()) {
+      mEncoded.clear();
+      mDecoded.clear();
+      mWriter.scheduleWrite();
+    }
+  }
+
+  /**
+   * Writes pending changes in the background without further delay.
+   */
+  public void flush() {
+    mWriter.flush();
+  }
+
+  /**
+   * Writes pending changes in the background and stops the writer once done.
+   * The store must not be updated afterwards.
+   */
+  public void close() {
+    mWriter.close();
+  }
+
+  private void ensureLoaded() {
+    if (mLoaded) {
+      return;
+    }
+    mLoaded = true;
+    try {
+      load();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Unable to load trust store, starting empty", e);
+      mEncoded.clear();
+    }
+  }
+
+  private void load() throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(mFile)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    try {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Bad trust store file");
+      }
+      // Counts and lengths cannot exceed the file, unless it is corrupt.
+      long fileLength = mFile.length();
+      int count = in.readInt();
+      if (count < 0 || count > fileLength) {
+        throw new IOException("Bad trust store entry count: " + count);
+      }
+      for (int i = 0; i < count; ++i) {
+        String fingerprint = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > fileLength) {
+          throw new IOException("Bad certificate length: " + length);
+        }
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        mEncoded.put(fingerprint, encoded);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Takes a snapshot of the store, written on the writer thread.
+   */
+  private synchronized BatchedFileWriter.Snapshot snapshot() {
+    final Map<String, byte[]> snapshot =
+        new LinkedHashMap<String, byte[]>(mEncoded);
+    return new BatchedFileWriter.Snapshot() {
+      public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeInt(entry.getValue().length);
+          out.write(entry.getValue());
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import com.google.android.apps.tvremote.BroadcastAdvertisement;
+
+/**
+ * Non-blocking implementation of the broadcast discovery protocol.
+ * <p>
+ * A single {@link DatagramChannel} is used to probe every target at once and
+ * to collect the replies, so no timer thread is needed and the receive buffer
+ * is shared by all responses. Probes are timed by a {@link ProbeScheduler}.
+ * The round-trip time of each response is measured from the last probe round
+ * to the receipt of the response on the engine thread.
+ * The engine has no Android dependencies: it can
+ * be run headless and pointed at a localhost responder by passing explicit
+ * targets to {@link #BroadcastDiscoveryEngine(List, Listener)}.
+ */
+public final class BroadcastDiscoveryEngine implements DiscoveryBackend {
+
+  /**
+   * UDP port to send probe messages to.
+   */
+  public static final int BROADCAST_SERVER_PORT = 9101;
+
+  /**
+   * Service name to discover.
+   */
+  public static final String DESIRED_SERVICE = "_anymote._tcp";
+
+  /**
+   * Command name for a discovery request.
+   */
+  private static final String COMMAND_DISCOVER = "discover";
+
+  /**
+   * Size of the receive buffer, larger responses are truncated.
+   */
+  private static final int RECEIVE_BUFFER_SIZE = 256;
+
+  /**
+   * Number of tokens in a valid response.
+   */
+  private static final int RESPONSE_TOKENS = 3;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] DESIRED_SERVICE_BYTES = toAscii(DESIRED_SERVICE);
+
+  /**
+   * Destinations for probe messages.
+   */
+  private final List<InetSocketAddress> mTargets;
+
+  private final Listener mListener;
+
+  /**
+   * Send/receive channel.
+   */
+  private final DatagramChannel mChannel;
+
+  private final Selector mSelector;
+
+  private final ProbeScheduler mScheduler;
+
+  /**
+   * Encoded probe message, rewound before each send.
+   */
+  private final ByteBuffer mProbe;
+
+  /**
+   * Receive buffer reused for all responses.
+   */
+  private final ByteBuffer mReceiveBuffer;
+
+  /**
+   * Scratch space for decoding service names out of the receive buffer.
+   */
+  private final byte[] mNameBytes;
+
+  /**
+   * Token boundaries of the response being parsed.
+   */
+  private final int[] mTokenStart;
+  private final int[] mTokenEnd;
+
+  /**
+   * {@link System#nanoTime()} at which the last probe round was sent, valid
+   * once {@link #mProbeSent} is set.
+   */
+  private long mProbeSentNs;
+
+  private boolean mProbeSent;
+
+  private volatile boolean mStopped;
+
+  /**
+   * Constructor.
+   *
+   * @param targets destinations for probes, usually broadcast addresses
+   * @param listener receives discovered services
+   * @throws IOException if the channel could not be opened
+   */
+  public BroadcastDiscoveryEngine(List<InetSocketAddress> targets,
+      Listener listener) throws IOException {
+    if (targets.isEmpty()) {
+      throw new IllegalArgumentException("No probe targets");
+    }
+    mTargets = new ArrayList<InetSocketAddress>(targets);
+    mListener = listener;
+    mScheduler = new ProbeScheduler();
+    mReceiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    mNameBytes = new byte[RECEIVE_BUFFER_SIZE];
+    mTokenStart = new int[RESPONSE_TOKENS];
+    mTokenEnd = new int[RESPONSE_TOKENS];
+
+    mChannel = DatagramChannel.open();
+    try {
+      mChannel.socket().setBroadcast(true);
+      mChannel.socket().bind(null); // binds to random port
+      mChannel.configureBlocking(false);
+      mSelector = Selector.open();
+      mChannel.register(mSelector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      mChannel.close();
+      throw e;
+    }
+    mProbe = ByteBuffer.wrap(toAscii(COMMAND_DISCOVER + " " + DESIRED_SERVICE
+        + " " + mChannel.socket().getLocalPort() + "\n"));
+  }
+
+  /**
+   * Creates an engine probing the broadcast address of every active IPv4
+   * interface.
+   *
+   * @param listener receives discovered services
+   * @throws IOException if no interface is available or the channel could not
+   *     be opened
+   */
+  public static BroadcastDiscoveryEngine forAllInterfaces(Listener listener)
+      throws IOException {
+    List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+    for (InetAddress address : getBroadcastAddresses()) {
+      targets.add(new InetSocketAddress(address, BROADCAST_SERVER_PORT));
+    }
+    return new BroadcastDiscoveryEngine(targets, listener);
+  }
+
+  /**
+   * Returns broadcast addresses of all active, non-loopback IPv4 interfaces.
+   *
+   * @throws SocketException if interfaces could not be enumerated
+   */
+  public static List<InetAddress> getBroadcastAddresses()
+      throws SocketException {
+    Enumeration<NetworkInterface> interfaces =
+        NetworkInterface.getNetworkInterfaces();
+    if (interfaces == null) {
+      return Collections.emptyList();
+    }
+    List<InetAddress> addresses = new ArrayList<InetAddress>();
+    while (interfaces.hasMoreElements()) {
+      NetworkInterface networkInterface = interfaces.nextElement();
+      if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+        continue;
+      }
+      for (InterfaceAddress interfaceAddress
+          : networkInterface.getInterfaceAddresses()) {
+        InetAddress broadcast = interfaceAddress.getBroadcast();
+        if (broadcast instanceof Inet4Address
+            && !addresses.contains(broadcast)) {
+          addresses.add(broadcast);
+        }
+      }
+    }
+    return addresses;
+  }
+
+  /**
+   * @return UDP port on which responses are received.
+   */
+  public int getLocalPort() {
+    return mChannel.socket().getLocalPort();
+  }
+
+  /**
+   * @return scheduler timing the probes, holding probe statistics.
+   */
+  public ProbeScheduler getProbeScheduler() {
+    return mScheduler;
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    try {
+      while (!mStopped) {
+        long now = now();
+        long nextProbe = mScheduler.getNextProbeTime();
+        if (now >= nextProbe) {
+          mProbeSentNs = System.nanoTime();
+          mProbeSent = true;
+          sendProbes();
+          mScheduler.onProbeSent(now);
+          mListener.onProbeSent();
+          nextProbe = mScheduler.getNextProbeTime();
+        }
+        mSelector.select(Math.max(1, nextProbe - now));
+        if (mStopped) {
+          break;
+        }
+        mSelector.selectedKeys().clear();
+        receiveResponses();
+      }
+    } catch (ClosedChannelException e) {
+      // stop() was called
+    } catch (ClosedSelectorException e) {
+      // stop() was called
+    } catch (IOException e) {
+      // fall through and release the channel
+    } finally {
+      close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    mScheduler.reset(now());
+    mSelector.wakeup();
+  }
+
+  /** {@inheritDoc} */
+  public void stop() {
+    mStopped = true;
+    mSelector.wakeup();
+    close();
+  }
+
+  private void close() {
+    try {
+      mChannel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+    try {
+      mSelector.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Sends a single discovery request to every target.
+   */
+  private void sendProbes() throws ClosedChannelException {
+    for (InetSocketAddress target : mTargets) {
+      mProbe.rewind();
+      try {
+        mChannel.send(mProbe, target);
+      } catch (ClosedChannelException e) {
+        throw e;
+      } catch (IOException e) {
+        // interface went down or target unreachable, keep probing the others
+      }
+    }
+  }
+
+  /**
+   * Drains all pending responses from the channel.
+   */
+  private void receiveResponses() throws IOException {
+    SocketAddress from;
+    while ((from = mChannel.receive(mReceiveBuffer)) != null) {
+      long rttMs = mProbeSent
+          ? (System.nanoTime() - mProbeSentNs) / 1000000 : RTT_UNKNOWN;
+      mReceiveBuffer.flip();
+      BroadcastAdvertisement advert = parseResponse(mReceiveBuffer,
+          ((InetSocketAddress) from).getAddress());
+      mReceiveBuffer.clear();
+      if (advert != null) {
+        mScheduler.onResponse(now());
+        mListener.onServiceFound(advert, rttMs);
+      }
+    }
+  }
+
+  /**
+   * Parses a "<service type> <service name> <port>" response.
+   *
+   * @param buffer response bytes between position and limit
+   * @param address source address of the response
+   * @return the advertisement, or {@code null} if invalid or not the desired
+   *     service
+   */
+  private BroadcastAdvertisement parseResponse(ByteBuffer buffer,
+      InetAddress address) {
+    int tokens = 0;
+    int limit = buffer.limit();
+    int i = buffer.position();
+    while (i < limit) {
+      while (i < limit && isWhitespace(buffer.get(i))) {
+        ++i;
+      }
+      if (i == limit) {
+        break;
+      }
+      if (tokens == RESPONSE_TOKENS) {
+        return null;
+      }
+      mTokenStart[tokens] = i;
+      while (i < limit && !isWhitespace(buffer.get(i))) {
+        ++i;
+      }
+      mTokenEnd[tokens] = i;
+      ++tokens;
+    }
+    if (tokens != RESPONSE_TOKENS || !tokenEquals(buffer, 0,
+        DESIRED_SERVICE_BYTES)) {
+      return null;
+    }
+
+    int port = 0;
+    for (int j = mTokenStart[2]; j < mTokenEnd[2]; ++j) {
+      int digit = buffer.get(j) - '0';
+      if (digit < 0 || digit > 9) {
+        return null;
+      }
+      port = port * 10 + digit;
+      if (port > 0xFFFF) {
+        return null;
+      }
+    }
+
+    int nameLength = mTokenEnd[1] - mTokenStart[1];
+    for (int j = 0; j < nameLength; ++j) {
+      mNameBytes[j] = buffer.get(mTokenStart[1] + j);
+    }
+    String serviceName = new String(mNameBytes, 0, nameLength, UTF8);
+    return new BroadcastAdvertisement(serviceName, address, port);
+  }
+
+  private boolean tokenEquals(ByteBuffer buffer, int token, byte[] expected) {
+    int start = mTokenStart[token];
+    if (mTokenEnd[token] - start != expected.length) {
+      return false;
+    }
+    for (int j = 0; j < expected.length; ++j) {
+      if (buffer.get(start + j) != expected[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1000000;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f'
+        || b == 0x0B;
+  }
+
+  private static byte[] toAscii(String text) {
+    byte[] bytes = new byte[text.length()];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) text.charAt(i);
+    }
+    return bytes;
+  }
+}
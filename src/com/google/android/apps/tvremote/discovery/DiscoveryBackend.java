@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import com.google.android.apps.tvremote.BroadcastAdvertisement;
+
+/**
+ * A mechanism for discovering Anymote services on the local network.
+ * <p>
+ * Backends are run on their own thread through {@link #run()} and deliver
+ * results to a {@link Listener} until {@link #stop()} is called.
+ */
+public interface DiscoveryBackend extends Runnable {
+
+  /**
+   * Round-trip time reported by backends that do not measure it.
+   */
+  public static final long RTT_UNKNOWN = -1;
+
+  /**
+   * Interface used to deliver discovered services.
+   */
+  public interface Listener {
+    /**
+     * Called on the backend thread for every service found.
+     *
+     * @param advert the advertised service
+     * @param rttMs time from sending the probe to receiving the response, as
+     *     measured by the backend, or {@link #RTT_UNKNOWN}
+     */
+    public void onServiceFound(BroadcastAdvertisement advert, long rttMs);
+
+    /**
+     * Called on the backend thread after each scheduled probe round. Backends
+     * that do not probe periodically never call it.
+     */
+    public void onProbeSent();
+  }
+
+  /**
+   * Restarts probing with a fast burst, e.g. after a network change.
+   * May be called from any thread.
+   */
+  public void reset();
+
+  /**
+   * Immediately stops the backend thread and releases its resources.
+   */
+  public void stop();
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.android.apps.tvremote.BroadcastAdvertisement;
+
+/**
+ * Persistent cache of discovered services.
+ * <p>
+ * Services are keyed by name and address and carry the time they were last
+ * seen, so a device list can be shown from the cache while discovery
+ * revalidates it. Entries not seen for longer than the maximum age are
+ * evicted on load and save. The cache is stored in a compact binary file that
+ * holds raw addresses, so loading never resolves names.
+ */
+public final class DiscoveryCache {
+
+  private static final int FILE_MAGIC = 0x44434331;  // "DCC1"
+
+  private final File mFile;
+
+  private final long mMaxAgeMs;
+
+  private final Map<String, Entry> mEntries;
+
+  private boolean mDirty;
+
+  /**
+   * A cached service.
+   */
+  private static final class Entry {
+    final BroadcastAdvertisement advert;
+    final long lastSeen;
+
+    Entry(BroadcastAdvertisement advert, long lastSeen) {
+      this.advert = advert;
+      this.lastSeen = lastSeen;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file file backing the cache
+   * @param maxAgeMs age after which unseen services are evicted
+   */
+  public DiscoveryCache(File file, long maxAgeMs) {
+    mFile = file;
+    mMaxAgeMs = maxAgeMs;
+    mEntries = new LinkedHashMap<String, Entry>();
+  }
+
+  /**
+   * Loads the cache from its file, dropping expired entries. Services updated
+   * before loading are kept. A missing file yields an empty cache.
+   *
+   * @param now current wall clock time in milliseconds
+   * @throws IOException if the file is unreadable or corrupted
+   */
+  public synchronized void load(long now) throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(mFile)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    try {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Bad discovery cache file");
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        String name = in.readUTF();
+        byte[] address = new byte[in.readUnsignedByte()];
+        in.readFully(address);
+        int port = in.readUnsignedShort();
+        long lastSeen = in.readLong();
+        InetAddress inetAddress = InetAddress.getByAddress(address);
+        if (now - lastSeen <= mMaxAgeMs
+            && !mEntries.containsKey(key(name, inetAddress))) {
+          put(new BroadcastAdvertisement(name, inetAddress, port), lastSeen);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the cache to its file if it changed since last load or save. The
+   * file is synced and replaced atomically, so a crash leaves either the old
+   * or the new contents.
+   *
+   * @param now current wall clock time in milliseconds
+   * @throws IOException if the file could not be written
+   */
+  public synchronized void save(long now) throws IOException {
+    evictExpired(now);
+    if (!mDirty) {
+      return;
+    }
+    File temp = new File(mFile.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(mEntries.size());
+      for (Entry entry : mEntries.values()) {
+        byte[] address = entry.advert.getServiceAddress().getAddress();
+        out.writeUTF(entry.advert.getServiceName());
+        out.writeByte(address.length);
+        out.write(address);
+        out.writeShort(entry.advert.getServicePort());
+        out.writeLong(entry.lastSeen);
+      }
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(mFile)) {
+      temp.delete();
+      throw new IOException("Unable to replace " + mFile);
+    }
+    mDirty = false;
+  }
+
+  /**
+   * Records that a service was seen.
+   *
+   * @param now current wall clock time in milliseconds
+   */
+  public synchronized void update(BroadcastAdvertisement advert, long now) {
+    put(advert, now);
+    mDirty = true;
+  }
+
+  /**
+   * @return cached services.
+   */
+  public synchronized List<BroadcastAdvertisement> getServices() {
+    List<BroadcastAdvertisement> services =
+        new ArrayList<BroadcastAdvertisement>(mEntries.size());
+    for (Entry entry : mEntries.values()) {
+      services.add(entry.advert);
+    }
+    return services;
+  }
+
+  private void put(BroadcastAdvertisement advert, long lastSeen) {
+    String key = key(advert.getServiceName(), advert.getServiceAddress());
+    // Re-inserting keeps the map ordered by last seen time.
+    mEntries.remove(key);
+    mEntries.put(key, new Entry(advert, lastSeen));
+  }
+
+  private static String key(String name, InetAddress address) {
+    return name + "@" + address.getHostAddress();
+  }
+
+  private void evictExpired(long now) {
+    for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext();) {
+      if (now - it.next().lastSeen > mMaxAgeMs) {
+        it.remove();
+        mDirty = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.android.apps.tvremote.BroadcastAdvertisement;
+
+/**
+ * DNS-SD discovery of {@code _anymote._tcp} services over multicast DNS.
+ * <p>
+ * Queries are sent from an ephemeral port as legacy unicast queries, so
+ * responders answer directly to this client and no multicast group has to be
+ * joined. PTR, SRV and A records are cached by their time to live; missing
+ * links of the PTR &rarr; SRV &rarr; A chain are queried for explicitly.
+ * Queries are timed by a {@link ProbeScheduler}.
+ */
+public final class MdnsDiscoveryClient implements DiscoveryBackend {
+
+  /**
+   * mDNS multicast group.
+   */
+  public static final String MDNS_GROUP = "224.0.0.251";
+
+  /**
+   * mDNS port.
+   */
+  public static final int MDNS_PORT = 5353;
+
+  /**
+   * DNS-SD service type to discover.
+   */
+  public static final String SERVICE_TYPE =
+      BroadcastDiscoveryEngine.DESIRED_SERVICE + ".local";
+
+  /**
+   * Maximum size of an mDNS message.
+   */
+  private static final int MAX_MESSAGE_SIZE = 9000;
+
+  /**
+   * Destination of queries.
+   */
+  private final InetSocketAddress mTarget;
+
+  private final Listener mListener;
+
+  private final DatagramChannel mChannel;
+
+  private final Selector mSelector;
+
+  private final ByteBuffer mSendBuffer;
+
+  private final ByteBuffer mReceiveBuffer;
+
+  private final MdnsRecordCache mCache;
+
+  private final ProbeScheduler mScheduler;
+
+  /**
+   * Services already reported to the listener.
+   */
+  private final Set<String> mReported;
+
+  private int mNextQueryId;
+
+  private volatile boolean mStopped;
+
+  /**
+   * Constructor.
+   *
+   * @param target destination for queries, usually the mDNS group
+   * @param listener receives discovered services
+   * @throws IOException if the channel could not be opened
+   */
+  public MdnsDiscoveryClient(InetSocketAddress target, Listener listener)
+      throws IOException {
+    mTarget = target;
+    mListener = listener;
+    mSendBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    mReceiveBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+    mCache = new MdnsRecordCache();
+    mScheduler = new ProbeScheduler();
+    mReported = new HashSet<String>();
+
+    mChannel = DatagramChannel.open();
+    try {
+      mChannel.socket().bind(null); // binds to random port
+      mChannel.configureBlocking(false);
+      mSelector = Selector.open();
+      mChannel.register(mSelector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      mChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a client querying the standard mDNS group.
+   *
+   * @param listener receives discovered services
+   * @throws IOException if the channel could not be opened
+   */
+  public static MdnsDiscoveryClient forDefaultGroup(Listener listener)
+      throws IOException {
+    InetAddress group;
+    try {
+      group = InetAddress.getByName(MDNS_GROUP);
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException("Bad mDNS group", e);
+    }
+    return new MdnsDiscoveryClient(new InetSocketAddress(group, MDNS_PORT),
+        listener);
+  }
+
+  /**
+   * @return scheduler timing the queries, holding query statistics.
+   */
+  public ProbeScheduler getProbeScheduler() {
+    return mScheduler;
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    boolean followedUp = false;
+    try {
+      while (!mStopped) {
+        long now = now();
+        long nextQuery = mScheduler.getNextProbeTime();
+        if (now >= nextQuery) {
+          sendQuery(now);
+          mScheduler.onProbeSent(now);
+          mListener.onProbeSent();
+          nextQuery = mScheduler.getNextProbeTime();
+          followedUp = false;
+        }
+        mSelector.select(Math.max(1, nextQuery - now));
+        if (mStopped) {
+          break;
+        }
+        mSelector.selectedKeys().clear();
+        if (receiveResponses() && !followedUp) {
+          // Follow up once per interval on incomplete service chains.
+          sendQuery(now());
+          followedUp = true;
+        }
+      }
+    } catch (ClosedChannelException e) {
+      // stop() was called
+    } catch (ClosedSelectorException e) {
+      // stop() was called
+    } catch (IOException e) {
+      // fall through and release the channel
+    } finally {
+      close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    mScheduler.reset(now());
+    mSelector.wakeup();
+  }
+
+  /** {@inheritDoc} */
+  public void stop() {
+    mStopped = true;
+    mSelector.wakeup();
+    close();
+  }
+
+  private void close() {
+    try {
+      mChannel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+    try {
+      mSelector.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Sends a PTR query for the service type, together with SRV and A queries
+   * for instances and hosts that are known but not yet resolved.
+   */
+  private void sendQuery(long now) throws ClosedChannelException {
+    List<MdnsMessage.Question> questions =
+        new ArrayList<MdnsMessage.Question>();
+    questions.add(new MdnsMessage.Question(SERVICE_TYPE, MdnsRecord.TYPE_PTR));
+    for (MdnsRecord ptr : mCache.get(SERVICE_TYPE, MdnsRecord.TYPE_PTR, now)) {
+      MdnsRecord srv = mCache.getFirst(ptr.getTarget(), MdnsRecord.TYPE_SRV,
+          now);
+      if (srv == null) {
+        questions.add(new MdnsMessage.Question(ptr.getTarget(),
+            MdnsRecord.TYPE_SRV));
+      } else if (mCache.getFirst(srv.getTarget(), MdnsRecord.TYPE_A, now)
+          == null) {
+        questions.add(new MdnsMessage.Question(srv.getTarget(),
+            MdnsRecord.TYPE_A));
+      }
+    }
+
+    mSendBuffer.clear();
+    try {
+      MdnsMessage.writeHeader(mSendBuffer, mNextQueryId++,
+          MdnsMessage.FLAGS_QUERY, questions.size(), 0);
+      for (MdnsMessage.Question question : questions) {
+        MdnsMessage.writeQuestion(mSendBuffer, question.name, question.type);
+      }
+    } catch (BufferOverflowException e) {
+      return;
+    }
+    mSendBuffer.flip();
+    try {
+      mChannel.send(mSendBuffer, mTarget);
+    } catch (ClosedChannelException e) {
+      throw e;
+    } catch (IOException e) {
+      // network unreachable, retry on next interval
+    }
+  }
+
+  /**
+   * Drains all pending responses, caches their records and reports complete
+   * services.
+   *
+   * @return {@code true} if some known service is not fully resolved yet
+   */
+  private boolean receiveResponses() throws IOException {
+    boolean received = false;
+    long now = now();
+    while (mChannel.receive(mReceiveBuffer) != null) {
+      mReceiveBuffer.flip();
+      if (MdnsMessage.isResponse(mReceiveBuffer)) {
+        List<MdnsRecord> records = MdnsMessage.parseRecords(mReceiveBuffer,
+            now);
+        if (records != null) {
+          for (MdnsRecord record : records) {
+            mCache.put(record);
+          }
+          mScheduler.onResponse(now);
+          received = true;
+        }
+      }
+      mReceiveBuffer.clear();
+    }
+    return received && resolveServices(now);
+  }
+
+  /**
+   * Reports every service whose PTR, SRV and A records are all cached.
+   *
+   * @return {@code true} if some service could not be resolved
+   */
+  private boolean resolveServices(long now) {
+    boolean incomplete = false;
+    for (MdnsRecord ptr : mCache.get(SERVICE_TYPE, MdnsRecord.TYPE_PTR, now)) {
+      String instance = ptr.getTarget();
+      MdnsRecord srv = mCache.getFirst(instance, MdnsRecord.TYPE_SRV, now);
+      MdnsRecord a = srv == null
+          ? null : mCache.getFirst(srv.getTarget(), MdnsRecord.TYPE_A, now);
+      if (a == null) {
+        incomplete = true;
+        continue;
+      }
+      String key = instance + "/" + a.getAddress().getHostAddress() + ":"
+          + srv.getPort();
+      if (mReported.add(key)) {
+        mListener.onServiceFound(new BroadcastAdvertisement(
+            getInstanceLabel(instance), a.getAddress(), srv.getPort()),
+            RTT_UNKNOWN);
+      }
+    }
+    return incomplete;
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1000000;
+  }
+
+  /**
+   * Strips the service type from an instance name.
+   */
+  private static String getInstanceLabel(String instance) {
+    int suffix = instance.length() - SERVICE_TYPE.length() - 1;
+    if (suffix > 0 && instance.regionMatches(true, suffix + 1, SERVICE_TYPE, 0,
+        SERVICE_TYPE.length())) {
+      return instance.substring(0, suffix);
+    }
+    return instance;
+  }
+}
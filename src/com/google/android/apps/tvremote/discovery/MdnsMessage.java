@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding and decoding of the subset of DNS messages used by mDNS service
+ * discovery (RFC 6762, RFC 6763).
+ */
+final class MdnsMessage {
+
+  /**
+   * Flags of a response: QR and AA bits set.
+   */
+  static final int FLAGS_RESPONSE = 0x8400;
+
+  /**
+   * Flags of a standard query.
+   */
+  static final int FLAGS_QUERY = 0x0000;
+
+  private static final int FLAG_QR = 0x8000;
+
+  private static final int CLASS_IN = 1;
+
+  /**
+   * Top bit of the question class requesting a unicast response, or of the
+   * record class flushing the peer's cache.
+   */
+  private static final int CLASS_TOP_BIT = 0x8000;
+
+  private static final int HEADER_SIZE = 12;
+
+  private static final int MAX_LABEL_LENGTH = 63;
+
+  /**
+   * Bound on compression pointers followed while reading a single name.
+   */
+  private static final int MAX_POINTERS = 16;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private MdnsMessage() {
+    // static methods only
+  }
+
+  /**
+   * A question of a query.
+   */
+  static final class Question {
+    final String name;
+    final int type;
+
+    Question(String name, int type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  /**
+   * Writes a message header.
+   */
+  static void writeHeader(ByteBuffer out, int id, int flags, int questions,
+      int answers) {
+    out.putShort((short) id);
+    out.putShort((short) flags);
+    out.putShort((short) questions);
+    out.putShort((short) answers);
+    out.putShort((short) 0);
+    out.putShort((short) 0);
+  }
+
+  /**
+   * Writes a question requesting a unicast response.
+   */
+  static void writeQuestion(ByteBuffer out, String name, int type) {
+    writeName(out, name);
+    out.putShort((short) type);
+    out.putShort((short) (CLASS_IN | CLASS_TOP_BIT));
+  }
+
+  /**
+   * Writes a resource record.
+   */
+  static void writeRecord(ByteBuffer out, MdnsRecord record) {
+    writeName(out, record.getName());
+    out.putShort((short) record.getType());
+    out.putShort((short) CLASS_IN);
+    out.putInt(record.getTtl());
+    int lengthPosition = out.position();
+    out.putShort((short) 0);
+    switch (record.getType()) {
+      case MdnsRecord.TYPE_PTR:
+        writeName(out, record.getTarget());
+        break;
+      case MdnsRecord.TYPE_SRV:
+        out.putShort((short) 0);  // priority
+        out.putShort((short) 0);  // weight
+        out.putShort((short) record.getPort());
+        writeName(out, record.getTarget());
+        break;
+      case MdnsRecord.TYPE_A:
+        out.put(record.getAddress().getAddress());
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported type: "
+            + record.getType());
+    }
+    out.putShort(lengthPosition,
+        (short) (out.position() - lengthPosition - 2));
+  }
+
+  /**
+   * Writes an uncompressed domain name.
+   */
+  static void writeName(ByteBuffer out, String name) {
+    int start = 0;
+    int length = name.length();
+    while (start < length) {
+      int end = name.indexOf('.', start);
+      if (end < 0) {
+        end = length;
+      }
+      byte[] label = name.substring(start, end).getBytes(UTF8);
+      if (label.length > MAX_LABEL_LENGTH) {
+        throw new IllegalArgumentException("Label too long: " + name);
+      }
+      out.put((byte) label.length);
+      out.put(label);
+      start = end + 1;
+    }
+    out.put((byte) 0);
+  }
+
+  /**
+   * @return {@code true} if the message in the buffer is a response.
+   */
+  static boolean isResponse(ByteBuffer in) {
+    return in.remaining() >= HEADER_SIZE
+        && (in.getShort(in.position() + 2) & FLAG_QR) != 0;
+  }
+
+  /**
+   * @return message id of the message in the buffer.
+   */
+  static int getId(ByteBuffer in) {
+    return in.getShort(in.position()) & 0xFFFF;
+  }
+
+  /**
+   * Parses the questions of a query.
+   *
+   * @return the questions, or {@code null} if the message is malformed
+   */
+  static List<Question> parseQuestions(ByteBuffer in) {
+    try {
+      int base = in.position();
+      in.position(base + 4);
+      int questionCount = in.getShort() & 0xFFFF;
+      in.position(base + HEADER_SIZE);
+      List<Question> questions = new ArrayList<Question>(questionCount);
+      for (int i = 0; i < questionCount; ++i) {
+        String name = readName(in, base);
+        int type = in.getShort() & 0xFFFF;
+        in.getShort();  // class
+        questions.add(new Question(name, type));
+      }
+      return questions;
+    } catch (BufferUnderflowException e) {
+      return null;
+    } catch (IndexOutOfBoundsException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses the PTR, SRV and A records from all sections of a response.
+   * Records of other types are skipped.
+   *
+   * @param in the message, starting at the buffer's position
+   * @param now current time in milliseconds, used to compute record expiry
+   * @return the records, or {@code null} if the message is malformed
+   */
+  static List<MdnsRecord> parseRecords(ByteBuffer in, long now) {
+    try {
+      int base = in.position();
+      in.position(base + 4);
+      int questionCount = in.getShort() & 0xFFFF;
+      int recordCount = (in.getShort() & 0xFFFF) + (in.getShort() & 0xFFFF)
+          + (in.getShort() & 0xFFFF);
+      for (int i = 0; i < questionCount; ++i) {
+        skipName(in);
+        in.position(in.position() + 4);
+      }
+      List<MdnsRecord> records = new ArrayList<MdnsRecord>(recordCount);
+      for (int i = 0; i < recordCount; ++i) {
+        String name = readName(in, base);
+        int type = in.getShort() & 0xFFFF;
+        int recordClass = in.getShort() & ~CLASS_TOP_BIT;
+        int ttl = in.getInt();
+        int length = in.getShort() & 0xFFFF;
+        int end = in.position() + length;
+        if (recordClass == CLASS_IN) {
+          MdnsRecord record = readData(in, base, name, type, ttl, length, now);
+          if (record != null) {
+            records.add(record);
+          }
+        }
+        in.position(end);
+      }
+      return records;
+    } catch (BufferUnderflowException e) {
+      return null;
+    } catch (IndexOutOfBoundsException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static MdnsRecord readData(ByteBuffer in, int base, String name,
+      int type, int ttl, int length, long now) {
+    if (ttl < 0) {
+      ttl = 0;
+    }
+    switch (type) {
+      case MdnsRecord.TYPE_PTR:
+        return MdnsRecord.ptr(name, ttl, now, readName(in, base));
+      case MdnsRecord.TYPE_SRV:
+        in.getShort();  // priority
+        in.getShort();  // weight
+        int port = in.getShort() & 0xFFFF;
+        return MdnsRecord.srv(name, ttl, now, readName(in, base), port);
+      case MdnsRecord.TYPE_A:
+        if (length != 4) {
+          return null;
+        }
+        byte[] quads = new byte[4];
+        in.get(quads);
+        try {
+          return MdnsRecord.a(name, ttl, now,
+              (Inet4Address) InetAddress.getByAddress(quads));
+        } catch (UnknownHostException e) {
+          return null;
+        }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Reads a possibly compressed name, leaving the buffer positioned after it.
+   *
+   * @param base position of the message header, for compression pointers
+   */
+  private static String readName(ByteBuffer in, int base) {
+    StringBuilder name = new StringBuilder();
+    int position = in.position();
+    int resume = -1;
+    int pointers = 0;
+    while (true) {
+      int length = in.get(position) & 0xFF;
+      if ((length & 0xC0) == 0xC0) {
+        if (++pointers > MAX_POINTERS) {
+          throw new IllegalArgumentException("Compression loop");
+        }
+        if (resume < 0) {
+          resume = position + 2;
+        }
+        position = base + (((length & 0x3F) << 8)
+            | (in.get(position + 1) & 0xFF));
+        continue;
+      }
+      if (length > MAX_LABEL_LENGTH) {
+        throw new IllegalArgumentException("Bad label length");
+      }
+      ++position;
+      if (length == 0) {
+        break;
+      }
+      if (name.length() > 0) {
+        name.append('.');
+      }
+      byte[] label = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        label[i] = in.get(position + i);
+      }
+      name.append(new String(label, UTF8));
+      position += length;
+    }
+    in.position(resume < 0 ? position : resume);
+    return name.toString();
+  }
+
+  private static void skipName(ByteBuffer in) {
+    while (true) {
+      int length = in.get() & 0xFF;
+      if ((length & 0xC0) == 0xC0) {
+        in.get();
+        return;
+      }
+      if (length == 0) {
+        return;
+      }
+      in.position(in.position() + length);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.net.InetAddress;
+
+/**
+ * A single DNS resource record of the types used by DNS-SD: PTR, SRV and A.
+ */
+final class MdnsRecord {
+
+  static final int TYPE_A = 1;
+  static final int TYPE_PTR = 12;
+  static final int TYPE_SRV = 33;
+
+  private final String mName;
+  private final int mType;
+  private final int mTtl;
+  private final long mExpiresAt;
+  private final String mTarget;
+  private final int mPort;
+  private final InetAddress mAddress;
+
+  private MdnsRecord(String name, int type, int ttl, long now, String target,
+      int port, InetAddress address) {
+    mName = name;
+    mType = type;
+    mTtl = ttl;
+    mExpiresAt = now + ttl * 1000L;
+    mTarget = target;
+    mPort = port;
+    mAddress = address;
+  }
+
+  /**
+   * Creates a PTR record pointing a service type to a service instance.
+   */
+  static MdnsRecord ptr(String name, int ttl, long now, String instance) {
+    return new MdnsRecord(name, TYPE_PTR, ttl, now, instance, 0, null);
+  }
+
+  /**
+   * Creates a SRV record pointing a service instance to a host and port.
+   */
+  static MdnsRecord srv(String name, int ttl, long now, String host,
+      int port) {
+    return new MdnsRecord(name, TYPE_SRV, ttl, now, host, port, null);
+  }
+
+  /**
+   * Creates an A record pointing a host to an IPv4 address.
+   */
+  static MdnsRecord a(String name, int ttl, long now, InetAddress address) {
+    return new MdnsRecord(name, TYPE_A, ttl, now, null, 0, address);
+  }
+
+  String getName() {
+    return mName;
+  }
+
+  int getType() {
+    return mType;
+  }
+
+  /**
+   * @return time to live in seconds, {@code 0} for a goodbye record.
+   */
+  int getTtl() {
+    return mTtl;
+  }
+
+  boolean isExpired(long now) {
+    return now >= mExpiresAt;
+  }
+
+  /**
+   * @return instance name of a PTR record, or host name of a SRV record.
+   */
+  String getTarget() {
+    return mTarget;
+  }
+
+  int getPort() {
+    return mPort;
+  }
+
+  InetAddress getAddress() {
+    return mAddress;
+  }
+
+  /**
+   * @return {@code true} if both records carry the same data, regardless of
+   *     their time to live.
+   */
+  boolean hasSameData(MdnsRecord that) {
+    return mType == that.mType
+        && mName.equalsIgnoreCase(that.mName)
+        && mPort == that.mPort
+        && (mTarget == null
+            ? that.mTarget == null : mTarget.equalsIgnoreCase(that.mTarget))
+        && (mAddress == null
+            ? that.mAddress == null : mAddress.equals(that.mAddress));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %d %d %s:%d %s", mName, mType, mTtl, mTarget,
+        mPort, mAddress);
+  }
+}
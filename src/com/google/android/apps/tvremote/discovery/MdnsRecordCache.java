@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of mDNS records, expiring each record after its time to live.
+ * <p>
+ * Not thread-safe, used only from the discovery thread.
+ */
+final class MdnsRecordCache {
+
+  /**
+   * Records indexed by lower-cased name and type.
+   */
+  private final Map<String, List<MdnsRecord>> mRecords;
+
+  MdnsRecordCache() {
+    mRecords = new HashMap<String, List<MdnsRecord>>();
+  }
+
+  /**
+   * Adds or refreshes a record. A record with a time to live of {@code 0}
+   * removes the matching entry.
+   */
+  void put(MdnsRecord record) {
+    String key = key(record.getName(), record.getType());
+    List<MdnsRecord> records = mRecords.get(key);
+    if (records == null) {
+      if (record.getTtl() == 0) {
+        return;
+      }
+      records = new ArrayList<MdnsRecord>(1);
+      mRecords.put(key, records);
+    }
+    for (Iterator<MdnsRecord> it = records.iterator(); it.hasNext();) {
+      if (it.next().hasSameData(record)) {
+        it.remove();
+      }
+    }
+    if (record.getTtl() != 0) {
+      records.add(record);
+    } else if (records.isEmpty()) {
+      mRecords.remove(key);
+    }
+  }
+
+  /**
+   * Returns all live records of given name and type.
+   *
+   * @param now current time in milliseconds
+   */
+  List<MdnsRecord> get(String name, int type, long now) {
+    String key = key(name, type);
+    List<MdnsRecord> records = mRecords.get(key);
+    if (records == null) {
+      return new ArrayList<MdnsRecord>(0);
+    }
+    for (Iterator<MdnsRecord> it = records.iterator(); it.hasNext();) {
+      if (it.next().isExpired(now)) {
+        it.remove();
+      }
+    }
+    if (records.isEmpty()) {
+      mRecords.remove(key);
+    }
+    return new ArrayList<MdnsRecord>(records);
+  }
+
+  /**
+   * Returns the first live record of given name and type, or {@code null}.
+   */
+  MdnsRecord getFirst(String name, int type, long now) {
+    List<MdnsRecord> records = get(name, type, now);
+    return records.isEmpty() ? null : records.get(0);
+  }
+
+  private static String key(String name, int type) {
+    return type + ":" + name.toLowerCase();
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal in-process mDNS responder advertising a single
+ * {@code _anymote._tcp} service.
+ * <p>
+ * Stands in for a Google TV box when exercising {@link MdnsDiscoveryClient}
+ * without real hardware. Only PTR, SRV and A questions are answered, always
+ * by unicast to the sender of the query. When bound to the standard mDNS port
+ * the responder joins the mDNS group; on any other port (e.g. on localhost)
+ * it answers queries sent directly to it.
+ */
+public final class MdnsResponder implements Runnable {
+
+  /**
+   * Time to live of advertised records, in seconds.
+   */
+  private static final int RECORD_TTL = 120;
+
+  private static final int MAX_MESSAGE_SIZE = 9000;
+
+  private final DatagramSocket mSocket;
+
+  private final String mInstanceName;
+
+  private final String mHostName;
+
+  private final InetAddress mAddress;
+
+  private final int mPort;
+
+  /**
+   * Constructor.
+   *
+   * @param bindAddress local address to receive queries on
+   * @param serviceName name of the advertised service instance
+   * @param address advertised address of the service
+   * @param port advertised port of the service
+   * @throws IOException if the socket could not be bound
+   */
+  public MdnsResponder(InetSocketAddress bindAddress, String serviceName,
+      InetAddress address, int port) throws IOException {
+    mInstanceName = serviceName + "." + MdnsDiscoveryClient.SERVICE_TYPE;
+    mHostName = "anymote-" + address.getHostAddress().replace('.', '-')
+        + ".local";
+    mAddress = address;
+    mPort = port;
+
+    if (bindAddress.getPort() == MdnsDiscoveryClient.MDNS_PORT) {
+      MulticastSocket socket = new MulticastSocket(bindAddress);
+      socket.joinGroup(InetAddress.getByName(MdnsDiscoveryClient.MDNS_GROUP));
+      mSocket = socket;
+    } else {
+      mSocket = new DatagramSocket(bindAddress);
+    }
+  }
+
+  /**
+   * @return local address the responder receives queries on.
+   */
+  public InetSocketAddress getLocalAddress() {
+    return (InetSocketAddress) mSocket.getLocalSocketAddress();
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+    byte[] reply = new byte[MAX_MESSAGE_SIZE];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        mSocket.receive(packet);
+      } catch (IOException e) {
+        // stop() was called
+        break;
+      }
+      ByteBuffer query = ByteBuffer.wrap(buffer, 0, packet.getLength());
+      if (MdnsMessage.isResponse(query)) {
+        continue;
+      }
+      int length = answer(query, ByteBuffer.wrap(reply));
+      if (length > 0) {
+        try {
+          mSocket.send(new DatagramPacket(reply, length,
+              packet.getSocketAddress()));
+        } catch (IOException e) {
+          // peer went away
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the responder thread.
+   */
+  public void stop() {
+    mSocket.close();
+  }
+
+  /**
+   * Builds the response to a query.
+   *
+   * @return length of the response, or {@code 0} if nothing was asked for
+   */
+  private int answer(ByteBuffer query, ByteBuffer reply) {
+    int id = MdnsMessage.getId(query);
+    List<MdnsMessage.Question> questions = MdnsMessage.parseQuestions(query);
+    if (questions == null) {
+      return 0;
+    }
+
+    long now = System.currentTimeMillis();
+    MdnsRecord ptr = MdnsRecord.ptr(MdnsDiscoveryClient.SERVICE_TYPE,
+        RECORD_TTL, now, mInstanceName);
+    MdnsRecord srv = MdnsRecord.srv(mInstanceName, RECORD_TTL, now, mHostName,
+        mPort);
+    MdnsRecord a = MdnsRecord.a(mHostName, RECORD_TTL, now, mAddress);
+
+    List<MdnsRecord> answers = new ArrayList<MdnsRecord>();
+    for (MdnsMessage.Question question : questions) {
+      if (question.type == MdnsRecord.TYPE_PTR
+          && question.name.equalsIgnoreCase(ptr.getName())) {
+        addAll(answers, ptr, srv, a);
+      } else if (question.type == MdnsRecord.TYPE_SRV
+          && question.name.equalsIgnoreCase(srv.getName())) {
+        addAll(answers, srv, a);
+      } else if (question.type == MdnsRecord.TYPE_A
+          && question.name.equalsIgnoreCase(a.getName())) {
+        addAll(answers, a);
+      }
+    }
+    if (answers.isEmpty()) {
+      return 0;
+    }
+
+    try {
+      MdnsMessage.writeHeader(reply, id, MdnsMessage.FLAGS_RESPONSE, 0,
+          answers.size());
+      for (MdnsRecord record : answers) {
+        MdnsMessage.writeRecord(reply, record);
+      }
+    } catch (BufferOverflowException e) {
+      return 0;
+    }
+    return reply.position();
+  }
+
+  private static void addAll(List<MdnsRecord> answers,
+      MdnsRecord... records) {
+    for (MdnsRecord record : records) {
+      if (!answers.contains(record)) {
+        answers.add(record);
+      }
+    }
+  }
+}
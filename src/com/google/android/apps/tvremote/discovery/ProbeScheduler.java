@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+/**
+ * Schedules discovery probes.
+ * <p>
+ * After a (re)start a fast burst of probes is sent, so that a single lost
+ * packet costs only a few hundred milliseconds. The interval then doubles
+ * after every probe up to a maximum, to save airtime on long-running scans.
+ * The scheduler also records probe and response counts and the time from the
+ * last reset to the first response.
+ * <p>
+ * All times are in milliseconds of a monotonic clock chosen by the caller.
+ * Methods are thread-safe, so {@link #reset(long)} may be called from any
+ * thread.
+ */
+public final class ProbeScheduler {
+
+  /**
+   * Default offsets of the initial burst, relative to the first probe.
+   */
+  private static final long[] DEFAULT_BURST_MS = {0, 100, 300, 700};
+
+  /**
+   * Default upper bound of the interval between probes.
+   */
+  private static final long DEFAULT_MAX_INTERVAL_MS = 30000;
+
+  private final long[] mBurst;
+
+  private final long mMaxInterval;
+
+  /**
+   * Time of the first probe since last reset, or {@code -1} if none was sent.
+   */
+  private long mBurstStart;
+
+  private long mLastProbe;
+
+  private long mInterval;
+
+  /**
+   * Number of probes sent since last reset.
+   */
+  private int mRoundProbes;
+
+  private long mResetTime;
+
+  private long mTimeToFirstResponse;
+
+  private int mProbeCount;
+
+  private int mResponseCount;
+
+  public ProbeScheduler() {
+    this(DEFAULT_BURST_MS, DEFAULT_MAX_INTERVAL_MS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param burst offsets of the initial probes, increasing from {@code 0}
+   * @param maxInterval upper bound of the interval between probes
+   */
+  public ProbeScheduler(long[] burst, long maxInterval) {
+    if (burst.length == 0 || burst[0] != 0) {
+      throw new IllegalArgumentException("Burst must start at 0");
+    }
+    mBurst = burst.clone();
+    mMaxInterval = maxInterval;
+    reset(-1);
+  }
+
+  /**
+   * Restarts the schedule with a new burst, e.g. after a network change.
+   *
+   * @param now current time, or {@code -1} to start at the first probe
+   */
+  public synchronized void reset(long now) {
+    mBurstStart = -1;
+    mRoundProbes = 0;
+    mResetTime = now;
+    mTimeToFirstResponse = -1;
+  }
+
+  /**
+   * @return time at which the next probe is due.
+   */
+  public synchronized long getNextProbeTime() {
+    if (mBurstStart < 0) {
+      return 0;
+    }
+    if (mRoundProbes < mBurst.length) {
+      return mBurstStart + mBurst[mRoundProbes];
+    }
+    return mLastProbe + mInterval;
+  }
+
+  /**
+   * Records that a probe was sent and advances the schedule.
+   */
+  public synchronized void onProbeSent(long now) {
+    if (mBurstStart < 0) {
+      mBurstStart = now;
+      if (mResetTime < 0) {
+        mResetTime = now;
+      }
+    }
+    if (mRoundProbes >= mBurst.length - 1) {
+      if (mRoundProbes == mBurst.length - 1) {
+        mInterval = mBurst.length > 1
+            ? mBurst[mBurst.length - 1] - mBurst[mBurst.length - 2]
+            : mMaxInterval;
+      }
+      mInterval = Math.min(mMaxInterval, Math.max(1, mInterval * 2));
+    }
+    mLastProbe = now;
+    ++mRoundProbes;
+    ++mProbeCount;
+  }
+
+  /**
+   * Records that a valid response was received.
+   */
+  public synchronized void onResponse(long now) {
+    ++mResponseCount;
+    if (mTimeToFirstResponse < 0 && mResetTime >= 0) {
+      mTimeToFirstResponse = now - mResetTime;
+    }
+  }
+
+  /**
+   * @return total number of probes sent.
+   */
+  public synchronized int getProbeCount() {
+    return mProbeCount;
+  }
+
+  /**
+   * @return total number of responses received.
+   */
+  public synchronized int getResponseCount() {
+    return mResponseCount;
+  }
+
+  /**
+   * @return time from the last reset to the first response after it, or
+   *     {@code -1} if no response was received yet.
+   */
+  public synchronized long getTimeToFirstResponse() {
+    return mTimeToFirstResponse;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("probes=%d responses=%d timeToFirstResponse=%dms",
+        mProbeCount, mResponseCount, mTimeToFirstResponse);
+  }
+}
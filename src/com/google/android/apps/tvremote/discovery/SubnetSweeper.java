@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.discovery;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.android.apps.tvremote.BroadcastAdvertisement;
+
+/**
+ * Fallback discovery for networks that drop broadcast and multicast traffic.
+ * <p>
+ * Makes non-blocking TCP connect attempts to the Anymote ports of every host
+ * of the local subnets. At most {@link #DEFAULT_MAX_IN_FLIGHT} connections
+ * are pending at any time, which bounds the number of file descriptors in
+ * use, and each attempt is abandoned after a short timeout. Hosts accepting
+ * a connection are reported as they are found, with a {@code null} service
+ * name. The sweep runs once; {@link #reset()} starts it over.
+ */
+public final class SubnetSweeper implements DiscoveryBackend {
+
+  /**
+   * Default bound on simultaneously pending connection attempts.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+  /**
+   * Default time after which a connection attempt is abandoned.
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 300;
+
+  /**
+   * Subnets larger than this are narrowed to the /24 around the local
+   * address.
+   */
+  private static final int MIN_PREFIX_LENGTH = 22;
+
+  private static final int NARROWED_PREFIX_LENGTH = 24;
+
+  /**
+   * Pending connection attempt.
+   */
+  private static final class Attempt {
+    final InetSocketAddress target;
+    final long deadline;
+
+    Attempt(InetSocketAddress target, long deadline) {
+      this.target = target;
+      this.deadline = deadline;
+    }
+  }
+
+  private final List<InetSocketAddress> mTargets;
+
+  private final Listener mListener;
+
+  private final int mMaxInFlight;
+
+  private final int mConnectTimeoutMs;
+
+  private final Selector mSelector;
+
+  private volatile boolean mStopped;
+
+  private volatile boolean mRestart;
+
+  /**
+   * Constructor.
+   *
+   * @param hosts hosts to sweep
+   * @param ports ports to try on each host
+   * @param maxInFlight maximum number of pending connection attempts
+   * @param connectTimeoutMs timeout of each connection attempt
+   * @param listener receives hosts accepting connections
+   * @throws IOException if the selector could not be opened
+   */
+  public SubnetSweeper(List<InetAddress> hosts, int[] ports, int maxInFlight,
+      int connectTimeoutMs, Listener listener) throws IOException {
+    mTargets = new ArrayList<InetSocketAddress>(hosts.size() * ports.length);
+    for (InetAddress host : hosts) {
+      for (int port : ports) {
+        mTargets.add(new InetSocketAddress(host, port));
+      }
+    }
+    mMaxInFlight = maxInFlight;
+    mConnectTimeoutMs = connectTimeoutMs;
+    mListener = listener;
+    mSelector = Selector.open();
+  }
+
+  public SubnetSweeper(List<InetAddress> hosts, int[] ports,
+      Listener listener) throws IOException {
+    this(hosts, ports, DEFAULT_MAX_IN_FLIGHT, DEFAULT_CONNECT_TIMEOUT_MS,
+        listener);
+  }
+
+  /**
+   * Returns all host addresses of the subnets of active, non-loopback IPv4
+   * interfaces, excluding the local addresses.
+   *
+   * @throws SocketException if interfaces could not be enumerated
+   */
+  public static List<InetAddress> getLocalSubnetHosts()
+      throws SocketException {
+    List<InetAddress> hosts = new ArrayList<InetAddress>();
+    Enumeration<NetworkInterface> interfaces =
+        NetworkInterface.getNetworkInterfaces();
+    if (interfaces == null) {
+      return hosts;
+    }
+    List<InetAddress> local = new ArrayList<InetAddress>();
+    while (interfaces.hasMoreElements()) {
+      NetworkInterface networkInterface = interfaces.nextElement();
+      if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+        continue;
+      }
+      for (InterfaceAddress interfaceAddress
+          : networkInterface.getInterfaceAddresses()) {
+        if (interfaceAddress.getAddress() instanceof Inet4Address) {
+          local.add(interfaceAddress.getAddress());
+          addSubnetHosts(hosts, interfaceAddress.getAddress(),
+              interfaceAddress.getNetworkPrefixLength());
+        }
+      }
+    }
+    hosts.removeAll(local);
+    return hosts;
+  }
+
+  private static void addSubnetHosts(List<InetAddress> hosts,
+      InetAddress address, int prefixLength) {
+    if (prefixLength < MIN_PREFIX_LENGTH) {
+      prefixLength = NARROWED_PREFIX_LENGTH;
+    }
+    if (prefixLength > 30) {
+      return;
+    }
+    byte[] quads = address.getAddress();
+    int ip = ((quads[0] & 0xFF) << 24) | ((quads[1] & 0xFF) << 16)
+        | ((quads[2] & 0xFF) << 8) | (quads[3] & 0xFF);
+    int mask = -1 << (32 - prefixLength);
+    int network = ip & mask;
+    int broadcast = network | ~mask;
+    for (int host = network + 1; host < broadcast; ++host) {
+      quads = new byte[] {
+          (byte) (host >> 24), (byte) (host >> 16), (byte) (host >> 8),
+          (byte) host };
+      try {
+        InetAddress hostAddress = InetAddress.getByAddress(quads);
+        if (!hosts.contains(hostAddress)) {
+          hosts.add(hostAddress);
+        }
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    try {
+      do {
+        mRestart = false;
+        sweep();
+        while (!mStopped && !mRestart) {
+          mSelector.select();
+        }
+      } while (!mStopped);
+    } catch (ClosedSelectorException e) {
+      // stop() was called
+    } catch (IOException e) {
+      // fall through and release the selector
+    } finally {
+      close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    mRestart = true;
+    mSelector.wakeup();
+  }
+
+  /** {@inheritDoc} */
+  public void stop() {
+    mStopped = true;
+    mSelector.wakeup();
+  }
+
+  private void close() {
+    try {
+      for (SelectionKey key : mSelector.keys()) {
+        key.channel().close();
+      }
+      mSelector.close();
+    } catch (IOException e) {
+      // ignore
+    } catch (ClosedSelectorException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Attempts connections to all targets, keeping at most the maximum number
+   * of attempts pending.
+   */
+  private void sweep() throws IOException {
+    int next = 0;
+    while (!mStopped && !mRestart) {
+      long now = now();
+      while (next < mTargets.size()
+          && mSelector.keys().size() < mMaxInFlight) {
+        startAttempt(mTargets.get(next++), now);
+      }
+      if (mSelector.keys().isEmpty()) {
+        if (next == mTargets.size()) {
+          return;
+        }
+        continue;
+      }
+
+      mSelector.select(Math.max(1, getEarliestDeadline() - now));
+      now = now();
+      for (Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+          it.hasNext();) {
+        SelectionKey key = it.next();
+        it.remove();
+        finishAttempt(key);
+      }
+      for (SelectionKey key : mSelector.keys()) {
+        if (key.isValid()
+            && ((Attempt) key.attachment()).deadline <= now) {
+          key.channel().close();
+        }
+      }
+      // Flush cancelled keys so their slots can be reused.
+      mSelector.selectNow();
+    }
+    for (SelectionKey key : mSelector.keys()) {
+      key.channel().close();
+    }
+    mSelector.selectNow();
+  }
+
+  private void startAttempt(InetSocketAddress target, long now) {
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      if (channel.connect(target)) {
+        channel.close();
+        report(target);
+        return;
+      }
+      channel.register(mSelector, SelectionKey.OP_CONNECT,
+          new Attempt(target, now + mConnectTimeoutMs));
+    } catch (IOException e) {
+      // unreachable, or out of descriptors: skip this target
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e2) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  private void finishAttempt(SelectionKey key) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    Attempt attempt = (Attempt) key.attachment();
+    boolean connected;
+    try {
+      connected = channel.finishConnect();
+    } catch (IOException e) {
+      connected = false;
+    }
+    channel.close();
+    if (connected) {
+      report(attempt.target);
+    }
+  }
+
+  private long getEarliestDeadline() {
+    long earliest = Long.MAX_VALUE;
+    for (SelectionKey key : mSelector.keys()) {
+      if (key.isValid()) {
+        earliest = Math.min(earliest, ((Attempt) key.attachment()).deadline);
+      }
+    }
+    return earliest;
+  }
+
+  private void report(InetSocketAddress target) {
+    mListener.onServiceFound(new BroadcastAdvertisement(null,
+        target.getAddress(), target.getPort()), RTT_UNKNOWN);
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1000000;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Writes snapshots of state held in memory to a file, on a background thread.
+ * <p>
+ * Changes are batched over a delay, so their callers never wait for the disk.
+ * Each snapshot is written to a temporary file, synced, and renamed over the
+ * file, so a crash leaves either the old or the new contents. A failed write
+ * is retried later. All methods are thread safe.
+ */
+public final class BatchedFileWriter {
+
+  /**
+   * Contents of the file, taken when a write starts.
+   */
+  public interface Snapshot {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Takes the snapshots to write. Called on the writer thread, without
+   * holding the lock of the writer.
+   */
+  public interface Source {
+    Snapshot takeSnapshot();
+  }
+
+  private static final String LOG_TAG = "BatchedFileWriter";
+
+  /**
+   * Delay before a failed write is retried.
+   */
+  private static final long RETRY_DELAY_MS = 10000;
+
+  private final File mFile;
+
+  private final long mDelayMs;
+
+  private final Source mSource;
+
+  private final ScheduledExecutorService mExecutor;
+
+  private boolean mWriteScheduled;
+
+  /**
+   * Constructor.
+   *
+   * @param file the file written
+   * @param delayMs delay over which changes are batched
+   * @param source source of the snapshots written
+   */
+  public BatchedFileWriter(File file, long delayMs, Source source) {
+    mFile = file;
+    mDelayMs = delayMs;
+    mSource = source;
+    mExecutor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Schedules a write, unless one is already pending.
+   */
+  public synchronized void scheduleWrite() {
+    if (mWriteScheduled) {
+      return;
+    }
+    mWriteScheduled = true;
+    schedule(mDelayMs);
+  }
+
+  /**
+   * Writes pending changes in the background without further delay.
+   */
+  public synchronized void flush() {
+    if (mWriteScheduled && !mExecutor.isShutdown()) {
+      mExecutor.execute(new Runnable() {
+        public void run() {
+          write();
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes pending changes in the background and stops the writer thread once
+   * done. Later changes are not written.
+   */
+  public synchronized void close() {
+    flush();
+    mExecutor.shutdown();
+  }
+
+  private void schedule(long delayMs) {
+    if (mExecutor.isShutdown()) {
+      return;
+    }
+    mExecutor.schedule(new Runnable() {
+      public void run() {
+        write();
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes a snapshot. Runs on the writer thread.
+   */
+  private void write() {
+    synchronized (this) {
+      if (!mWriteScheduled) {
+        return;
+      }
+      mWriteScheduled = false;
+    }
+    Snapshot snapshot = mSource.takeSnapshot();
+    File temp = new File(mFile.getPath() + ".tmp");
+    try {
+      FileOutputStream fos = new FileOutputStream(temp);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(fos));
+      try {
+        snapshot.writeTo(out);
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(mFile)) {
+        throw new IOException("Unable to replace " + mFile);
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Unable to write " + mFile + ", retrying later", e);
+      temp.delete();
+      synchronized (this) {
+        if (!mWriteScheduled) {
+          mWriteScheduled = true;
+          schedule(RETRY_DELAY_MS);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache evicting the least recently used entry.
+ * <p>
+ * Both reading and writing an entry make it the most recently used one. When
+ * an expiry time is set, entries expire that long after they were written,
+ * and expired entries are dropped when next reached. The cache counts hits,
+ * misses, evictions and expirations. All methods are thread safe.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class LruCache<K, V> {
+
+  /**
+   * A cached value.
+   */
+  private static final class Item<V> {
+    final V value;
+
+    /**
+     * {@link System#nanoTime()} at which the entry expires.
+     */
+    final long expiresAt;
+
+    Item(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int mMaxSize;
+
+  /**
+   * Expiry time in nanoseconds, or {@code 0} if entries never expire.
+   */
+  private final long mExpiryNs;
+
+  private final LinkedHashMap<K, Item<V>> mEntries;
+
+  private long mHitCount;
+
+  private long mMissCount;
+
+  private long mEvictionCount;
+
+  private long mExpirationCount;
+
+  /**
+   * Constructor for a cache whose entries never expire.
+   *
+   * @param maxSize maximum number of entries, or {@code 0} for no limit
+   */
+  public LruCache(int maxSize) {
+    this(maxSize, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize maximum number of entries, or {@code 0} for no limit
+   * @param expiryMs time after which written entries expire, or {@code 0} if
+   *     they never expire
+   */
+  public LruCache(int maxSize, long expiryMs) {
+    if (maxSize < 0 || expiryMs < 0) {
+      throw new IllegalArgumentException();
+    }
+    mMaxSize = maxSize;
+    mExpiryNs = expiryMs * 1000000L;
+    mEntries = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+        if (mMaxSize != 0 && size() > mMaxSize) {
+          ++mEvictionCount;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns a value, making it the most recently used one.
+   *
+   * @return the value, or {@code null} if it is not cached or expired
+   */
+  public synchronized V get(K key) {
+    Item<V> entry = mEntries.get(key);
+    if (entry != null && isExpired(entry, System.nanoTime())) {
+      mEntries.remove(key);
+      ++mExpirationCount;
+      entry = null;
+    }
+    if (entry == null) {
+      ++mMissCount;
+      return null;
+    }
+    ++mHitCount;
+    return entry.value;
+  }
+
+  /**
+   * Caches a value as the most recently used one, evicting the least recently
+   * used value if the cache is full.
+   *
+   * @return the value previously cached for the key, or {@code null}
+   */
+  public synchronized V put(K key, V value) {
+    long expiresAt = mExpiryNs != 0 ? System.nanoTime() + mExpiryNs : 0;
+    Item<V> previous = mEntries.put(key, new Item<V>(value, expiresAt));
+    return previous != null ? previous.value : null;
+  }
+
+  /**
+   * @return the removed value, or {@code null} if it was not cached.
+   */
+  public synchronized V remove(K key) {
+    Item<V> entry = mEntries.remove(key);
+    return entry != null ? entry.value : null;
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+  }
+
+  /**
+   * @return number of entries, including expired ones not dropped yet.
+   */
+  public synchronized int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * Returns the values, without changing their order or the hit and miss
+   * counts.
+   *
+   * @return values that have not expired, least recently used first
+   */
+  public synchronized List<V> values() {
+    long now = System.nanoTime();
+    List<V> values = new ArrayList<V>(mEntries.size());
+    for (Iterator<Item<V>> it = mEntries.values().iterator(); it.hasNext();) {
+      Item<V> entry = it.next();
+      if (isExpired(entry, now)) {
+        it.remove();
+        ++mExpirationCount;
+      } else {
+        values.add(entry.value);
+      }
+    }
+    return values;
+  }
+
+  public synchronized long getHitCount() {
+    return mHitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return mMissCount;
+  }
+
+  /**
+   * @return number of entries evicted to keep the size limit.
+   */
+  public synchronized long getEvictionCount() {
+    return mEvictionCount;
+  }
+
+  /**
+   * @return number of expired entries dropped.
+   */
+  public synchronized long getExpirationCount() {
+    return mExpirationCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "LruCache[size=" + mEntries.size() + ", maxSize=" + mMaxSize
+        + ", hits=" + mHitCount + ", misses=" + mMissCount + ", evictions="
+        + mEvictionCount + ", expirations=" + mExpirationCount + "]";
+  }
+
+  private boolean isExpired(Item<V> entry, long now) {
+    return mExpiryNs != 0 && now - entry.expiresAt >= 0;
+  }
+}
@@ -21,6 +21,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.google.anymote.Messages.RemoteMessage;
+import com.google.polo.wire.MemoryBudget;
+import com.google.protobuf.CodedInputStream;
 
 /**
  * Transport layer implementation of the Ip Remote Protocol
@@ -39,6 +41,8 @@ public final class RemoteWireAdapter implements WireAdapter {
     public void onMessage(RemoteMessage message);
   }
 
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
   private final InputStream mInputStream;
 
   private final OutputStream mOutputStream;
@@ -49,11 +53,37 @@ public final class RemoteWireAdapter implements WireAdapter {
 
   private IMessageListener mListener;
 
+  /**
+   * Account of the memory reserved for the message being read.
+   */
+  private final MemoryBudget.Account mBudget;
+
+  /**
+   * Buffer holding the message being read, reused across messages. A longer
+   * message is read into a buffer of its own, so that no large buffer is kept
+   * between messages.
+   */
+  private final byte[] mReadBuffer = new byte[INITIAL_BUFFER_SIZE];
+
   public RemoteWireAdapter(InputStream inputStream, OutputStream outputStream,
       ErrorListener errorListener) {
+    this(inputStream, outputStream, errorListener, MemoryBudget.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param inputStream    the stream from the peer
+   * @param outputStream   the stream to the peer
+   * @param errorListener  the listener of I/O errors, or {@code null}
+   * @param budget         the budget of the memory of the messages being read
+   */
+  public RemoteWireAdapter(InputStream inputStream, OutputStream outputStream,
+      ErrorListener errorListener, MemoryBudget budget) {
     mInputStream = inputStream;
     mOutputStream = outputStream;
     mErrorListener = errorListener;
+    mBudget = budget.openAccount();
   }
 
   /**
@@ -76,16 +106,61 @@ public final class RemoteWireAdapter implements WireAdapter {
       RemoteMessage mess;
       try {
         synchronized (mInputStream) {
-          mess = RemoteMessage.parseDelimitedFrom(mInputStream);
+          mess = readDelimitedMessage();
         }
       } catch (IOException e) {
         onIoError("Cannot read message", e);
         return false;
       }
+      if (mess == null) {
+        onIoError("Connection closed", null);
+        return false;
+      }
       interpretMessage(mess);
       return true;
   }
 
+  /**
+   * Reads a message preceded by its length, like
+   * {@link RemoteMessage#parseDelimitedFrom(InputStream)}, but reserves the
+   * length in the memory budget before reading the message into a reused
+   * buffer.
+   *
+   * @return  the message, or {@code null} if the stream ended
+   * @throws IOException  if the message cannot be read, is malformed, or does
+   *                      not fit in the memory budget
+   */
+  private RemoteMessage readDelimitedMessage() throws IOException {
+    int first = mInputStream.read();
+    if (first == -1) {
+      return null;
+    }
+    int size = CodedInputStream.readRawVarint32(first, mInputStream);
+    if (!mBudget.reserve(size)) {
+      throw new IOException("Message exceeds the memory budget: " + size
+          + " bytes");
+    }
+    try {
+      byte[] buffer = size > mReadBuffer.length ? new byte[size] : mReadBuffer;
+      int offset = 0;
+      while (offset < size) {
+        int count = mInputStream.read(buffer, offset, size - offset);
+        if (count < 0) {
+          throw new IOException("Stream closed while reading.");
+        }
+        offset += count;
+      }
+      RemoteMessage.Builder builder =
+          RemoteMessage.newBuilder().mergeFrom(buffer, 0, size);
+      if (!builder.isInitialized()) {
+        throw new IOException("Message is missing required fields");
+      }
+      return builder.buildPartial();
+    } finally {
+      mBudget.release(size);
+    }
+  }
+
   /**
    * Interpret a received message.
    *
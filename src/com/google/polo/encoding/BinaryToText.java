@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.encoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hexadecimal and Base64 codecs, working on arrays, {@link ByteBuffer}s and
+ * {@link Appendable}s without intermediate objects.
+ * <p>
+ * Digits are mapped through tables in both directions. Hexadecimal is decoded
+ * from either case. Base64 uses the standard alphabet and padding of RFC 4648;
+ * lines are not broken when encoding, and whitespace is skipped when
+ * decoding, so that line-broken text is accepted. Malformed text is rejected
+ * with an {@link IllegalArgumentException}.
+ * <p>
+ * Methods writing into an array return the offset following the last element
+ * written. Methods working on {@link ByteBuffer}s consume the remaining bytes
+ * of the source, and advance the destination.
+ */
+public final class BinaryToText {
+
+  private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+
+  private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+  private static final char[] BASE64_DIGITS =
+      ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/")
+          .toCharArray();
+
+  /**
+   * Value in the tables of characters that are not digits.
+   */
+  private static final byte INVALID = -1;
+
+  /**
+   * Value in the Base64 table of whitespace, which is skipped.
+   */
+  private static final byte SKIP = -2;
+
+  /**
+   * Value in the Base64 table of the padding character.
+   */
+  private static final byte PAD = -3;
+
+  /**
+   * Values of hexadecimal digits, by ASCII code.
+   */
+  private static final byte[] HEX_VALUES = new byte[128];
+
+  /**
+   * Values of Base64 digits, by ASCII code.
+   */
+  private static final byte[] BASE64_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(HEX_VALUES, INVALID);
+    for (int i = 0; i < HEX_LOWER.length; ++i) {
+      HEX_VALUES[HEX_LOWER[i]] = (byte) i;
+      HEX_VALUES[HEX_UPPER[i]] = (byte) i;
+    }
+    Arrays.fill(BASE64_VALUES, INVALID);
+    for (int i = 0; i < BASE64_DIGITS.length; ++i) {
+      BASE64_VALUES[BASE64_DIGITS[i]] = (byte) i;
+    }
+    BASE64_VALUES[' '] = SKIP;
+    BASE64_VALUES['\t'] = SKIP;
+    BASE64_VALUES['\r'] = SKIP;
+    BASE64_VALUES['\n'] = SKIP;
+    BASE64_VALUES['='] = PAD;
+  }
+
+  private BinaryToText() {
+  }
+
+  /**
+   * Returns bytes in hexadecimal.
+   */
+  public static String encodeHex(byte[] src, boolean upperCase) {
+    char[] chars = new char[2 * src.length];
+    encodeHex(src, 0, src.length, chars, 0, upperCase);
+    return new String(chars);
+  }
+
+  /**
+   * Writes bytes in hexadecimal into a char array.
+   */
+  public static int encodeHex(byte[] src, int offset, int length, char[] dst,
+      int dstOffset, boolean upperCase) {
+    char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+    for (int i = offset, end = offset + length; i < end; ++i) {
+      int b = src[i];
+      dst[dstOffset++] = digits[(b >> 4) & 0xf];
+      dst[dstOffset++] = digits[b & 0xf];
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes bytes in hexadecimal into a byte array, as ASCII.
+   */
+  public static int encodeHex(byte[] src, int offset, int length, byte[] dst,
+      int dstOffset, boolean upperCase) {
+    char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+    for (int i = offset, end = offset + length; i < end; ++i) {
+      int b = src[i];
+      dst[dstOffset++] = (byte) digits[(b >> 4) & 0xf];
+      dst[dstOffset++] = (byte) digits[b & 0xf];
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes bytes in hexadecimal into a buffer, as ASCII.
+   */
+  public static void encodeHex(ByteBuffer src, ByteBuffer dst,
+      boolean upperCase) {
+    char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+    while (src.hasRemaining()) {
+      int b = src.get();
+      dst.put((byte) digits[(b >> 4) & 0xf]);
+      dst.put((byte) digits[b & 0xf]);
+    }
+  }
+
+  /**
+   * Writes an int in hexadecimal into a char array, as 8 digits.
+   */
+  public static int encodeHex(int value, char[] dst, int dstOffset,
+      boolean upperCase) {
+    char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+    for (int shift = 28; shift >= 0; shift -= 4) {
+      dst[dstOffset++] = digits[(value >>> shift) & 0xf];
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Appends bytes in hexadecimal.
+   */
+  public static void appendHex(Appendable out, byte[] src, int offset,
+      int length, boolean upperCase) throws IOException {
+    char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+    for (int i = offset, end = offset + length; i < end; ++i) {
+      int b = src[i];
+      out.append(digits[(b >> 4) & 0xf]).append(digits[b & 0xf]);
+    }
+  }
+
+  /**
+   * Returns the bytes of a hexadecimal string.
+   *
+   * @throws IllegalArgumentException  if the string is not hexadecimal
+   */
+  public static byte[] decodeHex(CharSequence src) {
+    checkHexLength(src.length());
+    byte[] result = new byte[src.length() / 2];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = (byte) ((hexValue(src.charAt(2 * i)) << 4)
+          | hexValue(src.charAt(2 * i + 1)));
+    }
+    return result;
+  }
+
+  /**
+   * Writes the bytes of hexadecimal ASCII text into a byte array.
+   *
+   * @throws IllegalArgumentException  if the text is not hexadecimal
+   */
+  public static int decodeHex(byte[] src, int offset, int length, byte[] dst,
+      int dstOffset) {
+    checkHexLength(length);
+    for (int i = offset, end = offset + length; i < end; i += 2) {
+      dst[dstOffset++] = (byte) ((hexValue(src[i] & 0xff) << 4)
+          | hexValue(src[i + 1] & 0xff));
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes the bytes of hexadecimal ASCII text into a buffer.
+   *
+   * @throws IllegalArgumentException  if the text is not hexadecimal
+   */
+  public static void decodeHex(ByteBuffer src, ByteBuffer dst) {
+    checkHexLength(src.remaining());
+    while (src.hasRemaining()) {
+      int high = hexValue(src.get() & 0xff);
+      dst.put((byte) ((high << 4) | hexValue(src.get() & 0xff)));
+    }
+  }
+
+  /**
+   * Returns the number of characters of bytes in Base64.
+   */
+  public static int base64Length(int length) {
+    return (length + 2) / 3 * 4;
+  }
+
+  /**
+   * Returns bytes in Base64.
+   */
+  public static String encodeBase64(byte[] src) {
+    char[] chars = new char[base64Length(src.length)];
+    encodeBase64(src, 0, src.length, chars, 0);
+    return new String(chars);
+  }
+
+  /**
+   * Writes bytes in Base64 into a char array.
+   */
+  public static int encodeBase64(byte[] src, int offset, int length,
+      char[] dst, int dstOffset) {
+    for (int i = 0; i < length; i += 3) {
+      int count = Math.min(3, length - i);
+      int quantum = quantum(src, offset + i, count);
+      for (int digit = 0; digit < 4; ++digit) {
+        dst[dstOffset++] = base64Digit(quantum, count, digit);
+      }
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes bytes in Base64 into a byte array, as ASCII.
+   */
+  public static int encodeBase64(byte[] src, int offset, int length,
+      byte[] dst, int dstOffset) {
+    for (int i = 0; i < length; i += 3) {
+      int count = Math.min(3, length - i);
+      int quantum = quantum(src, offset + i, count);
+      for (int digit = 0; digit < 4; ++digit) {
+        dst[dstOffset++] = (byte) base64Digit(quantum, count, digit);
+      }
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes bytes in Base64 into a buffer, as ASCII.
+   */
+  public static void encodeBase64(ByteBuffer src, ByteBuffer dst) {
+    while (src.hasRemaining()) {
+      int count = Math.min(3, src.remaining());
+      int quantum = 0;
+      for (int i = 0; i < 3; ++i) {
+        quantum = (quantum << 8) | (i < count ? src.get() & 0xff : 0);
+      }
+      for (int digit = 0; digit < 4; ++digit) {
+        dst.put((byte) base64Digit(quantum, count, digit));
+      }
+    }
+  }
+
+  /**
+   * Appends bytes in Base64.
+   */
+  public static void appendBase64(Appendable out, byte[] src, int offset,
+      int length) throws IOException {
+    for (int i = 0; i < length; i += 3) {
+      int count = Math.min(3, length - i);
+      int quantum = quantum(src, offset + i, count);
+      for (int digit = 0; digit < 4; ++digit) {
+        out.append(base64Digit(quantum, count, digit));
+      }
+    }
+  }
+
+  /**
+   * Returns the bytes of a Base64 string.
+   *
+   * @throws IllegalArgumentException  if the string is not Base64
+   */
+  public static byte[] decodeBase64(CharSequence src) {
+    int length = src.length();
+    int padding = 0;
+    while (padding < 2 && padding < length
+        && src.charAt(length - 1 - padding) == '=') {
+      ++padding;
+    }
+    // Exact unless the text holds whitespace.
+    byte[] result = new byte[decodedLength(length, padding)];
+    int dstOffset = 0;
+    int quantum = 0;
+    int digits = 0;
+    padding = 0;
+    for (int i = 0; i < length; ++i) {
+      int value = base64Value(src.charAt(i), padding);
+      if (value >= 0) {
+        quantum = (quantum << 6) | value;
+        if (++digits == 4) {
+          result[dstOffset++] = (byte) (quantum >> 16);
+          result[dstOffset++] = (byte) (quantum >> 8);
+          result[dstOffset++] = (byte) quantum;
+          digits = 0;
+        }
+      } else if (value == PAD) {
+        ++padding;
+      }
+    }
+    checkBase64End(digits, padding);
+    if (digits >= 2) {
+      result[dstOffset++] = (byte) (quantum >> (6 * digits - 8));
+    }
+    if (digits == 3) {
+      result[dstOffset++] = (byte) (quantum >> 2);
+    }
+    return dstOffset == result.length
+        ? result : Arrays.copyOf(result, dstOffset);
+  }
+
+  /**
+   * Returns the bytes of Base64 ASCII text.
+   *
+   * @throws IllegalArgumentException  if the text is not Base64
+   */
+  public static byte[] decodeBase64(byte[] src, int offset, int length) {
+    int padding = 0;
+    while (padding < 2 && padding < length
+        && src[offset + length - 1 - padding] == '=') {
+      ++padding;
+    }
+    // Exact unless the text holds whitespace.
+    byte[] result = new byte[decodedLength(length, padding)];
+    int count = decodeBase64(src, offset, length, result, 0);
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Writes the bytes of Base64 ASCII text into a byte array.
+   *
+   * @throws IllegalArgumentException  if the text is not Base64
+   */
+  public static int decodeBase64(byte[] src, int offset, int length,
+      byte[] dst, int dstOffset) {
+    int quantum = 0;
+    int digits = 0;
+    int padding = 0;
+    for (int i = offset, end = offset + length; i < end; ++i) {
+      int value = base64Value(src[i] & 0xff, padding);
+      if (value >= 0) {
+        quantum = (quantum << 6) | value;
+        if (++digits == 4) {
+          dst[dstOffset++] = (byte) (quantum >> 16);
+          dst[dstOffset++] = (byte) (quantum >> 8);
+          dst[dstOffset++] = (byte) quantum;
+          digits = 0;
+        }
+      } else if (value == PAD) {
+        ++padding;
+      }
+    }
+    checkBase64End(digits, padding);
+    if (digits >= 2) {
+      dst[dstOffset++] = (byte) (quantum >> (6 * digits - 8));
+    }
+    if (digits == 3) {
+      dst[dstOffset++] = (byte) (quantum >> 2);
+    }
+    return dstOffset;
+  }
+
+  /**
+   * Writes the bytes of Base64 ASCII text into a buffer.
+   *
+   * @throws IllegalArgumentException  if the text is not Base64
+   */
+  public static void decodeBase64(ByteBuffer src, ByteBuffer dst) {
+    int quantum = 0;
+    int digits = 0;
+    int padding = 0;
+    while (src.hasRemaining()) {
+      int value = base64Value(src.get() & 0xff, padding);
+      if (value >= 0) {
+        quantum = (quantum << 6) | value;
+        if (++digits == 4) {
+          dst.put((byte) (quantum >> 16));
+          dst.put((byte) (quantum >> 8));
+          dst.put((byte) quantum);
+          digits = 0;
+        }
+      } else if (value == PAD) {
+        ++padding;
+      }
+    }
+    checkBase64End(digits, padding);
+    if (digits >= 2) {
+      dst.put((byte) (quantum >> (6 * digits - 8)));
+    }
+    if (digits == 3) {
+      dst.put((byte) (quantum >> 2));
+    }
+  }
+
+  private static void checkHexLength(int length) {
+    if (length % 2 != 0) {
+      throw new IllegalArgumentException("Odd hexadecimal length: " + length);
+    }
+  }
+
+  private static int hexValue(int c) {
+    int value = c < HEX_VALUES.length ? HEX_VALUES[c] : INVALID;
+    if (value < 0) {
+      throw new IllegalArgumentException("Bad hexadecimal digit: " + (char) c);
+    }
+    return value;
+  }
+
+  /**
+   * Reads up to 3 bytes into the high bits of a 24-bit quantum.
+   */
+  private static int quantum(byte[] src, int offset, int count) {
+    int quantum = (src[offset] & 0xff) << 16;
+    if (count > 1) {
+      quantum |= (src[offset + 1] & 0xff) << 8;
+    }
+    if (count > 2) {
+      quantum |= src[offset + 2] & 0xff;
+    }
+    return quantum;
+  }
+
+  /**
+   * Returns a digit of a quantum holding a number of bytes, or padding.
+   */
+  private static char base64Digit(int quantum, int count, int digit) {
+    return digit <= count
+        ? BASE64_DIGITS[(quantum >> (18 - 6 * digit)) & 0x3f] : '=';
+  }
+
+  /**
+   * Returns the value of a Base64 character: a digit, {@link #SKIP} or
+   * {@link #PAD}.
+   *
+   * @param padding  number of padding characters seen
+   * @throws IllegalArgumentException  if it is not valid at this point
+   */
+  private static int base64Value(int c, int padding) {
+    int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : INVALID;
+    if (value == INVALID || (value >= 0 && padding > 0)) {
+      throw new IllegalArgumentException("Bad Base64 character: " + (char) c);
+    }
+    return value;
+  }
+
+  /**
+   * Checks the digits left in the last quantum against the padding.
+   */
+  private static void checkBase64End(int digits, int padding) {
+    if (digits == 1
+        || (padding > 0 && (digits == 0 || digits + padding != 4))) {
+      throw new IllegalArgumentException("Bad Base64 length");
+    }
+  }
+
+  /**
+   * Returns the number of bytes of Base64 text, or more if the text holds
+   * whitespace.
+   *
+   * @param padding  number of padding characters ending the text
+   */
+  private static int decodedLength(int length, int padding) {
+    return (int) ((length - padding) * 3L / 4);
+  }
+}
@@ -16,8 +16,6 @@
 
 package com.google.polo.encoding;
 
-import com.google.polo.pairing.PoloUtil;
-
 /**
  * A {@link SecretEncoder} for the hexadecimal secret encoding scheme.
  */
@@ -26,11 +24,14 @@ public class HexadecimalEncoder implements SecretEncoder {
   public static final int SYMBOLS_PER_BYTE = 2;
 
   public byte[] decodeToBytes(String encodedString) {
-    return PoloUtil.hexStringToBytes(encodedString);
+    if (encodedString.length() == 0) {
+      throw new IllegalArgumentException("Empty secret.");
+    }
+    return BinaryToText.decodeHex(encodedString);
   }
 
   public String encodeToString(byte[] secretBytes) {
-    return PoloUtil.bytesToHexString(secretBytes).toLowerCase();
+    return BinaryToText.encodeHex(secretBytes, false);
   }
 
   public int symbolsPerByte() {
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.pairing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.polo.encoding.SecretEncoder;
+import com.google.polo.exception.BadSecretException;
+import com.google.polo.exception.NoConfigurationException;
+import com.google.polo.exception.PoloException;
+import com.google.polo.exception.ProtocolErrorException;
+import com.google.polo.pairing.PairingListener.LogLevel;
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.PoloWireInterface;
+
+/**
+ * Event-driven implementation of the pairing protocol, for either endpoint.
+ * <p>
+ * Unlike {@link PairingSession}, a session owns no threads and never waits.
+ * It is a state machine advanced by events: messages from the peer, the
+ * secret entered by the user, errors and cancellation. Events of a session
+ * are handled one at a time, in order, on an {@link Executor} that may be
+ * shared by any number of sessions. Listener callbacks are made on the
+ * executor and must not block; in the input device role, the listener
+ * returns at once and the secret is delivered later with
+ * {@link #setSecret(byte[])}.
+ * <p>
+ * The session never reads from its {@link PoloWireInterface}: messages from
+ * the peer are delivered by the transport with {@link #onMessage(PoloMessage)}
+ * and read errors with {@link #onError(Exception)}, so no executor thread is
+ * held waiting for the peer, e.g. while the user enters the secret. Messages
+ * are sent synchronously on the executor; they are a few hundred bytes at
+ * most.
+ */
+public final class AsyncPairingSession {
+
+  /**
+   * Receives the events of a session. Callbacks are made on the executor of
+   * the session, and must not block.
+   */
+  public interface Listener {
+    /**
+     * Called when the local endpoint has to act as the input device. The
+     * secret entered by the user has to be passed to
+     * {@link AsyncPairingSession#setSecret(byte[])}.
+     */
+    void onPerformInputDeviceRole(AsyncPairingSession session);
+
+    /**
+     * Called when the local endpoint has to display the secret.
+     */
+    void onPerformOutputDeviceRole(AsyncPairingSession session, byte[] gamma);
+
+    /**
+     * Called once, when the session succeeded or failed.
+     */
+    void onSessionEnded(AsyncPairingSession session);
+
+    /**
+     * Receives log messages from the protocol.
+     */
+    void onLogMessage(LogLevel level, String message);
+  }
+
+  /**
+   * Steps of the protocol, with the message each one waits for.
+   */
+  private enum Step {
+    NOT_STARTED(null),
+    AWAIT_PAIRING_REQUEST(PoloMessageType.PAIRING_REQUEST),
+    AWAIT_PAIRING_REQUEST_ACK(PoloMessageType.PAIRING_REQUEST_ACK),
+    AWAIT_OPTIONS(PoloMessageType.OPTIONS),
+    AWAIT_CONFIGURATION(PoloMessageType.CONFIGURATION),
+    AWAIT_CONFIGURATION_ACK(PoloMessageType.CONFIGURATION_ACK),
+    AWAIT_USER_SECRET(null),
+    AWAIT_SECRET(PoloMessageType.SECRET),
+    AWAIT_SECRET_ACK(PoloMessageType.SECRET_ACK),
+    SUCCEEDED(null),
+    FAILED(null);
+
+    final PoloMessageType expectedType;
+
+    private Step(PoloMessageType expectedType) {
+      this.expectedType = expectedType;
+    }
+  }
+
+  private final PoloWireInterface mProtocol;
+
+  private final PairingContext mPairingContext;
+
+  private final Executor mExecutor;
+
+  private final PoloChallengeResponse mChallenge;
+
+  private final OptionsMessage mLocalOptions;
+
+  /**
+   * Name of the local endpoint sent to the peer, or {@code null}.
+   */
+  private final String mLocalName;
+
+  /**
+   * Events not handled yet.
+   */
+  private final Queue<Runnable> mEvents;
+
+  /**
+   * Whether a task draining {@link #mEvents} is scheduled or running.
+   */
+  private final AtomicBoolean mDraining;
+
+  /**
+   * Messages delivered before the session started.
+   */
+  private final List<PoloMessage> mEarlyMessages;
+
+  private Listener mListener;
+
+  private volatile Step mStep;
+
+  private volatile String mServiceName;
+
+  private volatile String mPeerName;
+
+  private ConfigurationMessage mSessionConfig;
+
+  private volatile SecretEncoder mEncoder;
+
+  /**
+   * Nonce shown in the display device role.
+   */
+  private byte[] mNonce;
+
+  private AsyncPairingSession(PoloWireInterface protocol,
+      PairingContext pairingContext, Executor executor, String serviceName,
+      String localName) {
+    mProtocol = protocol;
+    mPairingContext = pairingContext;
+    mExecutor = executor;
+    mServiceName = serviceName;
+    mLocalName = localName;
+    mEvents = new ConcurrentLinkedQueue<Runnable>();
+    mDraining = new AtomicBoolean();
+    mEarlyMessages = new ArrayList<PoloMessage>();
+    mStep = Step.NOT_STARTED;
+    mChallenge = new PoloChallengeResponse(
+        pairingContext.getClientCertificate(),
+        pairingContext.getServerCertificate(), null);
+    mLocalOptions = new OptionsMessage();
+    mLocalOptions.setProtocolRolePreference(pairingContext.isServer()
+        ? ProtocolRole.DISPLAY_DEVICE : ProtocolRole.INPUT_DEVICE);
+  }
+
+  /**
+   * Creates a session for the client endpoint.
+   *
+   * @param protocol        the wire interface to send messages with
+   * @param pairingContext  a client PairingContext for the session
+   * @param executor        executor handling the events
+   * @param serviceName     service name sent in the pairing request
+   * @param clientName      client name sent in the pairing request, or
+   *                        {@code null}
+   */
+  public static AsyncPairingSession newClientSession(
+      PoloWireInterface protocol, PairingContext pairingContext,
+      Executor executor, String serviceName, String clientName) {
+    if (pairingContext.isServer()) {
+      throw new IllegalArgumentException("Server context");
+    }
+    return new AsyncPairingSession(protocol, pairingContext, executor,
+        serviceName, clientName);
+  }
+
+  /**
+   * Creates a session for the server endpoint.
+   *
+   * @param protocol        the wire interface to send messages with
+   * @param pairingContext  a server PairingContext for the session
+   * @param executor        executor handling the events
+   * @param serverName      server name sent in the pairing request ack, or
+   *                        {@code null}
+   */
+  public static AsyncPairingSession newServerSession(
+      PoloWireInterface protocol, PairingContext pairingContext,
+      Executor executor, String serverName) {
+    if (!pairingContext.isServer()) {
+      throw new IllegalArgumentException("Client context");
+    }
+    return new AsyncPairingSession(protocol, pairingContext, executor, null,
+        serverName);
+  }
+
+  /**
+   * Adds an encoding to the supported input role encodings. This method can
+   * only be called before the session has started.
+   *
+   * @see PairingSession#addInputEncoding(EncodingOption)
+   */
+  public void addInputEncoding(EncodingOption encoding) {
+    checkNotStarted();
+    if ((encoding.getSymbolLength() < 2) ||
+        ((encoding.getSymbolLength() % 2) != 0)) {
+      throw new IllegalArgumentException("Bad symbol length: " +
+          encoding.getSymbolLength());
+    }
+    mLocalOptions.addInputEncoding(encoding);
+  }
+
+  /**
+   * Adds an encoding to the supported output role encodings. This method can
+   * only be called before the session has started.
+   */
+  public void addOutputEncoding(EncodingOption encoding) {
+    checkNotStarted();
+    mLocalOptions.addOutputEncoding(encoding);
+  }
+
+  private void checkNotStarted() {
+    if (mStep != Step.NOT_STARTED) {
+      throw new IllegalStateException("Cannot add encodings once session " +
+          "has been started.");
+    }
+  }
+
+  /**
+   * Starts the protocol. Returns at once; the outcome is reported to
+   * {@link Listener#onSessionEnded(AsyncPairingSession)}.
+   *
+   * @param listener  the listener for the session
+   */
+  public void start(final Listener listener) {
+    post(new Runnable() {
+      public void run() {
+        if (mStep != Step.NOT_STARTED) {
+          return;
+        }
+        mListener = listener;
+        logDebug("Protocol started ("
+            + (isServer() ? "SERVER" : "CLIENT") + " mode)");
+        try {
+          if (isServer()) {
+            await(Step.AWAIT_PAIRING_REQUEST);
+          } else {
+            logDebug("Sending PairingRequest... " + mServiceName);
+            mProtocol.sendMessage(
+                new PairingRequestMessage(mServiceName, mLocalName));
+            await(Step.AWAIT_PAIRING_REQUEST_ACK);
+          }
+          for (PoloMessage message : mEarlyMessages) {
+            if (hasCompleted()) {
+              break;
+            }
+            handleMessage(message);
+          }
+        } catch (Exception e) {
+          fail(e);
+        } finally {
+          mEarlyMessages.clear();
+        }
+      }
+    });
+  }
+
+  /**
+   * Delivers a message received from the peer. Messages delivered before
+   * {@link #start(Listener)} are handled once the session starts.
+   */
+  public void onMessage(final PoloMessage message) {
+    post(new Runnable() {
+      public void run() {
+        if (hasCompleted()) {
+          return;
+        }
+        if (mStep == Step.NOT_STARTED) {
+          // The peer may be quicker than the local call to start().
+          mEarlyMessages.add(message);
+          return;
+        }
+        logDebug("Received: " + message.getType());
+        try {
+          handleMessage(message);
+        } catch (Exception e) {
+          fail(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reports that reading from the peer failed; the session fails.
+   *
+   * @param error  a {@link ProtocolErrorException} if the peer reported an
+   *               error, or the read error
+   */
+  public void onError(final Exception error) {
+    post(new Runnable() {
+      public void run() {
+        if (!hasCompleted()) {
+          fail(error);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sets the secret, as received from the user. This method is only
+   * meaningful when the endpoint is acting as the input device role, after
+   * {@link Listener#onPerformInputDeviceRole(AsyncPairingSession)}.
+   *
+   * @param secret  the secret, as a byte sequence
+   */
+  public void setSecret(final byte[] secret) {
+    post(new Runnable() {
+      public void run() {
+        if (mStep != Step.AWAIT_USER_SECRET) {
+          logError("Ignoring secret in step " + mStep);
+          return;
+        }
+        try {
+          handleSecret(secret);
+        } catch (Exception e) {
+          fail(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Aborts the session, sending an error to the peer and closing the
+   * streams.
+   */
+  public void teardown() {
+    post(new Runnable() {
+      public void run() {
+        if (!hasCompleted()) {
+          fail(new PoloException("Session cancelled"));
+        }
+        try {
+          mPairingContext.getPeerInputStream().close();
+          mPairingContext.getPeerOutputStream().close();
+        } catch (IOException e) {
+          // oh well.
+        }
+      }
+    });
+  }
+
+  private void handleMessage(PoloMessage message)
+      throws PoloException, IOException {
+    if (message.getType() != mStep.expectedType) {
+      throw new PoloException("Unexpected message type: " + message.getType()
+          + " in step " + mStep);
+    }
+    switch (mStep) {
+      case AWAIT_PAIRING_REQUEST: {
+        PairingRequestMessage request = (PairingRequestMessage) message;
+        logDebug("Requested service to pair: " + request.getServiceName());
+        mServiceName = request.getServiceName();
+        mPeerName = request.hasClientName() ? request.getClientName() : null;
+        logDebug("Sending PairingRequestAck ...");
+        mProtocol.sendMessage(new PairingRequestAckMessage(mLocalName));
+        await(Step.AWAIT_OPTIONS);
+        break;
+      }
+      case AWAIT_PAIRING_REQUEST_ACK: {
+        PairingRequestAckMessage ack = (PairingRequestAckMessage) message;
+        mPeerName = ack.hasServerName() ? ack.getServerName() : null;
+        logDebug("Sending Options ...");
+        mProtocol.sendMessage(mLocalOptions);
+        await(Step.AWAIT_OPTIONS);
+        break;
+      }
+      case AWAIT_OPTIONS:
+        if (isServer()) {
+          // The client intersects the options and proposes a configuration.
+          logDebug("Sending Options...");
+          mProtocol.sendMessage(mLocalOptions);
+          await(Step.AWAIT_CONFIGURATION);
+        } else {
+          setConfiguration(mLocalOptions.getBestConfiguration(
+              (OptionsMessage) message));
+          logDebug("Sending Configuration...");
+          mProtocol.sendMessage(mSessionConfig);
+          await(Step.AWAIT_CONFIGURATION_ACK);
+        }
+        break;
+      case AWAIT_CONFIGURATION:
+        setConfiguration((ConfigurationMessage) message);
+        checkConfiguration();
+        logDebug("Sending ConfigurationAck...");
+        mProtocol.sendMessage(new ConfigurationAckMessage());
+        startPairingPhase();
+        break;
+      case AWAIT_CONFIGURATION_ACK:
+        startPairingPhase();
+        break;
+      case AWAIT_SECRET: {
+        byte[] localAlpha = mChallenge.getAlpha(mNonce);
+        byte[] inbandAlpha = ((SecretMessage) message).getSecret();
+        if (!PoloChallengeResponse.isEqual(localAlpha, inbandAlpha)) {
+          throw new BadSecretException("Inband secret did not match. " +
+              "Expected [" + PoloUtil.bytesToHexString(localAlpha) +
+              "], got [" + PoloUtil.bytesToHexString(inbandAlpha) + "]");
+        }
+        logDebug("Sending SecretAck...");
+        mProtocol.sendMessage(new SecretAckMessage(inbandAlpha));
+        end(Step.SUCCEEDED);
+        break;
+      }
+      case AWAIT_SECRET_ACK:
+        end(Step.SUCCEEDED);
+        break;
+      default:
+        throw new IllegalStateException("Unexpected step " + mStep);
+    }
+  }
+
+  private void setConfiguration(ConfigurationMessage message)
+      throws PoloException {
+    mEncoder = PairingSession.createEncoder(message);
+    mSessionConfig = message;
+  }
+
+  /**
+   * Verifies that the configuration proposed by the client is supported.
+   */
+  private void checkConfiguration() throws PoloException {
+    EncodingOption encoding = mSessionConfig.getEncoding();
+    if (isInputDevice()) {
+      if (!mLocalOptions.supportsInputEncoding(encoding)) {
+        throw new NoConfigurationException("Cannot support requested " +
+            "input encoding: " + encoding.getType());
+      }
+    } else if (!mLocalOptions.supportsOutputEncoding(encoding)) {
+      throw new NoConfigurationException("Cannot support requested " +
+          "output encoding: " + encoding.getType());
+    }
+  }
+
+  private void startPairingPhase() throws PoloException, IOException {
+    if (isInputDevice()) {
+      logDebug("Calling listener for user input...");
+      await(Step.AWAIT_USER_SECRET);
+      mListener.onPerformInputDeviceRole(this);
+    } else {
+      mNonce = PairingSession.generateNonce(mSessionConfig, mEncoder);
+      logDebug("Calling listener to display output...");
+      byte[] gamma = mChallenge.getGamma(mNonce);
+      await(Step.AWAIT_SECRET);
+      mListener.onPerformOutputDeviceRole(this, gamma);
+    }
+  }
+
+  private void handleSecret(byte[] userGamma)
+      throws PoloException, IOException {
+    if (userGamma == null) {
+      throw new PoloException("Invalid secret.");
+    }
+    if (!mChallenge.checkGamma(userGamma)) {
+      throw new BadSecretException("Secret failed local check.");
+    }
+    byte[] alpha = mChallenge.getAlpha(mChallenge.extractNonce(userGamma));
+    logDebug("Sending Secret reply...");
+    mProtocol.sendMessage(new SecretMessage(alpha));
+    await(Step.AWAIT_SECRET_ACK);
+  }
+
+  /**
+   * Moves to a step, where the session waits for the event it expects.
+   */
+  private void await(Step step) {
+    logInfo("New step: " + step);
+    mStep = step;
+  }
+
+  private void fail(Exception error) {
+    if (error instanceof ProtocolErrorException) {
+      logDebug("Remote protocol failure: " + error);
+    } else if (error instanceof PoloException) {
+      try {
+        logDebug("Local protocol failure, attempting to send error: "
+            + error);
+        mProtocol.sendErrorMessage(error);
+      } catch (IOException e) {
+        logDebug("Error message send failed");
+      }
+    } else {
+      logDebug("Failure: " + error);
+    }
+    end(Step.FAILED);
+  }
+
+  private void end(Step step) {
+    logInfo("New step: " + step);
+    mStep = step;
+    if (mListener != null) {
+      mListener.onSessionEnded(this);
+    }
+  }
+
+  /**
+   * Queues an event, and schedules handling of the queue unless it is
+   * already scheduled.
+   */
+  private void post(Runnable event) {
+    mEvents.add(event);
+    if (mDraining.compareAndSet(false, true)) {
+      mExecutor.execute(new Runnable() {
+        public void run() {
+          drain();
+        }
+      });
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Runnable event;
+      while ((event = mEvents.poll()) != null) {
+        event.run();
+      }
+      mDraining.set(false);
+      // An event queued after the last poll may have seen the flag set.
+      if (mEvents.isEmpty() || !mDraining.compareAndSet(false, true)) {
+        return;
+      }
+    }
+  }
+
+  private boolean isServer() {
+    return mPairingContext.isServer();
+  }
+
+  private boolean isInputDevice() {
+    return PairingSession.getLocalRole(mSessionConfig, isServer())
+        == ProtocolRole.INPUT_DEVICE;
+  }
+
+  /**
+   * Returns {@code true} if the session is in a terminal state (success or
+   * failure).
+   */
+  public boolean hasCompleted() {
+    Step step = mStep;
+    return step == Step.SUCCEEDED || step == Step.FAILED;
+  }
+
+  public boolean hasSucceeded() {
+    return mStep == Step.SUCCEEDED;
+  }
+
+  public PairingContext getPairingContext() {
+    return mPairingContext;
+  }
+
+  /**
+   * Returns the encoder of the secret, once configured.
+   */
+  public SecretEncoder getEncoder() {
+    return mEncoder;
+  }
+
+  public String getServiceName() {
+    return mServiceName;
+  }
+
+  /**
+   * Returns peer's name if set, {@code null} otherwise.
+   */
+  public String getPeerName() {
+    return mPeerName;
+  }
+
+  private void logDebug(String message) {
+    log(LogLevel.LOG_DEBUG, message);
+  }
+
+  private void logInfo(String message) {
+    log(LogLevel.LOG_INFO, message);
+  }
+
+  private void logError(String message) {
+    log(LogLevel.LOG_ERROR, message);
+  }
+
+  private void log(LogLevel level, String message) {
+    if (mListener != null) {
+      mListener.onLogMessage(level, message);
+    }
+  }
+}
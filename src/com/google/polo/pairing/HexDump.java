@@ -16,10 +16,18 @@
 
 package com.google.polo.pairing;
 
+import java.util.Arrays;
+
+import com.google.polo.encoding.BinaryToText;
+
 public class HexDump
 {
-    private final static char[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-    
+    /**
+     * Length of the prefix of a line: a newline, and its offset as "0x"
+     * followed by 8 digits.
+     */
+    private final static int PREFIX_LENGTH = 11;
+
     public static String dumpHexString(byte[] array)
     {
         return dumpHexString(array, 0, array.length);
@@ -27,68 +35,58 @@ public class HexDump
     
     public static String dumpHexString(byte[] array, int offset, int length)
     {
-        StringBuilder result = new StringBuilder();
-        
-        byte[] line = new byte[16];
-        int lineIndex = 0;
-        
-        result.append("\n0x");
-        result.append(toHexString(offset));
+        // Enough for every line, and the padding of the last one.
+        char[] buf = new char[PREFIX_LENGTH + 3 * length
+                + (length / 16) * (1 + 16 + PREFIX_LENGTH) + 3 * 16 + 1 + 16];
+        int bufIndex = putLinePrefix(buf, 0, offset);
+        int lineStart = offset;
         
         for (int i = offset ; i < offset + length ; i++)
         {
-            if (lineIndex == 16)
+            if (i - lineStart == 16)
             {
-                result.append(" ");
-                
-                for (int j = 0 ; j < 16 ; j++)
-                {
-                    if (line[j] > ' ' && line[j] < '~')
-                    {
-                        result.append(new String(line, j, 1));
-                    }
-                    else
-                    {
-                        result.append(".");
-                    }
-                }
-                
-                result.append("\n0x");
-                result.append(toHexString(i));
-                lineIndex = 0;
+                buf[bufIndex++] = ' ';
+                bufIndex = putText(buf, bufIndex, array, lineStart, 16);
+                bufIndex = putLinePrefix(buf, bufIndex, i);
+                lineStart = i;
             }
             
-            byte b = array[i];
-            result.append(" ");
-            result.append(HEX_DIGITS[(b >>> 4) & 0x0F]);
-            result.append(HEX_DIGITS[b & 0x0F]);
-            
-            line[lineIndex++] = b;
+            buf[bufIndex++] = ' ';
+            bufIndex = BinaryToText.encodeHex(array, i, 1, buf, bufIndex, true);
         }
         
-        if (lineIndex != 16)
+        int lineLength = offset + length - lineStart;
+        if (lineLength != 16)
         {
-            int count = (16 - lineIndex) * 3;
-            count++;
-            for (int i = 0 ; i < count ; i++)
-            {
-                result.append(" ");
-            }
-            
-            for (int i = 0 ; i < lineIndex ; i++)
-            {
-                if (line[i] > ' ' && line[i] < '~')
-                {
-                    result.append(new String(line, i, 1));
-                }
-                else
-                {
-                    result.append(".");
-                }
-            }
+            int count = (16 - lineLength) * 3 + 1;
+            Arrays.fill(buf, bufIndex, bufIndex + count, ' ');
+            bufIndex += count;
+            bufIndex = putText(buf, bufIndex, array, lineStart, lineLength);
         }
         
-        return result.toString();
+        return new String(buf, 0, bufIndex);
+    }
+    
+    private static int putLinePrefix(char[] buf, int bufIndex, int offset)
+    {
+        buf[bufIndex++] = '\n';
+        buf[bufIndex++] = '0';
+        buf[bufIndex++] = 'x';
+        return BinaryToText.encodeHex(offset, buf, bufIndex, true);
+    }
+    
+    /**
+     * Writes bytes as characters, or '.' for those that are not printable.
+     */
+    private static int putText(char[] buf, int bufIndex, byte[] array,
+            int offset, int length)
+    {
+        for (int i = offset ; i < offset + length ; i++)
+        {
+            byte b = array[i];
+            buf[bufIndex++] = (b > ' ' && b < '~') ? (char) b : '.';
+        }
+        return bufIndex;
     }
     
     public static String toHexString(byte b)
@@ -104,21 +102,15 @@ public class HexDump
     public static String toHexString(byte[] array, int offset, int length)
     {
         char[] buf = new char[length * 2];
-
-        int bufIndex = 0;
-        for (int i = offset ; i < offset + length; i++) 
-        {
-            byte b = array[i];
-            buf[bufIndex++] = HEX_DIGITS[(b >>> 4) & 0x0F];
-            buf[bufIndex++] = HEX_DIGITS[b & 0x0F];
-        }
-
-        return new String(buf);        
+        BinaryToText.encodeHex(array, offset, length, buf, 0, true);
+        return new String(buf);
     }
     
     public static String toHexString(int i)
     {
-        return toHexString(toByteArray(i));
+        char[] buf = new char[8];
+        BinaryToText.encodeHex(i, buf, 0, true);
+        return new String(buf);
     }
     
     public static byte[] toByteArray(byte b)
@@ -140,25 +132,8 @@ public class HexDump
         return array;
     }
     
-    private static int toByte(char c)
-    {
-        if (c >= '0' && c <= '9') return (c - '0');
-        if (c >= 'A' && c <= 'F') return (c - 'A' + 10);
-        if (c >= 'a' && c <= 'f') return (c - 'a' + 10);
-
-        throw new RuntimeException ("Invalid hex char '" + c + "'");
-    }
-    
     public static byte[] hexStringToByteArray(String hexString)
     {
-        int length = hexString.length();
-        byte[] buffer = new byte[length / 2];
-
-        for (int i = 0 ; i < length ; i += 2)
-        {
-            buffer[i / 2] = (byte)((toByte(hexString.charAt(i)) << 4) | toByte(hexString.charAt(i+1)));
-        }
-        
-        return buffer;
-    }    
+        return BinaryToText.decodeHex(hexString);
+    }
 }
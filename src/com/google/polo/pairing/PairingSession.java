@@ -516,25 +516,14 @@ public abstract class PairingSession {
 
       if (VERIFY_SECRET_ACK) {
         byte[] inbandAlpha = secretAck.getSecret();
-        if (!Arrays.equals(inbandAlpha, genAlpha)) {
+        if (!PoloChallengeResponse.isEqual(inbandAlpha, genAlpha)) {
           throw new BadSecretException("Inband secret did not match. " +
               "Expected [" + PoloUtil.bytesToHexString(genAlpha) +
               "], got [" + PoloUtil.bytesToHexString(inbandAlpha) + "]");
         }
       }
     } else {
-      int symbolLength = mSessionConfig.getEncoding().getSymbolLength();
-      int nonceLength = symbolLength / 2;
-      int bytesNeeded = nonceLength / mEncoder.symbolsPerByte();
-
-      byte[] nonce = new byte[bytesNeeded];
-      SecureRandom random;
-      try {
-        random = SecureRandom.getInstance("SHA1PRNG");
-      } catch (NoSuchAlgorithmException e) {
-        throw new PoloException(e);
-      }
-      random.nextBytes(nonce);
+      byte[] nonce = generateNonce(mSessionConfig, mEncoder);
 
       // Display gamma
       logDebug("Calling listener to display output...");
@@ -547,7 +536,8 @@ public abstract class PairingSession {
 
       byte[] localAlpha = mChallenge.getAlpha(nonce);
       byte[] inbandAlpha = secretMessage.getSecret();
-      boolean matched = Arrays.equals(localAlpha, inbandAlpha);
+      boolean matched =
+          PoloChallengeResponse.isEqual(localAlpha, inbandAlpha);
 
       if (!matched) {
         throw new BadSecretException("Inband secret did not match. " +
@@ -556,7 +546,6 @@ public abstract class PairingSession {
       }
 
       logDebug("Sending SecretAck...");
-      byte[] genAlpha = mChallenge.getAlpha(nonce);
       SecretAckMessage secretAck = new SecretAckMessage(inbandAlpha);
       mProtocol.sendMessage(secretAck);
     }
@@ -575,6 +564,17 @@ public abstract class PairingSession {
    */
   protected void setConfiguration(ConfigurationMessage message)
       throws PoloException {
+    mEncoder = createEncoder(message);
+    mSessionConfig = message;
+  }
+
+  /**
+   * Checks a {@link ConfigurationMessage} and returns the encoder it selects.
+   *
+   * @throws PoloException  if the config was not valid for some reason
+   */
+  static SecretEncoder createEncoder(ConfigurationMessage message)
+      throws PoloException {
     if (message == null || message.getEncoding() == null) {
       throw new NoConfigurationException("No configuration is possible.");
     }
@@ -586,12 +586,10 @@ public abstract class PairingSession {
     }
     switch (message.getEncoding().getType()) {
       case ENCODING_HEXADECIMAL:
-        mEncoder = new HexadecimalEncoder();
-        break;
+        return new HexadecimalEncoder();
       default:
         throw new PoloException("Unsupported encoding type.");
     }
-    mSessionConfig = message;
   }
 
   /**
@@ -599,14 +597,44 @@ public abstract class PairingSession {
    */
   protected ProtocolRole getLocalRole() {
     assert (mSessionConfig != null);
-    if (!mPairingContext.isServer()) {
-      return mSessionConfig.getClientRole();
+    return getLocalRole(mSessionConfig, mPairingContext.isServer());
+  }
+
+  /**
+   * Returns the role of an endpoint under a session configuration.
+   */
+  static ProtocolRole getLocalRole(ConfigurationMessage config,
+      boolean isServer) {
+    if (!isServer) {
+      return config.getClientRole();
     } else {
-      return (mSessionConfig.getClientRole() == ProtocolRole.DISPLAY_DEVICE) ?
+      return (config.getClientRole() == ProtocolRole.DISPLAY_DEVICE) ?
           ProtocolRole.INPUT_DEVICE : ProtocolRole.DISPLAY_DEVICE;
     }
   }
 
+  /**
+   * Generates the random nonce shown by the display device.
+   *
+   * @throws PoloException  if no random generator is available
+   */
+  static byte[] generateNonce(ConfigurationMessage config,
+      SecretEncoder encoder) throws PoloException {
+    int symbolLength = config.getEncoding().getSymbolLength();
+    int nonceLength = symbolLength / 2;
+    int bytesNeeded = nonceLength / encoder.symbolsPerByte();
+
+    byte[] nonce = new byte[bytesNeeded];
+    SecureRandom random;
+    try {
+      random = SecureRandom.getInstance("SHA1PRNG");
+    } catch (NoSuchAlgorithmException e) {
+      throw new PoloException(e);
+    }
+    random.nextBytes(nonce);
+    return nonce;
+  }
+
   /**
    * Returns {@code true} if this endpoint will act as the input device.
    */
@@ -16,11 +16,15 @@
 
 package com.google.polo.pairing;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECPoint;
 import java.util.Arrays;
 
 import com.google.polo.exception.PoloException;
@@ -35,20 +39,37 @@ public class PoloChallengeResponse {
    */
   private static final String HASH_ALGORITHM = "SHA-256";
   
+  /**
+   * Names of the key material components, for logging.
+   */
+  private static final String[] RSA_COMPONENT_NAMES = { "modulus", "exponent" };
+  private static final String[] EC_COMPONENT_NAMES = { "x", "y" };
+  
   /**
    * Optional handler for debug log messages.
    */
-  private DebugLogger mLogger;
+  private final DebugLogger mLogger;
 
   /**
    * Certificate of the local peer in the protocol.
    */
-  private Certificate mClientCertificate;
+  private final Certificate mClientCertificate;
   
   /**
    * Certificate of the remote peer in the protocol.
    */
-  private Certificate mServerCertificate;
+  private final Certificate mServerCertificate;
+  
+  /**
+   * Key material of both peers, in hashing order, computed on first use.
+   */
+  private byte[] mKeyMaterial;
+  
+  /**
+   * Digest updated with {@link #mKeyMaterial}, cloned for each nonce, or
+   * {@code null} if the digest implementation cannot be cloned.
+   */
+  private MessageDigest mKeyDigest;
   
   /**
    * Creates a new callenge-response generator object.
@@ -75,66 +96,122 @@ public class PoloChallengeResponse {
    * <li>the server key's modulus,</li>
    * <li>the server key's public exponent,</li>
    * <li>the random nonce.</li>
+   * </ul>
+   * An EC public key contributes the affine x and y coordinates of its point
+   * in place of the modulus and exponent. Peers choose their keys during the
+   * TLS handshake, and both sides hash the keys of the same two certificates,
+   * so pairs of RSA keys hash exactly as before.
    * 
    * @param   nonce          the nonce to use for computation
    * @return                 the alpha value, as a byte array
    * @throws  PoloException  if the secret could not be computed
    */
   public byte[] getAlpha(byte[] nonce) throws PoloException {
-    PublicKey clientPubKey = mClientCertificate.getPublicKey();
-    PublicKey serverPubKey = mServerCertificate.getPublicKey();
-
-    logDebug("getAlpha, nonce=" + PoloUtil.bytesToHexString(nonce));
-    
-    if (!(clientPubKey instanceof RSAPublicKey) ||
-        !(serverPubKey instanceof RSAPublicKey)) {
-      throw new PoloException("Polo only supports RSA public keys");
+    if (mLogger != null) {
+      logDebug("getAlpha, nonce=" + PoloUtil.bytesToHexString(nonce));
     }
-
-    RSAPublicKey clientPubRsa = (RSAPublicKey) clientPubKey;
-    RSAPublicKey serverPubRsa = (RSAPublicKey) serverPubKey;
     
-    MessageDigest digest;
+    // Per "Polo Implementation Overview", section 6.1, client key material is
+    // hashed first, followed by the server key material, followed by the
+    // nonce.
+    MessageDigest digest = newKeyDigest();
+    digest.update(nonce);
+    
+    byte[] digestBytes = digest.digest();
+    if (mLogger != null) {
+      logVerbose("            nonce: " + PoloUtil.bytesToHexString(nonce));
+      logDebug("Generated hash: " + PoloUtil.bytesToHexString(digestBytes));
+    }
+    return digestBytes;
+  }
+  
+  /**
+   * Returns a digest already updated with the key material of both peers.
+   * The key material only depends on the certificates, so it is extracted
+   * and hashed once, and the digest state is copied for each nonce.
+   */
+  private synchronized MessageDigest newKeyDigest() throws PoloException {
     try {
-      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+      if (mKeyMaterial == null) {
+        mKeyMaterial = getKeyMaterial();
+        MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        digest.update(mKeyMaterial);
+        mKeyDigest = digest;
+      }
+      if (mKeyDigest != null) {
+        try {
+          return (MessageDigest) mKeyDigest.clone();
+        } catch (CloneNotSupportedException e) {
+          mKeyDigest = null;
+        }
+      }
+      MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+      digest.update(mKeyMaterial);
+      return digest;
     } catch (NoSuchAlgorithmException e) {
       throw new PoloException("Could not get digest algorithm", e);
     }
+  }
+  
+  /**
+   * Returns the key material of the client followed by the key material of
+   * the server.
+   */
+  private byte[] getKeyMaterial() throws PoloException {
+    PublicKey clientPubKey = mClientCertificate.getPublicKey();
+    PublicKey serverPubKey = mServerCertificate.getPublicKey();
+    byte[][] clientMaterial = getKeyMaterial(clientPubKey);
+    byte[][] serverMaterial = getKeyMaterial(serverPubKey);
     
-    byte[] digestBytes;
-    byte[] clientModulus = clientPubRsa.getModulus().abs().toByteArray();
-    byte[] clientExponent =
-        clientPubRsa.getPublicExponent().abs().toByteArray();
-    byte[] serverModulus = serverPubRsa.getModulus().abs().toByteArray();
-    byte[] serverExponent =
-        serverPubRsa.getPublicExponent().abs().toByteArray();
+    logVerbose("Hash inputs, in order: ");
+    logKeyMaterial("client", clientPubKey, clientMaterial);
+    logKeyMaterial("server", serverPubKey, serverMaterial);
     
+    ByteArrayOutputStream material = new ByteArrayOutputStream();
+    for (byte[] component : clientMaterial) {
+      material.write(component, 0, component.length);
+    }
+    for (byte[] component : serverMaterial) {
+      material.write(component, 0, component.length);
+    }
+    return material.toByteArray();
+  }
+  
+  /**
+   * Returns the components of a public key that are hashed into alpha, in
+   * order: the modulus and public exponent of an RSA key, or the affine
+   * coordinates of an EC key.
+   * 
+   * @throws PoloException  if the key type is not supported
+   */
+  private byte[][] getKeyMaterial(PublicKey key) throws PoloException {
+    BigInteger first;
+    BigInteger second;
+    if (key instanceof RSAPublicKey) {
+      RSAPublicKey rsaKey = (RSAPublicKey) key;
+      first = rsaKey.getModulus();
+      second = rsaKey.getPublicExponent();
+    } else if (key instanceof ECPublicKey) {
+      ECPoint point = ((ECPublicKey) key).getW();
+      first = point.getAffineX();
+      second = point.getAffineY();
+    } else {
+      throw new PoloException("Polo only supports RSA and EC public keys");
+    }
     // Per "Polo Implementation Overview", section 6.1, leading null bytes must
     // be removed prior to hashing the key material.
-    clientModulus = removeLeadingNullBytes(clientModulus);
-    clientExponent = removeLeadingNullBytes(clientExponent);
-    serverModulus = removeLeadingNullBytes(serverModulus);
-    serverExponent = removeLeadingNullBytes(serverExponent);
-    
-    logVerbose("Hash inputs, in order: ");
-    logVerbose("   client modulus: " + PoloUtil.bytesToHexString(clientModulus));
-    logVerbose("  client exponent: " + PoloUtil.bytesToHexString(clientExponent));
-    logVerbose("   server modulus: " + PoloUtil.bytesToHexString(serverModulus));
-    logVerbose("  server exponent: " + PoloUtil.bytesToHexString(serverExponent));
-    logVerbose("            nonce: " + PoloUtil.bytesToHexString(nonce));
-
-    // Per "Polo Implementation Overview", section 6.1, client key material is
-    // hashed first, followed by the server key material, followed by the
-    // nonce.
-    digest.update(clientModulus);
-    digest.update(clientExponent);
-    digest.update(serverModulus);
-    digest.update(serverExponent);
-    digest.update(nonce);
-    
-    digestBytes = digest.digest();
-    logDebug("Generated hash: " + PoloUtil.bytesToHexString(digestBytes));
-    return digestBytes;
+    return new byte[][] {
+        removeLeadingNullBytes(first.abs().toByteArray()),
+        removeLeadingNullBytes(second.abs().toByteArray()) };
+  }
+  
+  private void logKeyMaterial(String peer, PublicKey key, byte[][] material) {
+    String[] names = key instanceof RSAPublicKey
+        ? RSA_COMPONENT_NAMES : EC_COMPONENT_NAMES;
+    for (int i = 0; i < material.length; i++) {
+      logVerbose(String.format("%17s: %s", peer + " " + names[i],
+          PoloUtil.bytesToHexString(material[i])));
+    }
   }
     
   /**
@@ -187,28 +264,37 @@ public class PoloChallengeResponse {
       logDebug("Illegal nonce value.");
       return false;
     }
-    logDebug("Nonce is: " + PoloUtil.bytesToHexString(nonce));
-    logDebug("User gamma is: " + PoloUtil.bytesToHexString(gamma));
-    logDebug("Generated gamma is: " + PoloUtil.bytesToHexString(getGamma(nonce)));
-    return Arrays.equals(gamma, getGamma(nonce));
+    byte[] expected = getGamma(nonce);
+    if (mLogger != null) {
+      logDebug("Nonce is: " + PoloUtil.bytesToHexString(nonce));
+      logDebug("User gamma is: " + PoloUtil.bytesToHexString(gamma));
+      logDebug("Generated gamma is: " + PoloUtil.bytesToHexString(expected));
+    }
+    return isEqual(gamma, expected);
   }
   
   /**
-   * Strips leading null bytes from a byte array, returning a new copy.
+   * Compares two secrets in a time that does not depend on where they
+   * differ.
+   */
+  public static boolean isEqual(byte[] a, byte[] b) {
+    return MessageDigest.isEqual(a, b);
+  }
+  
+  /**
+   * Strips leading null bytes from a byte array, returning a copy if there
+   * are any.
    * <p>
    * As a special case, if the input array consists entirely of null bytes,
    * then an array with a single null element will be returned.
    */
   private byte[] removeLeadingNullBytes(byte[] inArray) {
     int offset = 0;
-    while (offset < inArray.length & inArray[offset] == 0) {
+    while (offset < inArray.length - 1 && inArray[offset] == 0) {
       offset += 1;
     }
-    byte[] result = new byte[inArray.length - offset];
-    for (int i=offset; i < inArray.length; i++) {
-      result[i - offset] = inArray[i];
-    }
-    return result;
+    return offset == 0 ? inArray
+        : Arrays.copyOfRange(inArray, offset, inArray.length);
   }
 
   private void logDebug(String message) {
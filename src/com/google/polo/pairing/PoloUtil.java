@@ -16,12 +16,12 @@
 
 package com.google.polo.pairing;
 
-import java.math.BigInteger;
 import java.security.cert.Certificate;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 
+import com.google.polo.encoding.BinaryToText;
 import com.google.polo.exception.PoloException;
 
 /**
@@ -81,9 +81,7 @@ public class PoloUtil {
     if (bytes == null || bytes.length == 0) {
       return "";
     }
-    BigInteger bigint = new BigInteger(1, bytes);
-    int formatLen = bytes.length * 2;
-    return String.format("%0" + formatLen + "x", bigint);
+    return BinaryToText.encodeHex(bytes, false);
   }
   
   /**
@@ -91,18 +89,13 @@ public class PoloUtil {
    * 
    * @param hexstr  the string of hex characters
    * @return        a byte array representation
+   * @throws IllegalArgumentException  if the string is empty, or not hex
    */
   public static byte[] hexStringToBytes(String hexstr) {
     if (hexstr == null || hexstr.length() == 0 || (hexstr.length() % 2) != 0) {
       throw new IllegalArgumentException("Bad input string.");
     }
-    
-    byte[] result = new byte[hexstr.length() / 2];
-    for (int i=0; i < result.length; i++) {
-      result[i] = (byte) Integer.parseInt(hexstr.substring(2 * i, 2 * (i + 1)),
-          16);
-    }
-    return result;
+    return BinaryToText.decodeHex(hexstr);
   }
   
   /**
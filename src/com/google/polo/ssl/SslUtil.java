@@ -27,6 +27,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -56,6 +58,11 @@ import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
  */
 public class SslUtil {
 
+	/**
+	 * Curve of generated EC keys.
+	 */
+	private static final String EC_CURVE = "secp256r1";
+
 	/**
 	 * Generates a new RSA key pair.
 	 * 
@@ -69,6 +76,50 @@ public class SslUtil {
 		return kp;
 	}
 
+	/**
+	 * Generates a new EC key pair on the NIST P-256 curve.
+	 * <p>
+	 * EC keys are much faster to generate, and to sign with during TLS
+	 * handshakes, than RSA keys of similar strength.
+	 * 
+	 * @return the new object
+	 * @throws GeneralSecurityException
+	 *             if the EC generator could not be loaded
+	 */
+	public static KeyPair generateEcKeyPair() throws GeneralSecurityException {
+		KeyPairGenerator kg = KeyPairGenerator.getInstance("EC");
+		kg.initialize(new ECGenParameterSpec(EC_CURVE));
+		return kg.generateKeyPair();
+	}
+
+	/**
+	 * Generates a new key pair.
+	 * 
+	 * @param algorithm
+	 *            {@code "RSA"} or {@code "EC"}
+	 * @return the new object
+	 * @throws GeneralSecurityException
+	 *             if the algorithm is not supported
+	 */
+	public static KeyPair generateKeyPair(String algorithm)
+			throws GeneralSecurityException {
+		if ("RSA".equals(algorithm)) {
+			return generateRsaKeyPair();
+		} else if ("EC".equals(algorithm)) {
+			return generateEcKeyPair();
+		}
+		throw new NoSuchAlgorithmException("Unsupported key algorithm: "
+				+ algorithm);
+	}
+
+	/**
+	 * Returns the algorithm used to sign certificates with a key.
+	 */
+	private static String getSignatureAlgorithm(PublicKey publicKey) {
+		return publicKey instanceof ECPublicKey ? "SHA256WithECDSA"
+				: "SHA256WithRSAEncryption";
+	}
+
 	/**
 	 * Creates a new, empty {@link KeyStore}
 	 * 
@@ -119,7 +170,7 @@ public class SslUtil {
 		certGen.setNotAfter(expiryDate);
 		certGen.setSubjectDN(dnName); // note: same as issuer
 		certGen.setPublicKey(pair.getPublic());
-		certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+		certGen.setSignatureAlgorithm(getSignatureAlgorithm(pair.getPublic()));
 
 		// This method is deprecated, but Android Eclair does not provide the
 		// generate() methods.
@@ -163,7 +214,7 @@ public class SslUtil {
 		certGen.setNotBefore(notBefore);
 		certGen.setNotAfter(notAfter);
 		certGen.setPublicKey(pair.getPublic());
-		certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+		certGen.setSignatureAlgorithm(getSignatureAlgorithm(pair.getPublic()));
 
 		// For self-signed certificates, OpenSSL 0.9.6 has specific requirements
 		// about certificate and extension content. Quoting the `man verify`:
@@ -186,9 +237,13 @@ public class SslUtil {
 		certGen.addExtension(X509Extension.basicConstraints, true,
 				new BasicConstraints(false));
 
+		// EC keys sign, but cannot encipher keys.
+		int keyUsage = KeyUsage.digitalSignature | KeyUsage.keyCertSign;
+		if (!(pair.getPublic() instanceof ECPublicKey)) {
+			keyUsage |= KeyUsage.keyEncipherment;
+		}
 		certGen.addExtension(X509Extension.keyUsage, true, new KeyUsage(
-				KeyUsage.digitalSignature | KeyUsage.keyEncipherment
-						| KeyUsage.keyCertSign));
+				keyUsage));
 		certGen.addExtension(X509Extension.extendedKeyUsage, true,
 				new ExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth));
 
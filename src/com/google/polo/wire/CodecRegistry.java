@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+
+/**
+ * The {@link MessageCodec}s of a wire format, one for each message type.
+ * <p>
+ * Codecs are kept in an array indexed by the ordinal of the
+ * {@link PoloMessageType}, so that finding the codec of a message takes
+ * constant time. A wire format registers its codecs once, typically when its
+ * class is initialized; lookups do not synchronize, so registration must
+ * happen before the registry is shared between threads.
+ *
+ * @param <E> the encoded form of messages
+ * @param <D> the form messages are decoded from
+ */
+public final class CodecRegistry<E, D> {
+
+  private final MessageCodec<?, E, D>[] mCodecs;
+
+  /**
+   * Class of the messages handled by each codec.
+   */
+  private final Class<?>[] mMessageClasses;
+
+  @SuppressWarnings("unchecked")
+  public CodecRegistry() {
+    int count = PoloMessageType.values().length;
+    mCodecs = (MessageCodec<?, E, D>[]) new MessageCodec<?, ?, ?>[count];
+    mMessageClasses = new Class<?>[count];
+  }
+
+  /**
+   * Registers the codec of a message type, replacing any previous one.
+   *
+   * @param type          the message type
+   * @param messageClass  the class of messages of that type
+   * @param codec         the codec
+   * @return              this registry
+   */
+  public <M extends PoloMessage> CodecRegistry<E, D> register(
+      PoloMessageType type, Class<M> messageClass,
+      MessageCodec<M, E, D> codec) {
+    mCodecs[type.ordinal()] = codec;
+    mMessageClasses[type.ordinal()] = messageClass;
+    return this;
+  }
+
+  /**
+   * Returns {@code true} if a codec is registered for the message type.
+   */
+  public boolean supports(PoloMessageType type) {
+    return type != null && mCodecs[type.ordinal()] != null;
+  }
+
+  /**
+   * Encodes a message with the codec of its type.
+   *
+   * @throws PoloException  if no codec is registered for the message type,
+   *                        or the message could not be encoded
+   */
+  public E encode(PoloMessage message) throws PoloException {
+    int index = message.getType().ordinal();
+    MessageCodec<?, E, D> codec = mCodecs[index];
+    if (codec == null) {
+      throw new PoloException("Unknown PoloMessage type: "
+          + message.getType());
+    }
+    return encode(codec, mMessageClasses[index], message);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <M extends PoloMessage, E, D> E encode(
+      MessageCodec<M, E, D> codec, Class<?> messageClass,
+      PoloMessage message) throws PoloException {
+    return codec.encode(((Class<M>) messageClass).cast(message));
+  }
+
+  /**
+   * Decodes a message of a given type.
+   *
+   * @param type            the message type, or {@code null} if unknown
+   * @param source          the message to decode
+   * @throws PoloException  if no codec is registered for the message type, or
+   *                        the message is malformed
+   */
+  public PoloMessage decode(PoloMessageType type, D source)
+      throws PoloException {
+    if (!supports(type)) {
+      throw new PoloException("Unknown PoloMessage type: " + type);
+    }
+    return mCodecs[type.ordinal()].decode(source);
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.wire.json.JsonWireAdapter;
+import com.google.polo.wire.protobuf.ProtobufWireAdapter;
+import com.google.polo.wire.xml.XmlWireAdapter;
+
+/**
+ * Implementation of {@link PoloWireInterface} that speaks whichever
+ * {@link WireFormat} the peer speaks, so that one endpoint can serve peers of
+ * all formats.
+ * <p>
+ * The format is detected from the first bytes of the first message from the
+ * peer, which are peeked at without being consumed; the adapter of that
+ * format then reads the message, and handles the rest of the session. The
+ * peer must therefore send first, as a client does when it requests pairing.
+ * Until the format is known, messages cannot be sent, and error messages are
+ * dropped.
+ */
+public class DetectingWireAdapter implements PoloWireInterface {
+
+  /**
+   * Number of bytes peeked at to detect the format: the length preceding a
+   * protocol buffer or JSON message, and the first byte of the message.
+   */
+  static final int PREFIX_LENGTH = 5;
+
+  private final PushbackInputStream mInputStream;
+
+  private final OutputStream mOutputStream;
+
+  /**
+   * The adapter of the detected format, or {@code null} until it is known.
+   */
+  private volatile PoloWireInterface mDelegate;
+
+  private volatile WireFormat mFormat;
+
+  /**
+   * Constructor.
+   *
+   * @param input   the {@link InputStream} from the peer
+   * @param output  the {@link OutputStream} to the peer
+   */
+  public DetectingWireAdapter(InputStream input, OutputStream output) {
+    mInputStream = new PushbackInputStream(input, PREFIX_LENGTH);
+    mOutputStream = output;
+  }
+
+  /**
+   * Generates a new instance from a {@link PairingContext}.
+   *
+   * @param context  the {@link PairingContext}
+   * @return         the new instance
+   */
+  public static DetectingWireAdapter fromContext(PairingContext context) {
+    return new DetectingWireAdapter(context.getPeerInputStream(),
+        context.getPeerOutputStream());
+  }
+
+  /**
+   * Returns the format spoken by the peer, or {@code null} if no message was
+   * read yet.
+   */
+  public WireFormat getWireFormat() {
+    return mFormat;
+  }
+
+  public PoloMessage getNextMessage() throws IOException, PoloException {
+    return getDelegate().getNextMessage();
+  }
+
+  public PoloMessage getNextMessage(PoloMessage.PoloMessageType type)
+      throws IOException, PoloException {
+    return getDelegate().getNextMessage(type);
+  }
+
+  public void sendMessage(PoloMessage message)
+      throws IOException, PoloException {
+    PoloWireInterface delegate = mDelegate;
+    if (delegate == null) {
+      throw new PoloException("Wire format of the peer is not known yet");
+    }
+    delegate.sendMessage(message);
+  }
+
+  public void sendErrorMessage(Exception e) throws IOException {
+    PoloWireInterface delegate = mDelegate;
+    if (delegate != null) {
+      delegate.sendErrorMessage(e);
+    }
+  }
+
+  /**
+   * Returns the adapter of the format of the peer, detecting the format if
+   * needed. Detection blocks until the first bytes of a message arrive.
+   */
+  private PoloWireInterface getDelegate() throws IOException, PoloException {
+    PoloWireInterface delegate = mDelegate;
+    if (delegate != null) {
+      return delegate;
+    }
+
+    byte[] prefix = new byte[PREFIX_LENGTH];
+    int length = 0;
+    try {
+      while (length < PREFIX_LENGTH) {
+        int count = mInputStream.read(prefix, length, PREFIX_LENGTH - length);
+        if (count < 0) {
+          throw new IOException("Stream closed while reading.");
+        }
+        length += count;
+      }
+    } finally {
+      mInputStream.unread(prefix, 0, length);
+    }
+
+    WireFormat format = detectWireFormat(prefix);
+    if (format == null) {
+      throw new PoloException("Unknown wire format");
+    }
+    switch (format) {
+      case PROTOCOL_BUFFERS:
+        delegate = new ProtobufWireAdapter(mInputStream, mOutputStream);
+        break;
+      case JSON:
+        delegate = new JsonWireAdapter(mInputStream, mOutputStream);
+        break;
+      case XML:
+      default:
+        delegate = new XmlWireAdapter(mInputStream, mOutputStream);
+        break;
+    }
+    mFormat = format;
+    mDelegate = delegate;
+    return delegate;
+  }
+
+  /**
+   * Detects the format of a message from its first bytes.
+   * <p>
+   * Protocol buffer and JSON messages are preceded by their length as a
+   * 4-byte big-endian integer, whose first byte is 0 for any message of a
+   * sensible size. A JSON message then starts with {@code '{'}, and a
+   * protocol buffer message with the tag of a field. XML messages start with
+   * the 64-byte header of {@code XmlMessageWrapper}, whose first field is the
+   * receiver id: printable text, or null characters if it is empty.
+   *
+   * @param prefix  at least {@link #PREFIX_LENGTH} bytes from the start of a
+   *                message
+   * @return        the format, or {@code null} if none matches
+   */
+  static WireFormat detectWireFormat(byte[] prefix) {
+    int first = prefix[0] & 0xff;
+    int length = ((prefix[1] & 0xff) << 16) | ((prefix[2] & 0xff) << 8)
+        | (prefix[3] & 0xff);
+    int next = prefix[4] & 0xff;
+    if (first == 0 && length > 0) {
+      if (next == '{') {
+        return WireFormat.JSON;
+      }
+      if (isFieldTag(next)) {
+        return WireFormat.PROTOCOL_BUFFERS;
+      }
+      return null;
+    }
+    if (first > ' ' && first < 0x7f) {
+      return WireFormat.XML;
+    }
+    if (first == 0 && length == 0 && next == 0) {
+      return WireFormat.XML;
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code true} if a byte is the one-byte tag of a protocol buffer
+   * field: a field number from 1 to 15, and a wire type other than the
+   * deprecated groups.
+   */
+  private static boolean isFieldTag(int tag) {
+    int wireType = tag & 0x7;
+    return tag < 0x80 && (tag >>> 3) != 0 && wireType != 3 && wireType != 4
+        && wireType <= 5;
+  }
+}
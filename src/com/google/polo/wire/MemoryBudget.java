@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the memory taken by the frames being read from peers.
+ * <p>
+ * A reader reserves the length announced by a frame before allocating memory
+ * for it, and releases it once the frame is decoded. A reservation is refused
+ * if it would take the bytes reserved by the connection above the limit of
+ * each connection, or the bytes reserved by all connections above the global
+ * limit, so that a peer announcing a huge frame cannot cause a huge
+ * allocation. The frame is then rejected, and the connection should be
+ * closed, since its stream cannot be resynchronized.
+ * <p>
+ * Readers of all connections share {@link #getDefault()} unless given another
+ * budget. Budgets are thread-safe.
+ */
+public final class MemoryBudget {
+
+  /**
+   * Default limit of the bytes reserved by all connections.
+   */
+  public static final long DEFAULT_GLOBAL_LIMIT = 8 * 1024 * 1024;
+
+  /**
+   * Default limit of the bytes reserved by a connection. Polo and Anymote
+   * messages are a few hundred bytes at most.
+   */
+  public static final int DEFAULT_CONNECTION_LIMIT = 64 * 1024;
+
+  private static final MemoryBudget DEFAULT =
+      new MemoryBudget(DEFAULT_GLOBAL_LIMIT, DEFAULT_CONNECTION_LIMIT);
+
+  private final long mGlobalLimit;
+
+  private final int mConnectionLimit;
+
+  private final AtomicLong mReserved = new AtomicLong();
+
+  private final AtomicLong mPeakReserved = new AtomicLong();
+
+  private final AtomicLong mRejectedFrames = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param globalLimit      maximum number of bytes reserved by all
+   *                         connections
+   * @param connectionLimit  maximum number of bytes reserved by a connection
+   */
+  public MemoryBudget(long globalLimit, int connectionLimit) {
+    if (globalLimit <= 0 || connectionLimit <= 0) {
+      throw new IllegalArgumentException("Bad limits: " + globalLimit + ", "
+          + connectionLimit);
+    }
+    mGlobalLimit = globalLimit;
+    mConnectionLimit = connectionLimit;
+  }
+
+  /**
+   * Returns the budget shared by default.
+   */
+  public static MemoryBudget getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns a new account, through which a connection reserves memory.
+   */
+  public Account openAccount() {
+    return new Account();
+  }
+
+  public long getGlobalLimit() {
+    return mGlobalLimit;
+  }
+
+  public int getConnectionLimit() {
+    return mConnectionLimit;
+  }
+
+  /**
+   * Returns the number of bytes currently reserved by all connections.
+   */
+  public long getReservedBytes() {
+    return mReserved.get();
+  }
+
+  /**
+   * Returns the highest number of bytes reserved at once by all connections.
+   */
+  public long getPeakReservedBytes() {
+    return mPeakReserved.get();
+  }
+
+  /**
+   * Returns the number of frames rejected so far.
+   */
+  public long getRejectedFrames() {
+    return mRejectedFrames.get();
+  }
+
+  private boolean reserveGlobal(long bytes) {
+    while (true) {
+      long reserved = mReserved.get();
+      long updated = reserved + bytes;
+      if (updated > mGlobalLimit) {
+        return false;
+      }
+      if (mReserved.compareAndSet(reserved, updated)) {
+        updatePeak(updated);
+        return true;
+      }
+    }
+  }
+
+  private void updatePeak(long reserved) {
+    while (true) {
+      long peak = mPeakReserved.get();
+      if (reserved <= peak || mPeakReserved.compareAndSet(peak, reserved)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The memory reserved by one connection.
+   */
+  public final class Account {
+
+    private long mAccountReserved;
+
+    private Account() {
+    }
+
+    /**
+     * Reserves memory for a frame, before it is allocated.
+     *
+     * @param bytes  the length of the frame
+     * @return       {@code true} if the memory was reserved, or {@code false}
+     *               if the frame is rejected
+     */
+    public synchronized boolean reserve(long bytes) {
+      if (bytes < 0 || mAccountReserved + bytes > mConnectionLimit
+          || !reserveGlobal(bytes)) {
+        mRejectedFrames.incrementAndGet();
+        return false;
+      }
+      mAccountReserved += bytes;
+      return true;
+    }
+
+    /**
+     * Releases memory reserved for a frame.
+     *
+     * @param bytes  the length given to {@link #reserve(long)}
+     */
+    public synchronized void release(long bytes) {
+      if (bytes < 0 || bytes > mAccountReserved) {
+        throw new IllegalStateException("Releasing " + bytes + " of "
+            + mAccountReserved + " reserved bytes");
+      }
+      mAccountReserved -= bytes;
+      mReserved.addAndGet(-bytes);
+    }
+
+    /**
+     * Counts a frame that the reader rejected by itself, for instance because
+     * it is longer than the messages of its protocol.
+     */
+    public void reject() {
+      mRejectedFrames.incrementAndGet();
+    }
+
+    /**
+     * Returns the maximum number of bytes reserved by this connection.
+     */
+    public int getLimit() {
+      return mConnectionLimit;
+    }
+
+    /**
+     * Returns the number of bytes currently reserved by this connection.
+     */
+    public synchronized long getReservedBytes() {
+      return mAccountReserved;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.message.PoloMessage;
+
+/**
+ * Converts one type of {@link PoloMessage} to and from its representation in
+ * a wire format.
+ *
+ * @param <M> the message class
+ * @param <E> the encoded form of the message
+ * @param <D> the form the message is decoded from
+ * @see CodecRegistry
+ */
+public interface MessageCodec<M extends PoloMessage, E, D> {
+
+  /**
+   * Encodes a message.
+   *
+   * @throws PoloException  if the message could not be encoded
+   */
+  E encode(M message) throws PoloException;
+
+  /**
+   * Decodes a message.
+   *
+   * @throws PoloException  if the message is malformed
+   */
+  M decode(D source) throws PoloException;
+}
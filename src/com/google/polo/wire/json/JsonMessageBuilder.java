@@ -16,9 +16,7 @@
 
 package com.google.polo.wire.json;
 
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
-
+import com.google.polo.encoding.BinaryToText;
 import com.google.polo.exception.BadSecretException;
 import com.google.polo.exception.NoConfigurationException;
 import com.google.polo.exception.PoloException;
@@ -38,6 +36,8 @@ import com.google.polo.pairing.message.PoloMessage;
 import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
 import com.google.polo.pairing.message.SecretAckMessage;
 import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.CodecRegistry;
+import com.google.polo.wire.MessageCodec;
 
 /**
  * A collection of methods to convert {@link PoloMessage}s to and from JSON
@@ -65,40 +65,155 @@ public class JsonMessageBuilder {
    */
 
   // OuterMessage JSON key names
-  private static final String OUTER_FIELD_PAYLOAD = "payload";
-  private static final String OUTER_FIELD_TYPE = "type";
-  private static final String OUTER_FIELD_STATUS = "status";
-  private static final String OUTER_FIELD_PROTOCOL_VERSION = "protocol_version";
+  static final String OUTER_FIELD_PAYLOAD = "payload";
+  static final String OUTER_FIELD_TYPE = "type";
+  static final String OUTER_FIELD_STATUS = "status";
+  static final String OUTER_FIELD_PROTOCOL_VERSION = "protocol_version";
 
   // PairingRequestMessage JSON key names
-  private static final String PAIRING_REQUEST_FIELD_SERVICE_NAME =
+  static final String PAIRING_REQUEST_FIELD_SERVICE_NAME =
       "service_name";
-  private static final String PAIRING_REQUEST_FIELD_CLIENT_NAME =
+  static final String PAIRING_REQUEST_FIELD_CLIENT_NAME =
       "client_name";
 
   // PairingRequestAckMessage JSON key names
-  private static final String PAIRING_REQUEST_ACK_FIELD_SERVER_NAME =
+  static final String PAIRING_REQUEST_ACK_FIELD_SERVER_NAME =
       "server_name";
 
   // OptionsMessage JSON key names
-  private static final String OPTIONS_FIELD_PREFERRED_ROLE = "preferred_role";
-  private static final String OPTIONS_FIELD_OUTPUT_ENCODINGS =
+  static final String OPTIONS_FIELD_PREFERRED_ROLE = "preferred_role";
+  static final String OPTIONS_FIELD_OUTPUT_ENCODINGS =
       "output_encodings";
-  private static final String OPTIONS_FIELD_INPUT_ENCODINGS = "input_encodings";
+  static final String OPTIONS_FIELD_INPUT_ENCODINGS = "input_encodings";
 
   // ConfigurationMessage JSON key names
-  private static final String CONFIG_FIELD_CLIENT_ROLE = "client_role";
-  private static final String CONFIG_FIELD_ENCODING = "encoding";
+  static final String CONFIG_FIELD_CLIENT_ROLE = "client_role";
+  static final String CONFIG_FIELD_ENCODING = "encoding";
 
   // EncodingOption JSON key names
-  private static final String ENCODING_FIELD_TYPE = "type";
-  private static final String ENCODING_FIELD_SYMBOL_LENGTH = "symbol_length";
+  static final String ENCODING_FIELD_TYPE = "type";
+  static final String ENCODING_FIELD_SYMBOL_LENGTH = "symbol_length";
 
   // SecretMessage JSON key names
-  private static final String SECRET_FIELD_SECRET = "secret";
+  static final String SECRET_FIELD_SECRET = "secret";
 
   // SecretAckMessage JSON key names
-  private static final String SECRET_ACK_FIELD_SECRET = "secret";
+  static final String SECRET_ACK_FIELD_SECRET = "secret";
+
+  /**
+   * Codecs of the message payloads.
+   */
+  private static final CodecRegistry<JSONObject, JSONObject> CODECS =
+      new CodecRegistry<JSONObject, JSONObject>()
+          .register(PoloMessageType.PAIRING_REQUEST,
+              PairingRequestMessage.class,
+              new JsonCodec<PairingRequestMessage>() {
+                @Override
+                JSONObject encodeJson(PairingRequestMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public PairingRequestMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getPairingRequest(body);
+                }
+              })
+          .register(PoloMessageType.PAIRING_REQUEST_ACK,
+              PairingRequestAckMessage.class,
+              new JsonCodec<PairingRequestAckMessage>() {
+                @Override
+                JSONObject encodeJson(PairingRequestAckMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public PairingRequestAckMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getPairingRequestAck(body);
+                }
+              })
+          .register(PoloMessageType.OPTIONS, OptionsMessage.class,
+              new JsonCodec<OptionsMessage>() {
+                @Override
+                JSONObject encodeJson(OptionsMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public OptionsMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getOptionsMessage(body);
+                }
+              })
+          .register(PoloMessageType.CONFIGURATION, ConfigurationMessage.class,
+              new JsonCodec<ConfigurationMessage>() {
+                @Override
+                JSONObject encodeJson(ConfigurationMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public ConfigurationMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getConfigMessage(body);
+                }
+              })
+          .register(PoloMessageType.CONFIGURATION_ACK,
+              ConfigurationAckMessage.class,
+              new JsonCodec<ConfigurationAckMessage>() {
+                @Override
+                JSONObject encodeJson(ConfigurationAckMessage message) {
+                  return toJson(message);
+                }
+
+                public ConfigurationAckMessage decode(JSONObject body) {
+                  return getConfigAckMessage(body);
+                }
+              })
+          .register(PoloMessageType.SECRET, SecretMessage.class,
+              new JsonCodec<SecretMessage>() {
+                @Override
+                JSONObject encodeJson(SecretMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public SecretMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getSecretMessage(body);
+                }
+              })
+          .register(PoloMessageType.SECRET_ACK, SecretAckMessage.class,
+              new JsonCodec<SecretAckMessage>() {
+                @Override
+                JSONObject encodeJson(SecretAckMessage message)
+                    throws JSONException {
+                  return toJson(message);
+                }
+
+                public SecretAckMessage decode(JSONObject body)
+                    throws PoloException {
+                  return getSecretAckMessage(body);
+                }
+              });
+
+  /**
+   * Codec of a message payload, reporting JSON errors as
+   * {@link PoloException}s.
+   */
+  private abstract static class JsonCodec<M extends PoloMessage>
+      implements MessageCodec<M, JSONObject, JSONObject> {
+    public JSONObject encode(M message) throws PoloException {
+      try {
+        return encodeJson(message);
+      } catch (JSONException e) {
+        throw new PoloException("Error generating message.", e);
+      }
+    }
+
+    abstract JSONObject encodeJson(M message) throws JSONException;
+  }
 
 
   /**
@@ -127,24 +242,7 @@ public class JsonMessageBuilder {
       throw new PoloException("Bad outer message.", e);
     }
 
-    switch (messageType) {
-      case PAIRING_REQUEST:
-        return getPairingRequest(payload);
-      case PAIRING_REQUEST_ACK:
-        return getPairingRequestAck(payload);
-      case OPTIONS:
-        return getOptionsMessage(payload);
-      case CONFIGURATION:
-        return getConfigMessage(payload);
-      case CONFIGURATION_ACK:
-        return getConfigAckMessage(payload);
-      case SECRET:
-        return getSecretMessage(payload);
-      case SECRET_ACK:
-        return getSecretAckMessage(payload);
-      default:
-        return null;
-    }
+    return CODECS.decode(messageType, payload);
   }
 
   //
@@ -282,11 +380,13 @@ public class JsonMessageBuilder {
    */
   static SecretMessage getSecretMessage(JSONObject body) throws PoloException {
     try {
-      byte[] secretBytes = Base64.decode(
-          body.getString(SECRET_FIELD_SECRET).getBytes());
+      byte[] secretBytes = BinaryToText.decodeBase64(
+          body.getString(SECRET_FIELD_SECRET));
       return new SecretMessage(secretBytes);
     } catch (JSONException e) {
       throw new PoloException("Malformed message.", e);
+    } catch (IllegalArgumentException e) {
+      throw new PoloException("Malformed message.", e);
     }
   }
 
@@ -300,11 +400,13 @@ public class JsonMessageBuilder {
   static SecretAckMessage getSecretAckMessage(JSONObject body)
       throws PoloException {
     try {
-      byte[] secretBytes = Base64.decode(
-          body.getString(SECRET_ACK_FIELD_SECRET).getBytes());
+      byte[] secretBytes = BinaryToText.decodeBase64(
+          body.getString(SECRET_ACK_FIELD_SECRET));
       return new SecretAckMessage(secretBytes);
     } catch (JSONException e) {
       throw new PoloException("Malformed message.", e);
+    } catch (IllegalArgumentException e) {
+      throw new PoloException("Malformed message.", e);
     }
   }
 
@@ -332,26 +434,7 @@ public class JsonMessageBuilder {
    */
   public static JSONObject poloMessageToJson(PoloMessage message)
       throws PoloException {
-    try {
-      if (message instanceof PairingRequestMessage) {
-        return toJson((PairingRequestMessage) message);
-      } else if (message instanceof PairingRequestAckMessage) {
-        return toJson((PairingRequestAckMessage) message);
-      } else if (message instanceof OptionsMessage) {
-        return toJson((OptionsMessage) message);
-      } else if (message instanceof ConfigurationMessage) {
-        return toJson((ConfigurationMessage) message);
-      } else if (message instanceof ConfigurationAckMessage) {
-        return toJson((ConfigurationAckMessage) message);
-      } else if (message instanceof SecretMessage) {
-        return toJson((SecretMessage) message);
-      } else if (message instanceof SecretAckMessage) {
-        return toJson((SecretAckMessage) message);
-      }
-    } catch (JSONException e) {
-      throw new PoloException("Error generating message.", e);
-    }
-    throw new PoloException("Unknown PoloMessage type.");
+    return CODECS.encode(message);
   }
 
   /**
@@ -494,15 +577,8 @@ public class JsonMessageBuilder {
    */
   static JSONObject toJson(SecretMessage message) throws JSONException {
     JSONObject jsonObj = new JSONObject();
-    String bytesStr;
-    String charsetName = Charset.defaultCharset().name();
-    try {
-      bytesStr = new String(Base64.encode(message.getSecret(), charsetName));
-    } catch (UnsupportedEncodingException e) {
-      // Should never happen.
-      bytesStr = "";
-    }
-    jsonObj.put(SECRET_FIELD_SECRET, bytesStr);
+    jsonObj.put(SECRET_FIELD_SECRET,
+        BinaryToText.encodeBase64(message.getSecret()));
     return jsonObj;
   }
 
@@ -513,15 +589,8 @@ public class JsonMessageBuilder {
    */
   static JSONObject toJson(SecretAckMessage message) throws JSONException {
     JSONObject jsonObj = new JSONObject();
-    String bytesStr;
-    String charsetName = Charset.defaultCharset().name();
-    try {
-      bytesStr = new String(Base64.encode(message.getSecret(), charsetName));
-    } catch (UnsupportedEncodingException e) {
-      // Should never happen.
-      bytesStr = "";
-    }
-    jsonObj.put(SECRET_ACK_FIELD_SECRET, bytesStr);
+    jsonObj.put(SECRET_ACK_FIELD_SECRET,
+        BinaryToText.encodeBase64(message.getSecret()));
     return jsonObj;
   }
 
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.google.polo.encoding.BinaryToText;
+import com.google.polo.exception.BadSecretException;
+import com.google.polo.exception.NoConfigurationException;
+import com.google.polo.exception.PoloException;
+import com.google.polo.exception.ProtocolErrorException;
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.EncodingOption.EncodingType;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.CodecRegistry;
+import com.google.polo.wire.MessageCodec;
+
+/**
+ * Converts {@link PoloMessage}s to and from the JSON messages of
+ * {@link JsonMessageBuilder}, working directly on UTF-8 bytes.
+ * <p>
+ * Messages are read in place from a buffer, and written into a buffer reused
+ * across messages, without building {@link com.google.polo.json.JSONObject}
+ * trees or intermediate {@link String}s. Messages are written framed for the
+ * wire: preceded by their length as a 4-byte big-endian integer.
+ * <p>
+ * Messages may be decoded by one thread at a time, and written by any thread.
+ */
+public final class JsonStreamCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Length of the preamble holding the message length.
+   */
+  private static final int PREAMBLE_LENGTH = 4;
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
+  /*
+   * UTF-8 encoded key names, as in JsonMessageBuilder.
+   */
+
+  private static final byte[] OUTER_PAYLOAD =
+      utf8(JsonMessageBuilder.OUTER_FIELD_PAYLOAD);
+  private static final byte[] OUTER_TYPE =
+      utf8(JsonMessageBuilder.OUTER_FIELD_TYPE);
+  private static final byte[] OUTER_STATUS =
+      utf8(JsonMessageBuilder.OUTER_FIELD_STATUS);
+  private static final byte[] OUTER_PROTOCOL_VERSION =
+      utf8(JsonMessageBuilder.OUTER_FIELD_PROTOCOL_VERSION);
+  private static final byte[] PAIRING_REQUEST_SERVICE_NAME =
+      utf8(JsonMessageBuilder.PAIRING_REQUEST_FIELD_SERVICE_NAME);
+  private static final byte[] PAIRING_REQUEST_CLIENT_NAME =
+      utf8(JsonMessageBuilder.PAIRING_REQUEST_FIELD_CLIENT_NAME);
+  private static final byte[] PAIRING_REQUEST_ACK_SERVER_NAME =
+      utf8(JsonMessageBuilder.PAIRING_REQUEST_ACK_FIELD_SERVER_NAME);
+  private static final byte[] OPTIONS_PREFERRED_ROLE =
+      utf8(JsonMessageBuilder.OPTIONS_FIELD_PREFERRED_ROLE);
+  private static final byte[] OPTIONS_OUTPUT_ENCODINGS =
+      utf8(JsonMessageBuilder.OPTIONS_FIELD_OUTPUT_ENCODINGS);
+  private static final byte[] OPTIONS_INPUT_ENCODINGS =
+      utf8(JsonMessageBuilder.OPTIONS_FIELD_INPUT_ENCODINGS);
+  private static final byte[] CONFIG_CLIENT_ROLE =
+      utf8(JsonMessageBuilder.CONFIG_FIELD_CLIENT_ROLE);
+  private static final byte[] CONFIG_ENCODING =
+      utf8(JsonMessageBuilder.CONFIG_FIELD_ENCODING);
+  private static final byte[] ENCODING_TYPE =
+      utf8(JsonMessageBuilder.ENCODING_FIELD_TYPE);
+  private static final byte[] ENCODING_SYMBOL_LENGTH =
+      utf8(JsonMessageBuilder.ENCODING_FIELD_SYMBOL_LENGTH);
+  private static final byte[] SECRET_SECRET =
+      utf8(JsonMessageBuilder.SECRET_FIELD_SECRET);
+  private static final byte[] SECRET_ACK_SECRET =
+      utf8(JsonMessageBuilder.SECRET_ACK_FIELD_SECRET);
+
+  private final JsonStreamReader mReader = new JsonStreamReader();
+
+  private final JsonStreamWriter mWriter =
+      new JsonStreamWriter(INITIAL_BUFFER_SIZE);
+
+  /**
+   * Codecs of the message payloads, writing to {@link #mWriter}.
+   */
+  private final CodecRegistry<JsonStreamWriter, JsonStreamReader> mCodecs;
+
+  public JsonStreamCodec() {
+    mCodecs = createCodecs();
+  }
+
+  /**
+   * Decodes a message.
+   *
+   * @param buffer          the buffer holding the message, in UTF-8
+   * @param offset          offset of the message in the buffer
+   * @param length          length of the message
+   * @return                a new {@link PoloMessage}
+   * @throws PoloException  on error parsing the message, or if the peer
+   *                        reported an error
+   */
+  public PoloMessage decode(byte[] buffer, int offset, int length)
+      throws PoloException {
+    JsonStreamReader reader = mReader;
+    reader.reset(buffer, offset, length);
+
+    boolean hasStatus = false;
+    int status = 0;
+    boolean hasType = false;
+    int type = 0;
+    int payloadPosition = -1;
+    PoloMessage message = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      reader.nextName();
+      if (reader.nameEquals(OUTER_STATUS)) {
+        status = reader.nextInt();
+        hasStatus = true;
+      } else if (reader.nameEquals(OUTER_TYPE)) {
+        type = reader.nextInt();
+        hasType = true;
+      } else if (reader.nameEquals(OUTER_PAYLOAD)) {
+        if (hasType && hasStatus && status == JsonMessageBuilder.STATUS_OK) {
+          // The payload is decoded in passing when its type is known.
+          message = decodePayload(type);
+        } else {
+          payloadPosition = reader.getPosition();
+          reader.skipValue();
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (!hasStatus) {
+      throw new PoloException("Bad outer message.");
+    }
+    if (status != JsonMessageBuilder.STATUS_OK) {
+      throw new ProtocolErrorException("Peer reported an error.");
+    }
+    if (message != null) {
+      return message;
+    }
+    if (!hasType || payloadPosition < 0) {
+      throw new PoloException("Bad outer message.");
+    }
+    reader.setPosition(payloadPosition);
+    return decodePayload(type);
+  }
+
+  private PoloMessage decodePayload(int type) throws PoloException {
+    if (mReader.nextNull()) {
+      throw new PoloException("Bad outer message.");
+    }
+    return mCodecs.decode(PoloMessageType.fromIntVal(type), mReader);
+  }
+
+  /**
+   * Writes a message to a stream, with its preamble, in a single write.
+   *
+   * @throws IOException    on error during write
+   * @throws PoloException  if the message could not be encoded
+   */
+  public synchronized void writeMessage(PoloMessage message,
+      OutputStream output) throws IOException, PoloException {
+    JsonStreamWriter writer = mWriter;
+    writer.reset(PREAMBLE_LENGTH);
+    writer.beginObject()
+        .name(OUTER_PROTOCOL_VERSION).value(JsonMessageBuilder.PROTOCOL_VERSION)
+        .name(OUTER_STATUS).value(JsonMessageBuilder.STATUS_OK)
+        .name(OUTER_TYPE).value(message.getType().getAsInt())
+        .name(OUTER_PAYLOAD);
+    mCodecs.encode(message);
+    writer.endObject();
+    writeFrame(output);
+  }
+
+  /**
+   * Writes an error message to a stream, with its preamble, in a single write.
+   * The error code is determined by the type of the exception, as in
+   * {@link JsonMessageBuilder#getErrorJson(Exception)}.
+   *
+   * @throws IOException  on error during write
+   */
+  public synchronized void writeErrorMessage(Exception exception,
+      OutputStream output) throws IOException {
+    int errorStatus = JsonMessageBuilder.STATUS_ERROR;
+    if (exception instanceof NoConfigurationException) {
+      errorStatus = JsonMessageBuilder.STATUS_BAD_CONFIGURATION;
+    } else if (exception instanceof BadSecretException) {
+      errorStatus = JsonMessageBuilder.STATUS_BAD_SECRET;
+    }
+
+    JsonStreamWriter writer = mWriter;
+    writer.reset(PREAMBLE_LENGTH);
+    writer.beginObject()
+        .name(OUTER_PROTOCOL_VERSION).value(JsonMessageBuilder.PROTOCOL_VERSION)
+        .name(OUTER_STATUS).value(errorStatus)
+        .endObject();
+    writeFrame(output);
+  }
+
+  /**
+   * Fills in the preamble of the message in {@link #mWriter}, and writes it.
+   */
+  private void writeFrame(OutputStream output) throws IOException {
+    byte[] buffer = mWriter.getBuffer();
+    int length = mWriter.getLength() - PREAMBLE_LENGTH;
+    buffer[0] = (byte) (length >> 24);
+    buffer[1] = (byte) (length >> 16);
+    buffer[2] = (byte) (length >> 8);
+    buffer[3] = (byte) length;
+    output.write(buffer, 0, PREAMBLE_LENGTH + length);
+  }
+
+  private CodecRegistry<JsonStreamWriter, JsonStreamReader> createCodecs() {
+    return new CodecRegistry<JsonStreamWriter, JsonStreamReader>()
+        .register(PoloMessageType.PAIRING_REQUEST,
+            PairingRequestMessage.class,
+            new StreamCodec<PairingRequestMessage>() {
+              public JsonStreamWriter encode(PairingRequestMessage message) {
+                mWriter.beginObject()
+                    .name(PAIRING_REQUEST_SERVICE_NAME)
+                    .value(message.getServiceName());
+                if (message.hasClientName()) {
+                  mWriter.name(PAIRING_REQUEST_CLIENT_NAME)
+                      .value(message.getClientName());
+                }
+                return mWriter.endObject();
+              }
+
+              public PairingRequestMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                String serviceName = null;
+                String clientName = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                  reader.nextName();
+                  if (reader.nameEquals(PAIRING_REQUEST_SERVICE_NAME)) {
+                    serviceName = reader.nextString();
+                  } else if (reader.nameEquals(PAIRING_REQUEST_CLIENT_NAME)) {
+                    clientName = reader.nextString();
+                  } else {
+                    reader.skipValue();
+                  }
+                }
+                reader.endObject();
+                return new PairingRequestMessage(require(serviceName),
+                    clientName);
+              }
+            })
+        .register(PoloMessageType.PAIRING_REQUEST_ACK,
+            PairingRequestAckMessage.class,
+            new StreamCodec<PairingRequestAckMessage>() {
+              public JsonStreamWriter encode(
+                  PairingRequestAckMessage message) {
+                mWriter.beginObject();
+                if (message.hasServerName()) {
+                  mWriter.name(PAIRING_REQUEST_ACK_SERVER_NAME)
+                      .value(message.getServerName());
+                }
+                return mWriter.endObject();
+              }
+
+              public PairingRequestAckMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                String serverName = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                  reader.nextName();
+                  if (reader.nameEquals(PAIRING_REQUEST_ACK_SERVER_NAME)) {
+                    serverName = reader.nextString();
+                  } else {
+                    reader.skipValue();
+                  }
+                }
+                reader.endObject();
+                return new PairingRequestAckMessage(serverName);
+              }
+            })
+        .register(PoloMessageType.OPTIONS, OptionsMessage.class,
+            new StreamCodec<OptionsMessage>() {
+              public JsonStreamWriter encode(OptionsMessage message) {
+                mWriter.beginObject().name(OPTIONS_INPUT_ENCODINGS)
+                    .beginArray();
+                for (EncodingOption encoding : message.getInputEncodingSet()) {
+                  writeEncoding(encoding);
+                }
+                mWriter.endArray().name(OPTIONS_OUTPUT_ENCODINGS)
+                    .beginArray();
+                for (EncodingOption encoding
+                    : message.getOutputEncodingSet()) {
+                  writeEncoding(encoding);
+                }
+                return mWriter.endArray()
+                    .name(OPTIONS_PREFERRED_ROLE)
+                    .value(message.getProtocolRolePreference().getAsInt())
+                    .endObject();
+              }
+
+              public OptionsMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                OptionsMessage options = new OptionsMessage();
+                boolean hasRole = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                  reader.nextName();
+                  if (reader.nameEquals(OPTIONS_INPUT_ENCODINGS)) {
+                    if (!reader.nextNull()) {
+                      reader.beginArray();
+                      while (reader.hasNext()) {
+                        options.addInputEncoding(readEncoding(reader));
+                      }
+                      reader.endArray();
+                    }
+                  } else if (reader.nameEquals(OPTIONS_OUTPUT_ENCODINGS)) {
+                    if (!reader.nextNull()) {
+                      reader.beginArray();
+                      while (reader.hasNext()) {
+                        options.addOutputEncoding(readEncoding(reader));
+                      }
+                      reader.endArray();
+                    }
+                  } else if (reader.nameEquals(OPTIONS_PREFERRED_ROLE)) {
+                    options.setProtocolRolePreference(
+                        ProtocolRole.fromIntVal(reader.nextInt()));
+                    hasRole = true;
+                  } else {
+                    reader.skipValue();
+                  }
+                }
+                reader.endObject();
+                if (!hasRole) {
+                  throw new PoloException("Malformed message.");
+                }
+                return options;
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION, ConfigurationMessage.class,
+            new StreamCodec<ConfigurationMessage>() {
+              public JsonStreamWriter encode(ConfigurationMessage message) {
+                mWriter.beginObject().name(CONFIG_ENCODING);
+                writeEncoding(message.getEncoding());
+                return mWriter.name(CONFIG_CLIENT_ROLE)
+                    .value(message.getClientRole().getAsInt())
+                    .endObject();
+              }
+
+              public ConfigurationMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                EncodingOption encoding = null;
+                ProtocolRole role = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                  reader.nextName();
+                  if (reader.nameEquals(CONFIG_ENCODING)) {
+                    encoding = readEncoding(reader);
+                  } else if (reader.nameEquals(CONFIG_CLIENT_ROLE)) {
+                    role = ProtocolRole.fromIntVal(reader.nextInt());
+                  } else {
+                    reader.skipValue();
+                  }
+                }
+                reader.endObject();
+                return new ConfigurationMessage(require(encoding),
+                    require(role));
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION_ACK,
+            ConfigurationAckMessage.class,
+            new StreamCodec<ConfigurationAckMessage>() {
+              public JsonStreamWriter encode(ConfigurationAckMessage message) {
+                return mWriter.beginObject().endObject();
+              }
+
+              public ConfigurationAckMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                reader.skipValue();
+                return new ConfigurationAckMessage();
+              }
+            })
+        .register(PoloMessageType.SECRET, SecretMessage.class,
+            new StreamCodec<SecretMessage>() {
+              public JsonStreamWriter encode(SecretMessage message) {
+                return writeSecret(SECRET_SECRET, message.getSecret());
+              }
+
+              public SecretMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                return new SecretMessage(readSecret(reader, SECRET_SECRET));
+              }
+            })
+        .register(PoloMessageType.SECRET_ACK, SecretAckMessage.class,
+            new StreamCodec<SecretAckMessage>() {
+              public JsonStreamWriter encode(SecretAckMessage message) {
+                return writeSecret(SECRET_ACK_SECRET, message.getSecret());
+              }
+
+              public SecretAckMessage decode(JsonStreamReader reader)
+                  throws PoloException {
+                return new SecretAckMessage(
+                    readSecret(reader, SECRET_ACK_SECRET));
+              }
+            });
+  }
+
+  /**
+   * Codec of a message payload. Payloads are written to {@link #mWriter},
+   * which is returned.
+   */
+  private abstract static class StreamCodec<M extends PoloMessage>
+      implements MessageCodec<M, JsonStreamWriter, JsonStreamReader> {
+  }
+
+  private void writeEncoding(EncodingOption encoding) {
+    mWriter.beginObject()
+        .name(ENCODING_TYPE).value(encoding.getType().getAsInt())
+        .name(ENCODING_SYMBOL_LENGTH).value(encoding.getSymbolLength())
+        .endObject();
+  }
+
+  private static EncodingOption readEncoding(JsonStreamReader reader)
+      throws PoloException {
+    boolean hasType = false;
+    int type = 0;
+    boolean hasSymbolLength = false;
+    int symbolLength = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      reader.nextName();
+      if (reader.nameEquals(ENCODING_TYPE)) {
+        type = reader.nextInt();
+        hasType = true;
+      } else if (reader.nameEquals(ENCODING_SYMBOL_LENGTH)) {
+        symbolLength = reader.nextInt();
+        hasSymbolLength = true;
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!hasType || !hasSymbolLength) {
+      throw new PoloException("Malformed message.");
+    }
+    return new EncodingOption(EncodingType.fromIntVal(type), symbolLength);
+  }
+
+  private JsonStreamWriter writeSecret(byte[] name, byte[] secret) {
+    return mWriter.beginObject().name(name)
+        .value(BinaryToText.encodeBase64(secret)).endObject();
+  }
+
+  private static byte[] readSecret(JsonStreamReader reader, byte[] name)
+      throws PoloException {
+    byte[] encoded = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      reader.nextName();
+      if (reader.nameEquals(name)) {
+        encoded = reader.nextStringBytes();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    require(encoded);
+    try {
+      return BinaryToText.decodeBase64(encoded, 0, encoded.length);
+    } catch (IllegalArgumentException e) {
+      throw new PoloException("Malformed message.", e);
+    }
+  }
+
+  /**
+   * Checks that a required field was present.
+   *
+   * @throws PoloException  if it is {@code null}
+   */
+  private static <T> T require(T value) throws PoloException {
+    if (value == null) {
+      throw new PoloException("Malformed message.");
+    }
+    return value;
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(UTF8);
+  }
+}
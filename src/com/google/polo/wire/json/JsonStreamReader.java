@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.json;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.google.polo.exception.PoloException;
+
+/**
+ * Reads a JSON document in place from a buffer of UTF-8 bytes, one value at a
+ * time, without building a tree of the document.
+ * <p>
+ * Object keys are compared to UTF-8 encoded names, so no {@link String} is
+ * created for them. A string value is only decoded when it is requested;
+ * strings without escapes are read directly from the buffer. Like the
+ * {@link com.google.polo.json.JSONObject} parser, the reader is lenient about
+ * separators.
+ */
+final class JsonStreamReader {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+  /**
+   * Longest integer, in digits, that is accumulated without overflow.
+   */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  private byte[] mBuffer;
+
+  private int mPosition;
+
+  private int mLimit;
+
+  /**
+   * Holds the last string read, if it contained escapes.
+   */
+  private byte[] mScratch = new byte[64];
+
+  /**
+   * Location of the last string read, either in the buffer or in the scratch
+   * array.
+   */
+  private byte[] mStringBuffer;
+  private int mStringOffset;
+  private int mStringLength;
+
+  /**
+   * Starts reading a new document.
+   *
+   * @param buffer  the UTF-8 encoded document
+   * @param offset  offset of the document in the buffer
+   * @param length  length of the document
+   */
+  void reset(byte[] buffer, int offset, int length) {
+    mBuffer = buffer;
+    mPosition = offset;
+    mLimit = offset + length;
+  }
+
+  int getPosition() {
+    return mPosition;
+  }
+
+  /**
+   * Moves back to a position returned by {@link #getPosition()}.
+   */
+  void setPosition(int position) {
+    mPosition = position;
+  }
+
+  void beginObject() throws PoloException {
+    expect('{');
+  }
+
+  void endObject() throws PoloException {
+    expect('}');
+  }
+
+  void beginArray() throws PoloException {
+    expect('[');
+  }
+
+  void endArray() throws PoloException {
+    expect(']');
+  }
+
+  /**
+   * Returns {@code true} if the current object or array has another element,
+   * skipping the separator before it.
+   */
+  boolean hasNext() throws PoloException {
+    byte c = peek();
+    if (c == ',') {
+      ++mPosition;
+      c = peek();
+    }
+    return c != '}' && c != ']';
+  }
+
+  /**
+   * Reads the key of the next object member, and the separator following it.
+   * The key is then compared with {@link #nameEquals(byte[])}.
+   */
+  void nextName() throws PoloException {
+    readString();
+    byte c = peek();
+    if (c != ':' && c != '=') {
+      throw syntaxError("Expected ':'");
+    }
+    ++mPosition;
+  }
+
+  /**
+   * Returns {@code true} if the last key read is a given name.
+   *
+   * @param name  the UTF-8 encoded name
+   */
+  boolean nameEquals(byte[] name) {
+    if (mStringLength != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; ++i) {
+      if (mStringBuffer[mStringOffset + i] != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Consumes a {@code null} value, if it is next.
+   *
+   * @return  {@code true} if the next value was {@code null}
+   */
+  boolean nextNull() throws PoloException {
+    peek();
+    if (mLimit - mPosition < NULL.length) {
+      return false;
+    }
+    for (int i = 0; i < NULL.length; ++i) {
+      if (mBuffer[mPosition + i] != NULL[i]) {
+        return false;
+      }
+    }
+    mPosition += NULL.length;
+    return true;
+  }
+
+  /**
+   * Reads a string value.
+   *
+   * @return  the string, or {@code null} for a {@code null} value
+   */
+  String nextString() throws PoloException {
+    if (nextNull()) {
+      return null;
+    }
+    readString();
+    return new String(mStringBuffer, mStringOffset, mStringLength, UTF8);
+  }
+
+  /**
+   * Reads a string value as UTF-8 bytes.
+   *
+   * @return  the bytes, or {@code null} for a {@code null} value
+   */
+  byte[] nextStringBytes() throws PoloException {
+    if (nextNull()) {
+      return null;
+    }
+    readString();
+    return Arrays.copyOfRange(mStringBuffer, mStringOffset,
+        mStringOffset + mStringLength);
+  }
+
+  /**
+   * Reads an integer value. As with {@link com.google.polo.json.JSONObject},
+   * fractions are truncated, and strings holding a number are accepted.
+   */
+  int nextInt() throws PoloException {
+    if (peek() == '"') {
+      String value = nextString().trim();
+      try {
+        return (int) Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        throw syntaxError("Expected a number");
+      }
+    }
+
+    int start = mPosition;
+    boolean negative = false;
+    if (mBuffer[mPosition] == '-') {
+      negative = true;
+      ++mPosition;
+    }
+    long value = 0;
+    int digits = 0;
+    while (mPosition < mLimit) {
+      int digit = mBuffer[mPosition] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = value * 10 + digit;
+      ++digits;
+      ++mPosition;
+    }
+    if (digits == 0) {
+      throw syntaxError("Expected a number");
+    }
+    if (digits > MAX_LONG_DIGITS || (mPosition < mLimit
+        && (mBuffer[mPosition] == '.' || mBuffer[mPosition] == 'e'
+        || mBuffer[mPosition] == 'E'))) {
+      // Rare forms are parsed the slow way.
+      skipLiteral();
+      try {
+        return (int) Double.parseDouble(
+            new String(mBuffer, start, mPosition - start, UTF8));
+      } catch (NumberFormatException e) {
+        throw syntaxError("Expected a number");
+      }
+    }
+    return (int) (negative ? -value : value);
+  }
+
+  /**
+   * Skips the next value, including any nested values.
+   */
+  void skipValue() throws PoloException {
+    int depth = 0;
+    do {
+      byte c = peek();
+      switch (c) {
+        case '"':
+          readString();
+          break;
+        case '{':
+        case '[':
+          ++depth;
+          ++mPosition;
+          break;
+        case '}':
+        case ']':
+          if (depth == 0) {
+            throw syntaxError("Expected a value");
+          }
+          --depth;
+          ++mPosition;
+          break;
+        case ',':
+        case ':':
+          if (depth == 0) {
+            throw syntaxError("Expected a value");
+          }
+          ++mPosition;
+          break;
+        default:
+          skipLiteral();
+          break;
+      }
+    } while (depth > 0);
+  }
+
+  /**
+   * Skips a number or a literal such as {@code true}.
+   */
+  private void skipLiteral() {
+    while (mPosition < mLimit) {
+      switch (mBuffer[mPosition]) {
+        case ',':
+        case ':':
+        case '}':
+        case ']':
+        case '"':
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+          return;
+        default:
+          ++mPosition;
+      }
+    }
+  }
+
+  /**
+   * Reads a quoted string, leaving its location in {@link #mStringBuffer}.
+   */
+  private void readString() throws PoloException {
+    expect('"');
+    int start = mPosition;
+    while (mPosition < mLimit) {
+      byte c = mBuffer[mPosition];
+      if (c == '"') {
+        mStringBuffer = mBuffer;
+        mStringOffset = start;
+        mStringLength = mPosition - start;
+        ++mPosition;
+        return;
+      }
+      if (c == '\\') {
+        readEscapedString(start);
+        return;
+      }
+      ++mPosition;
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  /**
+   * Reads the rest of a string containing escapes into the scratch array.
+   *
+   * @param start  offset of the first byte of the string
+   */
+  private void readEscapedString(int start) throws PoloException {
+    int length = mPosition - start;
+    ensureScratch(length);
+    System.arraycopy(mBuffer, start, mScratch, 0, length);
+
+    while (mPosition < mLimit) {
+      byte c = mBuffer[mPosition++];
+      if (c == '"') {
+        mStringBuffer = mScratch;
+        mStringOffset = 0;
+        mStringLength = length;
+        return;
+      }
+      // An escape takes at most 4 bytes once encoded.
+      ensureScratch(length + 4);
+      if (c != '\\') {
+        mScratch[length++] = c;
+        continue;
+      }
+      if (mPosition >= mLimit) {
+        break;
+      }
+      c = mBuffer[mPosition++];
+      switch (c) {
+        case 'b':
+          mScratch[length++] = '\b';
+          break;
+        case 't':
+          mScratch[length++] = '\t';
+          break;
+        case 'n':
+          mScratch[length++] = '\n';
+          break;
+        case 'f':
+          mScratch[length++] = '\f';
+          break;
+        case 'r':
+          mScratch[length++] = '\r';
+          break;
+        case 'u': {
+          int codePoint = readHexChar();
+          if (Character.isHighSurrogate((char) codePoint)
+              && mLimit - mPosition >= 6 && mBuffer[mPosition] == '\\'
+              && mBuffer[mPosition + 1] == 'u') {
+            mPosition += 2;
+            int low = readHexChar();
+            if (Character.isLowSurrogate((char) low)) {
+              codePoint = Character.toCodePoint((char) codePoint, (char) low);
+            } else {
+              length = putCodePoint(length, '?');
+              codePoint = low;
+            }
+          }
+          if (codePoint >= Character.MIN_SURROGATE
+              && codePoint <= Character.MAX_SURROGATE) {
+            // Unpaired surrogates cannot be encoded.
+            codePoint = '?';
+          }
+          length = putCodePoint(length, codePoint);
+          break;
+        }
+        default:
+          mScratch[length++] = c;
+          break;
+      }
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  /**
+   * Reads the 4 hexadecimal digits of a {@code \}{@code u} escape.
+   */
+  private int readHexChar() throws PoloException {
+    if (mLimit - mPosition < 4) {
+      throw syntaxError("Bad escape");
+    }
+    int value = 0;
+    for (int i = 0; i < 4; ++i) {
+      int digit = Character.digit(mBuffer[mPosition++], 16);
+      if (digit < 0) {
+        throw syntaxError("Bad escape");
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  /**
+   * Appends a code point to the scratch array as UTF-8.
+   *
+   * @return  the new length of the scratch string
+   */
+  private int putCodePoint(int length, int codePoint) {
+    if (codePoint < 0x80) {
+      mScratch[length++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      mScratch[length++] = (byte) (0xc0 | (codePoint >> 6));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      mScratch[length++] = (byte) (0xe0 | (codePoint >> 12));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else {
+      mScratch[length++] = (byte) (0xf0 | (codePoint >> 18));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+    return length;
+  }
+
+  private void ensureScratch(int size) {
+    if (size > mScratch.length) {
+      mScratch = Arrays.copyOf(mScratch, Math.max(size, 2 * mScratch.length));
+    }
+  }
+
+  /**
+   * Skips whitespace, and returns the next byte without consuming it.
+   */
+  private byte peek() throws PoloException {
+    while (mPosition < mLimit) {
+      byte c = mBuffer[mPosition];
+      if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+        return c;
+      }
+      ++mPosition;
+    }
+    throw syntaxError("Unexpected end of message");
+  }
+
+  private void expect(char expected) throws PoloException {
+    if (peek() != expected) {
+      throw syntaxError("Expected '" + expected + "'");
+    }
+    ++mPosition;
+  }
+
+  private PoloException syntaxError(String message) {
+    return new PoloException("Malformed message: " + message + " at offset "
+        + mPosition);
+  }
+}
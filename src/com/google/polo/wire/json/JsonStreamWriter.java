@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.json;
+
+import java.util.Arrays;
+
+/**
+ * Writes a compact JSON document as UTF-8 bytes into a buffer reused across
+ * documents.
+ * <p>
+ * Separators between members and elements are written as needed, so a
+ * document is written as a plain sequence of calls. Names are given already
+ * encoded, and are written without escaping.
+ */
+final class JsonStreamWriter {
+
+  private static final byte[] HEX_DIGITS = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+
+  /**
+   * Longest encoding of a char: a {@code \}{@code u} escape.
+   */
+  private static final int MAX_CHAR_LENGTH = 6;
+
+  /**
+   * Longest encoding of an int, with its sign.
+   */
+  private static final int MAX_INT_LENGTH = 11;
+
+  private byte[] mBuffer;
+
+  private int mLength;
+
+  /**
+   * Whether a separator is needed before the next member or element.
+   */
+  private boolean mNeedsSeparator;
+
+  JsonStreamWriter(int initialSize) {
+    mBuffer = new byte[initialSize];
+  }
+
+  /**
+   * Starts a new document.
+   *
+   * @param reserved  number of bytes left free at the start of the buffer
+   */
+  void reset(int reserved) {
+    ensureCapacity(reserved);
+    mLength = reserved;
+    mNeedsSeparator = false;
+  }
+
+  /**
+   * Returns the buffer holding the document, from offset 0.
+   */
+  byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /**
+   * Returns the length of the document, including the reserved bytes.
+   */
+  int getLength() {
+    return mLength;
+  }
+
+  JsonStreamWriter beginObject() {
+    separate();
+    put('{');
+    mNeedsSeparator = false;
+    return this;
+  }
+
+  JsonStreamWriter endObject() {
+    put('}');
+    mNeedsSeparator = true;
+    return this;
+  }
+
+  JsonStreamWriter beginArray() {
+    separate();
+    put('[');
+    mNeedsSeparator = false;
+    return this;
+  }
+
+  JsonStreamWriter endArray() {
+    put(']');
+    mNeedsSeparator = true;
+    return this;
+  }
+
+  /**
+   * Writes the key of an object member.
+   *
+   * @param name  the key, encoded in UTF-8 and needing no escapes
+   */
+  JsonStreamWriter name(byte[] name) {
+    separate();
+    ensureCapacity(mLength + name.length + 3);
+    mBuffer[mLength++] = '"';
+    System.arraycopy(name, 0, mBuffer, mLength, name.length);
+    mLength += name.length;
+    mBuffer[mLength++] = '"';
+    mBuffer[mLength++] = ':';
+    mNeedsSeparator = false;
+    return this;
+  }
+
+  JsonStreamWriter value(int value) {
+    separate();
+    ensureCapacity(mLength + MAX_INT_LENGTH);
+    long remaining = value;
+    if (remaining < 0) {
+      mBuffer[mLength++] = '-';
+      remaining = -remaining;
+    }
+    int end = mLength + digitCount(remaining);
+    for (int i = end - 1; i >= mLength; --i) {
+      mBuffer[i] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    mLength = end;
+    mNeedsSeparator = true;
+    return this;
+  }
+
+  /**
+   * Writes a string value, escaped as needed. Unpaired surrogates are written
+   * as {@code '?'}, like {@link String#getBytes(String)} does.
+   */
+  JsonStreamWriter value(String value) {
+    separate();
+    int count = value.length();
+    ensureCapacity(mLength + MAX_CHAR_LENGTH * count + 2);
+    byte[] buffer = mBuffer;
+    int length = mLength;
+    buffer[length++] = '"';
+    for (int i = 0; i < count; ++i) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (c == '"' || c == '\\') {
+          buffer[length++] = '\\';
+          buffer[length++] = (byte) c;
+        } else if (c >= 0x20) {
+          buffer[length++] = (byte) c;
+        } else {
+          length = putControl(buffer, length, c);
+        }
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < count
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        buffer[length++] = '?';
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    buffer[length++] = '"';
+    mLength = length;
+    mNeedsSeparator = true;
+    return this;
+  }
+
+  /**
+   * Writes the escape of a control character.
+   *
+   * @return  the new length of the document
+   */
+  private static int putControl(byte[] buffer, int length, char c) {
+    buffer[length++] = '\\';
+    switch (c) {
+      case '\b':
+        buffer[length++] = 'b';
+        break;
+      case '\t':
+        buffer[length++] = 't';
+        break;
+      case '\n':
+        buffer[length++] = 'n';
+        break;
+      case '\f':
+        buffer[length++] = 'f';
+        break;
+      case '\r':
+        buffer[length++] = 'r';
+        break;
+      default:
+        buffer[length++] = 'u';
+        buffer[length++] = '0';
+        buffer[length++] = '0';
+        buffer[length++] = HEX_DIGITS[c >> 4];
+        buffer[length++] = HEX_DIGITS[c & 0xf];
+        break;
+    }
+    return length;
+  }
+
+  private static int digitCount(long value) {
+    int count = 1;
+    while (value >= 10) {
+      value /= 10;
+      ++count;
+    }
+    return count;
+  }
+
+  private void separate() {
+    if (mNeedsSeparator) {
+      put(',');
+    }
+  }
+
+  private void put(char c) {
+    ensureCapacity(mLength + 1);
+    mBuffer[mLength++] = (byte) c;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(size, 2 * mBuffer.length));
+    }
+  }
+}
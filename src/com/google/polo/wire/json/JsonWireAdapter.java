@@ -21,14 +21,15 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 import com.google.polo.exception.PoloException;
 import com.google.polo.json.JSONException;
 import com.google.polo.json.JSONObject;
 import com.google.polo.pairing.PairingContext;
-import com.google.polo.pairing.PoloUtil;
 import com.google.polo.pairing.message.PoloMessage;
 import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.wire.MemoryBudget;
 import com.google.polo.wire.PoloWireInterface;
 
 /**
@@ -37,13 +38,23 @@ import com.google.polo.wire.PoloWireInterface;
  * <p>
  * Messages are streamed over the wire prepended with an integer which indicates
  * the total length, in bytes, of the message which follows. The format of the
- * message is JSON.
+ * message is JSON, encoded in UTF-8.
  * <p>
- * See {@link JsonMessageBuilder} for the underlying message translation
- * implementation.
+ * Messages are converted by {@link JsonStreamCodec}, which reads and writes
+ * the bytes directly. See {@link JsonMessageBuilder} for the conversion to
+ * and from {@link JSONObject}s.
  */
 public class JsonWireAdapter implements PoloWireInterface {
 
+  /**
+   * Enables extra verbose debug logging.
+   */
+  private static final boolean DEBUG_VERBOSE = false;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
   /**
    * The output coming from the peer.
    */
@@ -55,14 +66,44 @@ public class JsonWireAdapter implements PoloWireInterface {
   private final DataOutputStream mOutputStream;
 
   /**
-   * Constructor.
+   * Reads and writes the messages as UTF-8 bytes.
+   */
+  private final JsonStreamCodec mCodec = new JsonStreamCodec();
+
+  /**
+   * Holds the messages read, reused across messages. A longer message is read
+   * into a buffer of its own, so that no large buffer is kept between
+   * messages.
+   */
+  private final byte[] mReadBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+  /**
+   * Account of the memory reserved for the messages being read.
+   */
+  private final MemoryBudget.Account mBudget;
+
+  /**
+   * Constructor, using the default {@link MemoryBudget}.
    * 
    * @param input the {@link InputStream} from the peer
    * @param output the {@link OutputStream} to the peer
    */
   public JsonWireAdapter(InputStream input, OutputStream output) {
+    this(input, output, MemoryBudget.getDefault());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param input the {@link InputStream} from the peer
+   * @param output the {@link OutputStream} to the peer
+   * @param budget the budget of the memory of the messages being read
+   */
+  public JsonWireAdapter(InputStream input, OutputStream output,
+      MemoryBudget budget) {
     mInputStream = new DataInputStream(input);
     mOutputStream = new DataOutputStream(output);
+    mBudget = budget.openAccount();
   }
 
   /**
@@ -77,12 +118,28 @@ public class JsonWireAdapter implements PoloWireInterface {
   }
 
   public PoloMessage getNextMessage() throws IOException, PoloException {
-    byte[] payloadLenBytes = new byte[4];
-    mInputStream.readFully(payloadLenBytes);
-    long payloadLen = PoloUtil.intBigEndianBytesToLong(payloadLenBytes);
-    byte[] outerJsonBytes = new byte[(int) payloadLen];
-    mInputStream.readFully(outerJsonBytes);
-    return parseOuterMessageString(new String(outerJsonBytes));
+    int payloadLen = mInputStream.readInt();
+    if (payloadLen < 0) {
+      mBudget.reject();
+      throw new PoloException("Bad message length: "
+          + (payloadLen & 0xffffffffL));
+    }
+    if (!mBudget.reserve(payloadLen)) {
+      throw new PoloException("Message exceeds the memory budget: "
+          + payloadLen + " bytes");
+    }
+    try {
+      byte[] buffer =
+          payloadLen > mReadBuffer.length ? new byte[payloadLen] : mReadBuffer;
+      mInputStream.readFully(buffer, 0, payloadLen);
+      if (DEBUG_VERBOSE) {
+        System.out.println("Received JSON: "
+            + new String(buffer, 0, payloadLen, UTF8));
+      }
+      return mCodec.decode(buffer, 0, payloadLen);
+    } finally {
+      mBudget.release(payloadLen);
+    }
   }
 
   public PoloMessage parseOuterMessageString(String outerString)
@@ -107,37 +164,18 @@ public class JsonWireAdapter implements PoloWireInterface {
   }
 
   public void sendErrorMessage(Exception exception) throws IOException {
-    try {
-      writeJson(JsonMessageBuilder.getErrorJson(exception));
-    } catch (PoloException e) {
-      throw new IOException("Error sending error message");
-    }
+    mCodec.writeErrorMessage(exception, mOutputStream);
   }
 
   public void sendMessage(PoloMessage message) throws IOException {
-    String outString;
-    JSONObject outerJson;
-
+    if (DEBUG_VERBOSE) {
+      System.out.println("Sending message: " + message);
+    }
     try {
-      outerJson = JsonMessageBuilder.getOuterJson(message);
+      mCodec.writeMessage(message, mOutputStream);
     } catch (PoloException e) {
       throw new IOException("Error generating message");
     }
-
-    System.out.println("Sending JSON: " + outerJson.toString());
-    writeJson(outerJson);
-  }
-
-  /**
-   * Writes a {@link JSONObject} to the output stream as a {@link String}.
-   * 
-   * @param  message      the message to write
-   * @throws IOException  on error generating the serialized message
-   */
-  private void writeJson(JSONObject message) throws IOException {
-    byte[] outBytes = message.toString().getBytes();
-    mOutputStream.write(PoloUtil.intToBigEndianIntBytes(outBytes.length));
-    mOutputStream.write(outBytes);
   }
 
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.protobuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.wire.MemoryBudget;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Frames protocol buffer messages on the wire, where each message is preceded
+ * by its length as a 4-byte big-endian integer.
+ * <p>
+ * Frames are read into, and written from, buffers reused across messages.
+ * The write buffer grows as needed up to the maximum message size. A frame
+ * read that does not fit in the read buffer gets a buffer of its own, dropped
+ * once it is released, so that the memory kept between frames stays small. A
+ * length above the maximum is rejected before anything is allocated, so that
+ * a peer cannot cause large allocations. The length of each frame read is
+ * also reserved in a {@link MemoryBudget} until {@link #releaseFrame()}.
+ * Frames may be read by one thread at a time, and written by any thread.
+ */
+final class MessageFramer {
+
+	/**
+	 * Length of the preamble holding the message length.
+	 */
+	private static final int PREAMBLE_LENGTH = 4;
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	private final int mMaxMessageSize;
+
+	/**
+	 * Account of the memory reserved for the frames read.
+	 */
+	private final MemoryBudget.Account mBudget;
+
+	/**
+	 * Bytes reserved for the last frame read, until it is released.
+	 */
+	private int mReservedLength;
+
+	/**
+	 * Buffer reused for the frames that fit in it.
+	 */
+	private final byte[] mSmallReadBuffer;
+
+	/**
+	 * Holds the last frame read, without its preamble.
+	 */
+	private byte[] mReadBuffer;
+
+	/**
+	 * Holds the frame being written, with its preamble.
+	 */
+	private byte[] mWriteBuffer;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxMessageSize
+	 *            maximum length of a message, without its preamble
+	 * @param budget
+	 *            the budget of the memory of the frames read
+	 */
+	MessageFramer(int maxMessageSize, MemoryBudget budget) {
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("Bad maximum message size: "
+					+ maxMessageSize);
+		}
+		mMaxMessageSize = maxMessageSize;
+		mBudget = budget.openAccount();
+		mSmallReadBuffer = new byte[Math.max(PREAMBLE_LENGTH,
+				Math.min(INITIAL_BUFFER_SIZE, maxMessageSize))];
+		mReadBuffer = mSmallReadBuffer;
+		mWriteBuffer = new byte[PREAMBLE_LENGTH
+				+ Math.min(INITIAL_BUFFER_SIZE, maxMessageSize)];
+	}
+
+	/**
+	 * Reads the next frame, blocking as necessary. The message is valid in
+	 * {@link #getReadBuffer()}, and its memory stays reserved, until
+	 * {@link #releaseFrame()} is called.
+	 *
+	 * @return the length of the message
+	 * @throws IOException
+	 *             on error during read
+	 * @throws PoloException
+	 *             if the message is longer than the maximum size, or does not
+	 *             fit in the memory budget
+	 */
+	int readFrame(InputStream input) throws IOException, PoloException {
+		releaseFrame();
+		readFully(input, mReadBuffer, PREAMBLE_LENGTH);
+		long length = ((mReadBuffer[0] & 0xffL) << 24)
+				| ((mReadBuffer[1] & 0xff) << 16)
+				| ((mReadBuffer[2] & 0xff) << 8) | (mReadBuffer[3] & 0xff);
+		if (length > mMaxMessageSize) {
+			mBudget.reject();
+			throw new PoloException("Message too large: " + length
+					+ " bytes");
+		}
+		if (!mBudget.reserve(length)) {
+			throw new PoloException("Message exceeds the memory budget: "
+					+ length + " bytes");
+		}
+		mReservedLength = (int) length;
+		if (length > mReadBuffer.length) {
+			mReadBuffer = new byte[(int) length];
+		}
+		try {
+			readFully(input, mReadBuffer, (int) length);
+		} catch (IOException e) {
+			releaseFrame();
+			throw e;
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Releases the memory reserved for the last frame read, once it is
+	 * decoded, and drops its buffer if it was allocated for it. Does nothing
+	 * if it was already released.
+	 */
+	void releaseFrame() {
+		if (mReservedLength > 0) {
+			mBudget.release(mReservedLength);
+			mReservedLength = 0;
+		}
+		mReadBuffer = mSmallReadBuffer;
+	}
+
+	/**
+	 * Returns the buffer holding the last message read, from offset 0, until
+	 * it is released.
+	 */
+	byte[] getReadBuffer() {
+		return mReadBuffer;
+	}
+
+	/**
+	 * Writes a message with its preamble, in a single write.
+	 *
+	 * @throws IOException
+	 *             on error during write, or if the message is longer than the
+	 *             maximum size
+	 */
+	synchronized void writeFrame(OutputStream output, MessageLite message)
+			throws IOException {
+		int length = message.getSerializedSize();
+		if (length > mMaxMessageSize) {
+			throw new IOException("Message too large: " + length + " bytes");
+		}
+		if (PREAMBLE_LENGTH + length > mWriteBuffer.length) {
+			mWriteBuffer = new byte[PREAMBLE_LENGTH
+					+ grow(mWriteBuffer.length - PREAMBLE_LENGTH, length)];
+		}
+		mWriteBuffer[0] = (byte) (length >> 24);
+		mWriteBuffer[1] = (byte) (length >> 16);
+		mWriteBuffer[2] = (byte) (length >> 8);
+		mWriteBuffer[3] = (byte) length;
+		CodedOutputStream coded = CodedOutputStream.newInstance(mWriteBuffer,
+				PREAMBLE_LENGTH, length);
+		message.writeTo(coded);
+		coded.checkNoSpaceLeft();
+		output.write(mWriteBuffer, 0, PREAMBLE_LENGTH + length);
+	}
+
+	/**
+	 * Returns a new buffer size of at least {@code needed} bytes, doubling the
+	 * current size to limit reallocations, but not above the maximum size.
+	 */
+	private int grow(int current, int needed) {
+		return Math.max(needed, (int) Math.min(2L * current, mMaxMessageSize));
+	}
+
+	/**
+	 * Reads a fixed number of bytes at the start of a buffer.
+	 */
+	private static void readFully(InputStream input, byte[] buffer,
+			int numBytes) throws IOException {
+		int bytesRead = 0;
+
+		// For an SSLSocket, read() can frequently return zero bytes,
+		// or fewer bytes than desired, due to SSL unwrapping and other
+		// non-application-data events.
+		while (bytesRead < numBytes) {
+			int inc = input.read(buffer, bytesRead, numBytes - bytesRead);
+			if (inc < 0) {
+				throw new IOException("Stream closed while reading.");
+			}
+			bytesRead += inc;
+		}
+	}
+}
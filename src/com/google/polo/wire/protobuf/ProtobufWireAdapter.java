@@ -25,7 +25,6 @@ import com.google.polo.exception.NoConfigurationException;
 import com.google.polo.exception.PoloException;
 import com.google.polo.exception.ProtocolErrorException;
 import com.google.polo.pairing.PairingContext;
-import com.google.polo.pairing.PoloUtil;
 import com.google.polo.pairing.message.ConfigurationAckMessage;
 import com.google.polo.pairing.message.ConfigurationMessage;
 import com.google.polo.pairing.message.EncodingOption;
@@ -33,16 +32,22 @@ import com.google.polo.pairing.message.OptionsMessage;
 import com.google.polo.pairing.message.PairingRequestAckMessage;
 import com.google.polo.pairing.message.PairingRequestMessage;
 import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
 import com.google.polo.pairing.message.SecretAckMessage;
 import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.CodecRegistry;
+import com.google.polo.wire.MemoryBudget;
+import com.google.polo.wire.MessageCodec;
 import com.google.polo.wire.PoloWireInterface;
 import com.google.polo.wire.protobuf.PoloProto.Options.Encoding.EncodingType;
 import com.google.polo.wire.protobuf.PoloProto.Options.RoleType;
 import com.google.polo.wire.protobuf.PoloProto.OuterMessage;
 import com.google.polo.wire.protobuf.PoloProto.OuterMessage.MessageType;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.GeneratedMessageLite;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
  * Implementation of {@link PoloWireInterface} that uses Protocol Buffers for
@@ -60,6 +65,38 @@ import com.google.protobuf.GeneratedMessageLite;
  */
 public class ProtobufWireAdapter implements PoloWireInterface {
 
+	/**
+	 * Enables extra verbose debug logging.
+	 */
+	private static final boolean DEBUG_VERBOSE = false;
+
+	/**
+	 * Default maximum length of a message. Polo messages are a few hundred
+	 * bytes at most.
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024;
+
+	/**
+	 * Tags of the {@link OuterMessage} fields.
+	 */
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int PROTOCOL_VERSION_TAG =
+			OuterMessage.PROTOCOL_VERSION_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+	private static final int STATUS_TAG =
+			OuterMessage.STATUS_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+	private static final int TYPE_TAG =
+			OuterMessage.TYPE_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+	private static final int PAYLOAD_TAG =
+			OuterMessage.PAYLOAD_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+
+	/**
+	 * Codecs of the inner messages, decoded from the payload of the outer
+	 * message.
+	 */
+	private static final CodecRegistry<GeneratedMessageLite, CodedInputStream>
+			CODECS = createCodecs();
+
 	/**
 	 * The output coming from the peer.
 	 */
@@ -70,8 +107,10 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 */
 	private final OutputStream mOutputStream;
 
+	private final MessageFramer mFramer;
+
 	/**
-	 * Constructor.
+	 * Constructor, limiting messages to {@link #DEFAULT_MAX_MESSAGE_SIZE}.
 	 * 
 	 * @param input
 	 *            the {@link InputStream} from the peer
@@ -79,8 +118,43 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 *            the {@link OutputStream} to the peer
 	 */
 	public ProtobufWireAdapter(InputStream input, OutputStream output) {
+		this(input, output, DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param input
+	 *            the {@link InputStream} from the peer
+	 * @param output
+	 *            the {@link OutputStream} to the peer
+	 * @param maxMessageSize
+	 *            maximum length of a message; longer messages from the peer
+	 *            are rejected without being read
+	 */
+	public ProtobufWireAdapter(InputStream input, OutputStream output,
+			int maxMessageSize) {
+		this(input, output, maxMessageSize, MemoryBudget.getDefault());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param input
+	 *            the {@link InputStream} from the peer
+	 * @param output
+	 *            the {@link OutputStream} to the peer
+	 * @param maxMessageSize
+	 *            maximum length of a message; longer messages from the peer
+	 *            are rejected without being read
+	 * @param budget
+	 *            the budget of the memory of the messages being read
+	 */
+	public ProtobufWireAdapter(InputStream input, OutputStream output,
+			int maxMessageSize, MemoryBudget budget) {
 		mInputStream = input;
 		mOutputStream = output;
+		mFramer = new MessageFramer(maxMessageSize, budget);
 	}
 
 	/**
@@ -99,7 +173,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Returns the next message sent over the wire, blocking as necessary.
 	 */
 	public PoloMessage getNextMessage() throws IOException, PoloException {
-		return protoToPoloMessage(readNextInnerMessage());
+		return readNextMessage();
 	}
 
 	/**
@@ -124,93 +198,92 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	}
 
 	/**
-	 * Returns the next message seen on the input stream.
-	 * 
-	 * @return the next OuterMessage read from the wire
-	 * @throws IOException
-	 *             on error during read
-	 */
-	private OuterMessage readNextOuterMessage() throws IOException,
-			PoloException {
-		// Read the preamble (length of payload)
-		byte[] preambleBuffer = readBytesBlocking(4);
-		int messageLen = (int) PoloUtil.intBigEndianBytesToLong(preambleBuffer);
-
-		// Read the payload (serialized PoloMessage)
-		byte[] messageBuffer = readBytesBlocking(messageLen);
-
-		// Decode and return the payload
-		OuterMessage message = OuterMessage.parseFrom(messageBuffer);
-
-		OuterMessage.Status status = message.getStatus();
-		if (status != OuterMessage.Status.STATUS_OK) {
-			throw new ProtocolErrorException();
-		}
-
-		return message;
-	}
-
-	/**
-	 * Reads the next inner message from the wire, decoding and handling the
-	 * outer message in the process.
+	 * Reads the next message from the wire, decoding and handling the outer
+	 * message in the process.
+	 * <p>
+	 * The outer message is decoded in the frame buffer like
+	 * {@link OuterMessage#parseFrom(byte[])} would, except that the payload is
+	 * not copied: the inner message is parsed from its place in the buffer.
 	 * 
-	 * @return a protocol buffer message
+	 * @return the message
 	 * @throws IOException
 	 *             on error during read
 	 * @throws PoloException
 	 *             on protocol error
 	 */
-	private GeneratedMessageLite readNextInnerMessage() throws IOException,
-			PoloException {
-		OuterMessage message = readNextOuterMessage();
-		MessageType type = message.getType();
-
-		ByteString payload = message.getPayload();
-
-		if (type == MessageType.MESSAGE_TYPE_OPTIONS) {
-			return PoloProto.Options.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_PAIRING_REQUEST) {
-			return PoloProto.PairingRequest.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_PAIRING_REQUEST_ACK) {
-			return PoloProto.PairingRequestAck.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_CONFIGURATION) {
-			return PoloProto.Configuration.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_CONFIGURATION_ACK) {
-			return PoloProto.ConfigurationAck.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_SECRET) {
-			return PoloProto.Secret.parseFrom(payload);
-		} else if (type == MessageType.MESSAGE_TYPE_SECRET_ACK) {
-			return PoloProto.SecretAck.parseFrom(payload);
+	private PoloMessage readNextMessage() throws IOException, PoloException {
+		int length = mFramer.readFrame(mInputStream);
+		try {
+			return decodeFrame(mFramer.getReadBuffer(), length);
+		} finally {
+			mFramer.releaseFrame();
 		}
-
-		throw new IOException("Could not unparse message");
 	}
 
 	/**
-	 * Convenience method to read a fixed number of bytes from the client
-	 * InputStream, blocking if necessary.
-	 * 
-	 * @param numBytes
-	 *            the number of bytes to read
-	 * @return the bytes read
-	 * @throws IOException
-	 *             on error during read
+	 * Decodes a message read by {@link #readNextMessage()}.
 	 */
-	private byte[] readBytesBlocking(int numBytes) throws IOException {
-		byte[] buf = new byte[numBytes];
-		int bytesRead = 0;
-
-		// For an SSLSocket, read() can frequently return zero bytes,
-		// or fewer bytes than desired, due to SSL unwrapping and other
-		// non-application-data events.
-		while (bytesRead < numBytes) {
-			int inc = mInputStream.read(buf, bytesRead, numBytes - bytesRead);
-			if (inc < 0) {
-				throw new IOException("Stream closed while reading.");
+	private static PoloMessage decodeFrame(byte[] buffer, int length)
+			throws IOException, PoloException {
+		CodedInputStream outer = CodedInputStream.newInstance(buffer, 0, length);
+		boolean hasProtocolVersion = false;
+		OuterMessage.Status status = null;
+		MessageType type = MessageType.MESSAGE_TYPE_PAIRING_REQUEST;
+		int payloadOffset = 0;
+		int payloadLength = 0;
+		fields: while (true) {
+			int tag = outer.readTag();
+			switch (tag) {
+			case 0:
+				break fields;
+			case PROTOCOL_VERSION_TAG:
+				outer.readUInt32();
+				hasProtocolVersion = true;
+				break;
+			case STATUS_TAG: {
+				OuterMessage.Status value = OuterMessage.Status.valueOf(outer
+						.readEnum());
+				if (value != null) {
+					status = value;
+				}
+				break;
+			}
+			case TYPE_TAG: {
+				MessageType value = MessageType.valueOf(outer.readEnum());
+				if (value != null) {
+					type = value;
+				}
+				break;
 			}
-			bytesRead += inc;
+			case PAYLOAD_TAG:
+				payloadLength = outer.readRawVarint32();
+				payloadOffset = outer.getTotalBytesRead();
+				outer.skipRawBytes(payloadLength);
+				break;
+			default:
+				if (!outer.skipField(tag)) {
+					break fields;
+				}
+				break;
+			}
+		}
+		if (!hasProtocolVersion || status == null) {
+			throw new InvalidProtocolBufferException(
+					"Message missing required fields");
+		}
+		if (status != OuterMessage.Status.STATUS_OK) {
+			throw new ProtocolErrorException();
 		}
-		return buf;
+
+		CodedInputStream payload = CodedInputStream.newInstance(buffer,
+				payloadOffset, payloadLength);
+
+		PoloMessageType messageType = PoloMessageType.fromIntVal(type
+				.getNumber());
+		if (!CODECS.supports(messageType)) {
+			throw new IOException("Could not unparse message");
+		}
+		return CODECS.decode(messageType, payload);
 	}
 
 	/**
@@ -218,27 +291,15 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * 
 	 * @param message
 	 *            the {@link GeneratedMessageLite} to wrap
+	 * @param type
+	 *            the type of the message
 	 * @throws PoloException
 	 *             if the message was not well formed
 	 */
-	private OuterMessage wrapInnerMessage(GeneratedMessageLite message)
-			throws PoloException {
-		MessageType type;
-		if (message instanceof PoloProto.Options) {
-			type = MessageType.MESSAGE_TYPE_OPTIONS;
-		} else if (message instanceof PoloProto.PairingRequest) {
-			type = MessageType.MESSAGE_TYPE_PAIRING_REQUEST;
-		} else if (message instanceof PoloProto.PairingRequestAck) {
-			type = MessageType.MESSAGE_TYPE_PAIRING_REQUEST_ACK;
-		} else if (message instanceof PoloProto.Configuration) {
-			type = MessageType.MESSAGE_TYPE_CONFIGURATION;
-		} else if (message instanceof PoloProto.ConfigurationAck) {
-			type = MessageType.MESSAGE_TYPE_CONFIGURATION_ACK;
-		} else if (message instanceof PoloProto.Secret) {
-			type = MessageType.MESSAGE_TYPE_SECRET;
-		} else if (message instanceof PoloProto.SecretAck) {
-			type = MessageType.MESSAGE_TYPE_SECRET_ACK;
-		} else {
+	private OuterMessage wrapInnerMessage(GeneratedMessageLite message,
+			PoloMessageType type) throws PoloException {
+		MessageType outerType = MessageType.valueOf(type.getAsInt());
+		if (outerType == null) {
 			throw new PoloException("Bad inner message type.");
 		}
 
@@ -246,7 +307,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 		OuterMessage.Builder builder = OuterMessage.newBuilder();
 		builder.setStatus(OuterMessage.Status.STATUS_OK);
 		builder.setProtocolVersion(1);
-		builder.setType(type);
+		builder.setType(outerType);
 		builder.setPayload(message.toByteString());
 
 		return builder.build();
@@ -261,11 +322,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 *             on error during write
 	 */
 	private void writeMessage(OuterMessage message) throws IOException {
-		byte[] messageBytes = message.toByteArray();
-		int messageLength = messageBytes.length;
-
-		mOutputStream.write(PoloUtil.intToBigEndianIntBytes(messageLength));
-		mOutputStream.write(messageBytes);
+		mFramer.writeFrame(mOutputStream, message);
 	}
 
 	/**
@@ -273,8 +330,8 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 */
 	public void sendMessage(PoloMessage message) throws IOException,
 			PoloException {
-		GeneratedMessageLite pb = poloMessageToProto(message);
-		OuterMessage outerMessage = wrapInnerMessage(pb);
+		GeneratedMessageLite pb = CODECS.encode(message);
+		OuterMessage outerMessage = wrapInnerMessage(pb, message.getType());
 		writeMessage(outerMessage);
 	}
 
@@ -297,38 +354,12 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 		writeMessage(message);
 	}
 
-	/**
-	 * Converts an internal message to the corresponding protocol buffer
-	 * message.
-	 * 
-	 * @param poloMessage
-	 *            the internal message
-	 * @return a new {@link GeneratedMessage} instance
-	 */
-	private GeneratedMessageLite poloMessageToProto(PoloMessage poloMessage) {
-		if (poloMessage instanceof PairingRequestMessage) {
-			return toProto((PairingRequestMessage) poloMessage);
-		} else if (poloMessage instanceof PairingRequestAckMessage) {
-			return toProto((PairingRequestAckMessage) poloMessage);
-		} else if (poloMessage instanceof OptionsMessage) {
-			return toProto((OptionsMessage) poloMessage);
-		} else if (poloMessage instanceof ConfigurationMessage) {
-			return toProto((ConfigurationMessage) poloMessage);
-		} else if (poloMessage instanceof ConfigurationAckMessage) {
-			return toProto((ConfigurationAckMessage) poloMessage);
-		} else if (poloMessage instanceof SecretMessage) {
-			return toProto((SecretMessage) poloMessage);
-		} else if (poloMessage instanceof SecretAckMessage) {
-			return toProto((SecretAckMessage) poloMessage);
-		}
-		return null;
-	}
-
 	/**
 	 * Converts a {@link PairingRequestMessage} to a
 	 * {@link PoloProto.PairingRequest}.
 	 */
-	private PoloProto.PairingRequest toProto(PairingRequestMessage poloMessage) {
+	private static PoloProto.PairingRequest toProto(
+			PairingRequestMessage poloMessage) {
 		PoloProto.PairingRequest.Builder builder = PoloProto.PairingRequest
 				.newBuilder();
 		builder.setServiceName(poloMessage.getServiceName());
@@ -342,7 +373,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link PairingRequestAckMessage} to a
 	 * {@link PoloProto.PairingRequestAck}.
 	 */
-	private PoloProto.PairingRequestAck toProto(
+	private static PoloProto.PairingRequestAck toProto(
 			PairingRequestAckMessage poloMessage) {
 		PoloProto.PairingRequestAck.Builder builder = PoloProto.PairingRequestAck
 				.newBuilder();
@@ -356,7 +387,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link OptionsMessage} to a {@link PoloProto.Options}.
 	 */
 	@SuppressWarnings("incomplete-switch")
-	private PoloProto.Options toProto(OptionsMessage poloMessage) {
+	private static PoloProto.Options toProto(OptionsMessage poloMessage) {
 		PoloProto.Options.Builder builder = PoloProto.Options.newBuilder();
 
 		switch (poloMessage.getProtocolRolePreference()) {
@@ -383,7 +414,8 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link ConfigurationMessage} to a
 	 * {@link PoloProto.Configuration}.
 	 */
-	private PoloProto.Configuration toProto(ConfigurationMessage poloMessage) {
+	private static PoloProto.Configuration toProto(
+			ConfigurationMessage poloMessage) {
 		PoloProto.Configuration.Builder builder = PoloProto.Configuration
 				.newBuilder();
 		builder.setEncoding(toProto(poloMessage.getEncoding()));
@@ -395,7 +427,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link EncodingOption} to a {@link PoloProto.Options.Encoding}
 	 * .
 	 */
-	private PoloProto.Options.Encoding toProto(EncodingOption enc) {
+	private static PoloProto.Options.Encoding toProto(EncodingOption enc) {
 		PoloProto.Options.Encoding.Builder builder = PoloProto.Options.Encoding
 				.newBuilder();
 
@@ -428,7 +460,8 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link OptionsMessage.ProtocolRole} to a
 	 * {@link PoloProto.Options.RoleType}.
 	 */
-	private PoloProto.Options.RoleType toProto(OptionsMessage.ProtocolRole role) {
+	private static PoloProto.Options.RoleType toProto(
+			OptionsMessage.ProtocolRole role) {
 		switch (role) {
 		case DISPLAY_DEVICE:
 			return RoleType.ROLE_TYPE_OUTPUT;
@@ -443,7 +476,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link ConfigurationAckMessage} to a
 	 * {@link PoloProto.ConfigurationAck}.
 	 */
-	private PoloProto.ConfigurationAck toProto(
+	private static PoloProto.ConfigurationAck toProto(
 			ConfigurationAckMessage poloMessage) {
 		PoloProto.ConfigurationAck.Builder builder = PoloProto.ConfigurationAck
 				.newBuilder();
@@ -453,7 +486,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	/**
 	 * Converts a {@link SecretMessage} to a {@link PoloProto.Secret}.
 	 */
-	private PoloProto.Secret toProto(SecretMessage poloMessage) {
+	private static PoloProto.Secret toProto(SecretMessage poloMessage) {
 		PoloProto.Secret.Builder builder = PoloProto.Secret.newBuilder();
 		builder.setSecret(ByteString.copyFrom(poloMessage.getSecret()));
 		return builder.build();
@@ -462,7 +495,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	/**
 	 * Converts a {@link SecretAckMessage} to a {@link PoloProto.SecretAck}.
 	 */
-	private PoloProto.SecretAck toProto(SecretAckMessage poloMessage) {
+	private static PoloProto.SecretAck toProto(SecretAckMessage poloMessage) {
 		PoloProto.SecretAck.Builder builder = PoloProto.SecretAck.newBuilder();
 		builder.setSecret(ByteString.copyFrom(poloMessage.getSecret()));
 		return builder.build();
@@ -472,38 +505,11 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	// polo -> protocol buffer routines
 	//
 
-	/**
-	 * Converts a protocol buffer message to the corresponding internal message.
-	 * 
-	 * @param generatedMessageLite
-	 *            the protobuf message to convert
-	 * @return the new {@link PoloMessage}
-	 */
-	private PoloMessage protoToPoloMessage(
-			GeneratedMessageLite generatedMessageLite) {
-		if (generatedMessageLite instanceof PoloProto.PairingRequest) {
-			return fromProto((PoloProto.PairingRequest) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.PairingRequestAck) {
-			return fromProto((PoloProto.PairingRequestAck) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.Options) {
-			return fromProto((PoloProto.Options) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.Configuration) {
-			return fromProto((PoloProto.Configuration) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.ConfigurationAck) {
-			return fromProto((PoloProto.ConfigurationAck) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.Secret) {
-			return fromProto((PoloProto.Secret) generatedMessageLite);
-		} else if (generatedMessageLite instanceof PoloProto.SecretAck) {
-			return fromProto((PoloProto.SecretAck) generatedMessageLite);
-		}
-		return null;
-	}
-
 	/**
 	 * Converts a {@link PoloProto.PairingRequest} to a
 	 * {@link PairingRequestMessage}.
 	 */
-	private PairingRequestMessage fromProto(
+	private static PairingRequestMessage fromProto(
 			PoloProto.PairingRequest protoMessage) {
 		return new PairingRequestMessage(protoMessage.getServiceName(),
 				protoMessage.hasClientName() ? protoMessage.getClientName()
@@ -514,7 +520,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link PoloProto.PairingRequestAck} to a
 	 * {@link PairingRequestAckMessage}.
 	 */
-	private PairingRequestAckMessage fromProto(
+	private static PairingRequestAckMessage fromProto(
 			PoloProto.PairingRequestAck protoMessage) {
 		return new PairingRequestAckMessage(
 				protoMessage.hasServerName() ? protoMessage.getServerName()
@@ -525,10 +531,12 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link PoloProto.Options} to a {@link OptionsMessage}.
 	 */
 	@SuppressWarnings("incomplete-switch")
-	private OptionsMessage fromProto(PoloProto.Options protoMessage) {
+	private static OptionsMessage fromProto(PoloProto.Options protoMessage) {
 		OptionsMessage optionsMessage = new OptionsMessage();
 
-		System.out.println("Read options: " + protoMessage);
+		if (DEBUG_VERBOSE) {
+			System.out.println("Read options: " + protoMessage);
+		}
 
 		switch (protoMessage.getPreferredRole()) {
 		case ROLE_TYPE_INPUT:
@@ -559,7 +567,8 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * {@link ConfigurationMessage}.
 	 */
 	@SuppressWarnings("incomplete-switch")
-	private ConfigurationMessage fromProto(PoloProto.Configuration protoMessage) {
+	private static ConfigurationMessage fromProto(
+			PoloProto.Configuration protoMessage) {
 		EncodingOption enc = fromProto(protoMessage.getEncoding());
 		OptionsMessage.ProtocolRole role = OptionsMessage.ProtocolRole.UNKNOWN;
 
@@ -579,7 +588,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link PoloProto.ConfigurationAck} to a
 	 * {@link ConfigurationAckMessage}.
 	 */
-	private ConfigurationAckMessage fromProto(
+	private static ConfigurationAckMessage fromProto(
 			PoloProto.ConfigurationAck protoMessage) {
 		return new ConfigurationAckMessage();
 	}
@@ -587,14 +596,15 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	/**
 	 * Converts a {@link PoloProto.Secret} to a {@link SecretMessage}.
 	 */
-	private SecretMessage fromProto(PoloProto.Secret protoMessage) {
+	private static SecretMessage fromProto(PoloProto.Secret protoMessage) {
 		return new SecretMessage(protoMessage.getSecret().toByteArray());
 	}
 
 	/**
 	 * Converts a {@link PoloProto.SecretAck} to a {@link SecretAckMessage}.
 	 */
-	private SecretAckMessage fromProto(PoloProto.SecretAck protoMessage) {
+	private static SecretAckMessage fromProto(
+			PoloProto.SecretAck protoMessage) {
 		return new SecretAckMessage(protoMessage.getSecret().toByteArray());
 	}
 
@@ -602,7 +612,7 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 	 * Converts a {@link PoloProto.Options.Encoding} to a {@link EncodingOption}
 	 * .
 	 */
-	private EncodingOption fromProto(PoloProto.Options.Encoding enc) {
+	private static EncodingOption fromProto(PoloProto.Options.Encoding enc) {
 		EncodingOption.EncodingType type;
 
 		switch (enc.getType()) {
@@ -626,4 +636,126 @@ public class ProtobufWireAdapter implements PoloWireInterface {
 
 	}
 
+	private static CodecRegistry<GeneratedMessageLite, CodedInputStream>
+			createCodecs() {
+		CodecRegistry<GeneratedMessageLite, CodedInputStream> codecs =
+				new CodecRegistry<GeneratedMessageLite, CodedInputStream>();
+		codecs.register(PoloMessageType.PAIRING_REQUEST,
+				PairingRequestMessage.class, new ProtoCodec<PairingRequestMessage>() {
+					public GeneratedMessageLite encode(
+							PairingRequestMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					PairingRequestMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.PairingRequest
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.PAIRING_REQUEST_ACK,
+				PairingRequestAckMessage.class, new ProtoCodec<PairingRequestAckMessage>() {
+					public GeneratedMessageLite encode(
+							PairingRequestAckMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					PairingRequestAckMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.PairingRequestAck
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.OPTIONS,
+				OptionsMessage.class, new ProtoCodec<OptionsMessage>() {
+					public GeneratedMessageLite encode(
+							OptionsMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					OptionsMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.Options
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.CONFIGURATION,
+				ConfigurationMessage.class, new ProtoCodec<ConfigurationMessage>() {
+					public GeneratedMessageLite encode(
+							ConfigurationMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					ConfigurationMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.Configuration
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.CONFIGURATION_ACK,
+				ConfigurationAckMessage.class, new ProtoCodec<ConfigurationAckMessage>() {
+					public GeneratedMessageLite encode(
+							ConfigurationAckMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					ConfigurationAckMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.ConfigurationAck
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.SECRET,
+				SecretMessage.class, new ProtoCodec<SecretMessage>() {
+					public GeneratedMessageLite encode(
+							SecretMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					SecretMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.Secret
+								.parseFrom(input));
+					}
+				});
+		codecs.register(PoloMessageType.SECRET_ACK,
+				SecretAckMessage.class, new ProtoCodec<SecretAckMessage>() {
+					public GeneratedMessageLite encode(
+							SecretAckMessage message) {
+						return toProto(message);
+					}
+
+					@Override
+					SecretAckMessage decodeProto(
+							CodedInputStream input) throws IOException {
+						return fromProto(PoloProto.SecretAck
+								.parseFrom(input));
+					}
+				});
+		return codecs;
+	}
+
+	/**
+	 * Codec of an inner message, reporting malformed payloads as
+	 * {@link PoloException}s.
+	 */
+	private abstract static class ProtoCodec<M extends PoloMessage> implements
+			MessageCodec<M, GeneratedMessageLite, CodedInputStream> {
+		public M decode(CodedInputStream input) throws PoloException {
+			try {
+				return decodeProto(input);
+			} catch (IOException e) {
+				throw new PoloException("Malformed message.", e);
+			}
+		}
+
+		abstract M decodeProto(CodedInputStream input) throws IOException;
+	}
+
 }
@@ -35,6 +35,8 @@ import com.google.polo.pairing.message.PoloMessage;
 import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
 import com.google.polo.pairing.message.SecretAckMessage;
 import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.CodecRegistry;
+import com.google.polo.wire.MessageCodec;
 
 /**
  * A collection of methods to convert {@link PoloMessage}s to and from XML
@@ -60,43 +62,43 @@ public class XmlMessageBuilder {
    */
   
   // OuterMessage XML key names
-  private static final String OUTER_FIELD_TYPE = "msg_type";
-  private static final String OUTER_FIELD_STATUS = "status";
-  private static final String OUTER_FIELD_MSG_ID = "msg_id";
-  private static final String OUTER_FIELD_PAYLOAD = "pairing_msg";
+  static final String OUTER_FIELD_TYPE = "msg_type";
+  static final String OUTER_FIELD_STATUS = "status";
+  static final String OUTER_FIELD_MSG_ID = "msg_id";
+  static final String OUTER_FIELD_PAYLOAD = "pairing_msg";
 
   // PairingRequestMessage XML key names
-  private static final String PAIRING_REQUEST_FIELD_PROTOCOL_VERSION =
+  static final String PAIRING_REQUEST_FIELD_PROTOCOL_VERSION =
       "proto_version";
   
   // OptionsMessage XML key names
-  private static final String OPTIONS_FIELD_PREFERRED_ROLE = "pref_role";
-  private static final String OPTIONS_FIELD_OUTPUT_ENCODINGS = "out_encodings";
-  private static final String OPTIONS_FIELD_INPUT_ENCODINGS = "in_encodings";
+  static final String OPTIONS_FIELD_PREFERRED_ROLE = "pref_role";
+  static final String OPTIONS_FIELD_OUTPUT_ENCODINGS = "out_encodings";
+  static final String OPTIONS_FIELD_INPUT_ENCODINGS = "in_encodings";
 
   // ConfigurationMessage XML key names
-  private static final String CONFIG_FIELD_CLIENT_ROLE = "role";
+  static final String CONFIG_FIELD_CLIENT_ROLE = "role";
   
   // EncodingOption XML key names
-  private static final String ENCODING_FIELD_TYPE = "type";
-  private static final String ENCODING_FIELD_SYMBOL_LENGTH = "min_length";
-  private static final String ENCODING_FIELD_MAX_LENGTH = "max_length";
-  private static final String ENCODING_SUBFIELD_ENCODING = "encoding";
+  static final String ENCODING_FIELD_TYPE = "type";
+  static final String ENCODING_FIELD_SYMBOL_LENGTH = "min_length";
+  static final String ENCODING_FIELD_MAX_LENGTH = "max_length";
+  static final String ENCODING_SUBFIELD_ENCODING = "encoding";
 
   // SecretMessage XML key names
-  private static final String SECRET_FIELD_SECRET = "bytes";
+  static final String SECRET_FIELD_SECRET = "bytes";
 
   // Payload container names
-  private static final String MESSAGE_CONTAINER_NAME_PAIRING_REQUEST =
+  static final String MESSAGE_CONTAINER_NAME_PAIRING_REQUEST =
       "pairing_req";
-  private static final String MESSAGE_CONTAINER_NAME_PAIRING_REQUEST_ACK =
+  static final String MESSAGE_CONTAINER_NAME_PAIRING_REQUEST_ACK =
       "pairing_req_ack";
-  private static final String MESSAGE_CONTAINER_NAME_OPTIONS = "config_options";
-  private static final String MESSAGE_CONTAINER_NAME_CONFIG = "config";
-  private static final String MESSAGE_CONTAINER_NAME_SECRET = "secret";
-  private static final String PAIRING_REQUEST_FIELD_SERVICE_NAME = "svc_name";
-  private static final String PAIRING_REQUEST_FIELD_CLIENT_NAME = "client_name";
-  private static final String PAIRING_REQUEST_ACK_FIELD_SERVER_NAME =
+  static final String MESSAGE_CONTAINER_NAME_OPTIONS = "config_options";
+  static final String MESSAGE_CONTAINER_NAME_CONFIG = "config";
+  static final String MESSAGE_CONTAINER_NAME_SECRET = "secret";
+  static final String PAIRING_REQUEST_FIELD_SERVICE_NAME = "svc_name";
+  static final String PAIRING_REQUEST_FIELD_CLIENT_NAME = "client_name";
+  static final String PAIRING_REQUEST_ACK_FIELD_SERVER_NAME =
       "server_name";
 
   //
@@ -114,8 +116,123 @@ public class XmlMessageBuilder {
    */
   private String mLastMessageId;
 
+  /**
+   * Codecs of the message payloads.
+   */
+  private final CodecRegistry<String, JSONObject> mCodecs;
+
   public XmlMessageBuilder() {
     mLastMessageId = null;
+    mCodecs = createCodecs();
+  }
+
+  private CodecRegistry<String, JSONObject> createCodecs() {
+    return new CodecRegistry<String, JSONObject>()
+        .register(PoloMessageType.PAIRING_REQUEST,
+            PairingRequestMessage.class,
+            new XmlCodec<PairingRequestMessage>() {
+              @Override
+              String encodeXml(PairingRequestMessage message)
+                  throws JSONException {
+                return toXML(message);
+              }
+
+              public PairingRequestMessage decode(JSONObject body)
+                  throws PoloException {
+                return getPairingRequest(body);
+              }
+            })
+        .register(PoloMessageType.PAIRING_REQUEST_ACK,
+            PairingRequestAckMessage.class,
+            new XmlCodec<PairingRequestAckMessage>() {
+              @Override
+              String encodeXml(PairingRequestAckMessage message)
+                  throws JSONException {
+                return toXML(message);
+              }
+
+              public PairingRequestAckMessage decode(JSONObject body)
+                  throws PoloException {
+                return getPairingRequestAck(body);
+              }
+            })
+        .register(PoloMessageType.OPTIONS, OptionsMessage.class,
+            new XmlCodec<OptionsMessage>() {
+              @Override
+              String encodeXml(OptionsMessage message) throws JSONException {
+                return toXML(message);
+              }
+
+              public OptionsMessage decode(JSONObject body)
+                  throws PoloException {
+                return getOptionsMessage(body);
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION, ConfigurationMessage.class,
+            new XmlCodec<ConfigurationMessage>() {
+              @Override
+              String encodeXml(ConfigurationMessage message)
+                  throws JSONException {
+                return toXML(message);
+              }
+
+              public ConfigurationMessage decode(JSONObject body)
+                  throws PoloException {
+                return getConfigMessage(body);
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION_ACK,
+            ConfigurationAckMessage.class,
+            new XmlCodec<ConfigurationAckMessage>() {
+              @Override
+              String encodeXml(ConfigurationAckMessage message) {
+                return toXML(message);
+              }
+
+              public ConfigurationAckMessage decode(JSONObject body) {
+                return getConfigAckMessage(body);
+              }
+            })
+        .register(PoloMessageType.SECRET, SecretMessage.class,
+            new XmlCodec<SecretMessage>() {
+              @Override
+              String encodeXml(SecretMessage message) throws JSONException {
+                return toXML(message);
+              }
+
+              public SecretMessage decode(JSONObject body)
+                  throws PoloException {
+                return getSecretMessage(body);
+              }
+            })
+        .register(PoloMessageType.SECRET_ACK, SecretAckMessage.class,
+            new XmlCodec<SecretAckMessage>() {
+              @Override
+              String encodeXml(SecretAckMessage message) {
+                return toXML(message);
+              }
+
+              public SecretAckMessage decode(JSONObject body) {
+                return getSecretAckMessage(body);
+              }
+            });
+  }
+
+  /**
+   * Codec of a message payload, reporting JSON errors as
+   * {@link PoloException}s.
+   */
+  private abstract static class XmlCodec<M extends PoloMessage>
+      implements MessageCodec<M, String, JSONObject> {
+    public String encode(M message) throws PoloException {
+      try {
+        return encodeXml(message);
+      } catch (JSONException e) {
+        throw new PoloException("Error generating message.", e);
+      }
+    }
+
+    abstract String encodeXml(M message) throws JSONException;
   }
 
   /**
@@ -125,7 +242,7 @@ public class XmlMessageBuilder {
    * @return  a new {@link PoloMessage}
    * @throws PoloException  on error parsing the message
    */
-  PoloMessage outerXMLToPoloMessage(String outerXml) throws PoloException {
+  public PoloMessage outerXMLToPoloMessage(String outerXml) throws PoloException {
     JSONObject outerMessage;
     try {
       outerMessage = XML.toJSONObject(outerXml);
@@ -158,25 +275,7 @@ public class XmlMessageBuilder {
       mLastMessageId = null;
     }
 
-    switch (messageType) {
-      case PAIRING_REQUEST:
-        return getPairingRequest(payload);
-      case PAIRING_REQUEST_ACK:
-        return getPairingRequestAck(payload);
-      case OPTIONS:
-        return getOptionsMessage(payload);
-      case CONFIGURATION:
-        return getConfigMessage(payload);
-      case CONFIGURATION_ACK:
-        return getConfigAckMessage(payload);
-      case SECRET:
-        return getSecretMessage(payload);
-      case SECRET_ACK:
-        return getSecretAckMessage(payload);
-      default:
-        return null;
-    }
-
+    return mCodecs.decode(messageType, payload);
   }
 
   /*
@@ -255,15 +354,18 @@ public class XmlMessageBuilder {
     try {
       jsonOptions = body.getJSONObject(MESSAGE_CONTAINER_NAME_OPTIONS);
 
-      JSONObject inEnc = jsonOptions.getJSONObject(
+      // An empty list of encodings is parsed as an empty string.
+      JSONObject inEnc = jsonOptions.optJSONObject(
           OPTIONS_FIELD_INPUT_ENCODINGS);
-      JSONObject outEnc = jsonOptions.getJSONObject(
+      JSONObject outEnc = jsonOptions.optJSONObject(
           OPTIONS_FIELD_OUTPUT_ENCODINGS);
 
       // Input encodings
       JSONArray inEncodings = new JSONArray();
       try {
-        inEncodings = inEnc.getJSONArray(ENCODING_SUBFIELD_ENCODING);
+        if (inEnc != null) {
+          inEncodings = inEnc.getJSONArray(ENCODING_SUBFIELD_ENCODING);
+        }
       } catch (JSONException e) {
         if (inEnc.has(ENCODING_SUBFIELD_ENCODING)) {
           JSONObject enc = inEnc.getJSONObject(ENCODING_SUBFIELD_ENCODING);
@@ -279,7 +381,9 @@ public class XmlMessageBuilder {
       // Output encodings
       JSONArray outEncodings = new JSONArray();
       try {
-        outEncodings = outEnc.getJSONArray(ENCODING_SUBFIELD_ENCODING);
+        if (outEnc != null) {
+          outEncodings = outEnc.getJSONArray(ENCODING_SUBFIELD_ENCODING);
+        }
       } catch (JSONException e) {
         if (outEnc.has(ENCODING_SUBFIELD_ENCODING)) {
           JSONObject enc = outEnc.getJSONObject(ENCODING_SUBFIELD_ENCODING);
@@ -385,28 +489,15 @@ public class XmlMessageBuilder {
    * @return                the same message, as translated to XML
    */
   public String poloMessageToXML(PoloMessage message) {
-    try {
-      if (message instanceof PairingRequestMessage) {
-        return toXML((PairingRequestMessage) message);
-      } else if (message instanceof PairingRequestAckMessage) {
-        return toXML((PairingRequestAckMessage) message);
-      } else if (message instanceof OptionsMessage) {
-        return toXML((OptionsMessage) message);
-      } else if (message instanceof ConfigurationMessage) {
-        return toXML((ConfigurationMessage) message);
-      } else if (message instanceof ConfigurationAckMessage) {
-        return toXML((ConfigurationAckMessage) message);
-      } else if (message instanceof SecretMessage) {
-        return toXML((SecretMessage) message);
-      } else if (message instanceof SecretAckMessage) {
-        return toXML((SecretAckMessage) message);
-      }
+    if (!mCodecs.supports(message.getType())) {
       return null;
-    } catch (JSONException e) {
+    }
+    try {
+      return mCodecs.encode(message);
+    } catch (PoloException e) {
       e.printStackTrace();
       return "";
     }
-
   }
 
   /**
@@ -476,7 +567,7 @@ public class XmlMessageBuilder {
         message.getServiceName());
     if (message.hasClientName()) {
       pairingReq.put(PAIRING_REQUEST_FIELD_CLIENT_NAME,
-          message.getServiceName());
+          message.getClientName());
     }
     pairingReq.put(PAIRING_REQUEST_FIELD_PROTOCOL_VERSION, 1);
     return XML.toString(jsonObj);
@@ -492,7 +583,7 @@ public class XmlMessageBuilder {
     JSONObject pairingReq = new JSONObject();
     jsonObj.put(MESSAGE_CONTAINER_NAME_PAIRING_REQUEST_ACK, pairingReq);
     if (message.hasServerName()) {
-      jsonObj.put(PAIRING_REQUEST_ACK_FIELD_SERVER_NAME,
+      pairingReq.put(PAIRING_REQUEST_ACK_FIELD_SERVER_NAME,
           message.getServerName());
     }
     pairingReq.put(PAIRING_REQUEST_FIELD_PROTOCOL_VERSION, 1);
@@ -596,7 +687,7 @@ public class XmlMessageBuilder {
    * @param type  the {@link EncodingType}
    * @return      an integer representation
    */
-  private static int encodingTypeToIntVal(EncodingType type) {
+  static int encodingTypeToIntVal(EncodingType type) {
     switch (type) {
       case ENCODING_ALPHANUMERIC:
         return ENCODING_TYPE_ALPHANUMERIC;
@@ -622,7 +713,7 @@ public class XmlMessageBuilder {
    * @param intType  the value used on the wire
    * @return         the corresponding {@link EncodingType}
    */
-  private static EncodingType encodingTypeFromIntValue(int intType) {
+  static EncodingType encodingTypeFromIntValue(int intType) {
     EncodingType type = EncodingType.ENCODING_UNKNOWN;
     switch (intType) {
       case ENCODING_TYPE_ALPHANUMERIC:
@@ -17,16 +17,26 @@
 package com.google.polo.wire.xml;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.google.polo.wire.MemoryBudget;
 
 /**
  * Representation of a message sent by the XML protocol.
  */
 public class XmlMessageWrapper {
 
+    /**
+     * Charset of the receiver id.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Number of bytes in the header for the "receiver id" field.
      */
@@ -47,7 +57,24 @@ public class XmlMessageWrapper {
      */
     private static final int HEADER_FIELD_PADDING_LENGTH = 25;
 
-    private static final int HEADER_SIZE = 64;
+    /**
+     * Number of bytes in the header.
+     */
+    static final int HEADER_SIZE = 64;
+
+    /*
+     * Offsets of the header fields; the receiver id comes first.
+     */
+
+    private static final int HEADER_OFFSET_PAYLOAD_LENGTH =
+            HEADER_FIELD_RECEIVER_ID_LENGTH;
+    private static final int HEADER_OFFSET_PROTOCOL_VERSION =
+            HEADER_OFFSET_PAYLOAD_LENGTH + HEADER_FIELD_PAYLOAD_LENGTH;
+    private static final int HEADER_OFFSET_CREATOR_ID =
+            HEADER_OFFSET_PROTOCOL_VERSION
+            + HEADER_FIELD_PROTOCOL_VERSION_LENGTH;
+    private static final int HEADER_OFFSET_PADDING =
+            HEADER_OFFSET_CREATOR_ID + 1;
 
     /**
      * The id of the receiver.
@@ -78,32 +105,43 @@ public class XmlMessageWrapper {
     }
 
     /**
-     * Writes the serialized form of this message to an {@link OutputStream}
+     * Writes the serialized form of this message to an {@link OutputStream},
+     * in a single write, so that an unbuffered TLS stream sends the message in
+     * a single record.
      *
      * @param  outputStream  the destination output stream
      * @throws IOException  if an error occurred during write
      */
     public void serializeToOutputStream(OutputStream outputStream)
             throws IOException {
-        // Receiver ID
-        outputStream.write(stringToBytesPadded(mReceiverId,
-                HEADER_FIELD_RECEIVER_ID_LENGTH));
-
-        // Payload length
-        outputStream.write(intToBigEndianIntBytes(mPayload.length));
-
-        // Protocol version
-        outputStream.write(intToBigEndianShortBytes(mProtocolVersion));
-
-        // Creator ID
-        outputStream.write(mCreatorId);
+        outputStream.write(serializeToByteArray());
+    }
 
-        // Padding
-        byte[] pad = new byte[HEADER_FIELD_PADDING_LENGTH];
-        outputStream.write(pad);
+    /**
+     * Writes the serialized form of this message to a channel, in a gathering
+     * write of the header and the payload, without copying the payload.
+     *
+     * @param  channel  the destination channel
+     * @throws IOException  if an error occurred during write
+     */
+    public void serializeToChannel(GatheringByteChannel channel)
+            throws IOException {
+        ByteBuffer[] buffers = serializeToByteBuffers();
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
 
-        // Payload
-        outputStream.write(mPayload);
+    /**
+     * Returns the serialized form of this message as a header buffer followed
+     * by a buffer wrapping the payload, suitable for a gathering write. The
+     * payload is not copied.
+     *
+     * @return  the buffers, ready to be read
+     */
+    public ByteBuffer[] serializeToByteBuffers() {
+        return new ByteBuffer[] { createHeader(), ByteBuffer.wrap(mPayload) };
     }
 
     /**
@@ -114,38 +152,102 @@ public class XmlMessageWrapper {
      * @throws  IOException  if an error occurred during write
      */
     public byte[] serializeToByteArray() throws IOException {
-        int len = mPayload.length + HEADER_SIZE;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(len);
-        serializeToOutputStream(outputStream);
-        return outputStream.toByteArray();
+        byte[] result = new byte[HEADER_SIZE + mPayload.length];
+        writeHeader(result, 0, mReceiverId, mProtocolVersion, mCreatorId,
+                mPayload.length);
+        System.arraycopy(mPayload, 0, result, HEADER_SIZE, mPayload.length);
+        return result;
+    }
+
+    private ByteBuffer createHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(header, 0, mReceiverId, mProtocolVersion, mCreatorId,
+                mPayload.length);
+        return ByteBuffer.wrap(header);
+    }
+
+    /**
+     * Writes a message header into a buffer.
+     *
+     * @param buffer  the destination buffer
+     * @param offset  offset of the header in the buffer
+     * @param receiverId  the id of the receiver
+     * @param protocolVersion  the protocol version
+     * @param creatorId  the creator id
+     * @param payloadLength  the number of payload bytes following the header
+     */
+    static void writeHeader(byte[] buffer, int offset, String receiverId,
+            int protocolVersion, byte creatorId, int payloadLength) {
+        ByteBuffer header = ByteBuffer.wrap(buffer, offset, HEADER_SIZE);
+
+        // Receiver ID, padded with null characters
+        byte[] receiverIdBytes = receiverId.getBytes(UTF8);
+        int receiverIdLength = Math.min(receiverIdBytes.length,
+                HEADER_FIELD_RECEIVER_ID_LENGTH);
+        header.put(receiverIdBytes, 0, receiverIdLength);
+        Arrays.fill(buffer, header.position(),
+                offset + HEADER_FIELD_RECEIVER_ID_LENGTH, (byte) 0);
+
+        header.putInt(offset + HEADER_OFFSET_PAYLOAD_LENGTH, payloadLength);
+        header.putShort(offset + HEADER_OFFSET_PROTOCOL_VERSION,
+                (short) protocolVersion);
+        header.put(offset + HEADER_OFFSET_CREATOR_ID, creatorId);
+
+        // Padding
+        int padding = offset + HEADER_OFFSET_PADDING;
+        Arrays.fill(buffer, padding, padding + HEADER_FIELD_PADDING_LENGTH,
+                (byte) 0);
     }
 
     /**
-     * Construct a new {@link XmlMessageWrapper} from an InputStream.
+     * Construct a new {@link XmlMessageWrapper} from an InputStream, reserving
+     * the length of its payload in the memory budget of the connection before
+     * allocating it. The header is read at once, and its fields decoded in
+     * place. The payload is read directly into the array held by the new
+     * message. The caller releases the reserved memory once done with the
+     * message.
      *
      * @param stream  the {@link InputStream} to read
+     * @param budget  the account in which the payload length is reserved
      * @return  a new {@link XmlMessageWrapper}
-     * @throws IOException  if an error occurs during read
+     * @throws IOException  if an error occurs during read, or the payload does
+     *                      not fit in the memory budget
      */
-    public static XmlMessageWrapper fromInputStream(InputStream stream)
-            throws IOException {
-        String receiverId = new String(readBytes(stream,
-                HEADER_FIELD_RECEIVER_ID_LENGTH));
-        receiverId = receiverId.replace("\0", "");
-
-        byte[] payloadLenBytes = readBytes(stream, HEADER_FIELD_PAYLOAD_LENGTH);
-        long payloadLen = intBigEndianBytesToLong(payloadLenBytes);
+    public static XmlMessageWrapper fromInputStream(InputStream stream,
+            MemoryBudget.Account budget) throws IOException {
+        byte[] headerBytes = new byte[HEADER_SIZE];
+        readBytes(stream, headerBytes, HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+
+        // The receiver id is padded with null characters.
+        int receiverIdLength = 0;
+        while (receiverIdLength < HEADER_FIELD_RECEIVER_ID_LENGTH
+                && headerBytes[receiverIdLength] != 0) {
+            receiverIdLength++;
+        }
+        String receiverId = new String(headerBytes, 0, receiverIdLength, UTF8);
 
-        int protocolVersion = shortBigEndianBytesToInt(readBytes(stream,
-                HEADER_FIELD_PROTOCOL_VERSION_LENGTH));
+        long payloadLen =
+                header.getInt(HEADER_OFFSET_PAYLOAD_LENGTH) & 0xffffffffL;
+        int protocolVersion =
+                header.getShort(HEADER_OFFSET_PROTOCOL_VERSION) & 0xffff;
+        byte creatorId = header.get(HEADER_OFFSET_CREATOR_ID);
 
-        byte createorId = readBytes(stream, 1)[0];
-        byte[] padding = readBytes(stream, HEADER_FIELD_PADDING_LENGTH);
-        byte[] payload = readBytes(stream, (int)payloadLen);
+        if (!budget.reserve(payloadLen)) {
+            throw new IOException("Message exceeds the memory budget: "
+                    + payloadLen + " bytes");
+        }
+        byte[] payload;
+        try {
+            payload = new byte[(int) payloadLen];
+            readBytes(stream, payload, payload.length);
+        } catch (IOException e) {
+            budget.release(payloadLen);
+            throw e;
+        }
 
-        return new XmlMessageWrapper(receiverId, protocolVersion, createorId,
+        return new XmlMessageWrapper(receiverId, protocolVersion, creatorId,
                 payload);
-
     }
 
     /**
@@ -166,21 +268,6 @@ public class XmlMessageWrapper {
         return new ByteArrayInputStream(mPayload);
     }
 
-    /**
-     * Converts a 4-byte array of bytes to an unsigned long value.
-     */
-    private static final long intBigEndianBytesToLong(byte[] input) {
-        assert (input.length == 4);
-        long ret = (long)(input[0]) & 0xff;
-        ret <<= 8;
-        ret |= (long)(input[1]) & 0xff;
-        ret <<= 8;
-        ret |= (long)(input[2]) & 0xff;
-        ret <<= 8;
-        ret |= (long)(input[3]) & 0xff;
-        return ret;
-    }
-
     /**
      * Converts an integer value to the big endian 4-byte representation.
      */
@@ -240,13 +327,12 @@ public class XmlMessageWrapper {
      * Reads an exact number of bytes from an input stream.
      *
      * @param stream  the stream to read
+     * @param buffer  the buffer receiving the bytes
      * @param numBytes  the number of bytes desired
-     * @return  a byte array of results
      * @throws IOException  if an error occurred during read, or stream closed
      */
-    private static byte[] readBytes(InputStream stream, int numBytes)
-            throws IOException {
-        byte buffer[] = new byte[numBytes];
+    private static void readBytes(InputStream stream, byte[] buffer,
+            int numBytes) throws IOException {
         int bytesRead = 0;
 
         while (bytesRead < numBytes) {
@@ -256,7 +342,5 @@ public class XmlMessageWrapper {
             }
             bytesRead += inc;
         }
-        
-        return buffer;
     }
 }
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.exception.ProtocolErrorException;
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.CodecRegistry;
+import com.google.polo.wire.MessageCodec;
+
+/**
+ * Converts {@link PoloMessage}s to and from the XML messages of
+ * {@link XmlMessageBuilder}, working directly on UTF-8 bytes.
+ * <p>
+ * Messages are read in place from a buffer with a pull parser, and written
+ * into a buffer reused across messages, without building
+ * {@link com.google.polo.json.JSONObject} trees or intermediate
+ * {@link String}s. Messages are written framed for the wire, behind the
+ * header of {@link XmlMessageWrapper}.
+ * <p>
+ * Like {@link XmlMessageBuilder}, the codec remembers the message id of the
+ * last message decoded, and copies it to the messages it writes.
+ * <p>
+ * Messages may be decoded by one thread at a time, and written by any thread.
+ */
+public final class XmlStreamCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /*
+   * Header fields of the written messages, as XmlWireAdapter always sent.
+   */
+
+  private static final String RECEIVER_ID = "client";
+  private static final int PROTOCOL_VERSION = 1;
+  private static final byte CREATOR_ID = 0;
+
+  private static final int INITIAL_BUFFER_SIZE = 512;
+
+  /*
+   * UTF-8 encoded element names, as in XmlMessageBuilder.
+   */
+
+  private static final byte[] OUTER_TYPE =
+      utf8(XmlMessageBuilder.OUTER_FIELD_TYPE);
+  private static final byte[] OUTER_STATUS =
+      utf8(XmlMessageBuilder.OUTER_FIELD_STATUS);
+  private static final byte[] OUTER_MSG_ID =
+      utf8(XmlMessageBuilder.OUTER_FIELD_MSG_ID);
+  private static final byte[] OUTER_PAYLOAD =
+      utf8(XmlMessageBuilder.OUTER_FIELD_PAYLOAD);
+  private static final byte[] PAIRING_REQUEST_PROTOCOL_VERSION =
+      utf8(XmlMessageBuilder.PAIRING_REQUEST_FIELD_PROTOCOL_VERSION);
+  private static final byte[] OPTIONS_PREFERRED_ROLE =
+      utf8(XmlMessageBuilder.OPTIONS_FIELD_PREFERRED_ROLE);
+  private static final byte[] OPTIONS_OUTPUT_ENCODINGS =
+      utf8(XmlMessageBuilder.OPTIONS_FIELD_OUTPUT_ENCODINGS);
+  private static final byte[] OPTIONS_INPUT_ENCODINGS =
+      utf8(XmlMessageBuilder.OPTIONS_FIELD_INPUT_ENCODINGS);
+  private static final byte[] CONFIG_CLIENT_ROLE =
+      utf8(XmlMessageBuilder.CONFIG_FIELD_CLIENT_ROLE);
+  private static final byte[] ENCODING_TYPE =
+      utf8(XmlMessageBuilder.ENCODING_FIELD_TYPE);
+  private static final byte[] ENCODING_SYMBOL_LENGTH =
+      utf8(XmlMessageBuilder.ENCODING_FIELD_SYMBOL_LENGTH);
+  private static final byte[] ENCODING_MAX_LENGTH =
+      utf8(XmlMessageBuilder.ENCODING_FIELD_MAX_LENGTH);
+  private static final byte[] ENCODING_ENCODING =
+      utf8(XmlMessageBuilder.ENCODING_SUBFIELD_ENCODING);
+  private static final byte[] SECRET_SECRET =
+      utf8(XmlMessageBuilder.SECRET_FIELD_SECRET);
+  private static final byte[] CONTAINER_PAIRING_REQUEST =
+      utf8(XmlMessageBuilder.MESSAGE_CONTAINER_NAME_PAIRING_REQUEST);
+  private static final byte[] CONTAINER_PAIRING_REQUEST_ACK =
+      utf8(XmlMessageBuilder.MESSAGE_CONTAINER_NAME_PAIRING_REQUEST_ACK);
+  private static final byte[] CONTAINER_OPTIONS =
+      utf8(XmlMessageBuilder.MESSAGE_CONTAINER_NAME_OPTIONS);
+  private static final byte[] CONTAINER_CONFIG =
+      utf8(XmlMessageBuilder.MESSAGE_CONTAINER_NAME_CONFIG);
+  private static final byte[] CONTAINER_SECRET =
+      utf8(XmlMessageBuilder.MESSAGE_CONTAINER_NAME_SECRET);
+  private static final byte[] PAIRING_REQUEST_SERVICE_NAME =
+      utf8(XmlMessageBuilder.PAIRING_REQUEST_FIELD_SERVICE_NAME);
+  private static final byte[] PAIRING_REQUEST_CLIENT_NAME =
+      utf8(XmlMessageBuilder.PAIRING_REQUEST_FIELD_CLIENT_NAME);
+  private static final byte[] PAIRING_REQUEST_ACK_SERVER_NAME =
+      utf8(XmlMessageBuilder.PAIRING_REQUEST_ACK_FIELD_SERVER_NAME);
+
+  private final XmlStreamReader mReader = new XmlStreamReader();
+
+  private final XmlStreamWriter mWriter =
+      new XmlStreamWriter(INITIAL_BUFFER_SIZE);
+
+  /**
+   * Codecs of the message payloads, writing to {@link #mWriter}.
+   */
+  private final CodecRegistry<XmlStreamWriter, XmlStreamReader> mCodecs;
+
+  /**
+   * Cache of the last message id header value received.  The value should be
+   * copied to any response.
+   */
+  private volatile String mLastMessageId;
+
+  public XmlStreamCodec() {
+    mCodecs = createCodecs();
+  }
+
+  /**
+   * Decodes the payload of a message.
+   *
+   * @param buffer          the buffer holding the payload, in UTF-8
+   * @param offset          offset of the payload in the buffer
+   * @param length          length of the payload
+   * @return                a new {@link PoloMessage}
+   * @throws PoloException  on error parsing the message, or if the peer
+   *                        reported an error
+   */
+  public PoloMessage decode(byte[] buffer, int offset, int length)
+      throws PoloException {
+    XmlStreamReader reader = mReader;
+    reader.reset(buffer, offset, length);
+
+    boolean hasPayload = false;
+    boolean hasStatus = false;
+    int status = 0;
+    boolean hasType = false;
+    int type = 0;
+    String messageId = null;
+
+    while (reader.nextChild()) {
+      if (reader.nameEquals(OUTER_PAYLOAD) && !hasPayload) {
+        hasPayload = true;
+        reader.mark();
+        while (reader.nextChild()) {
+          if (reader.nameEquals(OUTER_STATUS)) {
+            status = reader.nextInt();
+            hasStatus = true;
+          } else if (reader.nameEquals(OUTER_TYPE)) {
+            type = reader.nextInt();
+            hasType = true;
+          } else {
+            reader.skipElement();
+          }
+        }
+      } else if (reader.nameEquals(OUTER_MSG_ID)) {
+        messageId = reader.nextText();
+      } else {
+        reader.skipElement();
+      }
+    }
+
+    if (!hasPayload || !hasStatus) {
+      throw new PoloException("Bad outer message.");
+    }
+    if (status != XmlMessageBuilder.STATUS_OK) {
+      throw new ProtocolErrorException("Peer reported an error.");
+    }
+    if (!hasType) {
+      throw new PoloException("Bad outer message.");
+    }
+    mLastMessageId = messageId;
+
+    reader.rewind();
+    return mCodecs.decode(PoloMessageType.fromIntVal(type), reader);
+  }
+
+  /**
+   * Writes a message to a stream, with its header, in a single write.
+   *
+   * @throws IOException    on error during write
+   * @throws PoloException  if the message could not be encoded
+   */
+  public synchronized void writeMessage(PoloMessage message,
+      OutputStream output) throws IOException, PoloException {
+    XmlStreamWriter writer = startMessage(XmlMessageBuilder.STATUS_OK);
+    writer.element(OUTER_TYPE, message.getType().getAsInt());
+    mCodecs.encode(message);
+    writer.endTag(OUTER_PAYLOAD);
+    writeFrame(output);
+  }
+
+  /**
+   * Writes an error message to a stream, with its header, in a single write.
+   * As in {@link XmlMessageBuilder#getErrorXML(Exception)}, the error code
+   * does not depend on the exception.
+   *
+   * @throws IOException  on error during write
+   */
+  public synchronized void writeErrorMessage(Exception exception,
+      OutputStream output) throws IOException {
+    startMessage(XmlMessageBuilder.STATUS_ERROR)
+        .endTag(OUTER_PAYLOAD)
+        .newline();
+    writeFrame(output);
+  }
+
+  private XmlStreamWriter startMessage(int status) {
+    XmlStreamWriter writer = mWriter;
+    writer.reset(XmlMessageWrapper.HEADER_SIZE);
+    writer.startTag(OUTER_PAYLOAD).element(OUTER_STATUS, status);
+    String messageId = mLastMessageId;
+    if (messageId != null) {
+      writer.element(OUTER_MSG_ID, messageId);
+    }
+    return writer;
+  }
+
+  /**
+   * Fills in the header of the message in {@link #mWriter}, and writes it.
+   */
+  private void writeFrame(OutputStream output) throws IOException {
+    byte[] buffer = mWriter.getBuffer();
+    int length = mWriter.getLength();
+    XmlMessageWrapper.writeHeader(buffer, 0, RECEIVER_ID, PROTOCOL_VERSION,
+        CREATOR_ID, length - XmlMessageWrapper.HEADER_SIZE);
+    output.write(buffer, 0, length);
+  }
+
+  private CodecRegistry<XmlStreamWriter, XmlStreamReader> createCodecs() {
+    return new CodecRegistry<XmlStreamWriter, XmlStreamReader>()
+        .register(PoloMessageType.PAIRING_REQUEST,
+            PairingRequestMessage.class,
+            new StreamCodec<PairingRequestMessage>() {
+              public XmlStreamWriter encode(PairingRequestMessage message) {
+                mWriter.startTag(CONTAINER_PAIRING_REQUEST)
+                    .element(PAIRING_REQUEST_SERVICE_NAME,
+                        message.getServiceName());
+                if (message.hasClientName()) {
+                  mWriter.element(PAIRING_REQUEST_CLIENT_NAME,
+                      message.getClientName());
+                }
+                return mWriter.element(PAIRING_REQUEST_PROTOCOL_VERSION, 1)
+                    .endTag(CONTAINER_PAIRING_REQUEST);
+              }
+
+              public PairingRequestMessage decode(XmlStreamReader reader)
+                  throws PoloException {
+                findContainer(reader, CONTAINER_PAIRING_REQUEST);
+                String serviceName = null;
+                String clientName = null;
+                while (reader.nextChild()) {
+                  if (reader.nameEquals(PAIRING_REQUEST_SERVICE_NAME)) {
+                    serviceName = reader.nextText();
+                  } else if (reader.nameEquals(PAIRING_REQUEST_CLIENT_NAME)) {
+                    clientName = reader.nextText();
+                  } else {
+                    reader.skipElement();
+                  }
+                }
+                return new PairingRequestMessage(require(serviceName),
+                    clientName);
+              }
+            })
+        .register(PoloMessageType.PAIRING_REQUEST_ACK,
+            PairingRequestAckMessage.class,
+            new StreamCodec<PairingRequestAckMessage>() {
+              public XmlStreamWriter encode(
+                  PairingRequestAckMessage message) {
+                mWriter.startTag(CONTAINER_PAIRING_REQUEST_ACK);
+                if (message.hasServerName()) {
+                  mWriter.element(PAIRING_REQUEST_ACK_SERVER_NAME,
+                      message.getServerName());
+                }
+                return mWriter.element(PAIRING_REQUEST_PROTOCOL_VERSION, 1)
+                    .endTag(CONTAINER_PAIRING_REQUEST_ACK);
+              }
+
+              public PairingRequestAckMessage decode(XmlStreamReader reader)
+                  throws PoloException {
+                findContainer(reader, CONTAINER_PAIRING_REQUEST_ACK);
+                String serverName = null;
+                while (reader.nextChild()) {
+                  if (reader.nameEquals(PAIRING_REQUEST_ACK_SERVER_NAME)) {
+                    serverName = reader.nextText();
+                  } else {
+                    reader.skipElement();
+                  }
+                }
+                return new PairingRequestAckMessage(serverName);
+              }
+            })
+        .register(PoloMessageType.OPTIONS, OptionsMessage.class,
+            new StreamCodec<OptionsMessage>() {
+              public XmlStreamWriter encode(OptionsMessage message) {
+                mWriter.startTag(CONTAINER_OPTIONS)
+                    .startTag(OPTIONS_INPUT_ENCODINGS);
+                for (EncodingOption encoding : message.getInputEncodingSet()) {
+                  writeEncoding(encoding);
+                }
+                mWriter.endTag(OPTIONS_INPUT_ENCODINGS)
+                    .startTag(OPTIONS_OUTPUT_ENCODINGS);
+                for (EncodingOption encoding
+                    : message.getOutputEncodingSet()) {
+                  writeEncoding(encoding);
+                }
+                return mWriter.endTag(OPTIONS_OUTPUT_ENCODINGS)
+                    .element(OPTIONS_PREFERRED_ROLE,
+                        message.getProtocolRolePreference().ordinal())
+                    .endTag(CONTAINER_OPTIONS);
+              }
+
+              public OptionsMessage decode(XmlStreamReader reader)
+                  throws PoloException {
+                findContainer(reader, CONTAINER_OPTIONS);
+                OptionsMessage options = new OptionsMessage();
+                boolean hasRole = false;
+                while (reader.nextChild()) {
+                  if (reader.nameEquals(OPTIONS_INPUT_ENCODINGS)) {
+                    while (reader.findChild(ENCODING_ENCODING)) {
+                      options.addInputEncoding(readEncoding(reader));
+                    }
+                  } else if (reader.nameEquals(OPTIONS_OUTPUT_ENCODINGS)) {
+                    while (reader.findChild(ENCODING_ENCODING)) {
+                      options.addOutputEncoding(readEncoding(reader));
+                    }
+                  } else if (reader.nameEquals(OPTIONS_PREFERRED_ROLE)) {
+                    options.setProtocolRolePreference(
+                        ProtocolRole.fromIntVal(reader.nextInt()));
+                    hasRole = true;
+                  } else {
+                    reader.skipElement();
+                  }
+                }
+                if (!hasRole) {
+                  throw new PoloException("Malformed message.");
+                }
+                return options;
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION, ConfigurationMessage.class,
+            new StreamCodec<ConfigurationMessage>() {
+              public XmlStreamWriter encode(ConfigurationMessage message) {
+                mWriter.startTag(CONTAINER_CONFIG);
+                writeEncoding(message.getEncoding());
+                return mWriter.element(CONFIG_CLIENT_ROLE,
+                        message.getClientRole().ordinal())
+                    .endTag(CONTAINER_CONFIG);
+              }
+
+              public ConfigurationMessage decode(XmlStreamReader reader)
+                  throws PoloException {
+                findContainer(reader, CONTAINER_CONFIG);
+                EncodingOption encoding = null;
+                ProtocolRole role = null;
+                while (reader.nextChild()) {
+                  if (reader.nameEquals(ENCODING_ENCODING)) {
+                    encoding = readEncoding(reader);
+                  } else if (reader.nameEquals(CONFIG_CLIENT_ROLE)) {
+                    role = ProtocolRole.fromIntVal(reader.nextInt());
+                  } else {
+                    reader.skipElement();
+                  }
+                }
+                return new ConfigurationMessage(require(encoding),
+                    require(role));
+              }
+            })
+        .register(PoloMessageType.CONFIGURATION_ACK,
+            ConfigurationAckMessage.class,
+            new StreamCodec<ConfigurationAckMessage>() {
+              public XmlStreamWriter encode(ConfigurationAckMessage message) {
+                return mWriter;
+              }
+
+              public ConfigurationAckMessage decode(XmlStreamReader reader) {
+                return new ConfigurationAckMessage();
+              }
+            })
+        .register(PoloMessageType.SECRET, SecretMessage.class,
+            new StreamCodec<SecretMessage>() {
+              public XmlStreamWriter encode(SecretMessage message) {
+                return mWriter.startTag(CONTAINER_SECRET)
+                    .element(SECRET_SECRET, message.getSecret())
+                    .endTag(CONTAINER_SECRET);
+              }
+
+              public SecretMessage decode(XmlStreamReader reader)
+                  throws PoloException {
+                findContainer(reader, CONTAINER_SECRET);
+                byte[] secret = null;
+                while (reader.nextChild()) {
+                  if (reader.nameEquals(SECRET_SECRET)) {
+                    secret = reader.nextHexBytes();
+                  } else {
+                    reader.skipElement();
+                  }
+                }
+                return new SecretMessage(require(secret));
+              }
+            })
+        .register(PoloMessageType.SECRET_ACK, SecretAckMessage.class,
+            new StreamCodec<SecretAckMessage>() {
+              public XmlStreamWriter encode(SecretAckMessage message) {
+                return mWriter;
+              }
+
+              public SecretAckMessage decode(XmlStreamReader reader) {
+                return new SecretAckMessage(null);
+              }
+            });
+  }
+
+  /**
+   * Codec of a message payload, read from within the {@code pairing_msg}
+   * element. Payloads are written to {@link #mWriter}, which is returned.
+   */
+  private abstract static class StreamCodec<M extends PoloMessage>
+      implements MessageCodec<M, XmlStreamWriter, XmlStreamReader> {
+  }
+
+  private void writeEncoding(EncodingOption encoding) {
+    mWriter.startTag(ENCODING_ENCODING)
+        .element(ENCODING_TYPE,
+            XmlMessageBuilder.encodingTypeToIntVal(encoding.getType()))
+        .element(ENCODING_SYMBOL_LENGTH, encoding.getSymbolLength())
+        .element(ENCODING_MAX_LENGTH, encoding.getSymbolLength())
+        .endTag(ENCODING_ENCODING);
+  }
+
+  /**
+   * Reads the {@code encoding} element whose start tag was just read.
+   */
+  private static EncodingOption readEncoding(XmlStreamReader reader)
+      throws PoloException {
+    boolean hasType = false;
+    int type = 0;
+    boolean hasSymbolLength = false;
+    int symbolLength = 0;
+    while (reader.nextChild()) {
+      if (reader.nameEquals(ENCODING_TYPE)) {
+        type = reader.nextInt();
+        hasType = true;
+      } else if (reader.nameEquals(ENCODING_SYMBOL_LENGTH)) {
+        symbolLength = reader.nextInt();
+        hasSymbolLength = true;
+      } else {
+        reader.skipElement();
+      }
+    }
+    if (!hasType || !hasSymbolLength) {
+      throw new PoloException("Malformed message.");
+    }
+    return new EncodingOption(
+        XmlMessageBuilder.encodingTypeFromIntValue(type), symbolLength);
+  }
+
+  /**
+   * Moves to the container element of a payload.
+   *
+   * @throws PoloException  if the message has no such container
+   */
+  private static void findContainer(XmlStreamReader reader, byte[] name)
+      throws PoloException {
+    if (!reader.findChild(name)) {
+      throw new PoloException("Malformed message.");
+    }
+  }
+
+  /**
+   * Checks that a required field was present.
+   *
+   * @throws PoloException  if it is {@code null}
+   */
+  private static <T> T require(T value) throws PoloException {
+    if (value == null) {
+      throw new PoloException("Malformed message.");
+    }
+    return value;
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(UTF8);
+  }
+}
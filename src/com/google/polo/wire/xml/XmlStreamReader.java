@@ -0,0 +1,596 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.xml;
+
+import java.nio.charset.Charset;
+
+import com.google.polo.encoding.BinaryToText;
+import com.google.polo.exception.PoloException;
+
+/**
+ * A pull parser reading an XML document in place from a buffer of UTF-8
+ * bytes, one event at a time.
+ * <p>
+ * The parser handles the subset of XML used by the Polo messages: elements,
+ * text and the predefined and numeric character references. Attributes are
+ * skipped, as are comments, processing instructions and declarations; CDATA
+ * sections are read as text. Like {@link com.google.polo.json.XML}, text is
+ * trimmed, and whitespace between elements is ignored.
+ * <p>
+ * Element names are compared to UTF-8 encoded names, so no {@link String} is
+ * created for them. Text is only decoded when it is requested.
+ */
+final class XmlStreamReader {
+
+  static final int END_DOCUMENT = 1;
+  static final int START_TAG = 2;
+  static final int END_TAG = 3;
+  static final int TEXT = 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Longest integer, in digits, that is accumulated without overflow.
+   */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  private static final byte[] COMMENT_START = utf8("<!--");
+  private static final byte[] COMMENT_END = utf8("-->");
+  private static final byte[] CDATA_START = utf8("<![CDATA[");
+  private static final byte[] CDATA_END = utf8("]]>");
+  private static final byte[] PI_END = utf8("?>");
+
+  private byte[] mBuffer;
+
+  private int mPosition;
+
+  private int mLimit;
+
+  /**
+   * Number of elements started and not ended.
+   */
+  private int mDepth;
+
+  /**
+   * Whether the last start tag was an empty-element tag, whose end tag is
+   * the next event.
+   */
+  private boolean mPendingEndTag;
+
+  /**
+   * State saved by {@link #mark()}.
+   */
+  private int mMarkPosition;
+  private int mMarkDepth;
+  private boolean mMarkPendingEndTag;
+
+  /**
+   * Holds the last text read, if it contained references.
+   */
+  private byte[] mScratch = new byte[64];
+
+  /**
+   * Location of the name of the last tag, or of the last text, either in the
+   * buffer or in the scratch array.
+   */
+  private byte[] mViewBuffer;
+  private int mViewOffset;
+  private int mViewLength;
+
+  /**
+   * Starts reading a new document.
+   *
+   * @param buffer  the UTF-8 encoded document
+   * @param offset  offset of the document in the buffer
+   * @param length  length of the document
+   */
+  void reset(byte[] buffer, int offset, int length) {
+    mBuffer = buffer;
+    mPosition = offset;
+    mLimit = offset + length;
+    mDepth = 0;
+    mPendingEndTag = false;
+  }
+
+  /**
+   * Saves the current state, to come back to it with {@link #rewind()}.
+   */
+  void mark() {
+    mMarkPosition = mPosition;
+    mMarkDepth = mDepth;
+    mMarkPendingEndTag = mPendingEndTag;
+  }
+
+  /**
+   * Comes back to the state saved by {@link #mark()}.
+   */
+  void rewind() {
+    mPosition = mMarkPosition;
+    mDepth = mMarkDepth;
+    mPendingEndTag = mMarkPendingEndTag;
+  }
+
+  /**
+   * Reads the next event.
+   *
+   * @return  {@link #START_TAG}, {@link #END_TAG}, {@link #TEXT}, or
+   *          {@link #END_DOCUMENT}
+   */
+  int next() throws PoloException {
+    if (mPendingEndTag) {
+      // The name of the empty-element tag is still in the view.
+      mPendingEndTag = false;
+      --mDepth;
+      return END_TAG;
+    }
+
+    while (mPosition < mLimit) {
+      if (mBuffer[mPosition] != '<') {
+        if (readText()) {
+          return TEXT;
+        }
+      } else if (startsWith(CDATA_START)) {
+        int start = mPosition + CDATA_START.length;
+        mPosition = indexOf(CDATA_END, start);
+        setView(mBuffer, start, mPosition - start);
+        mPosition += CDATA_END.length;
+        return TEXT;
+      } else if (startsWith(COMMENT_START)) {
+        mPosition = indexOf(COMMENT_END, mPosition + COMMENT_START.length)
+            + COMMENT_END.length;
+      } else if (mPosition + 1 < mLimit && mBuffer[mPosition + 1] == '?') {
+        mPosition = indexOf(PI_END, mPosition + 2) + PI_END.length;
+      } else if (mPosition + 1 < mLimit && mBuffer[mPosition + 1] == '!') {
+        // A declaration, such as a DOCTYPE without internal subset.
+        mPosition = indexOf('>', mPosition + 2) + 1;
+      } else if (mPosition + 1 < mLimit && mBuffer[mPosition + 1] == '/') {
+        mPosition += 2;
+        readName();
+        skipWhitespace();
+        if (mPosition >= mLimit || mBuffer[mPosition] != '>') {
+          throw syntaxError("Expected '>'");
+        }
+        ++mPosition;
+        if (--mDepth < 0) {
+          throw syntaxError("Unexpected end tag");
+        }
+        return END_TAG;
+      } else {
+        ++mPosition;
+        readName();
+        skipAttributes();
+        ++mDepth;
+        return START_TAG;
+      }
+    }
+
+    if (mDepth > 0) {
+      throw syntaxError("Unexpected end of message");
+    }
+    return END_DOCUMENT;
+  }
+
+  /**
+   * Moves to the next child element of the current element.
+   *
+   * @return  {@code true} at the start tag of a child, or {@code false} at the
+   *          end tag of the current element, or at the end of the document
+   *          for the root elements
+   */
+  boolean nextChild() throws PoloException {
+    while (true) {
+      int event = next();
+      if (event == START_TAG) {
+        return true;
+      }
+      if (event != TEXT) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Moves to the next child element of the current element with a given
+   * name, skipping other elements.
+   *
+   * @param name  the UTF-8 encoded name
+   * @return      {@code true} at the start tag of the child, or {@code false}
+   *              if the current element has no more such children
+   */
+  boolean findChild(byte[] name) throws PoloException {
+    while (nextChild()) {
+      if (nameEquals(name)) {
+        return true;
+      }
+      skipElement();
+    }
+    return false;
+  }
+
+  /**
+   * Returns {@code true} if the last tag read has a given name.
+   *
+   * @param name  the UTF-8 encoded name
+   */
+  boolean nameEquals(byte[] name) {
+    if (mViewLength != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; ++i) {
+      if (mViewBuffer[mViewOffset + i] != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Skips the rest of the element whose start tag was just read.
+   */
+  void skipElement() throws PoloException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = next();
+      if (event == START_TAG) {
+        ++depth;
+      } else if (event == END_TAG) {
+        --depth;
+      }
+    }
+  }
+
+  /**
+   * Reads the text of the element whose start tag was just read, up to its
+   * end tag.
+   */
+  String nextText() throws PoloException {
+    readElementText();
+    return new String(mViewBuffer, mViewOffset, mViewLength, UTF8);
+  }
+
+  /**
+   * Reads the text of the element whose start tag was just read as an
+   * integer. As with {@link com.google.polo.json.XML}, fractions are
+   * truncated.
+   */
+  int nextInt() throws PoloException {
+    readElementText();
+    int i = mViewOffset;
+    int end = mViewOffset + mViewLength;
+    boolean negative = false;
+    if (i < end && (mViewBuffer[i] == '-' || mViewBuffer[i] == '+')) {
+      negative = mViewBuffer[i] == '-';
+      ++i;
+    }
+    if (i < end && end - i <= MAX_LONG_DIGITS) {
+      long value = 0;
+      while (i < end) {
+        int digit = mViewBuffer[i] - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        value = value * 10 + digit;
+        ++i;
+      }
+      if (i == end) {
+        return (int) (negative ? -value : value);
+      }
+    }
+
+    // Rare forms are parsed the slow way.
+    try {
+      return (int) Double.parseDouble(
+          new String(mViewBuffer, mViewOffset, mViewLength, UTF8));
+    } catch (NumberFormatException e) {
+      throw syntaxError("Expected a number");
+    }
+  }
+
+  /**
+   * Reads the text of the element whose start tag was just read as
+   * hexadecimal bytes.
+   */
+  byte[] nextHexBytes() throws PoloException {
+    readElementText();
+    if (mViewLength == 0 || mViewLength % 2 != 0) {
+      throw syntaxError("Bad hexadecimal string");
+    }
+    byte[] result = new byte[mViewLength / 2];
+    try {
+      BinaryToText.decodeHex(mViewBuffer, mViewOffset, mViewLength, result, 0);
+    } catch (IllegalArgumentException e) {
+      throw syntaxError("Bad hexadecimal string");
+    }
+    return result;
+  }
+
+  /**
+   * Reads the text of an element into the view, consuming its end tag.
+   */
+  private void readElementText() throws PoloException {
+    int event = next();
+    if (event == END_TAG) {
+      setView(mBuffer, mPosition, 0);
+      return;
+    }
+    if (event != TEXT) {
+      throw syntaxError("Expected text");
+    }
+    byte[] textBuffer = mViewBuffer;
+    int textOffset = mViewOffset;
+    int textLength = mViewLength;
+    if (next() != END_TAG) {
+      throw syntaxError("Expected end tag");
+    }
+    setView(textBuffer, textOffset, textLength);
+  }
+
+  /**
+   * Reads text up to the next tag. Text holding references is decoded into
+   * the scratch array.
+   *
+   * @return  {@code false} if the text was only whitespace
+   */
+  private boolean readText() {
+    int start = mPosition;
+    boolean hasReference = false;
+    while (mPosition < mLimit && mBuffer[mPosition] != '<') {
+      if (mBuffer[mPosition] == '&') {
+        hasReference = true;
+      }
+      ++mPosition;
+    }
+    int end = mPosition;
+    while (start < end && (mBuffer[start] & 0xff) <= ' ') {
+      ++start;
+    }
+    while (end > start && (mBuffer[end - 1] & 0xff) <= ' ') {
+      --end;
+    }
+    if (start == end) {
+      return false;
+    }
+    if (hasReference) {
+      decodeReferences(start, end);
+    } else {
+      setView(mBuffer, start, end - start);
+    }
+    return true;
+  }
+
+  /**
+   * Copies text to the scratch array, replacing character references.
+   * Unknown references are kept as they are.
+   */
+  private void decodeReferences(int start, int end) {
+    if (mScratch.length < end - start) {
+      mScratch = new byte[Math.max(end - start, 2 * mScratch.length)];
+    }
+    int length = 0;
+    int i = start;
+    while (i < end) {
+      byte c = mBuffer[i];
+      int semicolon = c == '&' ? indexOf(';', i, end) : -1;
+      if (semicolon < 0) {
+        mScratch[length++] = c;
+        ++i;
+        continue;
+      }
+      int codePoint = referenceValue(i + 1, semicolon);
+      if (codePoint < 0) {
+        mScratch[length++] = c;
+        ++i;
+        continue;
+      }
+      // A reference is at least as long as the UTF-8 encoding of its value.
+      length = putCodePoint(length, codePoint);
+      i = semicolon + 1;
+    }
+    setView(mScratch, 0, length);
+  }
+
+  /**
+   * Returns the value of a character reference, or -1 if it is unknown.
+   *
+   * @param start  offset of the reference name, after the {@code '&'}
+   * @param end    offset of the {@code ';'}
+   */
+  private int referenceValue(int start, int end) {
+    int length = end - start;
+    if (length > 1 && mBuffer[start] == '#') {
+      int radix = 10;
+      int i = start + 1;
+      if (mBuffer[i] == 'x' || mBuffer[i] == 'X') {
+        radix = 16;
+        ++i;
+      }
+      if (i == end || end - i > 6) {
+        return -1;
+      }
+      int value = 0;
+      for (; i < end; ++i) {
+        int digit = Character.digit(mBuffer[i], radix);
+        if (digit < 0) {
+          return -1;
+        }
+        value = value * radix + digit;
+      }
+      if (value > Character.MAX_CODE_POINT
+          || (value >= Character.MIN_SURROGATE
+          && value <= Character.MAX_SURROGATE)) {
+        return -1;
+      }
+      return value;
+    }
+    if (regionEquals(start, length, "lt")) {
+      return '<';
+    } else if (regionEquals(start, length, "gt")) {
+      return '>';
+    } else if (regionEquals(start, length, "amp")) {
+      return '&';
+    } else if (regionEquals(start, length, "quot")) {
+      return '"';
+    } else if (regionEquals(start, length, "apos")) {
+      return '\'';
+    }
+    return -1;
+  }
+
+  private boolean regionEquals(int start, int length, String name) {
+    if (length != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (mBuffer[start + i] != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Appends a code point to the scratch array as UTF-8.
+   *
+   * @return  the new length of the scratch text
+   */
+  private int putCodePoint(int length, int codePoint) {
+    if (codePoint < 0x80) {
+      mScratch[length++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      mScratch[length++] = (byte) (0xc0 | (codePoint >> 6));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      mScratch[length++] = (byte) (0xe0 | (codePoint >> 12));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else {
+      mScratch[length++] = (byte) (0xf0 | (codePoint >> 18));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      mScratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+    return length;
+  }
+
+  /**
+   * Reads a tag name into the view.
+   */
+  private void readName() throws PoloException {
+    int start = mPosition;
+    while (mPosition < mLimit) {
+      byte c = mBuffer[mPosition];
+      if (c == '>' || c == '/' || (c & 0xff) <= ' ') {
+        break;
+      }
+      ++mPosition;
+    }
+    if (mPosition == start) {
+      throw syntaxError("Expected a name");
+    }
+    setView(mBuffer, start, mPosition - start);
+  }
+
+  /**
+   * Skips the attributes of a start tag, and its closing {@code '>'}.
+   */
+  private void skipAttributes() throws PoloException {
+    byte quote = 0;
+    while (mPosition < mLimit) {
+      byte c = mBuffer[mPosition++];
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') {
+        mPendingEndTag = mBuffer[mPosition - 2] == '/';
+        return;
+      }
+    }
+    throw syntaxError("Unterminated tag");
+  }
+
+  private void skipWhitespace() {
+    while (mPosition < mLimit && (mBuffer[mPosition] & 0xff) <= ' ') {
+      ++mPosition;
+    }
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    if (mLimit - mPosition < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; ++i) {
+      if (mBuffer[mPosition + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the offset of a sequence in the buffer.
+   *
+   * @throws PoloException  if it is not found
+   */
+  private int indexOf(byte[] sequence, int from) throws PoloException {
+    int last = mLimit - sequence.length;
+    for (int i = from; i <= last; ++i) {
+      int j = 0;
+      while (j < sequence.length && mBuffer[i + j] == sequence[j]) {
+        ++j;
+      }
+      if (j == sequence.length) {
+        return i;
+      }
+    }
+    throw syntaxError("Unexpected end of message");
+  }
+
+  private int indexOf(char c, int from) throws PoloException {
+    int index = indexOf(c, from, mLimit);
+    if (index < 0) {
+      throw syntaxError("Unexpected end of message");
+    }
+    return index;
+  }
+
+  private int indexOf(char c, int from, int end) {
+    for (int i = from; i < end; ++i) {
+      if (mBuffer[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void setView(byte[] buffer, int offset, int length) {
+    mViewBuffer = buffer;
+    mViewOffset = offset;
+    mViewLength = length;
+  }
+
+  private PoloException syntaxError(String message) {
+    return new PoloException("Malformed message: " + message + " at offset "
+        + mPosition);
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(UTF8);
+  }
+}
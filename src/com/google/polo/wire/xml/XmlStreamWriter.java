@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.xml;
+
+import java.util.Arrays;
+
+import com.google.polo.encoding.BinaryToText;
+
+/**
+ * Writes an XML document as UTF-8 bytes into a buffer reused across
+ * documents.
+ * <p>
+ * Adjacent tags are separated by a newline, and text holds no newlines, which
+ * is the layout some XML peers expect. Element names are given already
+ * encoded, and are written without escaping.
+ */
+final class XmlStreamWriter {
+
+  /**
+   * Longest encoding of a char: {@code &quot;}.
+   */
+  private static final int MAX_CHAR_LENGTH = 6;
+
+  /**
+   * Longest encoding of an int, with its sign.
+   */
+  private static final int MAX_INT_LENGTH = 11;
+
+  private byte[] mBuffer;
+
+  private int mLength;
+
+  /**
+   * Whether the last thing written was a tag.
+   */
+  private boolean mAfterTag;
+
+  XmlStreamWriter(int initialSize) {
+    mBuffer = new byte[initialSize];
+  }
+
+  /**
+   * Starts a new document.
+   *
+   * @param reserved  number of bytes left free at the start of the buffer
+   */
+  void reset(int reserved) {
+    ensureCapacity(reserved);
+    mLength = reserved;
+    mAfterTag = false;
+  }
+
+  /**
+   * Returns the buffer holding the document, from offset 0.
+   */
+  byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /**
+   * Returns the length of the document, including the reserved bytes.
+   */
+  int getLength() {
+    return mLength;
+  }
+
+  XmlStreamWriter startTag(byte[] name) {
+    tag(name, false);
+    return this;
+  }
+
+  XmlStreamWriter endTag(byte[] name) {
+    tag(name, true);
+    return this;
+  }
+
+  /**
+   * Writes an element holding an integer.
+   */
+  XmlStreamWriter element(byte[] name, int value) {
+    startTag(name);
+    ensureCapacity(mLength + MAX_INT_LENGTH);
+    long remaining = value;
+    if (remaining < 0) {
+      mBuffer[mLength++] = '-';
+      remaining = -remaining;
+    }
+    int end = mLength + digitCount(remaining);
+    for (int i = end - 1; i >= mLength; --i) {
+      mBuffer[i] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    mLength = end;
+    mAfterTag = false;
+    return endTag(name);
+  }
+
+  /**
+   * Writes an element holding bytes in hexadecimal.
+   */
+  XmlStreamWriter element(byte[] name, byte[] value) {
+    startTag(name);
+    ensureCapacity(mLength + 2 * value.length);
+    mLength = BinaryToText.encodeHex(value, 0, value.length, mBuffer, mLength,
+        false);
+    mAfterTag = mAfterTag && value.length == 0;
+    return endTag(name);
+  }
+
+  /**
+   * Writes an element holding text, escaped as needed. Newlines are dropped,
+   * and unpaired surrogates are written as {@code '?'}, like
+   * {@link String#getBytes(String)} does.
+   */
+  XmlStreamWriter element(byte[] name, String value) {
+    startTag(name);
+    int count = value.length();
+    ensureCapacity(mLength + MAX_CHAR_LENGTH * count);
+    byte[] buffer = mBuffer;
+    int start = mLength;
+    int length = mLength;
+    for (int i = 0; i < count; ++i) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length = putAscii(buffer, length, c);
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < count
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        buffer[length++] = '?';
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    mLength = length;
+    mAfterTag = mAfterTag && length == start;
+    return endTag(name);
+  }
+
+  /**
+   * Writes a newline.
+   */
+  XmlStreamWriter newline() {
+    put('\n');
+    mAfterTag = false;
+    return this;
+  }
+
+  /**
+   * Writes an ASCII character, escaped as needed.
+   *
+   * @return  the new length of the document
+   */
+  private static int putAscii(byte[] buffer, int length, char c) {
+    switch (c) {
+      case '&':
+        return putEntity(buffer, length, "&amp;");
+      case '<':
+        return putEntity(buffer, length, "&lt;");
+      case '>':
+        return putEntity(buffer, length, "&gt;");
+      case '"':
+        return putEntity(buffer, length, "&quot;");
+      case '\n':
+        return length;
+      default:
+        buffer[length++] = (byte) c;
+        return length;
+    }
+  }
+
+  private static int putEntity(byte[] buffer, int length, String entity) {
+    for (int i = 0; i < entity.length(); ++i) {
+      buffer[length++] = (byte) entity.charAt(i);
+    }
+    return length;
+  }
+
+  private void tag(byte[] name, boolean end) {
+    ensureCapacity(mLength + name.length + 4);
+    if (mAfterTag) {
+      mBuffer[mLength++] = '\n';
+    }
+    mBuffer[mLength++] = '<';
+    if (end) {
+      mBuffer[mLength++] = '/';
+    }
+    System.arraycopy(name, 0, mBuffer, mLength, name.length);
+    mLength += name.length;
+    mBuffer[mLength++] = '>';
+    mAfterTag = true;
+  }
+
+  private static int digitCount(long value) {
+    int count = 1;
+    while (value >= 10) {
+      value /= 10;
+      ++count;
+    }
+    return count;
+  }
+
+  private void put(char c) {
+    ensureCapacity(mLength + 1);
+    mBuffer[mLength++] = (byte) c;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(size, 2 * mBuffer.length));
+    }
+  }
+}
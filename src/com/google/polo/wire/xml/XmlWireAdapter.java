@@ -16,6 +16,7 @@
 
 package com.google.polo.wire.xml;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +26,7 @@ import com.google.polo.pairing.HexDump;
 import com.google.polo.pairing.PairingContext;
 import com.google.polo.pairing.message.PoloMessage;
 import com.google.polo.pairing.message.PoloMessage.PoloMessageType;
+import com.google.polo.wire.MemoryBudget;
 import com.google.polo.wire.PoloWireInterface;
 
 public class XmlWireAdapter implements PoloWireInterface {
@@ -34,8 +36,6 @@ public class XmlWireAdapter implements PoloWireInterface {
      */
     private static final boolean DEBUG_VERBOSE = false;
     
-    private static final int STATUS_OK = 1;
-
     /**
      * The output coming from the peer.
      */
@@ -46,18 +46,36 @@ public class XmlWireAdapter implements PoloWireInterface {
      */
     private final OutputStream mOutputStream;
     
-    private final XmlMessageBuilder mBuilder;
+    private final XmlStreamCodec mCodec;
 
     /**
-     * Constructor.
+     * Account of the memory reserved for the messages being read.
+     */
+    private final MemoryBudget.Account mBudget;
+
+    /**
+     * Constructor, using the default {@link MemoryBudget}.
      * 
      * @param input  the {@link InputStream} from the peer
      * @param output  the {@link OutputStream} to the peer
      */
     public XmlWireAdapter(InputStream input, OutputStream output) {
+      this(input, output, MemoryBudget.getDefault());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param input  the {@link InputStream} from the peer
+     * @param output  the {@link OutputStream} to the peer
+     * @param budget  the budget of the memory of the messages being read
+     */
+    public XmlWireAdapter(InputStream input, OutputStream output,
+        MemoryBudget budget) {
       mInputStream = input;
       mOutputStream = output;
-      mBuilder = new XmlMessageBuilder();
+      mCodec = new XmlStreamCodec();
+      mBudget = budget.openAccount();
     }
     
     /**
@@ -72,14 +90,18 @@ public class XmlWireAdapter implements PoloWireInterface {
     
     public PoloMessage getNextMessage() throws IOException, PoloException {
         XmlMessageWrapper outerMessage =
-                XmlMessageWrapper.fromInputStream(mInputStream);
-        if (DEBUG_VERBOSE) {
-            debug(">>> Incoming Message:");
-            debug(HexDump.dumpHexString(outerMessage.serializeToByteArray()));
+                XmlMessageWrapper.fromInputStream(mInputStream, mBudget);
+        byte[] payload = outerMessage.getPayload();
+        try {
+            if (DEBUG_VERBOSE) {
+                debug(">>> Incoming Message:");
+                debug(HexDump.dumpHexString(
+                        outerMessage.serializeToByteArray()));
+            }
+            return mCodec.decode(payload, 0, payload.length);
+        } finally {
+            mBudget.release(payload.length);
         }
-        
-        String outerXML = new String(outerMessage.getPayload());
-        return mBuilder.outerXMLToPoloMessage(outerXML);
     }
     
     public PoloMessage getNextMessage(PoloMessageType type) throws IOException, PoloException {
@@ -92,47 +114,37 @@ public class XmlWireAdapter implements PoloWireInterface {
     }
 
     public void sendErrorMessage(Exception exception) throws IOException {
-        String errorXml;
-        try {
-          errorXml = mBuilder.getErrorXML(exception);
-        } catch (PoloException e) {
-          // just ignore it; nothing we can do
-          return;
-        }
-        byte[] outBytes = errorXml.getBytes();
-        XmlMessageWrapper message = new XmlMessageWrapper("client", 1,
-            (byte) 0, outBytes);
-        writeXML(message);
+        mCodec.writeErrorMessage(exception, debugStream());
     }
     
     public void sendMessage(PoloMessage poloMessage) throws IOException {
-        String outString = mBuilder.getOuterXML(poloMessage, STATUS_OK);
-        
         // NOTE(mikey): A particular parser is very sensitive to newline
-        // placement. Strip all newlines, then add them to separate adjacent
-        // XML entities.
-        outString = outString.replace("\n", "");
-        outString = outString.replace("><", ">\n<");
-        
-        byte[] outBytes = outString.getBytes();
-        XmlMessageWrapper message = new XmlMessageWrapper("client", 1,
-            (byte) 0, outBytes);
-        writeXML(message);
+        // placement. The codec separates adjacent XML entities with newlines,
+        // and writes no other newline.
+        try {
+          mCodec.writeMessage(poloMessage, debugStream());
+        } catch (PoloException e) {
+          throw new IOException("Error generating message");
+        }
     }
     
     /**
-     * Writes a {@link XmlMessageWrapper} to the output stream as a
-     * {@link String}.
-     * 
-     * @param message       the message to write
-     * @throws IOException  on error generating the serialized message
+     * Returns the stream messages are written to, which dumps them first when
+     * verbose debugging is enabled.
      */
-    private void writeXML(XmlMessageWrapper message) throws IOException {
-      if (DEBUG_VERBOSE) {
-          debug("<<< Outgoing Message:");
-          debug(HexDump.dumpHexString(message.serializeToByteArray()));
+    private OutputStream debugStream() {
+      if (!DEBUG_VERBOSE) {
+        return mOutputStream;
       }
-      mOutputStream.write(message.serializeToByteArray());
+      return new FilterOutputStream(mOutputStream) {
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+            throws IOException {
+          debug("<<< Outgoing Message:");
+          debug(HexDump.dumpHexString(buffer, offset, length));
+          out.write(buffer, offset, length);
+        }
+      };
     }
     
     private void debug(String message) {
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link LruCache}.
+ */
+public class LruCacheTest extends TestCase {
+
+  /**
+   * Expiry time used by the expiry tests, long enough for the puts and gets
+   * before the sleep to happen well within it.
+   */
+  private static final long EXPIRY_MS = 200;
+
+  public void testConstructorRejectsNegativeArguments() {
+    try {
+      new LruCache<String, String>(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new LruCache<String, String>(1, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testPutGetRemove() {
+    LruCache<String, String> cache = new LruCache<String, String>(4);
+    assertNull(cache.put("a", "1"));
+    assertEquals("1", cache.put("a", "2"));
+    assertEquals("2", cache.get("a"));
+    assertEquals(1, cache.size());
+    assertEquals("2", cache.remove("a"));
+    assertNull(cache.remove("a"));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testEvictsLeastRecentlyWritten() {
+    LruCache<String, String> cache = new LruCache<String, String>(3);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+    cache.put("d", "4");
+    assertEquals(3, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals(Arrays.asList("2", "3", "4"), cache.values());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testGetMakesEntryMostRecentlyUsed() {
+    LruCache<String, String> cache = new LruCache<String, String>(3);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+    cache.get("a");
+    cache.put("d", "4");
+    assertNull(cache.get("b"));
+    assertEquals(Arrays.asList("3", "1", "4"), cache.values());
+  }
+
+  public void testPutMakesEntryMostRecentlyUsed() {
+    LruCache<String, String> cache = new LruCache<String, String>(3);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+    cache.put("a", "5");
+    cache.put("d", "4");
+    assertNull(cache.get("b"));
+    assertEquals(Arrays.asList("3", "5", "4"), cache.values());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testValuesDoesNotChangeOrderOrCounts() {
+    LruCache<String, String> cache = new LruCache<String, String>(2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    assertEquals(Arrays.asList("1", "2"), cache.values());
+    cache.put("c", "3");
+    assertEquals(Arrays.asList("2", "3"), cache.values());
+    assertEquals(0, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  public void testZeroMaxSizeIsUnbounded() {
+    LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(0);
+    for (int i = 0; i < 1000; ++i) {
+      cache.put(i, i);
+    }
+    assertEquals(1000, cache.size());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testHitAndMissCounts() {
+    LruCache<String, String> cache = new LruCache<String, String>(2);
+    cache.put("a", "1");
+    cache.get("a");
+    cache.get("a");
+    cache.get("b");
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(0, cache.getExpirationCount());
+  }
+
+  public void testClearKeepsCounts() {
+    LruCache<String, String> cache = new LruCache<String, String>(1);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.get("b");
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testGetDropsExpiredEntry() throws InterruptedException {
+    LruCache<String, String> cache =
+        new LruCache<String, String>(4, EXPIRY_MS);
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    Thread.sleep(EXPIRY_MS + 50);
+    assertEquals(1, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getExpirationCount());
+  }
+
+  public void testValuesDropsExpiredEntries() throws InterruptedException {
+    LruCache<String, String> cache =
+        new LruCache<String, String>(4, EXPIRY_MS);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    Thread.sleep(EXPIRY_MS + 50);
+    cache.put("c", "3");
+    assertEquals(Arrays.asList("3"), cache.values());
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.getExpirationCount());
+  }
+
+  public void testPutRestartsExpiry() throws InterruptedException {
+    LruCache<String, String> cache =
+        new LruCache<String, String>(4, EXPIRY_MS);
+    cache.put("a", "1");
+    Thread.sleep(EXPIRY_MS / 2);
+    cache.put("a", "2");
+    Thread.sleep(EXPIRY_MS / 2 + 50);
+    assertEquals("2", cache.get("a"));
+    assertEquals(0, cache.getExpirationCount());
+  }
+
+  public void testGetDoesNotRestartExpiry() throws InterruptedException {
+    LruCache<String, String> cache =
+        new LruCache<String, String>(4, EXPIRY_MS);
+    cache.put("a", "1");
+    Thread.sleep(EXPIRY_MS / 2);
+    assertEquals("1", cache.get("a"));
+    Thread.sleep(EXPIRY_MS / 2 + 50);
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getExpirationCount());
+  }
+
+  public void testConcurrentAccess() throws Throwable {
+    final int threads = 8;
+    final int operations = 10000;
+    final int maxSize = 16;
+    final LruCache<Integer, Integer> cache =
+        new LruCache<Integer, Integer>(maxSize);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      final int seed = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < operations; ++i) {
+              Integer key = (seed * 31 + i) % (2 * maxSize);
+              cache.put(key, key);
+              Integer value = cache.get(key);
+              if (value != null && !value.equals(key)) {
+                throw new AssertionError("Wrong value for " + key);
+              }
+              if (cache.size() > maxSize) {
+                throw new AssertionError("Size limit exceeded");
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    assertTrue(cache.size() <= maxSize);
+    assertEquals((long) threads * operations,
+        cache.getHitCount() + cache.getMissCount());
+    for (Integer value : cache.values()) {
+      assertNotNull(value);
+    }
+  }
+}
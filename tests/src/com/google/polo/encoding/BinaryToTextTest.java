@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.encoding;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link BinaryToText}.
+ */
+public class BinaryToTextTest extends TestCase {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * Test vectors of RFC 4648, section 10: input, Base64, hexadecimal.
+   */
+  private static final String[][] VECTORS = {
+    {"", "", ""},
+    {"f", "Zg==", "66"},
+    {"fo", "Zm8=", "666f"},
+    {"foo", "Zm9v", "666f6f"},
+    {"foob", "Zm9vYg==", "666f6f62"},
+    {"fooba", "Zm9vYmE=", "666f6f6261"},
+    {"foobar", "Zm9vYmFy", "666f6f626172"},
+  };
+
+  private static final byte[] ALL_BYTES = new byte[256];
+
+  static {
+    for (int i = 0; i < ALL_BYTES.length; ++i) {
+      ALL_BYTES[i] = (byte) i;
+    }
+  }
+
+  public void testEncodeHexVectors() throws IOException {
+    for (String[] vector : VECTORS) {
+      byte[] src = ascii(vector[0]);
+      String hex = vector[2];
+      assertEquals(hex, BinaryToText.encodeHex(src, false));
+      assertEquals(hex.toUpperCase(), BinaryToText.encodeHex(src, true));
+
+      char[] chars = new char[hex.length() + 2];
+      assertEquals(hex.length() + 1,
+          BinaryToText.encodeHex(src, 0, src.length, chars, 1, false));
+      assertEquals(hex, new String(chars, 1, hex.length()));
+
+      byte[] bytes = new byte[hex.length() + 2];
+      assertEquals(hex.length() + 1,
+          BinaryToText.encodeHex(src, 0, src.length, bytes, 1, false));
+      assertEquals(hex, new String(bytes, 1, hex.length(), ASCII));
+
+      ByteBuffer buffer = ByteBuffer.allocate(hex.length());
+      BinaryToText.encodeHex(ByteBuffer.wrap(src), buffer, true);
+      assertEquals(hex.toUpperCase(), new String(buffer.array(), ASCII));
+      assertFalse(buffer.hasRemaining());
+
+      StringBuilder out = new StringBuilder("x");
+      BinaryToText.appendHex(out, src, 0, src.length, false);
+      assertEquals("x" + hex, out.toString());
+    }
+  }
+
+  public void testEncodeHexAllBytes() {
+    String hex = BinaryToText.encodeHex(ALL_BYTES, false);
+    assertEquals("00010203", hex.substring(0, 8));
+    assertEquals("7f80", hex.substring(0xfe, 0x102));
+    assertEquals("fcfdfeff", hex.substring(0x1f8));
+    assertEquals("7F80", BinaryToText.encodeHex(ALL_BYTES, true)
+        .substring(0xfe, 0x102));
+  }
+
+  public void testEncodeHexInt() {
+    char[] chars = new char[10];
+    assertEquals(9, BinaryToText.encodeHex(0x01ab7f00, chars, 1, false));
+    assertEquals("01ab7f00", new String(chars, 1, 8));
+    BinaryToText.encodeHex(0xdeadbeef, chars, 0, true);
+    assertEquals("DEADBEEF", new String(chars, 0, 8));
+  }
+
+  public void testDecodeHexEitherCase() {
+    byte[] expected = {0x01, (byte) 0xab, 0x7f, (byte) 0xcd, (byte) 0xef};
+    assertBytes(expected, BinaryToText.decodeHex("01ab7fcdef"));
+    assertBytes(expected, BinaryToText.decodeHex("01AB7FCDEF"));
+    assertBytes(expected, BinaryToText.decodeHex("01aB7fCdEf"));
+
+    byte[] text = ascii("xx01AB7fcdef");
+    byte[] dst = new byte[6];
+    assertEquals(6, BinaryToText.decodeHex(text, 2, 10, dst, 1));
+    assertBytes(expected, Arrays.copyOfRange(dst, 1, 6));
+
+    ByteBuffer buffer = ByteBuffer.allocate(5);
+    BinaryToText.decodeHex(ByteBuffer.wrap(ascii("01Ab7FcdeF")), buffer);
+    assertBytes(expected, buffer.array());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  public void testDecodeHexRejectsOddLength() {
+    try {
+      BinaryToText.decodeHex("abc");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      BinaryToText.decodeHex(ascii("abc"), 0, 3, new byte[2], 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      BinaryToText.decodeHex(ByteBuffer.wrap(ascii("abc")),
+          ByteBuffer.allocate(2));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testDecodeHexRejectsBadDigits() {
+    String[] texts = {"0g", "g0", " 0", "0x", "-1", "\u00e90"};
+    for (String text : texts) {
+      try {
+        BinaryToText.decodeHex(text);
+        fail(text);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    byte[] high = {(byte) 0xc3, (byte) 0xa9};
+    try {
+      BinaryToText.decodeHex(high, 0, 2, new byte[1], 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testEncodeBase64Vectors() throws IOException {
+    for (String[] vector : VECTORS) {
+      byte[] src = ascii(vector[0]);
+      String base64 = vector[1];
+      assertEquals(base64.length(), BinaryToText.base64Length(src.length));
+      assertEquals(base64, BinaryToText.encodeBase64(src));
+
+      char[] chars = new char[base64.length() + 2];
+      assertEquals(base64.length() + 1,
+          BinaryToText.encodeBase64(src, 0, src.length, chars, 1));
+      assertEquals(base64, new String(chars, 1, base64.length()));
+
+      byte[] bytes = new byte[base64.length() + 2];
+      assertEquals(base64.length() + 1,
+          BinaryToText.encodeBase64(src, 0, src.length, bytes, 1));
+      assertEquals(base64, new String(bytes, 1, base64.length(), ASCII));
+
+      ByteBuffer buffer = ByteBuffer.allocate(base64.length());
+      BinaryToText.encodeBase64(ByteBuffer.wrap(src), buffer);
+      assertEquals(base64, new String(buffer.array(), ASCII));
+      assertFalse(buffer.hasRemaining());
+
+      StringBuilder out = new StringBuilder("x");
+      BinaryToText.appendBase64(out, src, 0, src.length);
+      assertEquals("x" + base64, out.toString());
+    }
+  }
+
+  public void testEncodeBase64Offset() {
+    byte[] src = ascii("xfoobarx");
+    assertEquals("Zm9vYmFy", encodeBase64(src, 1, 6));
+    assertEquals("Zm9vYg==", encodeBase64(src, 1, 4));
+    assertEquals("b29i", encodeBase64(src, 2, 3));
+  }
+
+  public void testDecodeBase64Vectors() {
+    for (String[] vector : VECTORS) {
+      byte[] expected = ascii(vector[0]);
+      String base64 = vector[1];
+      assertBytes(expected, BinaryToText.decodeBase64(base64));
+      assertBytes(expected,
+          BinaryToText.decodeBase64(ascii(base64), 0, base64.length()));
+
+      byte[] text = ascii("==" + base64);
+      byte[] dst = new byte[expected.length + 1];
+      assertEquals(expected.length + 1,
+          BinaryToText.decodeBase64(text, 2, base64.length(), dst, 1));
+      assertBytes(expected, Arrays.copyOfRange(dst, 1, dst.length));
+
+      ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+      BinaryToText.decodeBase64(ByteBuffer.wrap(ascii(base64)), buffer);
+      assertBytes(expected, buffer.array());
+      assertFalse(buffer.hasRemaining());
+    }
+  }
+
+  public void testDecodeBase64WithoutPadding() {
+    assertBytes(ascii("f"), BinaryToText.decodeBase64("Zg"));
+    assertBytes(ascii("fo"), BinaryToText.decodeBase64("Zm8"));
+    assertBytes(ascii("foob"), BinaryToText.decodeBase64(ascii("Zm9vYg"), 0,
+        6));
+  }
+
+  public void testDecodeBase64SkipsWhitespace() {
+    String text = " Zm9v\r\nYmFy\n\tZg = =\n";
+    assertBytes(ascii("foobarf"), BinaryToText.decodeBase64(text));
+    assertBytes(ascii("foobarf"),
+        BinaryToText.decodeBase64(ascii(text), 0, text.length()));
+    ByteBuffer buffer = ByteBuffer.allocate(7);
+    BinaryToText.decodeBase64(ByteBuffer.wrap(ascii(text)), buffer);
+    assertBytes(ascii("foobarf"), buffer.array());
+  }
+
+  public void testDecodeBase64RejectsBadPadding() {
+    String[] texts = {
+      "=", "==", "Z===", "Zg=", "Zm8==", "Zm9v=", "Zm9v====", "Zg==Zg==",
+      "Zg=g", "Z", "Zm9vY",
+    };
+    for (String text : texts) {
+      try {
+        BinaryToText.decodeBase64(text);
+        fail(text);
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        BinaryToText.decodeBase64(ascii(text), 0, text.length());
+        fail(text);
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        BinaryToText.decodeBase64(ByteBuffer.wrap(ascii(text)),
+            ByteBuffer.allocate(text.length()));
+        fail(text);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  public void testDecodeBase64RejectsBadCharacters() {
+    String[] texts = {"Zm9v-A==", "Zm9v_A==", "Zm.v", "Zm9\u00e9"};
+    for (String text : texts) {
+      try {
+        BinaryToText.decodeBase64(text);
+        fail(text);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  public void testRoundTrip() throws IOException {
+    Random random = new Random(42);
+    for (int length = 0; length < 64; ++length) {
+      byte[] src = new byte[length];
+      random.nextBytes(src);
+
+      assertBytes(src, BinaryToText.decodeHex(
+          BinaryToText.encodeHex(src, random.nextBoolean())));
+      assertBytes(src, BinaryToText.decodeBase64(
+          BinaryToText.encodeBase64(src)));
+
+      StringBuilder hex = new StringBuilder();
+      BinaryToText.appendHex(hex, src, 0, length, true);
+      assertBytes(src, BinaryToText.decodeHex(hex));
+      StringBuilder base64 = new StringBuilder();
+      BinaryToText.appendBase64(base64, src, 0, length);
+      assertBytes(src, BinaryToText.decodeBase64(base64));
+
+      ByteBuffer text = ByteBuffer.allocate(2 * length);
+      BinaryToText.encodeHex(ByteBuffer.wrap(src), text, false);
+      text.flip();
+      ByteBuffer decoded = ByteBuffer.allocate(length);
+      BinaryToText.decodeHex(text, decoded);
+      assertBytes(src, decoded.array());
+
+      text = ByteBuffer.allocate(BinaryToText.base64Length(length));
+      BinaryToText.encodeBase64(ByteBuffer.wrap(src), text);
+      text.flip();
+      decoded = ByteBuffer.allocate(length);
+      BinaryToText.decodeBase64(text, decoded);
+      assertBytes(src, decoded.array());
+    }
+    assertBytes(ALL_BYTES, BinaryToText.decodeBase64(
+        BinaryToText.encodeBase64(ALL_BYTES)));
+  }
+
+  private static String encodeBase64(byte[] src, int offset, int length) {
+    char[] chars = new char[BinaryToText.base64Length(length)];
+    BinaryToText.encodeBase64(src, offset, length, chars, 0);
+    return new String(chars);
+  }
+
+  private static void assertBytes(byte[] expected, byte[] actual) {
+    if (!Arrays.equals(expected, actual)) {
+      fail("Expected " + Arrays.toString(expected) + " but was "
+          + Arrays.toString(actual));
+    }
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(ASCII);
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.polo.wire.xml;
+
+import junit.framework.TestCase;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.exception.ProtocolErrorException;
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.EncodingOption.EncodingType;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link XmlStreamCodec}.
+ * <p>
+ * The expected frames are the exact bytes written on the wire, so that any
+ * change to the output of the codec shows up here. The payloads read by the
+ * decode tests include those written by {@link XmlMessageBuilder}, which
+ * orders elements differently.
+ */
+public class XmlStreamCodecTest extends TestCase {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final EncodingOption HEX_4 =
+      new EncodingOption(EncodingType.ENCODING_HEXADECIMAL, 4);
+
+  private static final String PAIRING_REQUEST =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>10</msg_type>\n"
+      + "<pairing_req>\n"
+      + "<svc_name>androidtvremote</svc_name>\n"
+      + "<proto_version>1</proto_version>\n"
+      + "</pairing_req>\n"
+      + "</pairing_msg>";
+
+  private static final String PAIRING_REQUEST_WITH_CLIENT_NAME =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>10</msg_type>\n"
+      + "<pairing_req>\n"
+      + "<svc_name>androidtvremote</svc_name>\n"
+      + "<client_name>phone</client_name>\n"
+      + "<proto_version>1</proto_version>\n"
+      + "</pairing_req>\n"
+      + "</pairing_msg>";
+
+  private static final String PAIRING_REQUEST_ACK =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>11</msg_type>\n"
+      + "<pairing_req_ack>\n"
+      + "<server_name>box</server_name>\n"
+      + "<proto_version>1</proto_version>\n"
+      + "</pairing_req_ack>\n"
+      + "</pairing_msg>";
+
+  private static final String OPTIONS =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>20</msg_type>\n"
+      + "<config_options>\n"
+      + "<in_encodings>\n"
+      + "<encoding>\n"
+      + "<type>2</type>\n"
+      + "<min_length>4</min_length>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "</in_encodings>\n"
+      + "<out_encodings>\n"
+      + "<encoding>\n"
+      + "<type>2</type>\n"
+      + "<min_length>4</min_length>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "</out_encodings>\n"
+      + "<pref_role>1</pref_role>\n"
+      + "</config_options>\n"
+      + "</pairing_msg>";
+
+  private static final String CONFIGURATION =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>30</msg_type>\n"
+      + "<config>\n"
+      + "<encoding>\n"
+      + "<type>2</type>\n"
+      + "<min_length>4</min_length>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "<role>1</role>\n"
+      + "</config>\n"
+      + "</pairing_msg>";
+
+  private static final String CONFIGURATION_ACK =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>31</msg_type>\n"
+      + "</pairing_msg>";
+
+  private static final String SECRET =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>40</msg_type>\n"
+      + "<secret>\n"
+      + "<bytes>01ab7f00</bytes>\n"
+      + "</secret>\n"
+      + "</pairing_msg>";
+
+  private static final String SECRET_ACK =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>41</msg_type>\n"
+      + "</pairing_msg>";
+
+  private static final String ERROR =
+      "<pairing_msg>\n"
+      + "<status>2</status>\n"
+      + "</pairing_msg>\n";
+
+  /*
+   * Payloads as written by XmlMessageBuilder, through XmlWireAdapter.
+   */
+
+  private static final String BUILDER_PAIRING_REQUEST =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>10</msg_type>\n"
+      + "<pairing_req>\n"
+      + "<proto_version>1</proto_version>\n"
+      + "<client_name>phone</client_name>\n"
+      + "<svc_name>androidtvremote</svc_name>\n"
+      + "</pairing_req>\n"
+      + "</pairing_msg>";
+
+  private static final String BUILDER_OPTIONS =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>20</msg_type>\n"
+      + "<config_options>\n"
+      + "<out_encodings>\n"
+      + "<encoding>\n"
+      + "<min_length>4</min_length>\n"
+      + "<type>2</type>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "</out_encodings>\n"
+      + "<pref_role>1</pref_role>\n"
+      + "<in_encodings>\n"
+      + "<encoding>\n"
+      + "<min_length>4</min_length>\n"
+      + "<type>2</type>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "</in_encodings>\n"
+      + "</config_options>\n"
+      + "</pairing_msg>";
+
+  private static final String BUILDER_CONFIGURATION =
+      "<pairing_msg>\n"
+      + "<status>1</status>\n"
+      + "<msg_type>30</msg_type>\n"
+      + "<config>\n"
+      + "<role>1</role>\n"
+      + "<encoding>\n"
+      + "<min_length>4</min_length>\n"
+      + "<type>2</type>\n"
+      + "<max_length>4</max_length>\n"
+      + "</encoding>\n"
+      + "</config>\n"
+      + "</pairing_msg>";
+
+  public void testEncodePairingRequest() throws Exception {
+    assertFrame(0xaa, PAIRING_REQUEST,
+        encode(new PairingRequestMessage("androidtvremote")));
+    assertFrame(0xcb, PAIRING_REQUEST_WITH_CLIENT_NAME,
+        encode(new PairingRequestMessage("androidtvremote", "phone")));
+  }
+
+  public void testEncodePairingRequestAck() throws Exception {
+    assertFrame(0xac, PAIRING_REQUEST_ACK,
+        encode(new PairingRequestAckMessage("box")));
+  }
+
+  public void testEncodeOptions() throws Exception {
+    assertFrame(0x17b, OPTIONS, encode(newOptions()));
+  }
+
+  public void testEncodeConfiguration() throws Exception {
+    assertFrame(0xc5, CONFIGURATION, encode(
+        new ConfigurationMessage(HEX_4, ProtocolRole.INPUT_DEVICE)));
+  }
+
+  public void testEncodeConfigurationAck() throws Exception {
+    assertFrame(0x47, CONFIGURATION_ACK,
+        encode(new ConfigurationAckMessage()));
+  }
+
+  public void testEncodeSecret() throws Exception {
+    assertFrame(0x72, SECRET, encode(newSecret()));
+  }
+
+  public void testEncodeSecretAck() throws Exception {
+    assertFrame(0x47, SECRET_ACK, encode(new SecretAckMessage(null)));
+  }
+
+  public void testEncodeError() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new XmlStreamCodec().writeErrorMessage(new Exception(), output);
+    assertFrame(0x30, ERROR, output.toByteArray());
+  }
+
+  public void testDecode() throws Exception {
+    assertEquals(new PairingRequestMessage("androidtvremote"),
+        decode(PAIRING_REQUEST));
+    assertEquals(new PairingRequestMessage("androidtvremote", "phone"),
+        decode(PAIRING_REQUEST_WITH_CLIENT_NAME));
+    assertEquals(new PairingRequestAckMessage("box"),
+        decode(PAIRING_REQUEST_ACK));
+    assertEquals(newOptions(), decode(OPTIONS));
+    assertEquals(new ConfigurationMessage(HEX_4, ProtocolRole.INPUT_DEVICE),
+        decode(CONFIGURATION));
+    assertEquals(new ConfigurationAckMessage(), decode(CONFIGURATION_ACK));
+    assertEquals(newSecret(), decode(SECRET));
+    assertEquals(new SecretAckMessage(null), decode(SECRET_ACK));
+  }
+
+  public void testDecodeBuilderOrder() throws Exception {
+    assertEquals(new PairingRequestMessage("androidtvremote", "phone"),
+        decode(BUILDER_PAIRING_REQUEST));
+    assertEquals(newOptions(), decode(BUILDER_OPTIONS));
+    assertEquals(new ConfigurationMessage(HEX_4, ProtocolRole.INPUT_DEVICE),
+        decode(BUILDER_CONFIGURATION));
+  }
+
+  public void testDecodeError() throws Exception {
+    try {
+      decode(ERROR);
+      fail();
+    } catch (ProtocolErrorException expected) {
+    }
+  }
+
+  public void testEncodedMessagesDecodeWithBuilder() throws Exception {
+    XmlMessageBuilder builder = new XmlMessageBuilder();
+    PoloMessage[] messages = {
+        new PairingRequestMessage("androidtvremote", "phone"),
+        new PairingRequestAckMessage("box"),
+        newOptions(),
+        new ConfigurationMessage(HEX_4, ProtocolRole.INPUT_DEVICE),
+        new ConfigurationAckMessage(),
+        newSecret(),
+    };
+    for (PoloMessage message : messages) {
+      byte[] frame = encode(message);
+      String payload = new String(frame, XmlMessageWrapper.HEADER_SIZE,
+          frame.length - XmlMessageWrapper.HEADER_SIZE, UTF8);
+      assertEquals(message, builder.outerXMLToPoloMessage(payload));
+    }
+  }
+
+  /**
+   * As with {@link XmlMessageBuilder}, the message id is read next to the
+   * {@code pairing_msg} element, and written within it.
+   */
+  public void testEchoesLastMessageId() throws Exception {
+    XmlStreamCodec codec = new XmlStreamCodec();
+    byte[] request = utf8("<pairing_msg>\n"
+        + "<status>1</status>\n"
+        + "<msg_type>31</msg_type>\n"
+        + "</pairing_msg>\n"
+        + "<msg_id>42</msg_id>");
+    codec.decode(request, 0, request.length);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    codec.writeMessage(new SecretAckMessage(null), output);
+    assertFrame(0x5b, "<pairing_msg>\n"
+        + "<status>1</status>\n"
+        + "<msg_id>42</msg_id>\n"
+        + "<msg_type>41</msg_type>\n"
+        + "</pairing_msg>", output.toByteArray());
+  }
+
+  private static OptionsMessage newOptions() {
+    OptionsMessage options = new OptionsMessage();
+    options.setProtocolRolePreference(ProtocolRole.INPUT_DEVICE);
+    options.addInputEncoding(HEX_4);
+    options.addOutputEncoding(HEX_4);
+    return options;
+  }
+
+  private static SecretMessage newSecret() {
+    return new SecretMessage(new byte[] {0x01, (byte) 0xab, 0x7f, 0x00});
+  }
+
+  private static byte[] encode(PoloMessage message)
+      throws IOException, PoloException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new XmlStreamCodec().writeMessage(message, output);
+    return output.toByteArray();
+  }
+
+  private static PoloMessage decode(String payload) throws PoloException {
+    byte[] bytes = utf8(payload);
+    return new XmlStreamCodec().decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Checks a frame against its expected header and payload. The header holds
+   * the receiver id "client" padded to 32 bytes, the payload length as a
+   * big endian int, protocol version 1 as a short, creator id 0, and 25
+   * bytes of padding.
+   */
+  private static void assertFrame(int payloadLength, String payload,
+      byte[] frame) {
+    byte[] expected = new byte[64 + payloadLength];
+    System.arraycopy(utf8("client"), 0, expected, 0, 6);
+    expected[32] = (byte) (payloadLength >> 24);
+    expected[33] = (byte) (payloadLength >> 16);
+    expected[34] = (byte) (payloadLength >> 8);
+    expected[35] = (byte) payloadLength;
+    expected[37] = 1;
+    byte[] payloadBytes = utf8(payload);
+    assertEquals(payloadLength, payloadBytes.length);
+    System.arraycopy(payloadBytes, 0, expected, 64, payloadLength);
+    if (!Arrays.equals(expected, frame)) {
+      fail("Expected " + Arrays.toString(expected) + " but was "
+          + Arrays.toString(frame));
+    }
+  }
+
+  private static byte[] utf8(String string) {
+    return string.getBytes(UTF8);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Counts the bytes allocated by the current thread, for the benchmarks.
+ * <p>
+ * The count comes from {@code com.sun.management.ThreadMXBean}, which is
+ * looked up by reflection since not every JVM provides it.
+ */
+final class AllocationCounter {
+
+  private static final ThreadMXBean BEAN = ManagementFactory.getThreadMXBean();
+
+  /**
+   * {@code getThreadAllocatedBytes(long)}, or null if the JVM lacks it.
+   */
+  private static final Method GET_THREAD_ALLOCATED_BYTES = lookUp();
+
+  private AllocationCounter() {
+  }
+
+  /**
+   * Returns the bytes allocated so far by the current thread, or -1 if the JVM
+   * does not report them.
+   */
+  static long allocatedBytes() {
+    if (GET_THREAD_ALLOCATED_BYTES == null) {
+      return -1;
+    }
+    try {
+      return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(BEAN,
+          Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the bytes allocated by the current thread since a count returned
+   * by {@link #allocatedBytes()}, or -1 if the JVM does not report them.
+   */
+  static long allocatedSince(long start) {
+    if (start < 0) {
+      return -1;
+    }
+    long now = allocatedBytes();
+    return now < 0 ? -1 : now - start;
+  }
+
+  private static Method lookUp() {
+    try {
+      return Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
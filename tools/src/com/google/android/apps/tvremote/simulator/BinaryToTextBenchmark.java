@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import com.google.polo.encoding.BinaryToText;
+import com.google.polo.pairing.HexDump;
+
+/**
+ * Measures the conversions of {@link BinaryToText} on a pairing secret, and
+ * compares the hexadecimal ones with the {@link BigInteger} and
+ * {@link Integer#parseInt(String, int)} conversions that
+ * {@code PoloUtil} used before.
+ * <p>
+ * The time and, when the JVM can measure them, the bytes allocated per
+ * conversion are reported. Conversions into arrays reuse their destination.
+ * <p>
+ * Usage: {@code BinaryToTextBenchmark [iterations]}.
+ */
+public final class BinaryToTextBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 1000000;
+
+  private static final int SECRET_LENGTH = 32;
+
+  /**
+   * Length of the frame dumped by {@link HexDump}.
+   */
+  private static final int FRAME_LENGTH = 256;
+
+  private BinaryToTextBenchmark() {
+  }
+
+  /**
+   * A conversion, returning a value that depends on its result.
+   */
+  private interface Conversion {
+    int run();
+  }
+
+  public static void main(String[] args) {
+    int iterations =
+        args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+    final byte[] secret = new byte[SECRET_LENGTH];
+    for (int i = 0; i < secret.length; ++i) {
+      secret[i] = (byte) (i * 37);
+    }
+    final byte[] frame = new byte[FRAME_LENGTH];
+    for (int i = 0; i < frame.length; ++i) {
+      frame[i] = (byte) i;
+    }
+    final String hex = BinaryToText.encodeHex(secret, false);
+    final String base64 = BinaryToText.encodeBase64(secret);
+    final byte[] base64Bytes = base64.getBytes();
+    final char[] chars = new char[2 * SECRET_LENGTH];
+    final byte[] bytes = new byte[2 * SECRET_LENGTH];
+    final StringBuilder builder = new StringBuilder();
+
+    String[] names = {
+      "hex encode (BigInteger)",
+      "hex encode",
+      "hex encode to char[]",
+      "hex decode (parseInt)",
+      "hex decode",
+      "base64 encode",
+      "base64 encode to byte[]",
+      "base64 append",
+      "base64 decode",
+      "base64 decode to byte[]",
+      "HexDump 256 bytes"
+    };
+    Conversion[] conversions = {
+      new Conversion() {
+        public int run() {
+          return String.format("%0" + 2 * secret.length + "x",
+              new BigInteger(1, secret)).length();
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.encodeHex(secret, false).length();
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.encodeHex(secret, 0, secret.length, chars, 0,
+              false);
+        }
+      },
+      new Conversion() {
+        public int run() {
+          byte[] result = new byte[hex.length() / 2];
+          for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(
+                hex.substring(2 * i, 2 * (i + 1)), 16);
+          }
+          return result.length;
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.decodeHex(hex).length;
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.encodeBase64(secret).length();
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.encodeBase64(secret, 0, secret.length, bytes, 0);
+        }
+      },
+      new Conversion() {
+        public int run() {
+          builder.setLength(0);
+          try {
+            BinaryToText.appendBase64(builder, secret, 0, secret.length);
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+          return builder.length();
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.decodeBase64(base64).length;
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return BinaryToText.decodeBase64(base64Bytes, 0, base64Bytes.length,
+              bytes, 0);
+        }
+      },
+      new Conversion() {
+        public int run() {
+          return HexDump.dumpHexString(frame).length();
+        }
+      }
+    };
+
+    for (int i = 0; i < conversions.length; ++i) {
+      // Warms up with the same work.
+      run(conversions[i], iterations / 10);
+      long allocated = AllocationCounter.allocatedBytes();
+      long ns = run(conversions[i], iterations);
+      allocated = AllocationCounter.allocatedSince(allocated);
+      System.out.printf("%-24s %8.1f ns", names[i], (double) ns / iterations);
+      if (allocated > 0) {
+        System.out.printf(", %d bytes allocated", allocated / iterations);
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Runs a conversion over and over.
+   *
+   * @return elapsed time in nanoseconds
+   */
+  private static long run(Conversion conversion, int iterations) {
+    int checksum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      checksum += conversion.run();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (checksum == 0) {
+      throw new AssertionError();
+    }
+    return elapsed;
+  }
+}
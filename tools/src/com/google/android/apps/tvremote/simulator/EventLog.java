@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.PrintStream;
+
+/**
+ * Timestamped event log of the simulator.
+ * <p>
+ * Each event is written on its own line as
+ * {@code <seconds>.<milliseconds> <source> <event>}, using wall clock time so
+ * that events can be matched against client logs taken on the same host.
+ */
+public final class EventLog {
+
+  private final PrintStream mOut;
+
+  public EventLog(PrintStream out) {
+    mOut = out;
+  }
+
+  /**
+   * Logs an event.
+   *
+   * @param source name of the box or component the event happened on
+   * @param event description of the event
+   */
+  public synchronized void log(String source, String event) {
+    long now = System.currentTimeMillis();
+    mOut.printf("%d.%03d %s %s%n", now / 1000, now % 1000, source, event);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509KeyManager;
+
+import com.google.android.apps.tvremote.IdentityKeyManager;
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PoloChallengeResponse;
+import com.google.polo.ssl.DummyTrustManager;
+import com.google.polo.ssl.SslUtil;
+
+/**
+ * Compares RSA and EC identities: key generation, TLS handshakes with client
+ * authentication over the loopback interface, and the pairing secret.
+ * <p>
+ * The client holds both identities, like the remote, and chooses one with an
+ * {@link IdentityKeyManager}, so the benchmark also checks that an RSA box is
+ * given the RSA identity. Each handshake uses a new context, so no session is
+ * resumed. TLS 1.2 is used, matching what phones negotiate with boxes.
+ * <p>
+ * Usage: {@code HandshakeBenchmark [handshakes]}.
+ */
+public final class HandshakeBenchmark {
+
+  private static final String[] ALGORITHMS = { "RSA", "EC" };
+
+  private static final String PROTOCOL = "TLSv1.2";
+
+  private static final String PASSWORD = "benchmark";
+
+  private static final int WARMUP_HANDSHAKES = 20;
+
+  private static final int DEFAULT_HANDSHAKES = 200;
+
+  private static final int NONCE_LENGTH = 2;
+
+  private HandshakeBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int handshakes =
+        args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_HANDSHAKES;
+
+    KeyStore clientKeyStore = newKeyStore();
+    Certificate[] clientCertificates = new Certificate[ALGORITHMS.length];
+    for (int i = 0; i < ALGORITHMS.length; ++i) {
+      long start = System.nanoTime();
+      KeyPair pair = SslUtil.generateKeyPair(ALGORITHMS[i]);
+      X509Certificate certificate =
+          SslUtil.generateX509V3Certificate(pair, "CN=remote");
+      System.out.printf("%-3s identity generated in %.1f ms%n", ALGORITHMS[i],
+          (System.nanoTime() - start) / 1e6);
+      keyStore(clientKeyStore, ALGORITHMS[i].toLowerCase(), pair,
+          certificate);
+      clientCertificates[i] = certificate;
+    }
+
+    for (String algorithm : ALGORITHMS) {
+      KeyPair pair = SslUtil.generateKeyPair(algorithm);
+      X509Certificate certificate =
+          SslUtil.generateX509V3Certificate(pair, "CN=box");
+      KeyStore serverKeyStore = newKeyStore();
+      keyStore(serverKeyStore, "box", pair, certificate);
+      run(algorithm, serverKeyStore, clientKeyStore, handshakes);
+
+      Certificate clientCertificate = clientCertificates[
+          Arrays.asList(ALGORITHMS).indexOf(algorithm)];
+      measureSecret(clientCertificate, certificate, handshakes);
+    }
+  }
+
+  private static void run(String algorithm, KeyStore serverKeyStore,
+      KeyStore clientKeyStore, int handshakes)
+      throws GeneralSecurityException, IOException {
+    SSLContext serverContext = SSLContext.getInstance(PROTOCOL);
+    serverContext.init(getKeyManagers(serverKeyStore),
+        new TrustManager[] { new DummyTrustManager() }, null);
+    final SSLServerSocket serverSocket = (SSLServerSocket)
+        serverContext.getServerSocketFactory().createServerSocket(
+            0, 50, InetAddress.getByName("127.0.0.1"));
+    serverSocket.setNeedClientAuth(true);
+    final String[] clientKeyTypes = new String[1];
+    Thread server = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            SSLSocket socket = (SSLSocket) serverSocket.accept();
+            try {
+              socket.startHandshake();
+              clientKeyTypes[0] = socket.getSession().getPeerCertificates()[0]
+                  .getPublicKey().getAlgorithm();
+            } catch (IOException e) {
+              System.err.println("Handshake failed: " + e);
+            } finally {
+              socket.close();
+            }
+          }
+        } catch (IOException e) {
+          // server socket closed
+        }
+      }
+    }, "benchmark-server");
+    server.start();
+
+    try {
+      for (int i = 0; i < WARMUP_HANDSHAKES; ++i) {
+        handshake(clientKeyStore, serverSocket.getLocalPort());
+      }
+      long[] times = new long[handshakes];
+      for (int i = 0; i < handshakes; ++i) {
+        long start = System.nanoTime();
+        handshake(clientKeyStore, serverSocket.getLocalPort());
+        times[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(times);
+      long total = 0;
+      for (long time : times) {
+        total += time;
+      }
+      System.out.printf("%-3s box: %d handshakes, mean %.2f ms, median %.2f ms,"
+          + " p90 %.2f ms, remote identity %s%n", algorithm, handshakes,
+          total / 1e6 / handshakes, times[handshakes / 2] / 1e6,
+          times[handshakes * 9 / 10] / 1e6, clientKeyTypes[0]);
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  private static void handshake(KeyStore clientKeyStore, int port)
+      throws GeneralSecurityException, IOException {
+    X509KeyManager keyManager =
+        (X509KeyManager) getKeyManagers(clientKeyStore)[0];
+    IdentityKeyManager identityKeyManager =
+        new IdentityKeyManager(keyManager, "rsa", "ec");
+    SSLContext context = SSLContext.getInstance(PROTOCOL);
+    context.init(new KeyManager[] { identityKeyManager },
+        new TrustManager[] {
+            identityKeyManager.observe(new DummyTrustManager()) },
+        null);
+    SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(
+        InetAddress.getByName("127.0.0.1"), port);
+    try {
+      socket.startHandshake();
+      // Waits for the server to finish with the socket.
+      socket.getInputStream().read();
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Measures the computation of the pairing secret, done by both peers.
+   */
+  private static void measureSecret(Certificate clientCertificate,
+      Certificate serverCertificate, int iterations) throws PoloException {
+    PoloChallengeResponse challenge = new PoloChallengeResponse(
+        clientCertificate, serverCertificate, null);
+    byte[] nonce = new byte[NONCE_LENGTH];
+    for (int i = 0; i < WARMUP_HANDSHAKES; ++i) {
+      challenge.getGamma(nonce);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      nonce[0] = (byte) i;
+      challenge.getGamma(nonce);
+    }
+    System.out.printf("%-3s secret: %.1f us%n",
+        clientCertificate.getPublicKey().getAlgorithm(),
+        (System.nanoTime() - start) / 1e3 / iterations);
+  }
+
+  private static KeyStore newKeyStore() throws GeneralSecurityException {
+    try {
+      return SslUtil.getEmptyKeyStore();
+    } catch (IOException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  private static void keyStore(KeyStore keyStore, String alias, KeyPair pair,
+      Certificate certificate) throws GeneralSecurityException {
+    keyStore.setKeyEntry(alias, pair.getPrivate(), PASSWORD.toCharArray(),
+        new Certificate[] { certificate });
+  }
+
+  private static KeyManager[] getKeyManagers(KeyStore keyStore)
+      throws GeneralSecurityException {
+    KeyManagerFactory factory = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(keyStore, PASSWORD.toCharArray());
+    return factory.getKeyManagers();
+  }
+}
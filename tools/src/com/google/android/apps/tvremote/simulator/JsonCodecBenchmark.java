@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.ByteArrayOutputStream;
+
+import com.google.polo.json.JSONObject;
+import com.google.polo.pairing.PoloUtil;
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.EncodingOption.EncodingType;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.json.JsonMessageBuilder;
+import com.google.polo.wire.json.JsonStreamCodec;
+
+/**
+ * Compares the conversion of Polo JSON messages through
+ * {@link JsonStreamCodec} with the conversion through {@link JSONObject}
+ * trees and {@link String}s that {@code JsonWireAdapter} used before.
+ * <p>
+ * Each round encodes, then decodes, the seven messages of a pairing, as
+ * framed on the wire. The time per round is reported, and the bytes allocated
+ * per round when the JVM can measure them.
+ * <p>
+ * Usage: {@code JsonCodecBenchmark [rounds]}.
+ */
+public final class JsonCodecBenchmark {
+
+  private static final int DEFAULT_ROUNDS = 200000;
+
+  private static final int SECRET_LENGTH = 32;
+
+  private JsonCodecBenchmark() {
+  }
+
+  /**
+   * A way of converting messages.
+   */
+  private interface Conversion {
+    /**
+     * Writes a framed message.
+     */
+    void encode(PoloMessage message, ByteArrayOutputStream output)
+        throws Exception;
+
+    /**
+     * Reads a message without its preamble.
+     */
+    PoloMessage decode(byte[] buffer, int offset, int length) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+
+    final JsonStreamCodec codec = new JsonStreamCodec();
+    Conversion streaming = new Conversion() {
+      public void encode(PoloMessage message, ByteArrayOutputStream output)
+          throws Exception {
+        codec.writeMessage(message, output);
+      }
+
+      public PoloMessage decode(byte[] buffer, int offset, int length)
+          throws Exception {
+        return codec.decode(buffer, offset, length);
+      }
+    };
+    Conversion tree = new Conversion() {
+      public void encode(PoloMessage message, ByteArrayOutputStream output)
+          throws Exception {
+        byte[] bytes =
+            JsonMessageBuilder.getOuterJson(message).toString().getBytes();
+        output.write(PoloUtil.intToBigEndianIntBytes(bytes.length));
+        output.write(bytes);
+      }
+
+      public PoloMessage decode(byte[] buffer, int offset, int length)
+          throws Exception {
+        return JsonMessageBuilder.outerJsonToPoloMessage(
+            new JSONObject(new String(buffer, offset, length)));
+      }
+    };
+
+    PoloMessage[] messages = pairingMessages();
+    String[] names = { "JSONObject tree", "streaming" };
+    Conversion[] conversions = { tree, streaming };
+    for (int i = 0; i < conversions.length; ++i) {
+      // Warms up with the same work.
+      run(conversions[i], messages, rounds / 10);
+      long allocated = AllocationCounter.allocatedBytes();
+      long ns = run(conversions[i], messages, rounds);
+      allocated = AllocationCounter.allocatedSince(allocated);
+      System.out.printf("%-16s %.2f us per pairing", names[i],
+          ns / 1e3 / rounds);
+      if (allocated > 0) {
+        System.out.printf(", %d bytes allocated", allocated / rounds);
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Runs rounds of conversions.
+   *
+   * @return elapsed time in nanoseconds
+   */
+  private static long run(Conversion conversion, PoloMessage[] messages,
+      int rounds) throws Exception {
+    FrameOutputStream output = new FrameOutputStream();
+    int checksum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; ++i) {
+      for (PoloMessage message : messages) {
+        output.reset();
+        conversion.encode(message, output);
+        PoloMessage decoded =
+            conversion.decode(output.getBuffer(), 4, output.size() - 4);
+        checksum += decoded.getType().getAsInt();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (checksum == 0) {
+      throw new AssertionError();
+    }
+    return elapsed;
+  }
+
+  /**
+   * Gives access to the written bytes without copying them.
+   */
+  private static final class FrameOutputStream extends ByteArrayOutputStream {
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  private static PoloMessage[] pairingMessages() {
+    EncodingOption encoding =
+        new EncodingOption(EncodingType.ENCODING_HEXADECIMAL, 4);
+    OptionsMessage options = new OptionsMessage();
+    options.addInputEncoding(encoding);
+    options.addOutputEncoding(encoding);
+    options.setProtocolRolePreference(ProtocolRole.INPUT_DEVICE);
+    byte[] secret = new byte[SECRET_LENGTH];
+    for (int i = 0; i < secret.length; ++i) {
+      secret[i] = (byte) (i * 37);
+    }
+    return new PoloMessage[] {
+      new PairingRequestMessage("AnymoteProtocol", "Living room remote"),
+      new PairingRequestAckMessage("Living room TV"),
+      options,
+      new ConfigurationMessage(encoding, ProtocolRole.INPUT_DEVICE),
+      new ConfigurationAckMessage(),
+      new SecretMessage(secret),
+      new SecretAckMessage(secret)
+    };
+  }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.AsyncPairingSession;
+import com.google.polo.pairing.ClientPairingSession;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingListener.LogLevel;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.ServerPairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.ssl.DummySSLServerSocketFactory;
+import com.google.polo.ssl.DummySSLSocketFactory;
+import com.google.polo.ssl.SslUtil;
+import com.google.polo.wire.DetectingWireAdapter;
+import com.google.polo.wire.MemoryBudget;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+
+/**
+ * Load test of Polo pairing over TLS on the loopback interface.
+ * <p>
+ * A {@link ServerPairingSession} endpoint serves pairing like a box, with a
+ * thread per connection, while a number of concurrent clients pair with it
+ * over and over using {@link ClientPairingSession}. With {@code -async}, the
+ * server runs an {@link AsyncPairingSession} per connection instead, all of
+ * them on an executor with the given number of threads, and the connection
+ * threads only read the messages. The secret displayed by the server is
+ * encoded, handed to the client it belongs to, and decoded there, as if typed
+ * by the user. Each wire format is run in turn; the server detects the format
+ * of each client with {@link DetectingWireAdapter}.
+ * <p>
+ * For each format, the test reports the pairing rate, the latency of each
+ * phase as seen by the clients (TLS handshake, initialization, configuration
+ * and pairing), and the peak number of live threads. Running it with an
+ * increasing number of clients shows where pairing saturates.
+ * <p>
+ * Usage: {@code PairingLoadTest [-async threads] [clients [pairings per
+ * client [formats]]]}, where formats are names of {@link WireFormat} values.
+ */
+public final class PairingLoadTest {
+
+  private static final String KEYSTORE_PASSWORD = "1234567890";
+
+  private static final String SERVICE_NAME = "load-test";
+
+  private static final int SECRET_SYMBOL_LENGTH = 4;
+
+  private static final int BACKLOG = 200;
+
+  private static final int DEFAULT_CLIENTS = 16;
+
+  private static final int DEFAULT_PAIRINGS = 20;
+
+  private static final int WARMUP_PAIRINGS = 20;
+
+  /**
+   * Time a client waits for the server to display the secret.
+   */
+  private static final long SECRET_TIMEOUT_MS = 30000;
+
+  /**
+   * Prefix of the log messages reporting the state changes of a session.
+   */
+  private static final String STATE_MESSAGE = "New state: ";
+
+  private static final String[] PHASES =
+      { "handshake", "initialization", "configuration", "pairing" };
+
+  private final WireFormat mFormat;
+
+  private final KeyManager[] mServerKeyManagers;
+
+  private final KeyManager[] mClientKeyManagers;
+
+  /**
+   * Number of threads of the executor running the server sessions, or
+   * {@code 0} for a {@link ServerPairingSession} per connection.
+   */
+  private final int mServerThreads;
+
+  /**
+   * Executor of the server sessions, while running with {@code -async}.
+   */
+  private ExecutorService mServerExecutor;
+
+  /**
+   * Secrets displayed by the server, by local port of the client they belong
+   * to.
+   */
+  private final ConcurrentMap<Integer, BlockingQueue<String>> mSecrets;
+
+  private final AtomicInteger mSucceeded;
+
+  private final AtomicInteger mFailed;
+
+  private final Latencies[] mLatencies;
+
+  private ServerSocket mServerSocket;
+
+  private long mElapsedNs;
+
+  private PairingLoadTest(WireFormat format, KeyManager[] serverKeyManagers,
+      KeyManager[] clientKeyManagers, int serverThreads) {
+    mFormat = format;
+    mServerKeyManagers = serverKeyManagers;
+    mClientKeyManagers = clientKeyManagers;
+    mServerThreads = serverThreads;
+    mSecrets = new ConcurrentHashMap<Integer, BlockingQueue<String>>();
+    mSucceeded = new AtomicInteger();
+    mFailed = new AtomicInteger();
+    mLatencies = new Latencies[PHASES.length];
+    for (int i = 0; i < PHASES.length; ++i) {
+      mLatencies[i] = new Latencies();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int serverThreads = 0;
+    if (args.length > 1 && args[0].equals("-async")) {
+      serverThreads = Integer.parseInt(args[1]);
+      args = Arrays.copyOfRange(args, 2, args.length);
+    }
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+    int pairings =
+        args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAIRINGS;
+    List<WireFormat> formats = new ArrayList<WireFormat>();
+    for (int i = 2; i < args.length; ++i) {
+      formats.add(WireFormat.valueOf(args[i]));
+    }
+    if (formats.isEmpty()) {
+      formats.addAll(Arrays.asList(WireFormat.values()));
+    }
+
+    KeyManager[] serverKeyManagers = createKeyManagers("box");
+    KeyManager[] clientKeyManagers = createKeyManagers("remote");
+    System.out.printf("%d clients, %d pairings each, %s%n", clients,
+        pairings, serverThreads == 0 ? "thread per server session"
+            : serverThreads + " server executor threads");
+    for (WireFormat format : formats) {
+      // Warms up with a separate instance, so its results are not reported.
+      PairingLoadTest warmup = new PairingLoadTest(format, serverKeyManagers,
+          clientKeyManagers, serverThreads);
+      warmup.run(1, WARMUP_PAIRINGS);
+      PairingLoadTest test = new PairingLoadTest(format, serverKeyManagers,
+          clientKeyManagers, serverThreads);
+      test.report(test.run(clients, pairings));
+    }
+  }
+
+  /**
+   * Runs the clients until all their pairings ended.
+   *
+   * @return peak number of live threads
+   */
+  private int run(int clients, final int pairings)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    startServer();
+    threads.resetPeakThreadCount();
+    long start = System.nanoTime();
+    try {
+      Thread[] workers = new Thread[clients];
+      for (int i = 0; i < clients; ++i) {
+        final String clientName = "client-" + i;
+        workers[i] = new Thread(new Runnable() {
+          public void run() {
+            for (int j = 0; j < pairings; ++j) {
+              pair(clientName);
+            }
+          }
+        }, clientName);
+        workers[i].start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } finally {
+      mServerSocket.close();
+      if (mServerExecutor != null) {
+        mServerExecutor.shutdown();
+      }
+    }
+    mElapsedNs = System.nanoTime() - start;
+    return threads.getPeakThreadCount();
+  }
+
+  private void report(int peakThreads) {
+    int succeeded = mSucceeded.get();
+    System.out.printf("%s: %d succeeded, %d failed, %.1f pairings/s,"
+        + " peak threads %d%n", mFormat, succeeded, mFailed.get(),
+        succeeded / (mElapsedNs / 1e9), peakThreads);
+    for (int i = 0; i < PHASES.length; ++i) {
+      System.out.printf("  %-14s %s%n", PHASES[i], mLatencies[i]);
+    }
+    MemoryBudget budget = MemoryBudget.getDefault();
+    System.out.printf("  memory budget: peak %d bytes, %d frames rejected%n",
+        budget.getPeakReservedBytes(), budget.getRejectedFrames());
+  }
+
+  private void startServer() throws IOException, GeneralSecurityException {
+    mServerSocket = DummySSLServerSocketFactory.fromKeyManagers(
+        mServerKeyManagers).createServerSocket(0, BACKLOG,
+            InetAddress.getByName("127.0.0.1"));
+    ((SSLServerSocket) mServerSocket).setNeedClientAuth(true);
+    if (mServerThreads != 0) {
+      mServerExecutor = Executors.newFixedThreadPool(mServerThreads);
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          final SSLSocket socket;
+          try {
+            socket = (SSLSocket) mServerSocket.accept();
+          } catch (IOException e) {
+            // the run is over
+            return;
+          }
+          new Thread(new Runnable() {
+            public void run() {
+              if (mServerExecutor != null) {
+                serveAsync(socket);
+              } else {
+                serve(socket);
+              }
+            }
+          }).start();
+        }
+      }
+    }, "pairing-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void serve(SSLSocket socket) {
+    try {
+      PairingContext context = PairingContext.fromSslSocket(socket, true);
+      ServerPairingSession session = new ServerPairingSession(
+          DetectingWireAdapter.fromContext(context), context, "box");
+      EncodingOption hexEnc = new EncodingOption(
+          EncodingOption.EncodingType.ENCODING_HEXADECIMAL,
+          SECRET_SYMBOL_LENGTH);
+      session.addInputEncoding(hexEnc);
+      session.addOutputEncoding(hexEnc);
+      session.doPair(new ServerListener(getSecretQueue(socket.getPort())));
+    } catch (PoloException e) {
+      System.err.println("Server failed: " + e);
+    } catch (IOException e) {
+      System.err.println("Server failed: " + e);
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Runs an {@link AsyncPairingSession} on the connection. The session owns
+   * no threads: this connection thread is its transport, reading the messages
+   * and delivering them to the session. The socket is closed once the session
+   * ended, which also ends a read still blocked here.
+   */
+  private void serveAsync(SSLSocket socket) {
+    PairingContext context;
+    try {
+      context = PairingContext.fromSslSocket(socket, true);
+    } catch (PoloException e) {
+      System.err.println("Server failed: " + e);
+      closeQuietly(socket);
+      return;
+    } catch (IOException e) {
+      System.err.println("Server failed: " + e);
+      closeQuietly(socket);
+      return;
+    }
+    PoloWireInterface protocol = DetectingWireAdapter.fromContext(context);
+    AsyncPairingSession session = AsyncPairingSession.newServerSession(
+        protocol, context, mServerExecutor, "box");
+    EncodingOption hexEnc = new EncodingOption(
+        EncodingOption.EncodingType.ENCODING_HEXADECIMAL,
+        SECRET_SYMBOL_LENGTH);
+    session.addInputEncoding(hexEnc);
+    session.addOutputEncoding(hexEnc);
+    session.start(new AsyncServerListener(getSecretQueue(socket.getPort()),
+        socket));
+    while (!session.hasCompleted()) {
+      try {
+        session.onMessage(protocol.getNextMessage());
+      } catch (PoloException e) {
+        session.onError(e);
+        return;
+      } catch (IOException e) {
+        session.onError(e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Pairs once, and records the outcome.
+   */
+  private void pair(String clientName) {
+    long start = System.nanoTime();
+    SSLSocket socket = null;
+    int port = -1;
+    try {
+      socket = (SSLSocket) DummySSLSocketFactory.fromKeyManagers(
+          mClientKeyManagers).createSocket(
+              InetAddress.getByName("127.0.0.1"), mServerSocket.getLocalPort());
+      port = socket.getLocalPort();
+      socket.startHandshake();
+      long handshakeNs = System.nanoTime() - start;
+
+      PairingContext context = PairingContext.fromSslSocket(socket, false);
+      PoloWireInterface protocol = mFormat.getWireInterface(context);
+      ClientPairingSession session = new ClientPairingSession(protocol,
+          context, SERVICE_NAME, clientName);
+      session.addInputEncoding(new EncodingOption(
+          EncodingOption.EncodingType.ENCODING_HEXADECIMAL,
+          SECRET_SYMBOL_LENGTH));
+      ClientListener listener = new ClientListener(getSecretQueue(port));
+      if (session.doPair(listener) && listener.mStateTimes.size() == 4) {
+        mSucceeded.incrementAndGet();
+        mLatencies[0].add(handshakeNs);
+        for (int i = 1; i < PHASES.length; ++i) {
+          mLatencies[i].add(listener.mStateTimes.get(i)
+              - listener.mStateTimes.get(i - 1));
+        }
+      } else {
+        mFailed.incrementAndGet();
+      }
+    } catch (GeneralSecurityException e) {
+      fail(e);
+    } catch (PoloException e) {
+      fail(e);
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      if (socket != null) {
+        closeQuietly(socket);
+      }
+      mSecrets.remove(port);
+    }
+  }
+
+  private void fail(Exception e) {
+    if (mFailed.incrementAndGet() <= 10) {
+      System.err.println("Client failed: " + e);
+    }
+  }
+
+  /**
+   * Returns the queue passing the secret to the client on a port.
+   */
+  private BlockingQueue<String> getSecretQueue(int clientPort) {
+    BlockingQueue<String> queue = new ArrayBlockingQueue<String>(1);
+    BlockingQueue<String> existing = mSecrets.putIfAbsent(clientPort, queue);
+    return existing != null ? existing : queue;
+  }
+
+  /**
+   * Displays the secret by handing it to the client.
+   */
+  private static final class ServerListener implements PairingListener {
+    private final BlockingQueue<String> mSecret;
+
+    ServerListener(BlockingQueue<String> secret) {
+      mSecret = secret;
+    }
+
+    public void onSessionCreated(PairingSession session) {
+    }
+
+    public void onPerformInputDeviceRole(PairingSession session) {
+      // Clients always enter the secret.
+      session.teardown();
+    }
+
+    public void onPerformOutputDeviceRole(PairingSession session,
+        byte[] gamma) {
+      mSecret.offer(session.getEncoder().encodeToString(gamma));
+    }
+
+    public void onSessionEnded(PairingSession session) {
+    }
+
+    public void onLogMessage(LogLevel level, String message) {
+    }
+  }
+
+  /**
+   * Displays the secret of an {@link AsyncPairingSession} by handing it to
+   * the client, and closes the connection once the session ended.
+   */
+  private static final class AsyncServerListener
+      implements AsyncPairingSession.Listener {
+    private final BlockingQueue<String> mSecret;
+
+    private final SSLSocket mSocket;
+
+    AsyncServerListener(BlockingQueue<String> secret, SSLSocket socket) {
+      mSecret = secret;
+      mSocket = socket;
+    }
+
+    public void onPerformInputDeviceRole(AsyncPairingSession session) {
+      // Clients always enter the secret.
+      session.teardown();
+    }
+
+    public void onPerformOutputDeviceRole(AsyncPairingSession session,
+        byte[] gamma) {
+      mSecret.offer(session.getEncoder().encodeToString(gamma));
+    }
+
+    public void onSessionEnded(AsyncPairingSession session) {
+      if (!session.hasSucceeded()) {
+        System.err.println("Server failed: session ended in failure");
+      }
+      closeQuietly(mSocket);
+    }
+
+    public void onLogMessage(LogLevel level, String message) {
+    }
+  }
+
+  /**
+   * Enters the secret displayed by the server, and records the time of each
+   * state change of the session.
+   */
+  private static final class ClientListener implements PairingListener {
+    private final BlockingQueue<String> mSecret;
+
+    /**
+     * {@link System#nanoTime()} of the state changes: initializing,
+     * configuring, pairing and the final state.
+     */
+    final List<Long> mStateTimes = new ArrayList<Long>();
+
+    ClientListener(BlockingQueue<String> secret) {
+      mSecret = secret;
+    }
+
+    public void onSessionCreated(PairingSession session) {
+    }
+
+    public void onPerformInputDeviceRole(PairingSession session) {
+      try {
+        String secret = mSecret.poll(SECRET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (secret == null) {
+          session.teardown();
+          return;
+        }
+        session.setSecret(session.getEncoder().decodeToBytes(secret));
+      } catch (InterruptedException e) {
+        session.teardown();
+      }
+    }
+
+    public void onPerformOutputDeviceRole(PairingSession session,
+        byte[] gamma) {
+      // Servers always display the secret.
+      session.teardown();
+    }
+
+    public void onSessionEnded(PairingSession session) {
+    }
+
+    public void onLogMessage(LogLevel level, String message) {
+      // State changes are only reported as log messages.
+      if (level == LogLevel.LOG_INFO && message.startsWith(STATE_MESSAGE)) {
+        mStateTimes.add(System.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Latencies of one phase.
+   */
+  private static final class Latencies {
+    private long[] mValues = new long[64];
+
+    private int mCount;
+
+    synchronized void add(long ns) {
+      if (mCount == mValues.length) {
+        mValues = Arrays.copyOf(mValues, mCount * 2);
+      }
+      mValues[mCount++] = ns;
+    }
+
+    @Override
+    public synchronized String toString() {
+      if (mCount == 0) {
+        return "no samples";
+      }
+      long[] sorted = Arrays.copyOf(mValues, mCount);
+      Arrays.sort(sorted);
+      long total = 0;
+      for (long value : sorted) {
+        total += value;
+      }
+      return String.format("mean %.2f ms, median %.2f ms, p90 %.2f ms,"
+          + " p99 %.2f ms, max %.2f ms", total / 1e6 / mCount,
+          sorted[mCount / 2] / 1e6, sorted[mCount * 9 / 10] / 1e6,
+          sorted[mCount * 99 / 100] / 1e6, sorted[mCount - 1] / 1e6);
+    }
+  }
+
+  private static KeyManager[] createKeyManagers(String name)
+      throws GeneralSecurityException {
+    KeyPair pair = SslUtil.generateRsaKeyPair();
+    X509Certificate cert = SslUtil.generateX509V3Certificate(pair,
+        "CN=" + name);
+    KeyStore keyStore;
+    try {
+      keyStore = SslUtil.getEmptyKeyStore();
+    } catch (IOException e) {
+      throw new GeneralSecurityException(e);
+    }
+    keyStore.setKeyEntry(name, pair.getPrivate(),
+        KEYSTORE_PASSWORD.toCharArray(), new Certificate[] { cert });
+    KeyManagerFactory factory = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+    return factory.getKeyManagers();
+  }
+
+  private static void closeQuietly(SSLSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PoloChallengeResponse;
+import com.google.polo.ssl.SslUtil;
+
+/**
+ * Measures the throughput of pairing secret verification, as done by a box
+ * pairing many remotes.
+ * <p>
+ * Each verification checks a gamma entered by the user and computes the
+ * alpha sent back, like the input role of a session. Two cases are measured
+ * for RSA and EC keys: a new {@link PoloChallengeResponse} for each
+ * verification, which is the cost of one pairing session, and repeated
+ * verifications with a single instance. Threads verify in parallel, each
+ * with its own instances.
+ * <p>
+ * Usage: {@code SecretBenchmark [verifications per thread [threads]]}.
+ */
+public final class SecretBenchmark {
+
+  private static final String[] ALGORITHMS = { "RSA", "EC" };
+
+  private static final int DEFAULT_VERIFICATIONS = 100000;
+
+  private static final int DEFAULT_THREADS = 1;
+
+  private static final int NONCE_LENGTH = 2;
+
+  private SecretBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int verifications =
+        args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VERIFICATIONS;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+
+    for (String algorithm : ALGORITHMS) {
+      X509Certificate client = SslUtil.generateX509V3Certificate(
+          SslUtil.generateKeyPair(algorithm), "CN=remote");
+      X509Certificate server = SslUtil.generateX509V3Certificate(
+          SslUtil.generateKeyPair(algorithm), "CN=box");
+      for (boolean perSession : new boolean[] { true, false }) {
+        // Warms up with the same work.
+        run(client, server, perSession, verifications / 10, threads);
+        long ns = run(client, server, perSession, verifications, threads);
+        long total = (long) verifications * threads;
+        System.out.printf("%-3s %-16s %d threads: %.0f verifications/s,"
+            + " %.2f us each%n", algorithm,
+            perSession ? "new per session" : "reused", threads,
+            total / (ns / 1e9), ns / 1e3 * threads / total);
+      }
+    }
+  }
+
+  /**
+   * Runs the verifications on all threads.
+   *
+   * @return elapsed time in nanoseconds
+   */
+  private static long run(final X509Certificate client,
+      final X509Certificate server, final boolean perSession,
+      final int verifications, int threads) throws Exception {
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; ++i) {
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            verify(client, server, perSession, verifications);
+          } catch (PoloException e) {
+            error.set(e);
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (error.get() != null) {
+      throw error.get();
+    }
+    return elapsed;
+  }
+
+  private static void verify(X509Certificate client, X509Certificate server,
+      boolean perSession, int verifications) throws PoloException {
+    PoloChallengeResponse display =
+        new PoloChallengeResponse(client, server, null);
+    byte[] nonce = new byte[NONCE_LENGTH];
+    PoloChallengeResponse input = null;
+    for (int i = 0; i < verifications; ++i) {
+      nonce[0] = (byte) i;
+      nonce[1] = (byte) (i >> 8);
+      byte[] gamma = display.getGamma(nonce);
+      if (perSession || input == null) {
+        input = new PoloChallengeResponse(client, server, null);
+      }
+      if (!input.checkGamma(gamma)) {
+        throw new PoloException("Secret failed check");
+      }
+      input.getAlpha(input.extractNonce(gamma));
+    }
+  }
+}
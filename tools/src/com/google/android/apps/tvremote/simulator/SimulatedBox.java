@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+import com.google.anymote.common.AnymoteFactory;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.server.RequestReceiver;
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.ServerPairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.ssl.DummySSLServerSocketFactory;
+import com.google.polo.ssl.SSLServerSocketFactoryWrapper;
+import com.google.polo.ssl.SslUtil;
+import com.google.polo.wire.DetectingWireAdapter;
+import com.google.polo.wire.PoloWireInterface;
+
+/**
+ * A simulated Google TV box.
+ * <p>
+ * Accepts TLS Anymote connections on its port and runs Polo pairing sessions
+ * on the port above it, like a real box. Each box has its own certificate.
+ * Clients that did not pair with the box are rejected during the Anymote
+ * handshake unless pairing is not required. The pairing secret shown by a real
+ * box, and every event received from remotes, are written to the event log.
+ */
+public final class SimulatedBox {
+
+  private static final String KEY_ALIAS = "simulated-box";
+
+  private static final String KEYSTORE_PASSWORD = "1234567890";
+
+  private static final int SECRET_SYMBOL_LENGTH = 4;
+
+  private static final int BACKLOG = 50;
+
+  private final String mName;
+
+  private final InetAddress mAddress;
+
+  private final int mPort;
+
+  private final boolean mRequirePairing;
+
+  private final EventLog mLog;
+
+  private final KeyManager[] mKeyManagers;
+
+  /**
+   * Certificates of the clients that paired with this box.
+   */
+  private final Set<Certificate> mPairedClients;
+
+  private ServerSocket mAnymoteSocket;
+
+  private ServerSocket mPairingSocket;
+
+  /**
+   * Constructor.
+   *
+   * @param name name advertised by the box, without whitespace
+   * @param address local address of the box
+   * @param port Anymote port; pairing runs on the port above it
+   * @param requirePairing whether Anymote clients have to pair first
+   * @param log event log
+   * @throws GeneralSecurityException if the identity could not be generated
+   */
+  public SimulatedBox(String name, InetAddress address, int port,
+      boolean requirePairing, EventLog log) throws GeneralSecurityException {
+    mName = name;
+    mAddress = address;
+    mPort = port;
+    mRequirePairing = requirePairing;
+    mLog = log;
+    mPairedClients = Collections.synchronizedSet(new HashSet<Certificate>());
+    mKeyManagers = createKeyManagers(name);
+  }
+
+  private static KeyManager[] createKeyManagers(String name)
+      throws GeneralSecurityException {
+    KeyPair pair = SslUtil.generateRsaKeyPair();
+    X509Certificate cert = SslUtil.generateX509V3Certificate(pair,
+        "CN=" + name);
+    KeyStore keyStore;
+    try {
+      keyStore = SslUtil.getEmptyKeyStore();
+    } catch (IOException e) {
+      throw new GeneralSecurityException(e);
+    }
+    keyStore.setKeyEntry(KEY_ALIAS, pair.getPrivate(),
+        KEYSTORE_PASSWORD.toCharArray(), new Certificate[] { cert });
+    KeyManagerFactory factory = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+    return factory.getKeyManagers();
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public InetAddress getAddress() {
+    return mAddress;
+  }
+
+  public int getPort() {
+    return mPort;
+  }
+
+  /**
+   * Opens the Anymote and pairing ports and starts accepting connections.
+   *
+   * @throws IOException if a port could not be opened
+   * @throws GeneralSecurityException if TLS could not be initialized
+   */
+  public synchronized void start()
+      throws IOException, GeneralSecurityException {
+    TrustManager[] trustManagers = { new PairedClientTrustManager() };
+    mAnymoteSocket = new SSLServerSocketFactoryWrapper(mKeyManagers,
+        trustManagers).createServerSocket(mPort, BACKLOG, mAddress);
+    mPairingSocket = DummySSLServerSocketFactory.fromKeyManagers(mKeyManagers)
+        .createServerSocket(mPort + 1, BACKLOG, mAddress);
+    ((SSLServerSocket) mAnymoteSocket).setNeedClientAuth(true);
+    ((SSLServerSocket) mPairingSocket).setNeedClientAuth(true);
+
+    startAcceptThread(mAnymoteSocket, "anymote", new ConnectionHandler() {
+      public void handle(SSLSocket socket) {
+        handleAnymote(socket);
+      }
+    });
+    startAcceptThread(mPairingSocket, "pairing", new ConnectionHandler() {
+      public void handle(SSLSocket socket) {
+        handlePairing(socket);
+      }
+    });
+    mLog.log(mName, "started " + mAddress.getHostAddress() + ":" + mPort);
+  }
+
+  /**
+   * Closes the ports. Established connections are left to the clients.
+   */
+  public synchronized void stop() {
+    closeQuietly(mAnymoteSocket);
+    closeQuietly(mPairingSocket);
+    mLog.log(mName, "stopped");
+  }
+
+  private interface ConnectionHandler {
+    void handle(SSLSocket socket);
+  }
+
+  private void startAcceptThread(final ServerSocket serverSocket,
+      String kind, final ConnectionHandler handler) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          final SSLSocket socket;
+          try {
+            socket = (SSLSocket) serverSocket.accept();
+          } catch (IOException e) {
+            // stop() was called
+            return;
+          }
+          // Handshakes are slow, keep accepting meanwhile.
+          new Thread(new Runnable() {
+            public void run() {
+              handler.handle(socket);
+            }
+          }).start();
+        }
+      }
+    }, mName + "-" + kind);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void handleAnymote(final SSLSocket socket) {
+    final String peer = socket.getInetAddress().getHostAddress();
+    long start = System.currentTimeMillis();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.startHandshake();
+    } catch (IOException e) {
+      mLog.log(mName, "anymote handshake failed " + peer + ": "
+          + e.getMessage());
+      closeQuietly(socket);
+      return;
+    }
+    mLog.log(mName, "anymote connected " + peer + " handshake="
+        + (System.currentTimeMillis() - start) + "ms");
+
+    ErrorListener errorListener = new ErrorListener() {
+      public void onIoError(String message, Throwable exception) {
+        mLog.log(mName, "anymote disconnected " + peer + ": " + message);
+        closeQuietly(socket);
+      }
+    };
+    try {
+      AnymoteFactory.getServerAdapter(new LoggingReceiver(),
+          socket.getInputStream(), socket.getOutputStream(), errorListener);
+    } catch (IOException e) {
+      errorListener.onIoError("Cannot open streams", e);
+    }
+  }
+
+  private void handlePairing(SSLSocket socket) {
+    String peer = socket.getInetAddress().getHostAddress();
+    long start = System.currentTimeMillis();
+    try {
+      PairingContext context;
+      try {
+        context = PairingContext.fromSslSocket(socket, true);
+      } catch (PoloException e) {
+        mLog.log(mName, "pairing failed " + peer + ": " + e.getMessage());
+        return;
+      } catch (IOException e) {
+        mLog.log(mName, "pairing failed " + peer + ": " + e.getMessage());
+        return;
+      }
+      mLog.log(mName, "pairing started " + peer + " handshake="
+          + (System.currentTimeMillis() - start) + "ms");
+
+      // Remotes speak any wire format.
+      PoloWireInterface protocol = DetectingWireAdapter.fromContext(context);
+      ServerPairingSession session =
+          new ServerPairingSession(protocol, context, mName);
+      EncodingOption hexEnc = new EncodingOption(
+          EncodingOption.EncodingType.ENCODING_HEXADECIMAL,
+          SECRET_SYMBOL_LENGTH);
+      session.addInputEncoding(hexEnc);
+      session.addOutputEncoding(hexEnc);
+
+      if (session.doPair(new LoggingPairingListener())) {
+        mPairedClients.add(context.getClientCertificate());
+        mLog.log(mName, "pairing succeeded " + peer + " client="
+            + session.getClientName() + " time="
+            + (System.currentTimeMillis() - start) + "ms");
+      } else {
+        mLog.log(mName, "pairing failed " + peer + " time="
+            + (System.currentTimeMillis() - start) + "ms");
+      }
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Accepts Anymote clients that paired with this box.
+   */
+  private final class PairedClientTrustManager implements X509TrustManager {
+    public void checkClientTrusted(X509Certificate[] chain, String authType)
+        throws CertificateException {
+      if (mRequirePairing
+          && (chain.length == 0 || !mPairedClients.contains(chain[0]))) {
+        throw new CertificateException("Client did not pair");
+      }
+    }
+
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      // Never acts as a client.
+    }
+
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  }
+
+  /**
+   * Shows the pairing secret by logging it.
+   */
+  private final class LoggingPairingListener implements PairingListener {
+    public void onSessionCreated(PairingSession session) {
+    }
+
+    public void onPerformInputDeviceRole(PairingSession session) {
+      // Remotes always enter the secret.
+      session.teardown();
+    }
+
+    public void onPerformOutputDeviceRole(PairingSession session,
+        byte[] gamma) {
+      mLog.log(mName, "pairing secret "
+          + session.getEncoder().encodeToString(gamma));
+    }
+
+    public void onSessionEnded(PairingSession session) {
+    }
+
+    public void onLogMessage(LogLevel level, String message) {
+      if (level == LogLevel.LOG_ERROR) {
+        mLog.log(mName, "pairing error: " + message);
+      }
+    }
+  }
+
+  /**
+   * Logs the events injected by a remote.
+   */
+  private final class LoggingReceiver implements RequestReceiver {
+    public void onKeyEvent(Code keycode, Action action) {
+      mLog.log(mName, "key " + action + " " + keycode);
+    }
+
+    public void onMouseEvent(int xDelta, int yDelta) {
+      mLog.log(mName, "mouse " + xDelta + " " + yDelta);
+    }
+
+    public void onMouseWheel(int xScroll, int yScroll) {
+      mLog.log(mName, "wheel " + xScroll + " " + yScroll);
+    }
+
+    public void onData(String type, String data) {
+      mLog.log(mName, "data " + type + " " + data);
+    }
+
+    public void onConnect(ConnectInfo connectInfo) {
+      mLog.log(mName, "connect " + connectInfo);
+    }
+
+    public boolean onFling(String uri) {
+      mLog.log(mName, "fling " + uri);
+      return true;
+    }
+  }
+
+  private static void closeQuietly(ServerSocket socket) {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private static void closeQuietly(SSLSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.android.apps.tvremote.discovery.BroadcastDiscoveryEngine;
+
+/**
+ * Headless simulator of a network of Google TV boxes.
+ * <p>
+ * Answers the discovery probes of {@code BroadcastDiscoveryClient} on behalf
+ * of any number of {@link SimulatedBox}es, which serve pairing and Anymote
+ * connections. Many boxes can run on one host by giving each its own address,
+ * e.g. consecutive addresses of {@code 127.0.0.0/8} for local clients, or
+ * addresses added to a LAN interface for clients on real phones.
+ * <p>
+ * Broadcast probes are received on the wildcard address and answered for
+ * every box; each answer is sent from the address of its box, since clients
+ * identify devices by the source address of the answer. Unicast probes to the
+ * address of a box are answered for that box only.
+ * <p>
+ * Usage: {@code TvSimulator [count [first address [port]]]}. With the
+ * wildcard address all boxes share it and use consecutive port pairs instead.
+ */
+public final class TvSimulator implements Runnable {
+
+  private static final String SOURCE = "discovery";
+
+  private static final String COMMAND_DISCOVER = "discover";
+
+  private static final int DEFAULT_PORT = 9551;
+
+  private static final int MAX_PROBE_SIZE = 256;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final List<SimulatedBox> mBoxes;
+
+  private final EventLog mLog;
+
+  private final Selector mSelector;
+
+  /**
+   * Channel receiving broadcast probes, and answering for boxes on the
+   * wildcard address.
+   */
+  private final DatagramChannel mSharedChannel;
+
+  /**
+   * Channel of each box, or {@code null} for boxes on the wildcard address.
+   */
+  private final DatagramChannel[] mBoxChannels;
+
+  private volatile boolean mStopped;
+
+  /**
+   * Constructor.
+   *
+   * @param boxes simulated boxes to answer for
+   * @param discoveryPort port to receive probes on
+   * @param log event log
+   * @throws IOException if the discovery port could not be bound
+   */
+  public TvSimulator(List<SimulatedBox> boxes, int discoveryPort,
+      EventLog log) throws IOException {
+    mBoxes = new ArrayList<SimulatedBox>(boxes);
+    mLog = log;
+    mSelector = Selector.open();
+    mSharedChannel = openChannel(new InetSocketAddress(discoveryPort), null);
+    mBoxChannels = new DatagramChannel[mBoxes.size()];
+    for (int i = 0; i < mBoxChannels.length; ++i) {
+      SimulatedBox box = mBoxes.get(i);
+      if (!box.getAddress().isAnyLocalAddress()) {
+        mBoxChannels[i] = openChannel(
+            new InetSocketAddress(box.getAddress(), discoveryPort), box);
+      }
+    }
+  }
+
+  private DatagramChannel openChannel(InetSocketAddress address,
+      SimulatedBox box) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.socket().setReuseAddress(true);
+    channel.socket().setBroadcast(true);
+    channel.socket().bind(address);
+    channel.configureBlocking(false);
+    channel.register(mSelector, SelectionKey.OP_READ, box);
+    return channel;
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_PROBE_SIZE);
+    try {
+      while (!mStopped) {
+        mSelector.select();
+        for (Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+            it.hasNext();) {
+          SelectionKey key = it.next();
+          it.remove();
+          DatagramChannel channel = (DatagramChannel) key.channel();
+          SocketAddress from;
+          while ((from = channel.receive(buffer)) != null) {
+            buffer.flip();
+            int replyPort = parseProbe(buffer);
+            buffer.clear();
+            if (replyPort < 0) {
+              continue;
+            }
+            InetSocketAddress replyTo = new InetSocketAddress(
+                ((InetSocketAddress) from).getAddress(), replyPort);
+            mLog.log(SOURCE, "probe from " + replyTo);
+            answer((SimulatedBox) key.attachment(), replyTo);
+          }
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // stop() was called
+    } catch (IOException e) {
+      mLog.log(SOURCE, "stopped: " + e.getMessage());
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Stops answering probes.
+   */
+  public void stop() {
+    mStopped = true;
+    mSelector.wakeup();
+  }
+
+  private void close() {
+    try {
+      for (SelectionKey key : mSelector.keys()) {
+        key.channel().close();
+      }
+      mSelector.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Answers a probe.
+   *
+   * @param target box the probe was addressed to, or {@code null} for all
+   *     boxes
+   */
+  private void answer(SimulatedBox target, InetSocketAddress replyTo) {
+    for (int i = 0; i < mBoxes.size(); ++i) {
+      SimulatedBox box = mBoxes.get(i);
+      if (target != null && box != target) {
+        continue;
+      }
+      DatagramChannel channel =
+          mBoxChannels[i] != null ? mBoxChannels[i] : mSharedChannel;
+      String response = BroadcastDiscoveryEngine.DESIRED_SERVICE + " "
+          + box.getName() + " " + box.getPort() + "\n";
+      try {
+        channel.send(ASCII.encode(response), replyTo);
+      } catch (IOException e) {
+        mLog.log(box.getName(), "cannot answer probe: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Parses a "discover <service type> <reply port>" probe.
+   *
+   * @return the reply port, or {@code -1} if the probe is invalid or for
+   *     another service
+   */
+  private static int parseProbe(ByteBuffer buffer) {
+    String probe = ASCII.decode(buffer).toString().trim();
+    String[] tokens = probe.split("\\s+");
+    if (tokens.length != 3 || !COMMAND_DISCOVER.equals(tokens[0])
+        || !BroadcastDiscoveryEngine.DESIRED_SERVICE.equals(tokens[1])) {
+      return -1;
+    }
+    try {
+      int port = Integer.parseInt(tokens[2]);
+      return port > 0 && port <= 0xFFFF ? port : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public static void main(String[] args)
+      throws IOException, GeneralSecurityException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    InetAddress firstAddress = InetAddress.getByName(
+        args.length > 1 ? args[1] : "0.0.0.0");
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+
+    EventLog log = new EventLog(System.out);
+    List<SimulatedBox> boxes = new ArrayList<SimulatedBox>(count);
+    for (int i = 0; i < count; ++i) {
+      SimulatedBox box;
+      if (firstAddress.isAnyLocalAddress()) {
+        box = new SimulatedBox("Simulator-" + (i + 1), firstAddress,
+            port + 2 * i, true, log);
+      } else {
+        box = new SimulatedBox("Simulator-" + (i + 1),
+            addOffset(firstAddress, i), port, true, log);
+      }
+      box.start();
+      boxes.add(box);
+    }
+    new TvSimulator(boxes, BroadcastDiscoveryEngine.BROADCAST_SERVER_PORT,
+        log).run();
+  }
+
+  private static InetAddress addOffset(InetAddress address, int offset)
+      throws UnknownHostException {
+    byte[] quads = address.getAddress();
+    int ip = ((quads[0] & 0xFF) << 24) | ((quads[1] & 0xFF) << 16)
+        | ((quads[2] & 0xFF) << 8) | (quads[3] & 0xFF);
+    ip += offset;
+    return InetAddress.getByAddress(new byte[] {
+        (byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip });
+  }
+}
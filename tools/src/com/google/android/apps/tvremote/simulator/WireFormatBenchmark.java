@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.tvremote.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.polo.pairing.message.ConfigurationAckMessage;
+import com.google.polo.pairing.message.ConfigurationMessage;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.pairing.message.EncodingOption.EncodingType;
+import com.google.polo.pairing.message.OptionsMessage;
+import com.google.polo.pairing.message.OptionsMessage.ProtocolRole;
+import com.google.polo.pairing.message.PairingRequestAckMessage;
+import com.google.polo.pairing.message.PairingRequestMessage;
+import com.google.polo.pairing.message.PoloMessage;
+import com.google.polo.pairing.message.SecretAckMessage;
+import com.google.polo.pairing.message.SecretMessage;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+import com.google.polo.wire.json.JsonWireAdapter;
+import com.google.polo.wire.protobuf.ProtobufWireAdapter;
+import com.google.polo.wire.xml.XmlWireAdapter;
+
+/**
+ * Measures the cost of each {@link WireFormat}, by sending and receiving
+ * every kind of {@link PoloMessage} through the wire adapters over in-memory
+ * streams.
+ * <p>
+ * For each format and message, the benchmark reports the bytes on the wire,
+ * and for sending and receiving apart: the time per message, the bytes
+ * allocated per message and the allocation rate, when the JVM can measure
+ * allocations. Results can be compared across builds to spot regressions.
+ * <p>
+ * Usage: {@code WireFormatBenchmark [iterations [formats]]}, where formats
+ * are names of {@link WireFormat} values.
+ */
+public final class WireFormatBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 50000;
+
+  private static final int SECRET_LENGTH = 32;
+
+  private WireFormatBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations =
+        args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    List<WireFormat> formats = new ArrayList<WireFormat>();
+    for (int i = 1; i < args.length; ++i) {
+      formats.add(WireFormat.valueOf(args[i]));
+    }
+    if (formats.isEmpty()) {
+      formats.addAll(Arrays.asList(WireFormat.values()));
+    }
+
+    System.out.printf("%-16s %-19s %5s  %9s %9s %9s  %9s %9s %9s%n",
+        "format", "message", "wire", "send ns", "send B", "send MB/s",
+        "recv ns", "recv B", "recv MB/s");
+    for (WireFormat format : formats) {
+      for (PoloMessage message : pairingMessages()) {
+        // Records the frame of the message, which is then received over and
+        // over.
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        createAdapter(format, null, frame).sendMessage(message);
+        byte[] wire = frame.toByteArray();
+
+        PoloWireInterface sender =
+            createAdapter(format, null, new NullOutputStream());
+        PoloWireInterface receiver =
+            createAdapter(format, new ReplayInputStream(wire), null);
+
+        // Warms up with the same work.
+        send(sender, message, iterations);
+        receive(receiver, message, iterations);
+        Result sent = send(sender, message, iterations);
+        Result received = receive(receiver, message, iterations);
+
+        System.out.printf("%-16s %-19s %5d  %s  %s%n", format,
+            message.getType(), wire.length, sent.format(iterations),
+            received.format(iterations));
+      }
+    }
+  }
+
+  /**
+   * Creates the adapter of a format over streams.
+   */
+  private static PoloWireInterface createAdapter(WireFormat format,
+      InputStream input, OutputStream output) {
+    switch (format) {
+      case PROTOCOL_BUFFERS:
+        return new ProtobufWireAdapter(input, output);
+      case JSON:
+        return new JsonWireAdapter(input, output);
+      case XML:
+      default:
+        return new XmlWireAdapter(input, output);
+    }
+  }
+
+  private static Result send(PoloWireInterface sender, PoloMessage message,
+      int iterations) throws Exception {
+    long allocated = AllocationCounter.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      sender.sendMessage(message);
+    }
+    long elapsed = System.nanoTime() - start;
+    return new Result(elapsed, AllocationCounter.allocatedSince(allocated));
+  }
+
+  private static Result receive(PoloWireInterface receiver,
+      PoloMessage message, int iterations) throws Exception {
+    long allocated = AllocationCounter.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      receiver.getNextMessage(message.getType());
+    }
+    long elapsed = System.nanoTime() - start;
+    return new Result(elapsed, AllocationCounter.allocatedSince(allocated));
+  }
+
+  /**
+   * Time and allocations of a number of iterations.
+   */
+  private static final class Result {
+    private final long mElapsedNs;
+
+    /**
+     * Bytes allocated, or a negative value if they are not measured.
+     */
+    private final long mAllocated;
+
+    Result(long elapsedNs, long allocated) {
+      mElapsedNs = elapsedNs;
+      mAllocated = allocated;
+    }
+
+    String format(int iterations) {
+      double ns = (double) mElapsedNs / iterations;
+      if (mAllocated < 0) {
+        return String.format("%9.0f %9s %9s", ns, "-", "-");
+      }
+      double bytes = (double) mAllocated / iterations;
+      // Bytes per nanosecond are gigabytes per second.
+      return String.format("%9.0f %9.0f %9.0f", ns, bytes,
+          bytes / ns * 1e3);
+    }
+  }
+
+  /**
+   * Returns the same bytes over and over.
+   */
+  private static final class ReplayInputStream extends InputStream {
+    private final byte[] mData;
+
+    private int mPosition;
+
+    ReplayInputStream(byte[] data) {
+      mData = data;
+    }
+
+    @Override
+    public int read() {
+      int value = mData[mPosition] & 0xff;
+      mPosition = (mPosition + 1) % mData.length;
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      int count = Math.min(length, mData.length - mPosition);
+      System.arraycopy(mData, mPosition, buffer, offset, count);
+      mPosition = (mPosition + count) % mData.length;
+      return count;
+    }
+  }
+
+  /**
+   * Discards the bytes written.
+   */
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+    }
+  }
+
+  private static PoloMessage[] pairingMessages() {
+    EncodingOption encoding =
+        new EncodingOption(EncodingType.ENCODING_HEXADECIMAL, 4);
+    OptionsMessage options = new OptionsMessage();
+    options.addInputEncoding(encoding);
+    options.addOutputEncoding(encoding);
+    options.setProtocolRolePreference(ProtocolRole.INPUT_DEVICE);
+    byte[] secret = new byte[SECRET_LENGTH];
+    for (int i = 0; i < secret.length; ++i) {
+      secret[i] = (byte) (i * 37);
+    }
+    return new PoloMessage[] {
+      new PairingRequestMessage("AnymoteProtocol", "Living room remote"),
+      new PairingRequestAckMessage("Living room TV"),
+      options,
+      new ConfigurationMessage(encoding, ProtocolRole.INPUT_DEVICE),
+      new ConfigurationAckMessage(),
+      new SecretMessage(secret),
+      new SecretAckMessage(secret)
+    };
+  }
+}